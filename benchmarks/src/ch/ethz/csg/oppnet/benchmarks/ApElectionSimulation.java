@@ -0,0 +1,382 @@
+
+package ch.ethz.csg.oppnet.benchmarks;
+
+import ch.ethz.csg.oppnet.beaconing.ApElection;
+
+import com.google.common.base.Ticker;
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulates the takeover of an access point by {@link ApElection}, and measures how long it takes
+ * until all remaining nodes are connected to a single new access point.
+ * <p>
+ * A group of clients is connected to an access point, and exchanges beacons with it (each one lost
+ * with a fixed probability) until the access point disappears. Each client then notices the lost
+ * connection after a random delay, and either takes over after its slot, or scans for a new access
+ * point until it finds one. Optionally, the first successor disappears together with the access
+ * point, so that the next one has to take over.
+ * <p>
+ * Run with {@code gradle :benchmarks:apElectionSimulation}, optionally passing the number of
+ * clients, trials and the beacon loss rate as {@code -PapElectionSimulationArgs="10 100 0.2"}.
+ */
+public class ApElectionSimulation {
+    private static final long BEACON_PERIOD_MILLIS = 3000;
+    private static final long WARMUP_MILLIS = 60 * 1000;
+    private static final long MAX_DETECTION_MILLIS = 8000;
+    private static final long MIN_AP_ENABLING_MILLIS = 2000;
+    private static final long MAX_AP_ENABLING_MILLIS = 5000;
+    private static final long SCAN_MILLIS = 4000;
+    private static final long MAX_SIMULATION_MILLIS = 5 * 60 * 1000;
+    private static final double ELIGIBLE_SHARE = 0.7;
+
+    private final int mClientCount;
+    private final double mLossRate;
+    private final boolean mSuccessorFails;
+    private final Random mRandom;
+
+    // The state of the current trial
+    private final PriorityQueue<Event> mEvents = new PriorityQueue<>();
+    private long mEventSequence;
+    private long mNowMillis;
+    private Node[] mNodes;
+    private int mStartedApCount;
+
+    private final Ticker mTicker = new Ticker() {
+        @Override
+        public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(mNowMillis);
+        }
+    };
+
+    /**
+     * @param clientCount the number of clients of the initial access point
+     * @param lossRate the probability that a beacon is lost
+     * @param successorFails true if the first successor disappears together with the access point
+     * @param seed the seed of the random numbers
+     */
+    public ApElectionSimulation(
+            int clientCount, double lossRate, boolean successorFails, long seed) {
+        mClientCount = clientCount;
+        mLossRate = lossRate;
+        mSuccessorFails = successorFails;
+        mRandom = new Random(seed);
+    }
+
+    private final class Node {
+        private final ByteString mId;
+        private final ApElection mElection;
+        private final boolean mEligible;
+        private boolean mAlive = true;
+        // The access point this node is connected to (itself if it runs one), or null
+        private Node mAp;
+        private int mJoinCount;
+        private boolean mApEnabled;
+
+        public Node(boolean eligible) {
+            final byte[] nodeId = new byte[32];
+            mRandom.nextBytes(nodeId);
+            mId = ByteString.copyFrom(nodeId);
+            mElection = new ApElection(nodeId, mTicker);
+            mElection.setEligible(eligible);
+            mEligible = eligible;
+        }
+    }
+
+    private static final class Event implements Comparable<Event> {
+        private final long mTimeMillis;
+        private final long mSequence;
+        private final Runnable mAction;
+
+        public Event(long timeMillis, long sequence, Runnable action) {
+            mTimeMillis = timeMillis;
+            mSequence = sequence;
+            mAction = action;
+        }
+
+        @Override
+        public int compareTo(Event other) {
+            if (mTimeMillis != other.mTimeMillis) {
+                return (mTimeMillis < other.mTimeMillis ? -1 : 1);
+            }
+            return (mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1));
+        }
+    }
+
+    private void schedule(long delayMillis, Runnable action) {
+        mEvents.add(new Event(mNowMillis + delayMillis, mEventSequence++, action));
+    }
+
+    private long randomMillis(long min, long max) {
+        return min + (long) (mRandom.nextDouble() * (max - min));
+    }
+
+    /**
+     * Runs a single trial.
+     *
+     * @return the time from the disappearance of the access point until all remaining nodes are
+     *         connected to a single access point, -1 if that did not happen, or -2 if no remaining
+     *         node could have taken over
+     */
+    public long runTrial() {
+        mEvents.clear();
+        mNowMillis = 0;
+        mStartedApCount = 0;
+        mNodes = new Node[mClientCount + 1];
+        for (int i = 0; i < mNodes.length; i++) {
+            mNodes[i] = new Node(i == 0 || mRandom.nextDouble() < ELIGIBLE_SHARE);
+        }
+
+        final Node initialAp = mNodes[0];
+        startAp(initialAp);
+        for (int i = 1; i < mNodes.length; i++) {
+            join(mNodes[i], initialAp);
+        }
+
+        schedule(WARMUP_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                failAp(initialAp);
+            }
+        });
+
+        while (!mEvents.isEmpty()) {
+            final Event event = mEvents.poll();
+            if (event.mTimeMillis > MAX_SIMULATION_MILLIS) {
+                break;
+            }
+            mNowMillis = event.mTimeMillis;
+            event.mAction.run();
+
+            if (mNowMillis >= WARMUP_MILLIS && isConverged()) {
+                return mNowMillis - WARMUP_MILLIS;
+            }
+        }
+
+        for (final Node node : mNodes) {
+            if (node.mAlive && node.mEligible) {
+                return -1;
+            }
+        }
+        return -2;
+    }
+
+    private void failAp(Node ap) {
+        ap.mAlive = false;
+        if (mSuccessorFails) {
+            // The first successor, as known by the clients which know most candidates
+            Node successor = null;
+            for (final Node node : mNodes) {
+                if (node.mAlive && node.mElection.getSuccessionRank() == 0) {
+                    successor = node;
+                    break;
+                }
+            }
+            if (successor != null) {
+                successor.mAlive = false;
+            }
+        }
+
+        for (final Node node : mNodes) {
+            if (node.mAlive && node.mAp == ap) {
+                schedule(randomMillis(0, MAX_DETECTION_MILLIS), new Runnable() {
+                    @Override
+                    public void run() {
+                        onDisconnected(node);
+                    }
+                });
+            }
+        }
+    }
+
+    private void onDisconnected(final Node node) {
+        node.mAp = null;
+        final long takeoverDelay = node.mElection.onLeft();
+        if (takeoverDelay == 0) {
+            startAp(node);
+            return;
+        }
+
+        scan(node);
+        if (takeoverDelay > 0) {
+            schedule(takeoverDelay, new Runnable() {
+                @Override
+                public void run() {
+                    if (node.mAp == null) {
+                        // Scan once more before taking over
+                        schedule(SCAN_MILLIS, new Runnable() {
+                            @Override
+                            public void run() {
+                                if (node.mAp == null && !joinAnyAp(node)) {
+                                    startAp(node);
+                                }
+                            }
+                        });
+                    }
+                }
+            });
+        }
+    }
+
+    private void scan(final Node node) {
+        schedule(SCAN_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                if (node.mAp == null && !joinAnyAp(node)) {
+                    scan(node);
+                }
+            }
+        });
+    }
+
+    private boolean joinAnyAp(Node node) {
+        final List<Node> aps = new ArrayList<>();
+        for (final Node other : mNodes) {
+            if (other.mAlive && other.mApEnabled) {
+                aps.add(other);
+            }
+        }
+        if (aps.isEmpty()) {
+            return false;
+        }
+        join(node, aps.get(mRandom.nextInt(aps.size())));
+        return true;
+    }
+
+    private void startAp(final Node node) {
+        node.mAp = node;
+        mStartedApCount++;
+        schedule(randomMillis(MIN_AP_ENABLING_MILLIS, MAX_AP_ENABLING_MILLIS), new Runnable() {
+            @Override
+            public void run() {
+                node.mApEnabled = true;
+                node.mElection.onApStarted();
+                sendApBeacon(node);
+            }
+        });
+    }
+
+    private void join(final Node node, Node ap) {
+        node.mAp = ap;
+        node.mElection.onJoined();
+        final int joinCount = ++node.mJoinCount;
+        schedule(randomMillis(0, BEACON_PERIOD_MILLIS), new Runnable() {
+            @Override
+            public void run() {
+                sendClientBeacon(node, joinCount);
+            }
+        });
+    }
+
+    private void sendApBeacon(final Node ap) {
+        if (!ap.mAlive || ap.mAp != ap) {
+            return;
+        }
+        for (final Node client : mNodes) {
+            if (client.mAlive && client != ap && client.mAp == ap
+                    && mRandom.nextDouble() >= mLossRate) {
+                client.mElection.onBeacon(ap.mId, ap.mElection.getApLikelihood(), true);
+                for (final Node listed : mNodes) {
+                    if (listed.mAp == ap && listed != ap) {
+                        final int value =
+                                ap.mElection.getListedApLikelihood(listed.mId.toByteArray());
+                        client.mElection.onCandidateListed(ap.mId, listed.mId, value);
+                    }
+                }
+            }
+        }
+        schedule(BEACON_PERIOD_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                sendApBeacon(ap);
+            }
+        });
+    }
+
+    private void sendClientBeacon(final Node client, final int joinCount) {
+        final Node ap = client.mAp;
+        if (!client.mAlive || ap == null || ap == client || joinCount != client.mJoinCount) {
+            return;
+        }
+        if (ap.mAlive && ap.mApEnabled && mRandom.nextDouble() >= mLossRate) {
+            ap.mElection.onBeacon(client.mId, client.mElection.getApLikelihood(), true);
+        }
+        schedule(BEACON_PERIOD_MILLIS, new Runnable() {
+            @Override
+            public void run() {
+                sendClientBeacon(client, joinCount);
+            }
+        });
+    }
+
+    private boolean isConverged() {
+        Node ap = null;
+        for (final Node node : mNodes) {
+            if (!node.mAlive) {
+                continue;
+            }
+            if (node.mAp == null || !node.mAp.mAlive || !node.mAp.mApEnabled) {
+                return false;
+            }
+            if (ap == null) {
+                ap = node.mAp;
+            } else if (node.mAp != ap) {
+                return false;
+            }
+        }
+        return ap != null;
+    }
+
+    /**
+     * Runs the trials and prints the distribution of the convergence times.
+     */
+    public void run(int trialCount) {
+        final long[] times = new long[trialCount];
+        int convergedCount = 0;
+        int possibleCount = 0;
+        long startedApTotal = 0;
+        for (int i = 0; i < trialCount; i++) {
+            final long time = runTrial();
+            if (time >= 0) {
+                times[convergedCount++] = time;
+            }
+            if (time != -2) {
+                possibleCount++;
+            }
+            startedApTotal += mStartedApCount - 1;
+        }
+        Arrays.sort(times, 0, convergedCount);
+
+        System.out.println(String.format(
+                "%d clients, %.0f%% loss%s: %d/%d converged (%d without candidates),"
+                        + " median %.1f s, 95th %.1f s, max %.1f s, %.2f APs started per takeover",
+                mClientCount, mLossRate * 100, (mSuccessorFails ? ", successor fails" : ""),
+                convergedCount, possibleCount, trialCount - possibleCount,
+                percentile(times, convergedCount, 0.5), percentile(times, convergedCount, 0.95),
+                percentile(times, convergedCount, 1), (double) startedApTotal / trialCount));
+    }
+
+    private static double percentile(long[] sortedTimes, int count, double percentile) {
+        if (count == 0) {
+            return Double.NaN;
+        }
+        final int index = Math.min(count - 1, (int) Math.ceil(percentile * count) - 1);
+        return sortedTimes[Math.max(0, index)] / 1000.0;
+    }
+
+    public static void main(String[] args) {
+        final int clientCount = (args.length > 0 ? Integer.parseInt(args[0]) : 8);
+        final int trialCount = (args.length > 1 ? Integer.parseInt(args[1]) : 1000);
+        final double lossRate = (args.length > 2 ? Double.parseDouble(args[2]) : 0.2);
+
+        new ApElectionSimulation(clientCount, 0, false, 42).run(trialCount);
+        new ApElectionSimulation(clientCount, lossRate, false, 42).run(trialCount);
+        new ApElectionSimulation(clientCount, lossRate, true, 42).run(trialCount);
+    }
+}
@@ -0,0 +1,222 @@
+
+package ch.ethz.csg.oppnet.benchmarks;
+
+import ch.ethz.csg.oppnet.network.PacketFraming;
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the beacon codec: building and serializing a beacon on every send tick, and parsing
+ * it and extracting its nodes on every received datagram.
+ * <p>
+ * BeaconBuilder and BeaconParser depend on the Android runtime, so the benchmarks replay the work
+ * of {@code BeaconBuilder.makeTemplate} and {@code BeaconParser.parseSingleBeacon} step by step on
+ * the same protobuf messages and framing code. A HashMap stands in for the ContentValues which the
+ * parser fills (ContentValues is a thin wrapper around one). When changing either of those
+ * methods, change the corresponding benchmark as well.
+ * <p>
+ * Run with {@code gradle :benchmarks:jmh}, which also reports the allocation rate per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BeaconCodecBenchmark {
+    private static final int NODE_ID_LENGTH = 32;
+    private static final int PROTOCOL_HASH_LENGTH = 20;
+    private static final String NETWORK_NAME = "OppNet";
+    // BeaconingManager.MAX_BEACON_SIZE
+    private static final int MAX_BEACON_SIZE = 1500 - 40 - 8;
+
+    @Param({"0", "10", "50", "200"})
+    public int neighborCount;
+
+    @Param({"0", "10", "50"})
+    public int protocolCount;
+
+    private final OppNetProtos.Beacon.Builder mBeaconBuilder = OppNetProtos.Beacon.newBuilder();
+
+    private byte[] mOwnNodeId;
+    private byte[] mOwnIp4Address;
+    private Set<ByteBuffer> mProtocols;
+    private NeighborInfo[] mNeighbors;
+    private byte[] mBeacon;
+
+    /**
+     * The fields of a neighbor which BeaconBuilder reads from a Neighbor object.
+     */
+    private static final class NeighborInfo {
+        private byte[] mNodeId;
+        private long mTimeLastSeen;
+        private String mLastSeenNetwork;
+        private byte[] mIp4Address;
+        private byte[] mBluetoothAddress;
+    }
+
+    @Setup
+    public void setUp() {
+        final Random random = new Random(42);
+        mOwnNodeId = randomBytes(random, NODE_ID_LENGTH);
+        mOwnIp4Address = randomBytes(random, 4);
+
+        mProtocols = new LinkedHashSet<>();
+        for (int i = 0; i < protocolCount; i++) {
+            mProtocols.add(ByteBuffer.wrap(randomBytes(random, PROTOCOL_HASH_LENGTH)));
+        }
+
+        final long now = System.currentTimeMillis() / 1000;
+        mNeighbors = new NeighborInfo[neighborCount];
+        for (int i = 0; i < neighborCount; i++) {
+            final NeighborInfo neighbor = new NeighborInfo();
+            neighbor.mNodeId = randomBytes(random, NODE_ID_LENGTH);
+            neighbor.mTimeLastSeen = now - random.nextInt(60);
+            // Some neighbors have been seen in another network, some over Bluetooth only
+            neighbor.mLastSeenNetwork = (i % 4 == 0 ? "OtherNetwork" : NETWORK_NAME);
+            if (i % 8 != 0) {
+                neighbor.mIp4Address = randomBytes(random, 4);
+            }
+            if (i % 2 == 0) {
+                neighbor.mBluetoothAddress = randomBytes(random, 6);
+            }
+            mNeighbors[i] = neighbor;
+        }
+
+        mBeacon = buildBeacon();
+    }
+
+    private static byte[] randomBytes(Random random, int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    /**
+     * Replays BeaconBuilder.makeTemplate, followed by framing (and thus serializing) the beacon.
+     * The neighbors are not ranked, as they are all seen equally recently.
+     */
+    @Benchmark
+    public byte[] buildBeacon() {
+        final long timeCreated = System.currentTimeMillis() / 1000;
+        mBeaconBuilder.clear()
+                .setTimeCreated(timeCreated)
+                .setBeaconId((int) timeCreated);
+
+        final OppNetProtos.Node.Builder senderBuilder = mBeaconBuilder.getSenderBuilder()
+                .setNodeId(ByteString.copyFrom(mOwnNodeId))
+                .setMaxBeaconSize(MAX_BEACON_SIZE)
+                .setIp4Address(ByteString.copyFrom(mOwnIp4Address));
+        for (final ByteBuffer protocol : mProtocols) {
+            senderBuilder.addProtocols(ByteString.copyFrom(protocol.array()));
+        }
+
+        int remainingSize = MAX_BEACON_SIZE - PacketFraming.SEND_HEADER_SIZE
+                - CodedOutputStream.computeMessageSize(
+                        OppNetProtos.Beacon.SENDER_FIELD_NUMBER, senderBuilder.build());
+        for (final NeighborInfo neighbor : mNeighbors) {
+            final OppNetProtos.Node.Builder neighborBuilder = OppNetProtos.Node.newBuilder()
+                    .setNodeId(ByteString.copyFrom(neighbor.mNodeId))
+                    .setDeltaLastseen((int) (timeCreated - neighbor.mTimeLastSeen));
+            if (neighbor.mIp4Address != null) {
+                if (!neighbor.mLastSeenNetwork.equals(NETWORK_NAME)) {
+                    neighborBuilder.setNetwork(neighbor.mLastSeenNetwork);
+                }
+                neighborBuilder.setIp4Address(ByteString.copyFrom(neighbor.mIp4Address));
+            }
+            if (neighbor.mBluetoothAddress != null) {
+                neighborBuilder.setBtAddress(ByteString.copyFrom(neighbor.mBluetoothAddress));
+            }
+
+            final OppNetProtos.Node node = neighborBuilder.build();
+            final int size = CodedOutputStream.computeMessageSize(
+                    OppNetProtos.Beacon.NEIGHBORS_FIELD_NUMBER, node);
+            if (size <= remainingSize) {
+                mBeaconBuilder.addNeighbors(node);
+                remainingSize -= size;
+            }
+        }
+
+        return PacketFraming.frame(PacketFraming.TYPE_BEACON, mBeaconBuilder.build());
+    }
+
+    /**
+     * Replays BeaconParser.parseSingleBeacon: validates the framing header (if the beacon is
+     * framed), parses the beacon, and extracts the sender and all neighbors into one map each.
+     */
+    @Benchmark
+    public void parseBeacon(Blackhole blackhole) throws InvalidProtocolBufferException {
+        int offset = 0;
+        int length = mBeacon.length;
+        if (PacketFraming.hasMagic(mBeacon, 0, mBeacon.length)) {
+            offset = PacketFraming.HEADER_SIZE;
+            length = PacketFraming.getPayloadLength(
+                    mBeacon, 0, mBeacon.length, PacketFraming.TYPE_BEACON);
+        }
+        final OppNetProtos.Beacon beacon =
+                OppNetProtos.Beacon.PARSER.parseFrom(mBeacon, offset, length);
+
+        final long referenceTime = beacon.getTimeCreated();
+        final OppNetProtos.Node sender = beacon.getSender();
+        blackhole.consume(extractContent(sender, referenceTime));
+        blackhole.consume(sender.getProtocolsList());
+
+        for (final OppNetProtos.Node neighbor : beacon.getNeighborsList()) {
+            blackhole.consume(extractContent(neighbor, referenceTime));
+            blackhole.consume(neighbor.getProtocolsList());
+        }
+    }
+
+    private Map<String, Object> extractContent(OppNetProtos.Node node, long referenceTime) {
+        final byte[] nodeId = node.getNodeId().toByteArray();
+        if (nodeId.length == 0 || Arrays.equals(mOwnNodeId, nodeId)) {
+            return null;
+        }
+
+        final Map<String, Object> values = new HashMap<>();
+        values.put("identifier", nodeId);
+        values.put("multicast_capable", node.getMulticastCapable());
+
+        if (node.hasDeltaLastseen()) {
+            values.put("time_lastseen", referenceTime - node.getDeltaLastseen());
+        }
+        if (node.hasIp4Address() || node.hasIp6Address()) {
+            values.put("network", (node.hasNetwork() ? node.getNetwork() : NETWORK_NAME));
+            if (node.hasIp4Address()) {
+                values.put("ip4", node.getIp4Address().toByteArray());
+            }
+            if (node.hasIp6Address()) {
+                values.put("ip6", node.getIp6Address().toByteArray());
+            }
+        }
+        if (node.hasBtAddress()) {
+            values.put("bluetooth", node.getBtAddress().toByteArray());
+        }
+        return values;
+    }
+}
@@ -0,0 +1,192 @@
+
+package ch.ethz.csg.oppnet.benchmarks;
+
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+import ch.ethz.csg.oppnet.utils.StripedExecutor;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Compares the throughput of serial and parallel beacon parsing.
+ * <p>
+ * Synthetic beacons of several senders are dispatched the same way BeaconParser does it, i.e.
+ * striped by the peeked sender ID. Each beacon is parsed with protobuf, and the database upsert
+ * of its nodes is simulated by blocking for a fixed time per node. The comparison also verifies
+ * that the beacons of each sender are still handled in the order they were received.
+ * <p>
+ * Run with {@code gradle :benchmarks:parserThroughput}, optionally passing the number of senders,
+ * beacons per sender and microseconds per node upsert as
+ * {@code -PparserThroughputArgs="32 50 20"}.
+ */
+public class BeaconParserThroughput {
+    private static final String TAG = BeaconParserThroughput.class.getSimpleName();
+    private static final int NEIGHBORS_PER_BEACON = 30;
+
+    private static final int SENDER_TAG =
+            (OppNetProtos.Beacon.SENDER_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int NODE_ID_TAG =
+            (OppNetProtos.Node.NODE_ID_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+
+    private final int mSenderCount;
+    private final int mBeaconsPerSender;
+    private final long mWriteNanosPerNode;
+    private final byte[][] mBeacons;
+
+    public BeaconParserThroughput(int senderCount, int beaconsPerSender, long writeMicrosPerNode) {
+        mSenderCount = senderCount;
+        mBeaconsPerSender = beaconsPerSender;
+        mWriteNanosPerNode = TimeUnit.MICROSECONDS.toNanos(writeMicrosPerNode);
+        mBeacons = createBeacons();
+    }
+
+    private byte[][] createBeacons() {
+        final Random random = new Random(42);
+        final ByteString[] nodeIds = new ByteString[mSenderCount + NEIGHBORS_PER_BEACON];
+        for (int i = 0; i < nodeIds.length; i++) {
+            final byte[] nodeId = new byte[32];
+            random.nextBytes(nodeId);
+            nodeIds[i] = ByteString.copyFrom(nodeId);
+        }
+
+        // Interleave the beacons of all senders, as they would arrive on the network
+        final byte[][] beacons = new byte[mSenderCount * mBeaconsPerSender][];
+        for (int beaconId = 0; beaconId < mBeaconsPerSender; beaconId++) {
+            for (int sender = 0; sender < mSenderCount; sender++) {
+                final OppNetProtos.Beacon.Builder builder = OppNetProtos.Beacon.newBuilder()
+                        .setBeaconId(beaconId)
+                        .setTimeCreated(System.currentTimeMillis() / 1000)
+                        .setSender(createNode(nodeIds[sender], random));
+                for (int i = 0; i < NEIGHBORS_PER_BEACON; i++) {
+                    builder.addNeighbors(createNode(nodeIds[mSenderCount + i], random));
+                }
+                beacons[beaconId * mSenderCount + sender] = builder.build().toByteArray();
+            }
+        }
+        return beacons;
+    }
+
+    private static OppNetProtos.Node createNode(ByteString nodeId, Random random) {
+        final byte[] ip4Address = new byte[4];
+        random.nextBytes(ip4Address);
+        return OppNetProtos.Node.newBuilder()
+                .setNodeId(nodeId)
+                .setNetwork("OppNet")
+                .setIp4Address(ByteString.copyFrom(ip4Address))
+                .setDeltaLastseen(random.nextInt(60))
+                .build();
+    }
+
+    /**
+     * Parses all beacons using the specified number of workers.
+     *
+     * @param workerCount the number of parallel parser threads
+     * @return the throughput in beacons per second
+     * @throws InterruptedException if interrupted while waiting for the workers
+     * @throws IllegalStateException if the beacons of a sender were not parsed in order
+     */
+    public double measure(int workerCount) throws InterruptedException {
+        final CountDownLatch remaining = new CountDownLatch(mBeacons.length);
+        final ConcurrentHashMap<ByteString, Integer> lastBeaconIds = new ConcurrentHashMap<>();
+        final AtomicInteger orderViolations = new AtomicInteger();
+
+        final StripedExecutor<byte[]> workers = new StripedExecutor<>(
+                TAG, workerCount, new StripedExecutor.Handler<byte[]>() {
+                    @Override
+                    public void handle(byte[] rawData) {
+                        try {
+                            final OppNetProtos.Beacon beacon =
+                                    OppNetProtos.Beacon.parseFrom(rawData);
+                            final ByteString senderId = beacon.getSender().getNodeId();
+                            final Integer lastBeaconId =
+                                    lastBeaconIds.put(senderId, beacon.getBeaconId());
+                            if (lastBeaconId != null && lastBeaconId >= beacon.getBeaconId()) {
+                                orderViolations.incrementAndGet();
+                            }
+
+                            // Simulate the upsert of the sender and all of its neighbors
+                            LockSupport.parkNanos(
+                                    mWriteNanosPerNode * (1 + beacon.getNeighborsCount()));
+                        } catch (InvalidProtocolBufferException e) {
+                            throw new IllegalStateException(e);
+                        } finally {
+                            remaining.countDown();
+                        }
+                    }
+                });
+
+        final long startTime = System.nanoTime();
+        workers.start();
+        for (final byte[] rawData : mBeacons) {
+            workers.submit(
+                    peekSenderId(rawData).hashCode(), rawData);
+        }
+        remaining.await();
+        final long elapsedNanos = System.nanoTime() - startTime;
+        workers.stop();
+
+        if (orderViolations.get() > 0) {
+            throw new IllegalStateException(
+                    orderViolations.get() + " beacons have been parsed out of order");
+        }
+        return mBeacons.length / (elapsedNanos / 1e9);
+    }
+
+    /**
+     * Replays the sender part of BeaconParser.PossibleBeacon.peekIds, which needs the Android
+     * runtime.
+     */
+    private static ByteString peekSenderId(byte[] data) {
+        final CodedInputStream input = CodedInputStream.newInstance(data);
+        try {
+            int tag;
+            while ((tag = input.readTag()) != 0) {
+                if (tag != SENDER_TAG) {
+                    input.skipField(tag);
+                    continue;
+                }
+
+                final int oldLimit = input.pushLimit(input.readRawVarint32());
+                while ((tag = input.readTag()) != 0) {
+                    if (tag == NODE_ID_TAG) {
+                        return input.readBytes();
+                    }
+                    input.skipField(tag);
+                }
+                input.popLimit(oldLimit);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return ByteString.EMPTY;
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        final int senderCount = (args.length > 0 ? Integer.parseInt(args[0]) : 32);
+        final int beaconsPerSender = (args.length > 1 ? Integer.parseInt(args[1]) : 50);
+        final long writeMicrosPerNode = (args.length > 2 ? Long.parseLong(args[2]) : 20);
+
+        final BeaconParserThroughput comparison =
+                new BeaconParserThroughput(senderCount, beaconsPerSender, writeMicrosPerNode);
+        // Warm up the JIT before measuring
+        comparison.measure(1);
+
+        final double serial = comparison.measure(1);
+        System.out.println(String.format("1 worker (serial): %.0f beacons/s", serial));
+        for (int workerCount = 2; workerCount <= 8; workerCount *= 2) {
+            final double parallel = comparison.measure(workerCount);
+            System.out.println(String.format("%d workers: %.0f beacons/s (%.1fx)",
+                    workerCount, parallel, parallel / serial));
+        }
+    }
+}
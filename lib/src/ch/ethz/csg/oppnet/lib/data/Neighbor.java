@@ -18,6 +18,7 @@ import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.HashSet;
+import java.util.Set;
 
 /**
  * Each OppNet neighbor is represented by a Neighbor object.
@@ -108,6 +109,21 @@ public class Neighbor implements Comparable<Neighbor> {
                 ip4Address, ip6Address, btAddress, supportedProtocols);
     }
 
+    /**
+     * Creates a neighbor from its individual fields, e.g. for neighbors which are not (yet) stored
+     * in the database.
+     *
+     * @param rawId the row ID in the neighbors table, or 0 if the neighbor is not stored
+     * @param protocols the hashes of the protocols supported by the neighbor (will be copied)
+     * @return the new neighbor
+     */
+    public static Neighbor create(long rawId, byte[] nodeId, long timeLastSeen,
+            boolean multicastCapable, String lastSeenNetwork, Inet4Address ip4, Inet6Address ip6,
+            byte[] bt, Set<ByteBuffer> protocols) {
+        return new Neighbor(rawId, nodeId, timeLastSeen, multicastCapable, lastSeenNetwork,
+                ip4, ip6, bt, new HashSet<>(protocols));
+    }
+
     private Neighbor(long rawId, byte[] neighborId, long timeLastSeen, boolean multicastCapable,
             String lastSeenNetwork, Inet4Address ip4, Inet6Address ip6, byte[] bt,
             HashSet<ByteBuffer> protocols) {
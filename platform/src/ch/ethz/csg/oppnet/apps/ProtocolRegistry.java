@@ -10,6 +10,7 @@ import ch.ethz.csg.oppnet.data.Implementation;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos.TransportPacket;
 
 import com.google.common.collect.HashMultimap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSetMultimap;
 
 import java.nio.ByteBuffer;
@@ -25,6 +26,12 @@ public class ProtocolRegistry {
 
     private final DbController mDbController;
 
+    /**
+     * The hashes of all registered protocols, cached until the next registration.
+     */
+    private volatile ImmutableSet<ByteBuffer> mProtocolHashes;
+    private volatile int mVersion;
+
     public static synchronized ProtocolRegistry getInstance(Context context) {
         if (sInstance == null) {
             sInstance = new ProtocolRegistry(context);
@@ -35,6 +42,7 @@ public class ProtocolRegistry {
     private ProtocolRegistry(Context context) {
         mDbController = new DbController(context);
         mProtocolMap = loadProtocolImplementations(mDbController);
+        mProtocolHashes = ImmutableSet.copyOf(mProtocolMap.keySet());
     }
 
     private static HashMultimap<ByteBuffer, Implementation> loadProtocolImplementations(
@@ -63,6 +71,21 @@ public class ProtocolRegistry {
         return ImmutableSetMultimap.copyOf(mProtocolMap);
     }
 
+    /**
+     * @return the hashes of all protocols with at least one implementation
+     */
+    public ImmutableSet<ByteBuffer> getProtocolHashes() {
+        return mProtocolHashes;
+    }
+
+    /**
+     * @return a number which changes whenever a protocol is registered, to invalidate data derived
+     *         from the registered protocols
+     */
+    public int getVersion() {
+        return mVersion;
+    }
+
     public String getProtocolNameFromPacket(TransportPacket packet) {
         final Set<Implementation> implementations =
                 getProtocolImplementations(packet.getProtocol().toByteArray());
@@ -79,6 +102,8 @@ public class ProtocolRegistry {
 
         if (implementation != null) {
             mProtocolMap.put(ByteBuffer.wrap(implementation.getProtocolHash()), implementation);
+            mProtocolHashes = ImmutableSet.copyOf(mProtocolMap.keySet());
+            mVersion++;
         }
 
         return implementation;
@@ -0,0 +1,465 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import com.google.common.base.Ticker;
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Elects the node which takes over the access point of an OppNet network when the current one
+ * disappears.
+ * <p>
+ * The election is carried in the {@code ap_likelihood} field of the beacons: the lowest
+ * {@link #PRIORITY_BITS} hold the priority of the sender, the bits above the term of the access
+ * point it knows. A priority of {@link #PRIORITY_NONE} means the sender is not a candidate,
+ * {@link #PRIORITY_AP} that it is the access point itself. Each new access point starts a new term,
+ * which is one higher than the highest term it knows.
+ * <p>
+ * Clients only send their beacons to the access point, which therefore repeats the candidacy of
+ * each client in the entry of its neighbor list. So all clients know the same candidates, and rank
+ * them the same way: by priority, and by node ID on equal priorities. When the access point
+ * disappears, the first candidate takes over right away, the next ones only
+ * {@link #TAKEOVER_SLOT_MILLIS} per rank after the access point was last heard, in case the ones
+ * before did not make it. Candidates expire if they have not been heard of for
+ * {@link #CANDIDATE_TIMEOUT_MILLIS}, and values of older terms are ignored, so that no stale
+ * candidate is waited for.
+ * <p>
+ * An access point which hears another one with a newer term (or the same term and a lower node ID)
+ * steps down. It announces that with a priority of {@link #PRIORITY_NONE} first, so that its
+ * clients join the other access point instead of electing a successor. Nodes which do not take
+ * part in the election send values with a term of 0, which are ignored.
+ * <p>
+ * This class does not use any Android APIs, so that it can be simulated on a desktop JVM (see
+ * ApElectionSimulation in the benchmarks module).
+ */
+public class ApElection {
+    /**
+     * The number of bits holding the priority, below the term.
+     */
+    protected static final int PRIORITY_BITS = 8;
+    protected static final int PRIORITY_MASK = (1 << PRIORITY_BITS) - 1;
+    protected static final int MAX_TERM = Integer.MAX_VALUE >>> PRIORITY_BITS;
+
+    public static final int PRIORITY_NONE = 0;
+    public static final int PRIORITY_CANDIDATE = 128;
+    public static final int PRIORITY_AP = PRIORITY_MASK;
+
+    /**
+     * Candidates which have not been heard of for this long are not waited for anymore. A few
+     * times the longest period between two regular beacons (see {@link BeaconScheduler}).
+     */
+    protected static final long CANDIDATE_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * The time each candidate waits for the ones ranked before it to take over. Long enough for
+     * the one before to notice the lost connection, to enable the access point, and for this one
+     * to find it in a scan.
+     */
+    public static final long TAKEOVER_SLOT_MILLIS = 20 * 1000;
+
+    public static enum Role {
+        NONE, CLIENT, ACCESS_POINT
+    }
+
+    private final ByteBuffer mOwnId;
+    private final Ticker mTicker;
+
+    private Role mRole = Role.NONE;
+    private int mTerm;
+    private int mPriority = PRIORITY_NONE;
+    private ByteBuffer mApId;
+    private long mApLastHeardNanos;
+    private boolean mApRetiring;
+    private boolean mStepDown;
+    private final Map<ByteBuffer, Candidate> mCandidates = new HashMap<>();
+    private long mCandidatesVersion;
+
+    /**
+     * Uses {@link Ticker#systemTicker()}, which stops while an Android device sleeps, so this is
+     * only suitable for desktop JVMs.
+     *
+     * @param ownNodeId the node ID of this node
+     */
+    public ApElection(byte[] ownNodeId) {
+        this(ownNodeId, Ticker.systemTicker());
+    }
+
+    /**
+     * @param ownNodeId the node ID of this node
+     * @param ticker the time source for the candidate timeouts, which should keep running while
+     *            the device sleeps
+     */
+    public ApElection(byte[] ownNodeId, Ticker ticker) {
+        mOwnId = ByteBuffer.wrap(ownNodeId.clone());
+        mTicker = ticker;
+    }
+
+    /**
+     * @param eligible true if this node may run an access point
+     */
+    public synchronized void setEligible(boolean eligible) {
+        mPriority = (eligible ? PRIORITY_CANDIDATE : PRIORITY_NONE);
+    }
+
+    /**
+     * Starts a new term, after this node has started an access point.
+     *
+     * @return the new term
+     */
+    public synchronized int onApStarted() {
+        if (mRole != Role.ACCESS_POINT) {
+            mRole = Role.ACCESS_POINT;
+            mTerm = Math.min(MAX_TERM, mTerm + 1);
+            mApId = mOwnId;
+            mApRetiring = false;
+            mStepDown = false;
+            mCandidates.clear();
+            mCandidatesVersion++;
+        }
+        return mTerm;
+    }
+
+    /**
+     * Resets the candidates, after this node has joined an OppNet network as client.
+     */
+    public synchronized void onJoined() {
+        if (mRole != Role.CLIENT) {
+            mRole = Role.CLIENT;
+            mApId = null;
+            mApRetiring = false;
+            mCandidates.clear();
+            mCandidatesVersion++;
+        }
+    }
+
+    /**
+     * Ends the participation in the current network.
+     *
+     * @return the time to wait before taking over the access point, or -1 if this node is not
+     *         supposed to take over
+     */
+    public synchronized long onLeft() {
+        final long takeoverDelay;
+        if (mRole == Role.CLIENT && mApId != null && !mApRetiring) {
+            final int rank = getSuccessionRank();
+            if (rank < 0) {
+                takeoverDelay = -1;
+            } else if (rank == 0) {
+                takeoverDelay = 0;
+            } else {
+                // The slots start when the access point was last heard, which is about the same
+                // for all clients, unlike the time they notice the lost connection
+                final long sinceLastHeard = TimeUnit.NANOSECONDS.toMillis(
+                        mTicker.read() - mApLastHeardNanos);
+                takeoverDelay = Math.max(0, rank * TAKEOVER_SLOT_MILLIS - sinceLastHeard);
+            }
+        } else {
+            takeoverDelay = -1;
+        }
+
+        mRole = Role.NONE;
+        mApId = null;
+        mApRetiring = false;
+        mStepDown = false;
+        mCandidates.clear();
+        mCandidatesVersion++;
+        return takeoverDelay;
+    }
+
+    /**
+     * Announces that this access point is about to step down, so that its clients do not elect a
+     * successor.
+     */
+    public synchronized void retire() {
+        if (mRole == Role.ACCESS_POINT) {
+            mApRetiring = true;
+        }
+    }
+
+    /**
+     * @return true if this node runs an access point, but another one has been elected
+     */
+    public synchronized boolean shouldStepDown() {
+        return mRole == Role.ACCESS_POINT && mStepDown;
+    }
+
+    /**
+     * @return true if this node runs an access point, and has announced to step down
+     */
+    public synchronized boolean isRetiring() {
+        return mRole == Role.ACCESS_POINT && mApRetiring;
+    }
+
+    /**
+     * Processes the election value of a beacon's sender.
+     *
+     * @param senderId the node ID of the sender
+     * @param apLikelihood the encoded value (0 if the sender did not send any)
+     * @param sameNetwork true if the beacon has been received over the current WiFi network
+     */
+    public synchronized void onBeacon(ByteString senderId, int apLikelihood, boolean sameNetwork) {
+        final ByteBuffer sender = senderId.asReadOnlyByteBuffer();
+        if (apLikelihood < 0 || sender.equals(mOwnId)) {
+            return;
+        }
+        final int term = getTerm(apLikelihood);
+        final int priority = getPriority(apLikelihood);
+        if (term == 0) {
+            // Sent by a node which does not take part in the election
+            return;
+        }
+
+        if (priority == PRIORITY_AP && mRole == Role.ACCESS_POINT
+                && (term > mTerm || (term == mTerm && sender.compareTo(mOwnId) < 0))) {
+            // Another access point has been started after ours, or at the same time by a node
+            // with a lower node ID
+            mStepDown = true;
+        }
+        if (term > mTerm) {
+            mTerm = term;
+            mCandidates.clear();
+            mCandidatesVersion++;
+        }
+
+        if (!sameNetwork) {
+            return;
+        }
+        switch (mRole) {
+            case CLIENT: {
+                if (term < mTerm) {
+                    break;
+                }
+                if (priority == PRIORITY_AP
+                        || (sender.equals(mApId) && priority == PRIORITY_NONE)) {
+                    mApId = copy(sender);
+                    mApLastHeardNanos = mTicker.read();
+                    mApRetiring = (priority == PRIORITY_NONE);
+
+                    // The listed candidates stay valid until the access point drops them, as
+                    // delta beacons only list the changed ones
+                    for (final Candidate candidate : mCandidates.values()) {
+                        candidate.mLastHeardNanos = mApLastHeardNanos;
+                    }
+                }
+                break;
+            }
+            case ACCESS_POINT: {
+                if (priority != PRIORITY_NONE && priority != PRIORITY_AP && term <= mTerm) {
+                    // Clients may still carry an older term, until they hear ours
+                    putCandidate(sender, priority);
+                } else if (priority == PRIORITY_NONE) {
+                    removeCandidate(sender);
+                }
+                break;
+            }
+            default: {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Processes a neighbor listed (or removed) in a beacon of the access point, after the
+     * beacon's sender has been processed.
+     *
+     * @param apId the node ID of the beacon's sender
+     * @param nodeId the node ID of the listed neighbor
+     * @param apLikelihood the encoded value of the listed neighbor, 0 if it is not a candidate
+     *            (anymore)
+     */
+    public synchronized void onCandidateListed(
+            ByteString apId, ByteString nodeId, int apLikelihood) {
+        if (mRole != Role.CLIENT || mApId == null
+                || !mApId.equals(apId.asReadOnlyByteBuffer())) {
+            return;
+        }
+        final int priority = getPriority(apLikelihood);
+        if (apLikelihood <= 0 || priority == PRIORITY_NONE || priority == PRIORITY_AP) {
+            removeCandidate(nodeId.asReadOnlyByteBuffer());
+        } else if (getTerm(apLikelihood) == mTerm) {
+            putCandidate(nodeId.asReadOnlyByteBuffer(), priority);
+        }
+    }
+
+    /**
+     * @return the election value to send in own beacons, or 0 if there is none
+     */
+    public synchronized int getApLikelihood() {
+        switch (mRole) {
+            case ACCESS_POINT:
+                return encode(mTerm, (mApRetiring ? PRIORITY_NONE : PRIORITY_AP));
+            case CLIENT:
+                return encode(mTerm, mPriority);
+            default:
+                // Still pass on the term, so that outdated access points learn of newer ones
+                return encode(mTerm, PRIORITY_NONE);
+        }
+    }
+
+    /**
+     * @param nodeId the node ID of a neighbor
+     * @return the election value to list with the neighbor in own beacons, or 0 if there is none
+     */
+    public synchronized int getListedApLikelihood(byte[] nodeId) {
+        if (mRole != Role.ACCESS_POINT) {
+            return 0;
+        }
+        final Candidate candidate = getLiveCandidate(ByteBuffer.wrap(nodeId));
+        return (candidate == null ? 0 : encode(mTerm, candidate.mPriority));
+    }
+
+    /**
+     * @return a number which changes whenever the values returned by
+     *         {@link #getListedApLikelihood} may have changed, apart from candidates timing out
+     */
+    public synchronized long getCandidatesVersion() {
+        return mCandidatesVersion;
+    }
+
+    /**
+     * @return the position of this node in the succession (0 for the first one), or -1 if it is
+     *         not a candidate
+     */
+    public synchronized int getSuccessionRank() {
+        if (mPriority == PRIORITY_NONE) {
+            return -1;
+        }
+        int rank = 0;
+        for (final Map.Entry<ByteBuffer, Candidate> entry : getLiveCandidates()) {
+            if (compare(entry.getValue().mPriority, entry.getKey(), mPriority, mOwnId) < 0) {
+                rank++;
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * @return the node IDs of the current candidates, first one first (excluding this node)
+     */
+    public synchronized List<ByteBuffer> getSuccession() {
+        final List<Map.Entry<ByteBuffer, Candidate>> candidates = getLiveCandidates();
+        Collections.sort(candidates, new Comparator<Map.Entry<ByteBuffer, Candidate>>() {
+            @Override
+            public int compare(Map.Entry<ByteBuffer, Candidate> lhs,
+                    Map.Entry<ByteBuffer, Candidate> rhs) {
+                return ApElection.compare(lhs.getValue().mPriority, lhs.getKey(),
+                        rhs.getValue().mPriority, rhs.getKey());
+            }
+        });
+
+        final List<ByteBuffer> succession = new ArrayList<>(candidates.size());
+        for (final Map.Entry<ByteBuffer, Candidate> candidate : candidates) {
+            succession.add(candidate.getKey());
+        }
+        return succession;
+    }
+
+    public synchronized Role getRole() {
+        return mRole;
+    }
+
+    public synchronized int getTerm() {
+        return mTerm;
+    }
+
+    public static int encode(int term, int priority) {
+        return (Math.min(MAX_TERM, term) << PRIORITY_BITS) | (priority & PRIORITY_MASK);
+    }
+
+    public static int getTerm(int apLikelihood) {
+        return apLikelihood >>> PRIORITY_BITS;
+    }
+
+    public static int getPriority(int apLikelihood) {
+        return apLikelihood & PRIORITY_MASK;
+    }
+
+    /**
+     * @return a negative value if the first candidate ranks before the second one
+     */
+    private static int compare(int priority, ByteBuffer nodeId, int otherPriority,
+            ByteBuffer otherNodeId) {
+        if (priority != otherPriority) {
+            return (priority > otherPriority ? -1 : 1);
+        }
+        return nodeId.compareTo(otherNodeId);
+    }
+
+    private void putCandidate(ByteBuffer nodeId, int priority) {
+        if (nodeId.equals(mOwnId)) {
+            return;
+        }
+        final Candidate candidate = mCandidates.get(nodeId);
+        if (candidate == null) {
+            mCandidates.put(copy(nodeId), new Candidate(priority, mTicker.read()));
+            mCandidatesVersion++;
+        } else {
+            if (candidate.mPriority != priority) {
+                candidate.mPriority = priority;
+                mCandidatesVersion++;
+            }
+            candidate.mLastHeardNanos = mTicker.read();
+        }
+    }
+
+    private void removeCandidate(ByteBuffer nodeId) {
+        if (mCandidates.remove(nodeId) != null) {
+            mCandidatesVersion++;
+        }
+    }
+
+    private Candidate getLiveCandidate(ByteBuffer nodeId) {
+        final Candidate candidate = mCandidates.get(nodeId);
+        if (candidate == null || isExpired(candidate, mTicker.read())) {
+            return null;
+        }
+        return candidate;
+    }
+
+    private List<Map.Entry<ByteBuffer, Candidate>> getLiveCandidates() {
+        final long now = mTicker.read();
+        final List<Map.Entry<ByteBuffer, Candidate>> candidates = new ArrayList<>();
+        final Iterator<Map.Entry<ByteBuffer, Candidate>> iterator =
+                mCandidates.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<ByteBuffer, Candidate> entry = iterator.next();
+            if (isExpired(entry.getValue(), now)) {
+                iterator.remove();
+                mCandidatesVersion++;
+            } else {
+                candidates.add(entry);
+            }
+        }
+        return candidates;
+    }
+
+    private static boolean isExpired(Candidate candidate, long nowNanos) {
+        return nowNanos - candidate.mLastHeardNanos
+                > TimeUnit.MILLISECONDS.toNanos(CANDIDATE_TIMEOUT_MILLIS);
+    }
+
+    private static ByteBuffer copy(ByteBuffer nodeId) {
+        final byte[] bytes = new byte[nodeId.remaining()];
+        nodeId.duplicate().get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    private static final class Candidate {
+        private int mPriority;
+        private long mLastHeardNanos;
+
+        public Candidate(int priority, long lastHeardNanos) {
+            mPriority = priority;
+            mLastHeardNanos = lastHeardNanos;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import com.google.common.base.Objects;
+
+import java.nio.ByteBuffer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the rate at which a single origin (IP or Bluetooth address) can push packets into the
+ * beacon pipeline, using one token bucket per origin.
+ * <p>
+ * Each origin may send a burst of packets up to the bucket capacity, after which it is limited to
+ * the refill rate. Only the most recently active origins are tracked; an origin which has been
+ * forgotten simply starts over with a full bucket.
+ */
+public class BeaconAdmission {
+    private final double mTokensPerNano;
+    private final double mBurstSize;
+    private final int mMaxOrigins;
+
+    private final LinkedHashMap<ByteBuffer, TokenBucket> mBuckets;
+
+    private long mAdmittedCount;
+    private long mRejectedCount;
+
+    /**
+     * @param ratePerSecond the sustained number of packets per second admitted from each origin
+     * @param burstSize the number of packets an idle origin may send at once
+     * @param maxOrigins the maximum number of origins to track
+     */
+    public BeaconAdmission(double ratePerSecond, int burstSize, final int maxOrigins) {
+        if (ratePerSecond <= 0 || burstSize < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid token bucket (rate: %s, burst: %d)", ratePerSecond, burstSize));
+        }
+        mTokensPerNano = ratePerSecond / TimeUnit.SECONDS.toNanos(1);
+        mBurstSize = burstSize;
+        mMaxOrigins = maxOrigins;
+
+        mBuckets = new LinkedHashMap<ByteBuffer, TokenBucket>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, TokenBucket> eldest) {
+                return size() > maxOrigins;
+            }
+        };
+    }
+
+    /**
+     * Takes a token from the bucket of the specified origin.
+     *
+     * @param origin the address the packet has been received from
+     * @return true if the packet may be processed, false if it should be dropped
+     */
+    public synchronized boolean tryAdmit(byte[] origin) {
+        final long now = System.nanoTime();
+        final ByteBuffer key = ByteBuffer.wrap(origin);
+
+        TokenBucket bucket = mBuckets.get(key);
+        if (bucket == null) {
+            bucket = new TokenBucket(mBurstSize, now);
+            mBuckets.put(key, bucket);
+        } else {
+            bucket.mTokens = Math.min(
+                    mBurstSize, bucket.mTokens + (now - bucket.mLastRefill) * mTokensPerNano);
+            bucket.mLastRefill = now;
+        }
+
+        if (bucket.mTokens >= 1) {
+            bucket.mTokens -= 1;
+            mAdmittedCount++;
+            return true;
+        }
+        mRejectedCount++;
+        return false;
+    }
+
+    public synchronized long getAdmittedCount() {
+        return mAdmittedCount;
+    }
+
+    public synchronized long getRejectedCount() {
+        return mRejectedCount;
+    }
+
+    public synchronized int getTrackedOriginCount() {
+        return mBuckets.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+                .add("origins", mBuckets.size())
+                .add("maxOrigins", mMaxOrigins)
+                .add("admitted", mAdmittedCount)
+                .add("rejected", mRejectedCount)
+                .toString();
+    }
+
+    private static final class TokenBucket {
+        private double mTokens;
+        private long mLastRefill;
+
+        public TokenBucket(double tokens, long lastRefill) {
+            mTokens = tokens;
+            mLastRefill = lastRefill;
+        }
+    }
+}
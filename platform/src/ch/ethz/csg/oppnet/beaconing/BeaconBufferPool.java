@@ -0,0 +1,63 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Pool of receive buffers for beacons.
+ * <p>
+ * A buffer is acquired by a receiver, filled with a single beacon, and then travels with the
+ * {@link BeaconParser.PossibleBeacon} wrapping it until the beacon has been parsed. Afterwards, it
+ * is released back into the pool, so that receiving beacons does not allocate a new buffer per
+ * packet once the pool is warmed up. If the pool is exhausted, new buffers are allocated; if it is
+ * full, released buffers are left to the garbage collector.
+ */
+public class BeaconBufferPool {
+    private final int mBufferSize;
+    private final BlockingQueue<byte[]> mFreeBuffers;
+
+    /**
+     * @param bufferSize the size of each buffer in bytes
+     * @param capacity the maximum number of buffers kept in the pool
+     */
+    public BeaconBufferPool(int bufferSize, int capacity) {
+        mBufferSize = bufferSize;
+        mFreeBuffers = new ArrayBlockingQueue<>(capacity);
+    }
+
+    public int getBufferSize() {
+        return mBufferSize;
+    }
+
+    /**
+     * @return a buffer of {@link #getBufferSize()} bytes, with undefined content
+     */
+    public byte[] acquire() {
+        final byte[] buffer = mFreeBuffers.poll();
+        return (buffer != null ? buffer : new byte[mBufferSize]);
+    }
+
+    /**
+     * @param minSize the minimum size of the buffer in bytes
+     * @return a pooled buffer if it is large enough, or a new buffer of exactly minSize bytes
+     */
+    public byte[] acquire(int minSize) {
+        return (minSize <= mBufferSize ? acquire() : new byte[minSize]);
+    }
+
+    /**
+     * Returns a buffer to the pool. The caller must not use it anymore afterwards.
+     *
+     * @param buffer a buffer obtained from {@link #acquire()}
+     */
+    public void release(byte[] buffer) {
+        if (buffer.length == mBufferSize) {
+            mFreeBuffers.offer(buffer);
+        }
+    }
+
+    public int getFreeCount() {
+        return mFreeBuffers.size();
+    }
+}
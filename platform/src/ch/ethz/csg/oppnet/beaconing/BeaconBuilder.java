@@ -1,30 +1,146 @@
-
 package ch.ethz.csg.oppnet.beaconing;
 
 import android.annotation.SuppressLint;
+import android.util.Log;
 
 import ch.ethz.csg.oppnet.lib.data.Neighbor;
 import ch.ethz.csg.oppnet.network.NetworkManager;
 import ch.ethz.csg.oppnet.network.NetworkManager.WifiState;
+import ch.ethz.csg.oppnet.network.PacketFraming;
 import ch.ethz.csg.oppnet.network.WifiConnection;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos.Beacon;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos.Beacon.BeaconType;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Optional;
+import com.google.common.primitives.Longs;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedOutputStream;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.Inet6Address;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * Builds the beacons sent by this node, with the current neighbors from the neighbor table.
+ * <p>
+ * The sender and neighbor sections of a beacon only change when a protocol is registered, the
+ * neighbor table is updated, or the WiFi connection changes. They are therefore serialized
+ * once into a template, and each beacon built from it only adds its own beacon ID, creation time
+ * and type in front (and the neighbor list fields, resync requests, reply target and sequence
+ * number behind).
+ * Templates are immutable, so this class is safe to use from several threads.
+ * <p>
+ * Beacons never exceed {@link BeaconingManager#MAX_BEACON_SIZE}, or the smaller size a receiver
+ * has advertised. If not all neighbors fit, they are ranked by how recently they have been seen
+ * and whether they support any of the receiver's protocols, and the lowest ranked ones are left
+ * out.
+ * <p>
+ * The regular beacons only carry the neighbors which have been added or changed since the last
+ * full neighbor list, and the ones which have been removed since. A full list is sent
+ * periodically, when a receiver requests it, or when the changes would not be smaller anyway.
+ * Changes of the last-seen time alone do not count as change, so the neighbor section of the
+ * regular beacons is usually empty in a stable group.
+ * <p>
+ * Neighbors are listed with compact node IDs (see {@link NodeIdDictionary}), and the own
+ * protocols are advertised as {@link ProtocolFilter}, if all nodes heard recently understand this
+ * compact encoding, and in replies to nodes which understand it. Full neighbor lists requested by
+ * other nodes always carry full node IDs, so that the requester can learn them.
+ */
 public class BeaconBuilder {
+    private static final String TAG = BeaconBuilder.class.getSimpleName();
+
     @SuppressLint("TrulyRandom")
     private static final SecureRandom sRNG = new SecureRandom();
 
+    /**
+     * The maximum time a template is reused, even if nothing has changed. Neighbors which have
+     * only been seen again do not invalidate the template, and the delta_lastseen values are
+     * relative to its creation time, so beacons built from it overstate or understate the age of
+     * their neighbors by at most this many seconds. The same bound applies to neighbors which time
+     * out of the current period, and to candidacies which expire.
+     */
+    private static final long TEMPLATE_MAX_AGE_SECONDS = 30;
+
+    /**
+     * When ranking neighbors, those which support one of the receiver's protocols are treated as
+     * if they had been seen this many seconds more recently.
+     */
+    private static final long RELEVANCE_BONUS_SECONDS = 5 * 60;
+
+    /**
+     * The maximum size of everything in a beacon besides the template body: the framing header
+     * (if sent), and the largest possible beacon type, beacon ID and creation time.
+     */
+    private static final int MAX_HEADER_SIZE = PacketFraming.SEND_HEADER_SIZE
+            + CodedOutputStream.computeEnumSize(
+                    Beacon.BEACON_TYPE_FIELD_NUMBER, BeaconType.REPLY_VALUE)
+            + CodedOutputStream.computeUInt32Size(Beacon.BEACON_ID_FIELD_NUMBER, -1)
+            + CodedOutputStream.computeUInt64Size(Beacon.TIME_CREATED_FIELD_NUMBER, -1L);
+
+    /**
+     * The probability of a receiver wrongly assuming that this node supports one of its protocols,
+     * when the protocols are advertised as filter.
+     */
+    private static final double PROTOCOL_FILTER_FALSE_POSITIVE_RATE = 0.01;
+
+    /**
+     * A full neighbor list is sent at least this often, even if no receiver requests one.
+     */
+    private static final long FULL_LIST_INTERVAL_SECONDS = 60;
+
+    /**
+     * The maximum number of resync requests sent along with a single beacon.
+     */
+    private static final int MAX_RESYNC_REQUESTS_PER_BEACON = 4;
+
+    /**
+     * The length of the node IDs (i.e. public keys) in resync requests and replies.
+     */
+    private static final int NODE_ID_LENGTH = 32;
+
+    /**
+     * The maximum size of the fields after the template body of a full beacon: the neighbor list
+     * version, the resync requests, the node ID of the receiver of a reply, and the sequence
+     * number.
+     */
+    private static final int MAX_TRAILER_SIZE =
+            CodedOutputStream.computeUInt32Size(Beacon.LIST_VERSION_FIELD_NUMBER, -1)
+                    + MAX_RESYNC_REQUESTS_PER_BEACON * CodedOutputStream.computeBytesSize(
+                            Beacon.RESYNC_REQUESTS_FIELD_NUMBER,
+                            ByteString.copyFrom(new byte[NODE_ID_LENGTH]))
+                    + CodedOutputStream.computeBytesSize(Beacon.REPLY_TO_FIELD_NUMBER,
+                            ByteString.copyFrom(new byte[NODE_ID_LENGTH]))
+                    + CodedOutputStream.computeUInt32Size(Beacon.SEQUENCE_NUMBER_FIELD_NUMBER, -1);
+
     private final BeaconingManager mBM;
-    private final OppNetProtos.Beacon.Builder mBeaconBuilder = OppNetProtos.Beacon.newBuilder();
+
+    private volatile Template mNeighborsTemplate;
+    private volatile Template mApLikelihoodTemplate;
+    private final AtomicInteger mSequenceNumber = new AtomicInteger();
+
+    // The last full neighbor list sent, and the changes since then (all guarded by mListLock)
+    private final Object mListLock = new Object();
+    private int mListVersion = sRNG.nextInt();
+    private long mListTimeCreated;
+    private Map<ByteBuffer, OppNetProtos.Node> mFullList;
+    private boolean mFullListRequested;
+    private Template mDeltaTemplate;
+    private byte[] mDeltaBody;
+    private byte[] mDeltaListFields;
 
     public BeaconBuilder(BeaconingManager context) {
         mBM = context;
@@ -32,142 +148,609 @@ public class BeaconBuilder {
 
     /**
      * Builds a beacon without neighbor information, but with "access point likelihood" value.
-     * 
-     * @param nodeIdentity
+     *
      * @param wifiState
      * @param connection
-     * @param neighbors
-     * @return
+     * @param apLikelihood the encoded value (see {@link ApElection}), or 0 to leave it out
+     * @return the framed beacon
      */
     public byte[] buildBeacon(WifiState wifiState, Optional<WifiConnection> connection,
-            Set<ByteBuffer> protocols, byte apLikelihood) {
+            int apLikelihood) {
 
-        return makeBeacon(wifiState, connection, protocols, new HashSet<Neighbor>(), apLikelihood)
-                .build().toByteArray();
+        final long timeCreated = System.currentTimeMillis() / 1000;
+        final TemplateKey key = makeKey(connection, 0, 0, apLikelihood, false);
+
+        Template template = mApLikelihoodTemplate;
+        if (template == null || !template.isValid(key, timeCreated)) {
+            template = makeTemplate(key, Collections.<Neighbor> emptySet(), timeCreated,
+                    BeaconingManager.MAX_BEACON_SIZE, Collections.<ByteBuffer> emptySet());
+            mApLikelihoodTemplate = template;
+        }
+        return frame(BeaconType.ORIGINAL, timeCreated, template.mBody, makeSequenceNumber());
     }
 
     /**
-     * Builds a beacon with neighbor information, but without "access point likelihood" value.
-     * 
-     * @param nodeIdentity
+     * Builds a beacon with the full neighbor information, and the "access point likelihood" values
+     * of this node and its neighbors, if any.
+     *
      * @param wifiState
      * @param connection
-     * @param apLikelihood
-     * @return
+     * @return the framed beacon
      */
-    public byte[] buildBeacon(WifiState wifiState, Optional<WifiConnection> connection,
-            Set<ByteBuffer> protocols, Set<Neighbor> neighbors) {
+    public byte[] buildBeacon(WifiState wifiState, Optional<WifiConnection> connection) {
+        final long timeCreated = System.currentTimeMillis() / 1000;
+        return frame(BeaconType.ORIGINAL, timeCreated,
+                getNeighborsTemplate(connection, timeCreated, useCompactEncoding()).mBody);
+    }
 
-        return makeBeacon(wifiState, connection, protocols, neighbors, null)
-                .build().toByteArray();
+    /**
+     * Builds a beacon with neighbor information, which only carries the changes since the last
+     * full neighbor list if possible. Meant for the regular beacons, as receivers can only apply
+     * the changes if they have received the full list before.
+     *
+     * @param wifiState
+     * @param connection
+     * @return the framed beacon
+     */
+    public byte[] buildDeltaBeacon(WifiState wifiState, Optional<WifiConnection> connection) {
+        final long timeCreated = System.currentTimeMillis() / 1000;
+        final boolean fullListRequested;
+        synchronized (mListLock) {
+            fullListRequested = mFullListRequested;
+        }
+        final Template template = getNeighborsTemplate(
+                connection, timeCreated, !fullListRequested && useCompactEncoding());
+        final byte[] resyncRequests = makeResyncRequests();
+
+        synchronized (mListLock) {
+            if (!mFullListRequested && mFullList != null
+                    && timeCreated >= mListTimeCreated
+                    && timeCreated - mListTimeCreated < FULL_LIST_INTERVAL_SECONDS) {
+                if (template != mDeltaTemplate) {
+                    updateDelta(template);
+                }
+                if (mDeltaBody.length + mDeltaListFields.length < template.mBody.length) {
+                    return frame(BeaconType.ORIGINAL, timeCreated,
+                            mDeltaBody, mDeltaListFields, resyncRequests, makeSequenceNumber());
+                }
+            }
+
+            // Start a new full list
+            mListVersion++;
+            mListTimeCreated = timeCreated;
+            mFullList = new HashMap<>();
+            for (final Map.Entry<ByteBuffer, OppNetProtos.Node> entry
+                    : template.mNeighborNodes.entrySet()) {
+                mFullList.put(entry.getKey(), toListEntry(entry.getValue()));
+            }
+            mFullListRequested = false;
+            mDeltaTemplate = null;
+
+            final byte[] listFields =
+                    Beacon.newBuilder().setListVersion(mListVersion).build().toByteArray();
+            return frame(BeaconType.ORIGINAL, timeCreated,
+                    template.mBody, listFields, resyncRequests, makeSequenceNumber());
+        }
     }
 
-    public byte[] buildReply(WifiState wifiState, Optional<WifiConnection> connection,
-            Set<ByteBuffer> protocols, Set<Neighbor> neighbors, Beacon originalBeacon) {
+    /**
+     * Builds a beacon with the full neighbor information, and the version of the current full
+     * neighbor list (if any), so that receivers which have not heard from this node before can
+     * apply its next delta beacons. Meant for receivers which do not get the regular beacons,
+     * e.g. those probed by the subnet sweep.
+     *
+     * @param wifiState
+     * @param connection
+     * @return the framed beacon
+     */
+    public byte[] buildFullListBeacon(WifiState wifiState, Optional<WifiConnection> connection) {
+        final long timeCreated = System.currentTimeMillis() / 1000;
+        final Template template =
+                getNeighborsTemplate(connection, timeCreated, useCompactEncoding());
+
+        final byte[] listFields;
+        synchronized (mListLock) {
+            if (mFullList == null) {
+                return frame(BeaconType.ORIGINAL, timeCreated, template.mBody);
+            }
+            listFields = Beacon.newBuilder().setListVersion(mListVersion).build().toByteArray();
+        }
+        return frame(BeaconType.ORIGINAL, timeCreated, template.mBody, listFields);
+    }
+
+    /**
+     * Makes the next delta beacon carry a full neighbor list, as another node has asked for it.
+     */
+    public void requestFullList() {
+        synchronized (mListLock) {
+            mFullListRequested = true;
+        }
+    }
+
+    /**
+     * Computes the changes of the template's neighbors relative to the last full list.
+     */
+    private void updateDelta(Template template) {
+        final Beacon.Builder deltaBuilder = Beacon.newBuilder()
+                .setListVersion(mListVersion)
+                .setDelta(true);
+        for (final ByteBuffer nodeId : mFullList.keySet()) {
+            if (!template.mNeighborNodes.containsKey(nodeId)) {
+                deltaBuilder.addRemovedNeighbors(
+                        makeNodeId(nodeId.array(), template.mKey.mCompactEncoding));
+            }
+        }
 
-        return makeBeacon(wifiState, connection, protocols, neighbors, null)
-                .setBeaconType(BeaconType.REPLY)
+        final ByteArrayOutputStream body = new ByteArrayOutputStream(template.mBody.length);
+        body.write(template.mBody, 0, template.mSenderSize);
+        final CodedOutputStream output = CodedOutputStream.newInstance(body);
+        try {
+            for (final Map.Entry<ByteBuffer, OppNetProtos.Node> entry
+                    : template.mNeighborNodes.entrySet()) {
+                final OppNetProtos.Node node = entry.getValue();
+                if (!toListEntry(node).equals(mFullList.get(entry.getKey()))) {
+                    output.writeMessage(Beacon.NEIGHBORS_FIELD_NUMBER, node);
+                }
+            }
+            output.flush();
+        } catch (IOException e) {
+            // Can not happen when writing to a byte array
+            throw new IllegalStateException(
+                    "Serializing to a byte array threw an IOException", e);
+        }
+
+        mDeltaTemplate = template;
+        mDeltaBody = body.toByteArray();
+        mDeltaListFields = deltaBuilder.build().toByteArray();
+    }
+
+    /**
+     * @return the node without the values which do not count as change: the last-seen time, and
+     *         whether the node ID is compact
+     */
+    private static OppNetProtos.Node toListEntry(OppNetProtos.Node node) {
+        return node.toBuilder().clearNodeId().clearDeltaLastseen().build();
+    }
+
+    /**
+     * @return the serialized sequence number for the next regular beacon
+     */
+    private byte[] makeSequenceNumber() {
+        return Beacon.newBuilder()
+                .setSequenceNumber(mSequenceNumber.incrementAndGet())
                 .build().toByteArray();
     }
 
     /**
-     * Builds a beacon.
-     * 
-     * @param nodeIdentity
+     * @return the serialized resync requests for the next beacon (possibly empty)
+     */
+    private byte[] makeResyncRequests() {
+        final Beacon.Builder requestBuilder = Beacon.newBuilder();
+        for (final ByteString nodeId
+                : mBM.mListTracker.takeResyncRequests(MAX_RESYNC_REQUESTS_PER_BEACON)) {
+            if (nodeId.size() <= NODE_ID_LENGTH) {
+                requestBuilder.addResyncRequests(nodeId);
+            }
+        }
+        return requestBuilder.build().toByteArray();
+    }
+
+    /**
+     * Builds a reply to a received beacon, which fits into the size advertised by its sender.
+     *
      * @param wifiState
      * @param connection
-     * @param neighbors
-     * @return
+     * @param originalBeacon
+     * @return the framed beacon
      */
-    private Beacon.Builder makeBeacon(WifiState wifiState, Optional<WifiConnection> wifiConnection,
-            Set<ByteBuffer> protocols, Set<Neighbor> neighbors, Byte apLikelihood) {
+    public byte[] buildReply(WifiState wifiState, Optional<WifiConnection> connection,
+            Beacon originalBeacon) {
+
         final long timeCreated = System.currentTimeMillis() / 1000;
+        final int maxSize = getMaxBeaconSize(originalBeacon.getSender());
 
-        // Build basic data
-        mBeaconBuilder.clear()
-                .setTimeCreated(timeCreated)
-                .setBeaconId(sRNG.nextInt());
+        final boolean compactEncoding = originalBeacon.getSender().getCompactNodeIds();
+
+        Template template =
+                getNeighborsTemplate(connection, timeCreated, useCompactEncoding());
+        if (template.mDroppedCount > 0 || template.getFramedSize() > maxSize
+                || (template.mKey.mCompactEncoding && !compactEncoding)) {
+            // Pick the neighbors which are most relevant to the receiver, and do not cache the
+            // result, as it is specific to this receiver
+            final Set<ByteBuffer> receiverProtocols = new HashSet<>();
+            for (final ByteString protocol : ProtocolFilter.getSupportedProtocols(
+                    originalBeacon.getSender(), mBM.mProtocolRegistry.getProtocolHashes())) {
+                receiverProtocols.add(ByteBuffer.wrap(protocol.toByteArray()));
+            }
+            final TemplateKey key = makeKey(connection, template.mKey.mNeighborsVersion,
+                    template.mKey.mCandidatesVersion, mBM.mApElection.getApLikelihood(),
+                    compactEncoding);
+            template = makeTemplate(key, mBM.mNeighborTable.getCurrentNeighbors(),
+                    timeCreated, maxSize, receiverProtocols);
+        }
+        // Replies always carry the full list, but no list version, as they may not contain
+        // the same neighbors as the last full list. The receiver is named, so that other nodes
+        // overhearing the reply can tell whether it covers them as well.
+        final ByteString receiverId = originalBeacon.getSender().getNodeId();
+        final byte[] replyTo = (receiverId.size() > NODE_ID_LENGTH)
+                ? new byte[0]
+                : Beacon.newBuilder().setReplyTo(receiverId).build().toByteArray();
+        return frame(BeaconType.REPLY, timeCreated,
+                template.mBody, makeResyncRequests(), replyTo);
+    }
+
+    /**
+     * @param receiver the sender node of a received beacon
+     * @return the maximum size of beacons sent to that node
+     */
+    private static int getMaxBeaconSize(OppNetProtos.Node receiver) {
+        // The size is an unsigned integer, so large values appear negative
+        final int advertisedSize = receiver.getMaxBeaconSize();
+        if (receiver.hasMaxBeaconSize()
+                && advertisedSize > 0 && advertisedSize < BeaconingManager.MAX_BEACON_SIZE) {
+            return advertisedSize;
+        }
+        return BeaconingManager.MAX_BEACON_SIZE;
+    }
+
+    /**
+     * @return true if all nodes heard recently understand compact node IDs and protocol filters
+     */
+    private boolean useCompactEncoding() {
+        return !mBM.mNodeIds.hasLegacyNodes(BeaconingManager.getCurrentTimestamp());
+    }
+
+    private Template getNeighborsTemplate(Optional<WifiConnection> connection, long timeCreated,
+            boolean compactEncoding) {
+        // Read the versions before taking the snapshot, so that a concurrent update of the
+        // neighbor table invalidates the new template right away. Updates which only refresh the
+        // last-seen time do not change the content version, so the template survives neighbors
+        // which keep sending beacons (up to TEMPLATE_MAX_AGE_SECONDS).
+        final TemplateKey key = makeKey(connection, mBM.mNeighborTable.getContentVersion(),
+                mBM.mApElection.getCandidatesVersion(), mBM.mApElection.getApLikelihood(),
+                compactEncoding);
+
+        Template template = mNeighborsTemplate;
+        if (template != null && template.isValid(key, timeCreated)) {
+            BeaconMetrics.getInstance().onTemplateLookup(true);
+        } else {
+            BeaconMetrics.getInstance().onTemplateLookup(false);
+            // Regular beacons go to unknown receivers, so favor neighbors sharing our protocols
+            template = makeTemplate(key, mBM.mNeighborTable.getCurrentNeighbors(), timeCreated,
+                    BeaconingManager.MAX_BEACON_SIZE, mBM.mProtocolRegistry.getProtocolHashes());
+            mNeighborsTemplate = template;
+        }
+        return template;
+    }
+
+    private TemplateKey makeKey(Optional<WifiConnection> wifiConnection, long neighborsVersion,
+            long candidatesVersion, int apLikelihood, boolean compactEncoding) {
+        String networkName = "";
+        Optional<Inet4Address> ip4Address = Optional.absent();
+        Optional<Inet6Address> ip6Address = Optional.absent();
+        if (wifiConnection.isPresent() && wifiConnection.get().isConnected()) {
+            final WifiConnection connection = wifiConnection.get();
+            networkName = connection.getNetworkName().or("");
+            ip4Address = connection.getIp4Address();
+            ip6Address = connection.getIp6Address();
+        }
+
+        return new TemplateKey(mBM.mProtocolRegistry.getVersion(), neighborsVersion,
+                candidatesVersion, networkName, ip4Address, ip6Address,
+                mBM.mNetManager.getBluetoothAddressAsBytes(), apLikelihood, compactEncoding);
+    }
+
+    /**
+     * Builds and serializes the sender and neighbor sections of a beacon, with as many of the
+     * highest ranked neighbors as fit into a beacon of the specified size.
+     */
+    private Template makeTemplate(TemplateKey key, Set<Neighbor> neighbors, long timeCreated,
+            int maxBeaconSize, Set<ByteBuffer> relevantProtocols) {
+        final Beacon.Builder beaconBuilder = Beacon.newBuilder();
 
         // Build sender information
         final OppNetProtos.Node.Builder senderBuilder =
-                mBeaconBuilder.getSenderBuilder()
-                        .setNodeId(ByteString.copyFrom(mBM.mMasterIdentity.getPublicKey()));
-
-        if (wifiConnection.isPresent()) {
-            WifiConnection connection = wifiConnection.get();
-            if (connection.isConnected()) {
-                if (connection.hasIp4Address()) {
-                    senderBuilder.setIp4Address(
-                            ByteString.copyFrom(connection.getIp4Address().get().getAddress()));
-                }
-                if (connection.hasIp6Address()) {
-                    senderBuilder.setIp6Address(
-                            ByteString.copyFrom(connection.getIp6Address().get().getAddress()));
-                }
-            }
+                beaconBuilder.getSenderBuilder()
+                        .setNodeId(ByteString.copyFrom(mBM.mMasterIdentity.getPublicKey()))
+                        .setMaxBeaconSize(BeaconingManager.RECEIVER_BUFFER_SIZE)
+                        .setCompactNodeIds(true);
+
+        if (key.mIp4Address.isPresent()) {
+            senderBuilder.setIp4Address(ByteString.copyFrom(key.mIp4Address.get().getAddress()));
+        }
+        if (key.mIp6Address.isPresent()) {
+            senderBuilder.setIp6Address(ByteString.copyFrom(key.mIp6Address.get().getAddress()));
         }
 
-        final Optional<ByteString> bluetoothAddress = mBM.mNetManager.getBluetoothAddressAsBytes();
-        if (bluetoothAddress.isPresent()) {
-            senderBuilder.setBtAddress(bluetoothAddress.get());
+        if (key.mBluetoothAddress.isPresent()) {
+            senderBuilder.setBtAddress(key.mBluetoothAddress.get());
         }
 
         if (!NetworkManager.deviceSupportsMulticastWhenAsleep()) {
             senderBuilder.setMulticastCapable(false);
         }
 
-        if (apLikelihood != null) {
-            // If connected to an OppNet AP, send along how "eager" this node is to take over
-            // the AP role from the current AP (highest value wins)
-            senderBuilder.setApLikelihood(apLikelihood);
+        if (key.mApLikelihood != 0) {
+            // The election term, and how "eager" this node is to take over the AP role from the
+            // current AP (see ApElection)
+            senderBuilder.setApLikelihood(key.mApLikelihood);
+        }
+
+        if (key.mCompactEncoding) {
+            if (!mBM.mProtocolRegistry.getProtocolHashes().isEmpty()) {
+                senderBuilder.setProtocolFilter(ProtocolFilter.create(
+                        mBM.mProtocolRegistry.getProtocolHashes(),
+                        PROTOCOL_FILTER_FALSE_POSITIVE_RATE));
+            }
+        } else {
+            for (final ByteBuffer protocol : mBM.mProtocolRegistry.getProtocolHashes()) {
+                // NOTE: There is a ByteString constructor which takes ByteBuffer's directly, but
+                // this somehow does not reliably copy the underlying byte array (it usually can do
+                // it once, and then never again). I could not find the cause of that, so using the
+                // ByteBuffer's byte array directly is currently the best workaround.
+                senderBuilder.addProtocols(ByteString.copyFrom(protocol.array()));
+            }
         }
 
-        for (final ByteBuffer protocol : protocols) {
-            // NOTE: There is a ByteString constructor which takes ByteBuffer's directly, but this
-            // somehow does not reliably copy the underlying byte array (it usually can do it once,
-            // and then never again). I could not find the cause of that, so using the ByteBuffer's
-            // byte array directly is currently the best workaround.
-            senderBuilder.addProtocols(ByteString.copyFrom(protocol.array()));
+        // Add the highest ranked neighbors, as long as there is space left. The sender section is
+        // always included, even if it alone exceeds the size.
+        final int senderSize = CodedOutputStream.computeMessageSize(
+                Beacon.SENDER_FIELD_NUMBER, senderBuilder.build());
+        int remainingSize = maxBeaconSize - MAX_HEADER_SIZE - MAX_TRAILER_SIZE - senderSize;
+        int droppedCount = 0;
+        final Map<ByteBuffer, OppNetProtos.Node> neighborNodes = new LinkedHashMap<>();
+        for (final Neighbor neighbor : rankNeighbors(neighbors, relevantProtocols, timeCreated)) {
+            final OppNetProtos.Node node = makeNeighbor(neighbor,
+                    makeNodeId(neighbor.getNodeId(), key.mCompactEncoding), key.mNetworkName,
+                    timeCreated, mBM.mApElection.getListedApLikelihood(neighbor.getNodeId()));
+            final int size =
+                    CodedOutputStream.computeMessageSize(Beacon.NEIGHBORS_FIELD_NUMBER, node);
+            if (size <= remainingSize) {
+                beaconBuilder.addNeighbors(node);
+                neighborNodes.put(ByteBuffer.wrap(neighbor.getNodeId()), node);
+                remainingSize -= size;
+            } else {
+                droppedCount++;
+            }
         }
 
-        // Build neighbors
-        String currentNetwork = "";
-        if (wifiConnection.isPresent() && wifiConnection.get().isConnected()) {
-            currentNetwork = wifiConnection.get().getNetworkName().get();
+        if (droppedCount > 0) {
+            Log.v(TAG, String.format("Left out %d of %d neighbors to fit into %d bytes",
+                    droppedCount, neighbors.size(), maxBeaconSize));
         }
+        BeaconMetrics.getInstance().onBeaconComposed(neighbors.size() - droppedCount, droppedCount);
 
-        for (Neighbor neighbor : neighbors) {
-            // The following values are directly added to the main beaconBuilder
-            final OppNetProtos.Node.Builder neighborBuilder =
-                    mBeaconBuilder.addNeighborsBuilder()
-                            .setNodeId(ByteString.copyFrom(neighbor.getNodeId()))
-                            .setDeltaLastseen((int) (timeCreated - neighbor.getTimeLastSeen()));
+        // Only the sender and neighbors are set, so this serializes exactly those two sections
+        return new Template(key, timeCreated, beaconBuilder.build().toByteArray(), senderSize,
+                neighborNodes, droppedCount);
+    }
 
-            if (!neighbor.isMulticastCapable()) {
-                neighborBuilder.setMulticastCapable(false);
+    private ByteString makeNodeId(byte[] nodeId, boolean compact) {
+        final ByteString fullNodeId = ByteString.copyFrom(nodeId);
+        return (compact ? mBM.mNodeIds.compact(fullNodeId) : fullNodeId);
+    }
+
+    private static OppNetProtos.Node makeNeighbor(Neighbor neighbor, ByteString nodeId,
+            String currentNetwork, long timeCreated, int apLikelihood) {
+        final OppNetProtos.Node.Builder neighborBuilder = OppNetProtos.Node.newBuilder()
+                .setNodeId(nodeId)
+                .setDeltaLastseen((int) (timeCreated - neighbor.getTimeLastSeen()));
+
+        if (!neighbor.isMulticastCapable()) {
+            neighborBuilder.setMulticastCapable(false);
+        }
+
+        if (neighbor.hasAnyIpAddress()) {
+            if (neighbor.hasLastSeenNetwork()
+                    && !neighbor.getLastSeenNetwork().equals(currentNetwork)) {
+                neighborBuilder.setNetwork(neighbor.getLastSeenNetwork());
+            }
+            if (neighbor.hasIp4Address()) {
+                neighborBuilder.setIp4Address(
+                        ByteString.copyFrom(neighbor.getIp4Address().getAddress()));
+            }
+            if (neighbor.hasIp6Address()) {
+                neighborBuilder.setIp6Address(
+                        ByteString.copyFrom(neighbor.getIp6Address().getAddress()));
             }
+        }
 
-            if (neighbor.hasAnyIpAddress()) {
-                if (neighbor.hasLastSeenNetwork()
-                        && !neighbor.getLastSeenNetwork().equals(currentNetwork)) {
-                    neighborBuilder.setNetwork(neighbor.getLastSeenNetwork());
-                }
-                if (neighbor.hasIp4Address()) {
-                    neighborBuilder.setIp4Address(
-                            ByteString.copyFrom(neighbor.getIp4Address().getAddress()));
-                }
-                if (neighbor.hasIp6Address()) {
-                    neighborBuilder.setIp6Address(
-                            ByteString.copyFrom(neighbor.getIp6Address().getAddress()));
-                }
+        if (neighbor.hasBluetoothAddress()) {
+            neighborBuilder.setBtAddress(
+                    ByteString.copyFrom(neighbor.getBluetoothAddress()));
+        }
+
+        if (apLikelihood != 0) {
+            // Candidacies are relayed by the AP, as its clients cannot hear each other
+            neighborBuilder.setApLikelihood(apLikelihood);
+        }
+        return neighborBuilder.build();
+    }
+
+    /**
+     * Orders the neighbors by how recently they have been seen, with a bonus for those which
+     * support any of the relevant protocols.
+     */
+    private static List<Neighbor> rankNeighbors(
+            Set<Neighbor> neighbors, Set<ByteBuffer> relevantProtocols, long now) {
+        final List<RankedNeighbor> ranked = new ArrayList<>(neighbors.size());
+        for (final Neighbor neighbor : neighbors) {
+            long score = neighbor.getTimeLastSeen() - now;
+            if (!Collections.disjoint(neighbor.getSupportedProtocols(), relevantProtocols)) {
+                score += RELEVANCE_BONUS_SECONDS;
+            }
+            ranked.add(new RankedNeighbor(neighbor, score));
+        }
+        Collections.sort(ranked);
+
+        final List<Neighbor> result = new ArrayList<>(ranked.size());
+        for (final RankedNeighbor rankedNeighbor : ranked) {
+            result.add(rankedNeighbor.mNeighbor);
+        }
+        return result;
+    }
+
+    private static final class RankedNeighbor implements Comparable<RankedNeighbor> {
+        private final Neighbor mNeighbor;
+        private final long mScore;
+
+        public RankedNeighbor(Neighbor neighbor, long score) {
+            mNeighbor = neighbor;
+            mScore = score;
+        }
+
+        @Override
+        public int compareTo(RankedNeighbor other) {
+            // Highest score first
+            return Longs.compare(other.mScore, mScore);
+        }
+    }
+
+    /**
+     * Serializes a beacon, including the framing header if framed sending is enabled.
+     * <p>
+     * The fields which differ between beacons have lower field numbers than the sender and
+     * neighbors, and the fields following them have higher ones. Writing them around the template
+     * body thus yields the same bytes as serializing the whole beacon with protobuf.
+     *
+     * @param beaconType the type of the beacon
+     * @param timeCreated the creation time of the beacon
+     * @param sections serialized beacon fields in ascending field number order, starting with
+     *            the sender
+     * @return the (possibly) framed beacon
+     */
+    private static byte[] frame(BeaconType beaconType, long timeCreated, byte[]... sections) {
+        final int beaconId = sRNG.nextInt();
+
+        int headerLength = CodedOutputStream.computeUInt32Size(
+                Beacon.BEACON_ID_FIELD_NUMBER, beaconId)
+                + CodedOutputStream.computeUInt64Size(
+                        Beacon.TIME_CREATED_FIELD_NUMBER, timeCreated);
+        if (beaconType != BeaconType.ORIGINAL) {
+            headerLength += CodedOutputStream.computeEnumSize(
+                    Beacon.BEACON_TYPE_FIELD_NUMBER, beaconType.getNumber());
+        }
+        int payloadLength = headerLength;
+        for (final byte[] section : sections) {
+            payloadLength += section.length;
+        }
+
+        final byte[] data = new byte[PacketFraming.SEND_HEADER_SIZE + payloadLength];
+        if (PacketFraming.SEND_FRAMED) {
+            PacketFraming.writeHeader(data, PacketFraming.TYPE_BEACON, payloadLength);
+        }
+
+        final CodedOutputStream output = CodedOutputStream.newInstance(
+                data, PacketFraming.SEND_HEADER_SIZE, headerLength);
+        try {
+            if (beaconType != BeaconType.ORIGINAL) {
+                output.writeEnum(Beacon.BEACON_TYPE_FIELD_NUMBER, beaconType.getNumber());
             }
+            output.writeUInt32(Beacon.BEACON_ID_FIELD_NUMBER, beaconId);
+            output.writeUInt64(Beacon.TIME_CREATED_FIELD_NUMBER, timeCreated);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // Can not happen when writing to a correctly sized array
+            throw new IllegalStateException(
+                    "Serializing to a byte array threw an IOException", e);
+        }
+
+        int offset = PacketFraming.SEND_HEADER_SIZE + headerLength;
+        for (final byte[] section : sections) {
+            System.arraycopy(section, 0, data, offset, section.length);
+            offset += section.length;
+        }
+        return data;
+    }
+
+    /**
+     * Everything the sender and neighbor sections of a beacon are derived from.
+     */
+    private static final class TemplateKey {
+        private final int mProtocolsVersion;
+        private final long mNeighborsVersion;
+        private final long mCandidatesVersion;
+        private final String mNetworkName;
+        private final Optional<Inet4Address> mIp4Address;
+        private final Optional<Inet6Address> mIp6Address;
+        private final Optional<ByteString> mBluetoothAddress;
+        private final int mApLikelihood;
+        private final boolean mCompactEncoding;
+
+        public TemplateKey(int protocolsVersion, long neighborsVersion, long candidatesVersion,
+                String networkName, Optional<Inet4Address> ip4Address,
+                Optional<Inet6Address> ip6Address, Optional<ByteString> bluetoothAddress,
+                int apLikelihood, boolean compactEncoding) {
+            mProtocolsVersion = protocolsVersion;
+            mNeighborsVersion = neighborsVersion;
+            mCandidatesVersion = candidatesVersion;
+            mNetworkName = networkName;
+            mIp4Address = ip4Address;
+            mIp6Address = ip6Address;
+            mBluetoothAddress = bluetoothAddress;
+            mApLikelihood = apLikelihood;
+            mCompactEncoding = compactEncoding;
+        }
 
-            if (neighbor.hasBluetoothAddress()) {
-                neighborBuilder.setBtAddress(
-                        ByteString.copyFrom(neighbor.getBluetoothAddress()));
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            } else if (!(other instanceof TemplateKey)) {
+                return false;
             }
+            final TemplateKey o = (TemplateKey) other;
+            return mProtocolsVersion == o.mProtocolsVersion
+                    && mNeighborsVersion == o.mNeighborsVersion
+                    && mCandidatesVersion == o.mCandidatesVersion
+                    && mNetworkName.equals(o.mNetworkName)
+                    && mIp4Address.equals(o.mIp4Address)
+                    && mIp6Address.equals(o.mIp6Address)
+                    && mBluetoothAddress.equals(o.mBluetoothAddress)
+                    && mApLikelihood == o.mApLikelihood
+                    && mCompactEncoding == o.mCompactEncoding;
         }
 
-        return mBeaconBuilder;
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(mProtocolsVersion, mNeighborsVersion, mCandidatesVersion,
+                    mNetworkName, mIp4Address, mIp6Address, mBluetoothAddress, mApLikelihood,
+                    mCompactEncoding);
+        }
+    }
+
+    /**
+     * The serialized sender and neighbor sections of a beacon, ready to be patched into beacons.
+     */
+    private static final class Template {
+        private final TemplateKey mKey;
+        private final long mTimeCreated;
+        private final byte[] mBody;
+        private final int mSenderSize;
+        private final Map<ByteBuffer, OppNetProtos.Node> mNeighborNodes;
+        private final int mDroppedCount;
+
+        public Template(TemplateKey key, long timeCreated, byte[] body, int senderSize,
+                Map<ByteBuffer, OppNetProtos.Node> neighborNodes, int droppedCount) {
+            mKey = key;
+            mTimeCreated = timeCreated;
+            mBody = body;
+            mSenderSize = senderSize;
+            mNeighborNodes = Collections.unmodifiableMap(neighborNodes);
+            mDroppedCount = droppedCount;
+        }
+
+        /**
+         * @return an upper bound for the size of the beacons framed from this template
+         */
+        public int getFramedSize() {
+            return MAX_HEADER_SIZE + mBody.length + MAX_TRAILER_SIZE;
+        }
+
+        public boolean isValid(TemplateKey key, long now) {
+            return mKey.equals(key)
+                    && now >= mTimeCreated
+                    && now - mTimeCreated < TEMPLATE_MAX_AGE_SECONDS;
+        }
     }
 }
@@ -0,0 +1,182 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import com.google.common.base.Objects;
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded set of recently processed beacons, keyed by sender node ID and beacon ID.
+ * <p>
+ * An entry counts as duplicate only within a fixed time window after it has last been seen. When
+ * the memory budget is exhausted, the least recently seen entry is evicted. The hit, miss and
+ * eviction counters help sizing the cache for dense deployments.
+ */
+public class BeaconDedupCache {
+    /**
+     * Rough estimate of the heap used by a single entry: the key object, the node ID (usually a
+     * 32 byte public key), the map entry with its links and the boxed timestamp.
+     */
+    public static final int ESTIMATED_ENTRY_BYTES = 160;
+
+    private final long mWindowNanos;
+    private final int mMaxEntries;
+
+    /**
+     * Entries in access order, mapping to the time (in nanoseconds) they have last been seen. As
+     * every lookup refreshes the timestamp, the eldest entry is always the least recently seen.
+     */
+    private final LinkedHashMap<BeaconKey, Long> mEntries;
+
+    private long mHitCount;
+    private long mMissCount;
+    private long mEvictionCount;
+    private long mExpirationCount;
+
+    /**
+     * @param windowMillis the time window in milliseconds in which a beacon counts as duplicate
+     * @param memoryBudget the maximum number of bytes the entries of this cache may occupy
+     */
+    public BeaconDedupCache(long windowMillis, int memoryBudget) {
+        if (windowMillis <= 0) {
+            throw new IllegalArgumentException("Window must be positive, not " + windowMillis);
+        }
+        mWindowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        mMaxEntries = Math.max(1, memoryBudget / ESTIMATED_ENTRY_BYTES);
+        mEntries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Checks if the specified beacon has already been processed within the time window. A
+     * positive answer refreshes the entry.
+     *
+     * @param senderId the node ID of the beacon sender
+     * @param beaconId the ID of the beacon
+     * @return true if the beacon is a duplicate, false otherwise
+     */
+    public synchronized boolean contains(ByteString senderId, int beaconId) {
+        final long now = System.nanoTime();
+        expireEntries(now);
+
+        final BeaconKey key = new BeaconKey(senderId, beaconId);
+        if (mEntries.get(key) != null) {
+            mEntries.put(key, now);
+            mHitCount++;
+            return true;
+        }
+        mMissCount++;
+        return false;
+    }
+
+    /**
+     * Registers the specified beacon as processed, evicting the least recently seen entries if the
+     * memory budget would be exceeded.
+     *
+     * @param senderId the node ID of the beacon sender
+     * @param beaconId the ID of the beacon
+     */
+    public synchronized void add(ByteString senderId, int beaconId) {
+        final long now = System.nanoTime();
+        expireEntries(now);
+
+        mEntries.put(new BeaconKey(senderId, beaconId), now);
+
+        final Iterator<Long> eldest = mEntries.values().iterator();
+        while (mEntries.size() > mMaxEntries) {
+            eldest.next();
+            eldest.remove();
+            mEvictionCount++;
+        }
+    }
+
+    /**
+     * Removes all entries, but keeps the counters.
+     */
+    public synchronized void clear() {
+        mEntries.clear();
+    }
+
+    private void expireEntries(long now) {
+        final Iterator<Map.Entry<BeaconKey, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue() < mWindowNanos) {
+                // All following entries have been seen even more recently
+                break;
+            }
+            it.remove();
+            mExpirationCount++;
+        }
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    public int getMaxSize() {
+        return mMaxEntries;
+    }
+
+    public synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    public synchronized long getMissCount() {
+        return mMissCount;
+    }
+
+    /**
+     * @return the number of entries evicted because the memory budget was exhausted
+     */
+    public synchronized long getEvictionCount() {
+        return mEvictionCount;
+    }
+
+    /**
+     * @return the number of entries removed because they have fallen out of the time window
+     */
+    public synchronized long getExpirationCount() {
+        return mExpirationCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+                .add("size", mEntries.size())
+                .add("maxSize", mMaxEntries)
+                .add("hits", mHitCount)
+                .add("misses", mMissCount)
+                .add("evictions", mEvictionCount)
+                .add("expirations", mExpirationCount)
+                .toString();
+    }
+
+    private static final class BeaconKey {
+        private final ByteString mSenderId;
+        private final int mBeaconId;
+
+        public BeaconKey(ByteString senderId, int beaconId) {
+            mSenderId = senderId;
+            mBeaconId = beaconId;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            } else if (!(other instanceof BeaconKey)) {
+                return false;
+            }
+            final BeaconKey o = (BeaconKey) other;
+            return mBeaconId == o.mBeaconId && mSenderId.equals(o.mSenderId);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * mSenderId.hashCode() + mBeaconId;
+        }
+    }
+}
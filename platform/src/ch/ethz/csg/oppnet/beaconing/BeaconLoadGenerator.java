@@ -0,0 +1,363 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.beaconing.BeaconParser.PossibleBeacon;
+import ch.ethz.csg.oppnet.beaconing.BeaconingManager.SocketType;
+import ch.ethz.csg.oppnet.network.PacketFraming;
+import ch.ethz.csg.oppnet.network.WifiConnection;
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.protobuf.ByteString;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Floods the beacon pipeline of the running platform with synthetic beacons, to find the number of
+ * beacons per second a device can sustain before it starts dropping them.
+ * <p>
+ * The beacons are crafted like real ones: every simulated sender has its own node ID, protocols
+ * and list of neighbors, and numbers its beacons consecutively. A configurable share of the sent
+ * beacons are repetitions of the sender's previous beacon, as they occur when a beacon is received
+ * over several sockets. Depending on the {@link Target}, the beacons are either sent over the
+ * loopback interface to the beacon receivers, or handed to the {@link BeaconParser} directly.
+ * <p>
+ * Each simulated sender is bound to its own loopback address (127.0.0.2 and up), so that the
+ * beacons pass the per-origin admission control like beacons of distinct nodes would. The results
+ * are taken from {@link BeaconMetrics}, which is reset at the start of each run.
+ * <p>
+ * Note that the neighbors contained in the synthetic beacons end up in the database, so this is
+ * only meant to be run on test devices. The beacon receivers must be running (i.e. the device
+ * must be connected to a WiFi network), and {@link #run} blocks for the duration of the test, so
+ * it must not be called from the main thread.
+ * <p>
+ * In debug builds, a run can be started from the shell with
+ * {@link BeaconingManager#ACTION_RUN_LOAD_TEST}, which logs the {@link Result}.
+ */
+public class BeaconLoadGenerator {
+    private static final String TAG = BeaconLoadGenerator.class.getSimpleName();
+
+    /**
+     * The number of distinct loopback addresses used as origins (127.0.0.2 to 127.0.0.251).
+     */
+    private static final int MAX_ORIGINS = 250;
+    private static final int NODE_ID_LENGTH = 32;
+    private static final int PROTOCOL_HASH_LENGTH = 20;
+
+    /**
+     * After sending, wait until no beacon has been processed for this long...
+     */
+    private static final long DRAIN_IDLE_MILLIS = 1000;
+    /**
+     * ... but at most this long.
+     */
+    private static final long DRAIN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Where the synthetic beacons are injected into the pipeline.
+     */
+    public static enum Target {
+        /**
+         * Sent over loopback to the unicast receiver port.
+         */
+        UNICAST_PORT,
+        /**
+         * Sent over loopback (as unicast) to the port of the multicast receiver.
+         */
+        MULTICAST_PORT,
+        /**
+         * Handed directly to {@link BeaconParser#addProcessableBeacon}, bypassing the receivers
+         * and the admission control.
+         */
+        PARSER
+    }
+
+    private final BeaconingManager mBM;
+    private final double mDuplicateRatio;
+    private final Random mRandom = new Random(42);
+
+    private final OppNetProtos.Beacon[] mTemplates;
+    private final InetAddress[] mOrigins;
+
+    /**
+     * @param beaconingManager the beaconing manager whose pipeline is tested
+     * @param senderCount the number of simulated senders
+     * @param neighborCount the number of neighbors contained in each beacon
+     * @param protocolCount the number of protocols supported by each sender and neighbor
+     * @param duplicateRatio the share of sent beacons which are duplicates, between 0 and 1
+     */
+    public BeaconLoadGenerator(BeaconingManager beaconingManager, int senderCount,
+            int neighborCount, int protocolCount, double duplicateRatio) {
+        if (senderCount < 1 || neighborCount < 0 || protocolCount < 0
+                || duplicateRatio < 0 || duplicateRatio >= 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid load (senders: %d, neighbors: %d, protocols: %d, duplicates: %s)",
+                    senderCount, neighborCount, protocolCount, duplicateRatio));
+        }
+        mBM = beaconingManager;
+        mDuplicateRatio = duplicateRatio;
+
+        mOrigins = new InetAddress[Math.min(senderCount, MAX_ORIGINS)];
+        for (int i = 0; i < mOrigins.length; i++) {
+            try {
+                mOrigins[i] = InetAddress.getByAddress(new byte[] {
+                        127, 0, 0, (byte) (i + 2)
+                });
+            } catch (IOException e) {
+                // Can not happen for an address of the correct length
+                throw new IllegalStateException(e);
+            }
+        }
+
+        final ByteString[] protocols = new ByteString[protocolCount];
+        for (int i = 0; i < protocolCount; i++) {
+            protocols[i] = randomBytes(PROTOCOL_HASH_LENGTH);
+        }
+
+        // The neighbors are drawn from a shared population, so that senders know common nodes
+        final OppNetProtos.Node[] population = new OppNetProtos.Node[neighborCount * 2];
+        for (int i = 0; i < population.length; i++) {
+            population[i] = createNode(randomBytes(NODE_ID_LENGTH), randomBytes(4), protocols)
+                    .setDeltaLastseen(mRandom.nextInt(60))
+                    .build();
+        }
+
+        mTemplates = new OppNetProtos.Beacon[senderCount];
+        for (int sender = 0; sender < senderCount; sender++) {
+            final byte[] origin = mOrigins[sender % mOrigins.length].getAddress();
+            final OppNetProtos.Beacon.Builder builder = OppNetProtos.Beacon.newBuilder()
+                    .setSender(createNode(
+                            randomBytes(NODE_ID_LENGTH), ByteString.copyFrom(origin), protocols));
+            final int first = (population.length == 0 ? 0 : mRandom.nextInt(population.length));
+            for (int i = 0; i < neighborCount; i++) {
+                builder.addNeighbors(population[(first + i) % population.length]);
+            }
+            mTemplates[sender] = builder.build();
+        }
+    }
+
+    private ByteString randomBytes(int length) {
+        final byte[] bytes = new byte[length];
+        mRandom.nextBytes(bytes);
+        return ByteString.copyFrom(bytes);
+    }
+
+    private static OppNetProtos.Node.Builder createNode(
+            ByteString nodeId, ByteString ip4Address, ByteString[] protocols) {
+        final OppNetProtos.Node.Builder builder = OppNetProtos.Node.newBuilder()
+                .setNodeId(nodeId)
+                .setNetwork("OppNet")
+                .setIp4Address(ip4Address);
+        for (final ByteString protocol : protocols) {
+            builder.addProtocols(protocol);
+        }
+        return builder;
+    }
+
+    /**
+     * Sends synthetic beacons at a fixed rate, waits for the pipeline to drain, and reports how
+     * many of them made it through.
+     *
+     * @param target where to inject the beacons
+     * @param beaconsPerSecond the offered load, or 0 to send as fast as possible
+     * @param durationSeconds for how long to send beacons
+     * @return the results of the run
+     * @throws IOException if the sockets could not be created
+     * @throws InterruptedException if interrupted while sending or waiting for the pipeline
+     * @throws IllegalStateException if the beacon receivers are not running
+     */
+    public Result run(Target target, int beaconsPerSecond, int durationSeconds)
+            throws IOException, InterruptedException {
+        final BeaconParser parser = mBM.mBeaconParser;
+        if (parser == null) {
+            throw new IllegalStateException("The beacon receivers are not running");
+        }
+        final Optional<WifiConnection> connection = mBM.mNetManager.getCurrentConnection();
+        final String networkName = (connection.isPresent()
+                ? connection.get().getNetworkName().or("OppNet") : "OppNet");
+
+        final DatagramSocket[] sockets = new DatagramSocket[mOrigins.length];
+        final InetSocketAddress destination = new InetSocketAddress(InetAddress.getByAddress(
+                new byte[] {127, 0, 0, 1}), (target == Target.MULTICAST_PORT
+                ? BeaconingManager.RECEIVER_PORT_MULTICAST
+                : BeaconingManager.RECEIVER_PORT_UNICAST));
+
+        final BeaconMetrics metrics = BeaconMetrics.getInstance();
+        final int[] nextBeaconIds = new int[mTemplates.length];
+        final byte[][] lastBeacons = new byte[mTemplates.length][];
+        final long intervalNanos =
+                (beaconsPerSecond > 0 ? TimeUnit.SECONDS.toNanos(1) / beaconsPerSecond : 0);
+        long sentCount = 0;
+        long duplicateCount = 0;
+
+        Log.i(TAG, String.format("Sending %s beacons/s to %s for %d s",
+                (beaconsPerSecond > 0 ? beaconsPerSecond : "max"), target, durationSeconds));
+        try {
+            if (target != Target.PARSER) {
+                for (int i = 0; i < sockets.length; i++) {
+                    sockets[i] = new DatagramSocket(new InetSocketAddress(mOrigins[i], 0));
+                }
+            }
+
+            metrics.reset();
+            final long startTime = System.nanoTime();
+            final long endTime = startTime + TimeUnit.SECONDS.toNanos(durationSeconds);
+            long nextSendTime = startTime;
+            while (nextSendTime < endTime) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                final long waitNanos = nextSendTime - System.nanoTime();
+                if (waitNanos > 0) {
+                    LockSupport.parkNanos(waitNanos);
+                }
+
+                final int sender = mRandom.nextInt(mTemplates.length);
+                byte[] data = lastBeacons[sender];
+                if (data != null && mRandom.nextDouble() < mDuplicateRatio) {
+                    duplicateCount++;
+                } else {
+                    data = PacketFraming.frame(PacketFraming.TYPE_BEACON,
+                            mTemplates[sender].toBuilder()
+                                    .setBeaconId(nextBeaconIds[sender]++)
+                                    .setTimeCreated(System.currentTimeMillis() / 1000)
+                                    .build());
+                    lastBeacons[sender] = data;
+                }
+
+                final int origin = sender % mOrigins.length;
+                if (target == Target.PARSER) {
+                    injectIntoParser(parser, data, mOrigins[origin], networkName);
+                } else {
+                    sockets[origin].send(new DatagramPacket(data, data.length, destination));
+                }
+                sentCount++;
+                nextSendTime += intervalNanos;
+            }
+            final long sendingNanos = System.nanoTime() - startTime;
+
+            final long drainedTime = waitUntilDrained(parser, metrics);
+            return new Result(target, sentCount, duplicateCount, sendingNanos,
+                    drainedTime - startTime, metrics);
+        } finally {
+            for (final DatagramSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    }
+
+    private void injectIntoParser(
+            BeaconParser parser, byte[] data, InetAddress origin, String networkName) {
+        final byte[] buffer = mBM.mBeaconBuffers.acquire(data.length);
+        System.arraycopy(data, 0, buffer, 0, data.length);
+        BeaconMetrics.getInstance().onPacketReceived(SocketType.UNICAST);
+
+        final PossibleBeacon possibleBeacon = PossibleBeacon.from(buffer, data.length, origin,
+                System.currentTimeMillis() / 1000, networkName, SocketType.UNICAST,
+                mBM.mBeaconBuffers, mBM.mMasterIdentity);
+        parser.addProcessableBeacon(possibleBeacon);
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which the last beacon has been processed
+     */
+    private static long waitUntilDrained(BeaconParser parser, BeaconMetrics metrics)
+            throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MILLIS);
+        long lastProcessedCount = -1;
+        long lastProgressTime = System.nanoTime();
+        while (System.nanoTime() < deadline) {
+            final long processedCount = getProcessedCount(metrics);
+            if (processedCount != lastProcessedCount) {
+                lastProcessedCount = processedCount;
+                lastProgressTime = System.nanoTime();
+            } else if (parser.getQueuedCount() == 0 && System.nanoTime() - lastProgressTime
+                    > TimeUnit.MILLISECONDS.toNanos(DRAIN_IDLE_MILLIS)) {
+                break;
+            }
+            Thread.sleep(50);
+        }
+        return lastProgressTime;
+    }
+
+    private static long getProcessedCount(BeaconMetrics metrics) {
+        return metrics.getParsedCount() + metrics.getDuplicateCount()
+                + metrics.getParseFailureCount();
+    }
+
+    /**
+     * The outcome of a single run of the load generator.
+     */
+    public static class Result {
+        public final Target target;
+        public final long sentCount;
+        public final long sentDuplicateCount;
+        public final double offeredPerSecond;
+        /**
+         * Beacons which have been parsed, including those recognized as duplicates.
+         */
+        public final long processedCount;
+        public final long rejectedCount;
+        public final long queueDroppedCount;
+        /**
+         * Beacons which have not even been received, e.g. because the socket buffer overflowed.
+         */
+        public final long lostCount;
+        public final double throughputPerSecond;
+        public final long endToEndP50Micros;
+        public final long endToEndP99Micros;
+
+        private Result(Target target, long sentCount, long sentDuplicateCount, long sendingNanos,
+                long totalNanos, BeaconMetrics metrics) {
+            this.target = target;
+            this.sentCount = sentCount;
+            this.sentDuplicateCount = sentDuplicateCount;
+            offeredPerSecond = sentCount / (Math.max(1, sendingNanos) / 1e9);
+
+            processedCount = getProcessedCount(metrics);
+            rejectedCount = metrics.getRejectedCount();
+            queueDroppedCount = metrics.getDroppedCount();
+            lostCount = Math.max(0, sentCount - processedCount - rejectedCount - queueDroppedCount);
+            throughputPerSecond = processedCount / (Math.max(1, totalNanos) / 1e9);
+            endToEndP50Micros = metrics.getEndToEndLatency().getPercentileMicros(50);
+            endToEndP99Micros = metrics.getEndToEndLatency().getPercentileMicros(99);
+        }
+
+        /**
+         * @return the share of sent beacons which have not been processed, between 0 and 1
+         */
+        public double getDropRate() {
+            return (sentCount == 0 ? 0 : 1 - (double) processedCount / sentCount);
+        }
+
+        @Override
+        public String toString() {
+            return Objects.toStringHelper(this)
+                    .add("target", target)
+                    .add("sent", sentCount)
+                    .add("sentDuplicates", sentDuplicateCount)
+                    .add("offeredPerSecond", String.format("%.0f", offeredPerSecond))
+                    .add("processed", processedCount)
+                    .add("rejected", rejectedCount)
+                    .add("queueDropped", queueDroppedCount)
+                    .add("lost", lostCount)
+                    .add("dropRate", String.format("%.3f", getDropRate()))
+                    .add("throughputPerSecond", String.format("%.0f", throughputPerSecond))
+                    .add("e2eP50Micros", endToEndP50Micros)
+                    .add("e2eP99Micros", endToEndP99Micros)
+                    .toString();
+        }
+    }
+}
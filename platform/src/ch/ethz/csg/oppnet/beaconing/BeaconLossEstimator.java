@@ -0,0 +1,59 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+
+import com.google.protobuf.ByteString;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates how many of the regular beacons of other nodes are lost, from the gaps in their
+ * sequence numbers.
+ * <p>
+ * All copies of a beacon (bursts, and the same beacon received over unicast and multicast) share
+ * the same beacon ID, and are thus counted once. A gap means that every copy has been lost, which
+ * on a crowded channel is mostly caused by collisions.
+ */
+public class BeaconLossEstimator {
+    /**
+     * The maximum number of senders whose sequence numbers are remembered. When exceeded, all
+     * are forgotten, which only loses the gap to the next beacon of each sender.
+     */
+    protected static final int MAX_TRACKED_SENDERS = 1024;
+
+    /**
+     * Larger gaps are not counted as loss, as the sender has most likely been out of range or
+     * restarted in between.
+     */
+    protected static final int MAX_SEQUENCE_GAP = 16;
+
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
+    private final ConcurrentHashMap<ByteString, Integer> mSequenceNumbers =
+            new ConcurrentHashMap<>();
+
+    /**
+     * @param beacon a received beacon, which is not a duplicate
+     */
+    public void onBeacon(OppNetProtos.Beacon beacon) {
+        if (!beacon.hasSequenceNumber()) {
+            // Replies and beacons of older nodes
+            return;
+        }
+
+        if (mSequenceNumbers.size() >= MAX_TRACKED_SENDERS) {
+            mSequenceNumbers.clear();
+        }
+        final Integer lastNumber = mSequenceNumbers.put(
+                beacon.getSender().getNodeId(), beacon.getSequenceNumber());
+
+        int missedCount = 0;
+        if (lastNumber != null) {
+            final int gap = beacon.getSequenceNumber() - lastNumber;
+            if (gap > 1 && gap <= MAX_SEQUENCE_GAP) {
+                missedCount = gap - 1;
+            }
+        }
+        mMetrics.onSequencedBeacon(missedCount);
+    }
+}
@@ -0,0 +1,530 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import ch.ethz.csg.oppnet.beaconing.BeaconingManager.SocketType;
+import ch.ethz.csg.oppnet.network.UdpSendChannel;
+import ch.ethz.csg.oppnet.utils.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the beacon pipeline, from receiving a packet over parsing it
+ * to storing the contained neighbors in the database.
+ * <p>
+ * The values are accumulated since the platform has been started, and can be queried as a
+ * snapshot through {@link ch.ethz.csg.oppnet.data.FullContract.Metrics#URI_ALL}.
+ */
+public final class BeaconMetrics {
+    private static final BeaconMetrics sInstance = new BeaconMetrics();
+
+    /**
+     * The number of seconds over which the parsed beacons per second are averaged.
+     */
+    private static final int RATE_WINDOW_SECONDS = 10;
+
+    private final AtomicLongArray mReceivedCounts = new AtomicLongArray(SocketType.values().length);
+    private final AtomicLong mRejectedByFraming = new AtomicLong();
+    private final AtomicLong mRejectedByAdmission = new AtomicLong();
+    private final AtomicLong mDroppedByQueue = new AtomicLong();
+    private final AtomicLong mParseFailures = new AtomicLong();
+    private final AtomicLong mDuplicates = new AtomicLong();
+    private final AtomicLong mParsedBeacons = new AtomicLong();
+    private final AtomicLong mDeltaBeacons = new AtomicLong();
+    private final AtomicLong mListGaps = new AtomicLong();
+    private final AtomicLong mUnresolvedNodeIds = new AtomicLong();
+    private final AtomicLong mUpsertedNeighbors = new AtomicLong();
+    private final AtomicLong mComposedBeacons = new AtomicLong();
+    private final AtomicLong mTruncatedBeacons = new AtomicLong();
+    private final AtomicLong mDroppedNeighbors = new AtomicLong();
+    private final AtomicLong mTemplateHits = new AtomicLong();
+    private final AtomicLong mTemplateMisses = new AtomicLong();
+    private final AtomicLong mScheduledReplies = new AtomicLong();
+    private final AtomicLong mSentReplies = new AtomicLong();
+    private final AtomicLong mAggregatedReplies = new AtomicLong();
+    private final AtomicLong mSuppressedReplies = new AtomicLong();
+    private final AtomicLong mSequencedBeacons = new AtomicLong();
+    private final AtomicLong mMissedBeacons = new AtomicLong();
+    private final AtomicLong mBeaconPeriodMillis = new AtomicLong();
+    private final AtomicLong mRegularBeacons = new AtomicLong();
+    private final AtomicLong mFinishedRounds = new AtomicLong();
+    private final AtomicLong mConvergedRounds = new AtomicLong();
+    private final AtomicLong mExtendedRounds = new AtomicLong();
+    private final AtomicLong mSavedRoundMillis = new AtomicLong();
+    private final AtomicLong mExtraRoundMillis = new AtomicLong();
+    private final AtomicLong mRoundDurationMillis = new AtomicLong();
+    private final AtomicLong mIntervalDecisions = new AtomicLong();
+    private final AtomicLong mIntervalsShortened = new AtomicLong();
+    private final AtomicLong mIntervalsLengthened = new AtomicLong();
+    private final AtomicLong mRoundArrivals = new AtomicLong();
+    private final AtomicLong mRoundDepartures = new AtomicLong();
+    private final AtomicLong mQueuedPackets = new AtomicLong();
+    private final AtomicLong mIntervalMillis = new AtomicLong();
+    private final AtomicLong mLivenessChecks = new AtomicLong();
+    private final AtomicLong mAvoidedSends = new AtomicLong();
+    private final AtomicLong mReappearedNeighbors = new AtomicLong();
+    private final AtomicLong mApTakeovers = new AtomicLong();
+    private final AtomicLong mApStepDowns = new AtomicLong();
+
+    private final LatencyHistogram mParseLatency = new LatencyHistogram();
+    private final LatencyHistogram mEndToEndLatency = new LatencyHistogram();
+    private final LatencyHistogram mUpsertLatency = new LatencyHistogram();
+
+    /**
+     * Parsed beacons per second for the last few seconds, as a ring buffer indexed by second.
+     */
+    private final long[] mParsedPerSecond = new long[RATE_WINDOW_SECONDS + 1];
+    private final long[] mParsedSecond = new long[RATE_WINDOW_SECONDS + 1];
+
+    private volatile BeaconParser mParser;
+    private volatile UdpSendChannel mSendChannel;
+
+    private BeaconMetrics() {
+        // Singleton
+    }
+
+    public static BeaconMetrics getInstance() {
+        return sInstance;
+    }
+
+    void setParser(BeaconParser parser) {
+        mParser = parser;
+    }
+
+    void setSendChannel(UdpSendChannel sendChannel) {
+        mSendChannel = sendChannel;
+    }
+
+    void onPacketReceived(SocketType socketType) {
+        mReceivedCounts.incrementAndGet(socketType.ordinal());
+    }
+
+    void onPacketRejected() {
+        mRejectedByFraming.incrementAndGet();
+    }
+
+    void onAdmissionRejected() {
+        mRejectedByAdmission.incrementAndGet();
+    }
+
+    void onQueueDropped() {
+        mDroppedByQueue.incrementAndGet();
+    }
+
+    void onParseFailed() {
+        mParseFailures.incrementAndGet();
+    }
+
+    void onDuplicate() {
+        mDuplicates.incrementAndGet();
+    }
+
+    /**
+     * @param applicable false if the full neighbor list the delta beacon is based on has been
+     *            missed, and a resync has been requested
+     */
+    void onDeltaBeacon(boolean applicable) {
+        mDeltaBeacons.incrementAndGet();
+        if (!applicable) {
+            mListGaps.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param count the number of compact node IDs in a beacon which could not be resolved
+     */
+    void onUnresolvedNodeIds(int count) {
+        mUnresolvedNodeIds.addAndGet(count);
+    }
+
+    /**
+     * @param parseNanos the time it took to parse the beacon and extract its neighbors
+     * @param endToEndNanos the time from receiving the beacon until it has been processed,
+     *            including the time spent waiting in the parser queue
+     */
+    void onBeaconParsed(long parseNanos, long endToEndNanos) {
+        mParsedBeacons.incrementAndGet();
+        mParseLatency.record(parseNanos);
+        mEndToEndLatency.record(endToEndNanos);
+
+        final long second = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        final int slot = (int) (second % mParsedPerSecond.length);
+        synchronized (mParsedPerSecond) {
+            if (mParsedSecond[slot] != second) {
+                mParsedSecond[slot] = second;
+                mParsedPerSecond[slot] = 0;
+            }
+            mParsedPerSecond[slot]++;
+        }
+    }
+
+    /**
+     * Records a database write of neighbors.
+     *
+     * @param neighborCount the number of neighbors which have been written
+     * @param latencyNanos the time the write took
+     */
+    public void onNeighborsUpserted(int neighborCount, long latencyNanos) {
+        mUpsertedNeighbors.addAndGet(neighborCount);
+        mUpsertLatency.record(latencyNanos);
+    }
+
+    /**
+     * Records the composition of a beacon template (i.e. not every beacon sent).
+     *
+     * @param includedCount the number of neighbors included in the beacon
+     * @param droppedCount the number of neighbors left out to stay within the size limit
+     */
+    void onBeaconComposed(int includedCount, int droppedCount) {
+        mComposedBeacons.incrementAndGet();
+        if (droppedCount > 0) {
+            mTruncatedBeacons.incrementAndGet();
+            mDroppedNeighbors.addAndGet(droppedCount);
+        }
+    }
+
+    /**
+     * Records a lookup of the cached neighbors template.
+     *
+     * @param hit true if the cached template could be reused, false if it had to be rebuilt
+     */
+    void onTemplateLookup(boolean hit) {
+        if (hit) {
+            mTemplateHits.incrementAndGet();
+        } else {
+            mTemplateMisses.incrementAndGet();
+        }
+    }
+
+    void onReplyScheduled() {
+        mScheduledReplies.incrementAndGet();
+    }
+
+    void onReplySent() {
+        mSentReplies.incrementAndGet();
+    }
+
+    /**
+     * Records a beacon which has not been answered, as a reply to its sender is already pending
+     * or has been sent just before.
+     */
+    void onReplyAggregated() {
+        mAggregatedReplies.incrementAndGet();
+    }
+
+    /**
+     * Records a pending reply which has been cancelled, as another node's reply already covers it.
+     */
+    void onReplySuppressed() {
+        mSuppressedReplies.incrementAndGet();
+    }
+
+    /**
+     * @param missedCount the number of regular beacons of the same sender which have been missed
+     *            since its previous one
+     */
+    void onSequencedBeacon(int missedCount) {
+        mSequencedBeacons.incrementAndGet();
+        if (missedCount > 0) {
+            mMissedBeacons.addAndGet(missedCount);
+        }
+    }
+
+    long getSequencedCount() {
+        return mSequencedBeacons.get();
+    }
+
+    long getMissedCount() {
+        return mMissedBeacons.get();
+    }
+
+    /**
+     * @return the share of the regular beacons of other nodes which have been missed (through
+     *         collisions, interference or overload), or 0 if none have been received yet
+     */
+    public double getLossRate() {
+        final long missedCount = mMissedBeacons.get();
+        final long totalCount = mSequencedBeacons.get() + missedCount;
+        return (totalCount == 0 ? 0 : (double) missedCount / totalCount);
+    }
+
+    /**
+     * @param periodMillis the current base period between two regular WiFi beacons
+     */
+    void onBeaconPeriodChanged(long periodMillis) {
+        mBeaconPeriodMillis.set(periodMillis);
+    }
+
+    void onRegularBeaconSent() {
+        mRegularBeacons.incrementAndGet();
+    }
+
+    long getRegularBeaconCount() {
+        return mRegularBeacons.get();
+    }
+
+    /**
+     * Records a beaconing round which has not been aborted.
+     *
+     * @param durationMillis the time the radios have been in use for the round
+     * @param nominalMillis the duration of a round which neither ends early nor is extended
+     * @param converged true if the round ended early as the discovery had converged
+     * @param extended true if the round has been extended as new neighbors kept appearing
+     */
+    void onBeaconingRoundFinished(
+            long durationMillis, long nominalMillis, boolean converged, boolean extended) {
+        mFinishedRounds.incrementAndGet();
+        if (converged) {
+            mConvergedRounds.incrementAndGet();
+        }
+        if (extended) {
+            mExtendedRounds.incrementAndGet();
+        }
+        if (durationMillis < nominalMillis) {
+            mSavedRoundMillis.addAndGet(nominalMillis - durationMillis);
+        } else {
+            mExtraRoundMillis.addAndGet(durationMillis - nominalMillis);
+        }
+        mRoundDurationMillis.set(durationMillis);
+    }
+
+    /**
+     * Records a decision of the adaptive beaconing interval, taken after a beaconing round.
+     *
+     * @param intervalMillis the interval until the next round
+     * @param change negative if the interval has been shortened, positive if it has been
+     *            lengthened, 0 if it has been kept
+     * @param arrivals the number of neighbors seen in the round, but not in the previous one
+     * @param departures the number of neighbors seen in the previous round, but not in this one
+     * @param queuedPacketCount the number of packets waiting to be sent
+     */
+    public void onBeaconingIntervalDecision(int intervalMillis, int change, int arrivals,
+            int departures, long queuedPacketCount) {
+        mIntervalDecisions.incrementAndGet();
+        if (change < 0) {
+            mIntervalsShortened.incrementAndGet();
+        } else if (change > 0) {
+            mIntervalsLengthened.incrementAndGet();
+        }
+        mRoundArrivals.addAndGet(arrivals);
+        mRoundDepartures.addAndGet(departures);
+        mQueuedPackets.set(queuedPacketCount);
+        mIntervalMillis.set(intervalMillis);
+    }
+
+    /**
+     * Records whether a packet has been sent to a neighbor, or skipped as the neighbor has most
+     * likely departed (see {@link LivenessEstimator}).
+     *
+     * @param avoided true if the packet has not been sent
+     */
+    public void onPacketSendChecked(boolean avoided) {
+        mLivenessChecks.incrementAndGet();
+        if (avoided) {
+            mAvoidedSends.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records a beacon from a neighbor which had been considered departed, i.e. a wrong estimate.
+     */
+    void onNeighborReappeared() {
+        mReappearedNeighbors.incrementAndGet();
+    }
+
+    /**
+     * Records that this node took over the access point role after the previous one disappeared.
+     */
+    void onApTakeover() {
+        mApTakeovers.incrementAndGet();
+    }
+
+    /**
+     * Records that this node stepped down as access point in favor of another one.
+     */
+    void onApStepDown() {
+        mApStepDowns.incrementAndGet();
+    }
+
+    /**
+     * @return the average number of beacons parsed per second over the last few (full) seconds
+     */
+    public double getBeaconsPerSecond() {
+        final long currentSecond = TimeUnit.NANOSECONDS.toSeconds(System.nanoTime());
+        long count = 0;
+        synchronized (mParsedPerSecond) {
+            for (int i = 0; i < mParsedPerSecond.length; i++) {
+                final long age = currentSecond - mParsedSecond[i];
+                if (age >= 1 && age <= RATE_WINDOW_SECONDS) {
+                    count += mParsedPerSecond[i];
+                }
+            }
+        }
+        return (double) count / RATE_WINDOW_SECONDS;
+    }
+
+    /**
+     * @return all metrics by name, in a stable order
+     */
+    public Map<String, Number> getSnapshot() {
+        final Map<String, Number> snapshot = new LinkedHashMap<>();
+        for (final SocketType socketType : SocketType.values()) {
+            snapshot.put("received." + socketType.name().toLowerCase(Locale.US),
+                    mReceivedCounts.get(socketType.ordinal()));
+        }
+        snapshot.put("rejected.framing", mRejectedByFraming.get());
+        snapshot.put("rejected.admission", mRejectedByAdmission.get());
+        snapshot.put("parser.dropped", mDroppedByQueue.get());
+
+        final BeaconParser parser = mParser;
+        snapshot.put("parser.queue_depth", (parser == null ? 0 : parser.getQueuedCount()));
+        snapshot.put("parser.failures", mParseFailures.get());
+        snapshot.put("parser.duplicates", mDuplicates.get());
+        snapshot.put("parser.beacons", mParsedBeacons.get());
+        snapshot.put("parser.delta_beacons", mDeltaBeacons.get());
+        snapshot.put("parser.list_gaps", mListGaps.get());
+        snapshot.put("parser.unresolved_node_ids", mUnresolvedNodeIds.get());
+        snapshot.put("parser.beacons_per_second", getBeaconsPerSecond());
+        mParseLatency.addTo(snapshot, "parser.latency");
+        mEndToEndLatency.addTo(snapshot, "parser.e2e_latency");
+
+        snapshot.put("db.neighbors_upserted", mUpsertedNeighbors.get());
+        mUpsertLatency.addTo(snapshot, "db.upsert_latency");
+
+        snapshot.put("builder.composed", mComposedBeacons.get());
+        snapshot.put("builder.truncated", mTruncatedBeacons.get());
+        snapshot.put("builder.neighbors_dropped", mDroppedNeighbors.get());
+        snapshot.put("builder.template_hits", mTemplateHits.get());
+        snapshot.put("builder.template_misses", mTemplateMisses.get());
+
+        snapshot.put("replies.scheduled", mScheduledReplies.get());
+        snapshot.put("replies.sent", mSentReplies.get());
+        snapshot.put("replies.aggregated", mAggregatedReplies.get());
+        snapshot.put("replies.suppressed", mSuppressedReplies.get());
+
+        snapshot.put("loss.sequenced", mSequencedBeacons.get());
+        snapshot.put("loss.missed", mMissedBeacons.get());
+        snapshot.put("loss.rate", getLossRate());
+        snapshot.put("sender.period_millis", mBeaconPeriodMillis.get());
+        snapshot.put("sender.regular_beacons", mRegularBeacons.get());
+
+        snapshot.put("round.finished", mFinishedRounds.get());
+        snapshot.put("round.converged", mConvergedRounds.get());
+        snapshot.put("round.extended", mExtendedRounds.get());
+        snapshot.put("round.saved_millis", mSavedRoundMillis.get());
+        snapshot.put("round.extra_millis", mExtraRoundMillis.get());
+        snapshot.put("round.duration_millis", mRoundDurationMillis.get());
+
+        snapshot.put("interval.rounds", mIntervalDecisions.get());
+        snapshot.put("interval.shortened", mIntervalsShortened.get());
+        snapshot.put("interval.lengthened", mIntervalsLengthened.get());
+        snapshot.put("interval.arrivals", mRoundArrivals.get());
+        snapshot.put("interval.departures", mRoundDepartures.get());
+        snapshot.put("interval.queued_packets", mQueuedPackets.get());
+        snapshot.put("interval.millis", mIntervalMillis.get());
+
+        snapshot.put("liveness.neighbors", LivenessEstimator.getInstance().size());
+        snapshot.put("liveness.sends_checked", mLivenessChecks.get());
+        snapshot.put("liveness.sends_avoided", mAvoidedSends.get());
+        snapshot.put("liveness.reappeared", mReappearedNeighbors.get());
+
+        snapshot.put("election.takeovers", mApTakeovers.get());
+        snapshot.put("election.step_downs", mApStepDowns.get());
+
+        final UdpSendChannel sendChannel = mSendChannel;
+        if (sendChannel != null) {
+            snapshot.put("send.datagrams", sendChannel.getSendCount());
+            snapshot.put("send.bytes", sendChannel.getSentBytes());
+            snapshot.put("send.errors", sendChannel.getErrorCount());
+            snapshot.put("send.rebinds", sendChannel.getRebindCount());
+        }
+        return snapshot;
+    }
+
+    /**
+     * Resets all counters and histograms, e.g. before running a benchmark.
+     */
+    public void reset() {
+        for (int i = 0; i < mReceivedCounts.length(); i++) {
+            mReceivedCounts.set(i, 0);
+        }
+        mRejectedByFraming.set(0);
+        mRejectedByAdmission.set(0);
+        mDroppedByQueue.set(0);
+        mParseFailures.set(0);
+        mDuplicates.set(0);
+        mParsedBeacons.set(0);
+        mDeltaBeacons.set(0);
+        mListGaps.set(0);
+        mUnresolvedNodeIds.set(0);
+        mUpsertedNeighbors.set(0);
+        mComposedBeacons.set(0);
+        mTruncatedBeacons.set(0);
+        mDroppedNeighbors.set(0);
+        mTemplateHits.set(0);
+        mTemplateMisses.set(0);
+        mScheduledReplies.set(0);
+        mSentReplies.set(0);
+        mAggregatedReplies.set(0);
+        mSuppressedReplies.set(0);
+        mSequencedBeacons.set(0);
+        mMissedBeacons.set(0);
+        mRegularBeacons.set(0);
+        mFinishedRounds.set(0);
+        mConvergedRounds.set(0);
+        mExtendedRounds.set(0);
+        mSavedRoundMillis.set(0);
+        mExtraRoundMillis.set(0);
+        mIntervalDecisions.set(0);
+        mIntervalsShortened.set(0);
+        mIntervalsLengthened.set(0);
+        mRoundArrivals.set(0);
+        mRoundDepartures.set(0);
+        mLivenessChecks.set(0);
+        mAvoidedSends.set(0);
+        mReappearedNeighbors.set(0);
+        mApTakeovers.set(0);
+        mApStepDowns.set(0);
+        mParseLatency.reset();
+        mEndToEndLatency.reset();
+        mUpsertLatency.reset();
+        synchronized (mParsedPerSecond) {
+            for (int i = 0; i < mParsedPerSecond.length; i++) {
+                mParsedPerSecond[i] = 0;
+            }
+        }
+    }
+
+    public long getParsedCount() {
+        return mParsedBeacons.get();
+    }
+
+    public long getDuplicateCount() {
+        return mDuplicates.get();
+    }
+
+    public long getParseFailureCount() {
+        return mParseFailures.get();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedByFraming.get() + mRejectedByAdmission.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedByQueue.get();
+    }
+
+    public LatencyHistogram getEndToEndLatency() {
+        return mEndToEndLatency;
+    }
+
+    @Override
+    public String toString() {
+        return getSnapshot().toString();
+    }
+}
@@ -2,94 +2,166 @@
 package ch.ethz.csg.oppnet.beaconing;
 
 import android.content.ContentValues;
+import android.os.SystemClock;
 import android.util.Log;
 
 import ch.ethz.csg.oppnet.beaconing.BeaconingManager.SocketType;
 import ch.ethz.csg.oppnet.data.FullContract.Neighbors;
 import ch.ethz.csg.oppnet.data.Identity;
+import ch.ethz.csg.oppnet.data.NeighborUpdate;
 import ch.ethz.csg.oppnet.lib.data.Neighbor;
 import ch.ethz.csg.oppnet.network.NetworkManager;
+import ch.ethz.csg.oppnet.network.PacketFraming;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
 import ch.ethz.csg.oppnet.utils.ByteUtils;
-import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
+import ch.ethz.csg.oppnet.utils.StripedExecutor;
 
+import com.google.common.collect.Iterables;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
 import com.google.protobuf.InvalidProtocolBufferException;
+import com.google.protobuf.WireFormat;
 
-import java.net.DatagramPacket;
-import java.nio.ByteBuffer;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.Set;
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
 
-public class BeaconParser extends InterruptibleFailsafeRunnable {
+/**
+ * Parses received beacons and registers the nodes contained in them as neighbors.
+ * <p>
+ * Beacons are parsed by a configurable number of workers. To keep the updates of any single
+ * neighbor in order (and to detect duplicates reliably), beacons are assigned to the workers by
+ * the node ID of their sender, which is peeked from the raw data without parsing the whole beacon.
+ */
+public class BeaconParser implements StripedExecutor.Handler<BeaconParser.PossibleBeacon> {
     public static final String TAG = BeaconParser.class.getSimpleName();
 
-    private final BeaconingManager mBM;
+    private static final int SENDER_TAG =
+            (OppNetProtos.Beacon.SENDER_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
+    private static final int NODE_ID_TAG =
+            (OppNetProtos.Node.NODE_ID_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_LENGTH_DELIMITED;
 
-    private final BlockingDeque<PossibleBeacon> mBeaconsToProcess = new LinkedBlockingDeque<>();
-    private final Set<ByteBuffer> mKnownBeacons = new HashSet<>();
-    private final Set<Integer> mProcessedBeacons = new HashSet<>();
+    /**
+     * Unframed beacons (sent by older nodes) always start with one of these two fields, as
+     * protobuf serializes the fields in the order of their numbers.
+     */
+    private static final int LEGACY_BEACON_TYPE_TAG =
+            (OppNetProtos.Beacon.BEACON_TYPE_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
+    private static final int LEGACY_BEACON_ID_TAG =
+            (OppNetProtos.Beacon.BEACON_ID_FIELD_NUMBER << 3) | WireFormat.WIRETYPE_VARINT;
 
-    public BeaconParser(BeaconingManager context) {
-        super(TAG);
+    private final BeaconingManager mBM;
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
+    private final LivenessEstimator mLiveness = LivenessEstimator.getInstance();
+
+    private final StripedExecutor<PossibleBeacon> mWorkers;
+    private final BeaconDedupCache mProcessedBeacons = new BeaconDedupCache(
+            BeaconingManager.DEDUP_WINDOW_MILLIS, BeaconingManager.DEDUP_MEMORY_BUDGET);
+
+    /**
+     * @param context the beaconing manager to report parsed beacons to
+     * @param workerCount the number of parallel parser threads, 1 to parse all beacons serially
+     * @param queueCapacity the maximum number of beacons waiting for each parser thread
+     */
+    public BeaconParser(BeaconingManager context, int workerCount, int queueCapacity) {
         mBM = context;
+        // When flooded, prefer fresh beacons over stale ones
+        mWorkers = new StripedExecutor<>(
+                TAG, workerCount, queueCapacity, StripedExecutor.DropPolicy.DROP_OLDEST, this);
+    }
+
+    public void start() {
+        mWorkers.start();
     }
 
-    public synchronized void addProcessableBeacon(PossibleBeacon newBeacon) {
-        final ByteBuffer wrappedBeaconData = ByteBuffer.wrap(newBeacon.getRawData());
+    public void stop() {
+        mWorkers.stop();
+    }
 
-        if (mKnownBeacons.add(wrappedBeaconData)) {
-            // It's a new beacon
-            mBeaconsToProcess.add(newBeacon);
+    public void addProcessableBeacon(PossibleBeacon newBeacon) {
+        // Duplicates are detected by the worker, so that all copies of a beacon meet on one thread
+        newBeacon.peekIds();
+        final PossibleBeacon droppedBeacon =
+                mWorkers.submit(newBeacon.getPeekedSenderId().hashCode(), newBeacon);
+        if (droppedBeacon != null) {
+            mMetrics.onQueueDropped();
+            droppedBeacon.release();
         }
     }
 
-    public synchronized void clearProcessedBeacons() {
+    /**
+     * @return the number of beacons waiting to be parsed
+     */
+    public int getQueuedCount() {
+        return mWorkers.getQueuedCount();
+    }
+
+    /**
+     * @return the number of beacons dropped without parsing because the queue was full
+     */
+    public long getDroppedCount() {
+        return mWorkers.getDroppedCount();
+    }
+
+    public void clearProcessedBeacons() {
+        Log.v(TAG, "Clearing processed beacons: " + mProcessedBeacons);
         mProcessedBeacons.clear();
     }
 
-    @Override
-    protected void execute() {
-        while (!mThread.isInterrupted()) {
-            PossibleBeacon nextBeacon;
-            try {
-                nextBeacon = mBeaconsToProcess.take();
-            } catch (InterruptedException e) {
-                // Parser got interrupted
-                break;
-            }
+    public BeaconDedupCache getProcessedBeacons() {
+        return mProcessedBeacons;
+    }
 
+    @Override
+    public void handle(PossibleBeacon nextBeacon) {
+        try {
             parseSingleBeacon(nextBeacon);
+        } finally {
+            // All data has been copied out of the buffer during parsing
+            nextBeacon.release();
         }
     }
 
     private void parseSingleBeacon(PossibleBeacon possibleBeacon) {
-        final byte[] rawData = possibleBeacon.getRawData();
+        final long startTime = System.nanoTime();
         final byte[] origin = possibleBeacon.getOrigin();
         final byte[] ownNodeId = possibleBeacon.getNodeId();
 
-        // Check if it's a beacon, and if we still need to process it
+        // Check if we still need to process it, before paying for the full parse
+        final ByteString peekedSenderId = possibleBeacon.getPeekedSenderId();
+        final long peekedBeaconId = possibleBeacon.getPeekedBeaconId();
+        if (!peekedSenderId.isEmpty() && peekedBeaconId >= 0
+                && mProcessedBeacons.contains(peekedSenderId, (int) peekedBeaconId)) {
+            // This beacon has already been processed before. Copies received over other
+            // transports still show that the sender is reachable there.
+            mLiveness.onBeacon(peekedSenderId, possibleBeacon.getSocketType(),
+                    possibleBeacon.getReceivedElapsedMillis());
+            mMetrics.onDuplicate();
+            return;
+        }
+
+        // Check if it's a beacon
         OppNetProtos.Beacon beacon;
         try {
-            beacon = OppNetProtos.Beacon.parseFrom(rawData);
+            beacon = OppNetProtos.Beacon.PARSER.parseFrom(
+                    possibleBeacon.getData(), possibleBeacon.getOffset(),
+                    possibleBeacon.getLength());
         } catch (InvalidProtocolBufferException e) {
-            // This is not a Beacon message
-            Log.e(TAG,
-                    String.format(
-                            "Received a %s packet from %s which is not a beacon!",
-                            possibleBeacon.getSocketType().name().toLowerCase(Locale.US),
-                            origin),
-                    e);
+            // This is not a Beacon message, although it looked like one
+            Log.w(TAG, String.format(
+                    "Received a %s packet from %s which is not a beacon: %s",
+                    possibleBeacon.getSocketType().name().toLowerCase(Locale.US),
+                    ByteUtils.bytesToHex(origin), e.getMessage()));
+            mMetrics.onParseFailed();
             return;
         }
 
-        if (mProcessedBeacons.contains(beacon.getBeaconId())) {
-            // This beacon has already been processed before
-            return;
-        }
+        final ByteString senderId = beacon.getSender().getNodeId();
+        mLiveness.onBeacon(senderId, possibleBeacon.getSocketType(),
+                possibleBeacon.getReceivedElapsedMillis());
 
         // It's a meaningful Beacon after all
 
@@ -97,11 +169,23 @@ public class BeaconParser extends InterruptibleFailsafeRunnable {
         final long referenceTimestamp = beacon.getTimeCreated();
         mBM.onBeaconParsed(beacon, possibleBeacon, referenceTimestamp);
 
+        // Delta beacons only carry changed neighbors, which are registered like any others. If
+        // the full list they are based on has been missed, the tracker requests it again.
+        // Removed neighbors need no handling, as neighbors expire by their last-seen time.
+        if (beacon.getDelta()) {
+            mMetrics.onDeltaBeacon(mBM.mListTracker.onBeacon(beacon));
+        } else {
+            mBM.mListTracker.onBeacon(beacon);
+        }
+        mBM.mNodeIds.onBeacon(beacon, possibleBeacon.getTimeReceived());
+        mBM.mLossEstimator.onBeacon(beacon);
+
         // Register the sender as neighbor
         final OppNetProtos.Node sender = beacon.getSender();
         final ContentValues senderValues;
         try {
-            senderValues = extractContent(sender, ownNodeId, networkName, referenceTimestamp);
+            senderValues = extractContent(sender, sender.getNodeId(), ownNodeId, networkName,
+                    referenceTimestamp);
         } catch (EmptyNodeIdException e) {
             Log.w(TAG, "Rejected a beacon with no sender id.");
             return;
@@ -122,20 +206,33 @@ public class BeaconParser extends InterruptibleFailsafeRunnable {
         senderValues.put(Neighbors.COLUMN_NETWORK, networkName);
         senderValues.put(Neighbors.COLUMN_TIME_LASTSEEN, beacon.getTimeCreated());
 
-        mBM.mDbController.insertNeighbor(senderValues, sender.getProtocolsList());
+        final List<NeighborUpdate> updates = new ArrayList<>(1 + beacon.getNeighborsCount());
+        // Filters are tested against the protocols of relayed packets as well, which need to be
+        // sent to the nodes supporting them just like the packets of local apps
+        updates.add(new NeighborUpdate(senderValues, ProtocolFilter.getSupportedProtocols(sender,
+                Iterables.concat(mBM.mProtocolRegistry.getProtocolHashes(),
+                        mBM.mPacketRegistry.getPacketProtocols()))));
         Log.v(TAG, String.format(
                 "Received a %s beacon (%s, %s bytes) from node %s",
                 possibleBeacon.getSocketType().toString().toLowerCase(Locale.US),
                 beacon.getBeaconType().toString().toLowerCase(Locale.US),
-                rawData.length,
+                possibleBeacon.getLength(),
                 ByteUtils.bytesToHex(sender.getNodeId(), Neighbor.BYTES_SHORT_NODE_ID)));
 
         // Register sender's neighbors
+        int unresolvedCount = 0;
         for (final OppNetProtos.Node neighbor : beacon.getNeighborsList()) {
+            final ByteString neighborId = mBM.mNodeIds.resolve(neighbor.getNodeId());
+            if (neighborId == null) {
+                // Compact ID of a node we do not know (yet)
+                unresolvedCount++;
+                continue;
+            }
+
             final ContentValues otherNeighborValues;
             try {
                 otherNeighborValues = extractContent(
-                        neighbor, ownNodeId, networkName, referenceTimestamp);
+                        neighbor, neighborId, ownNodeId, networkName, referenceTimestamp);
             } catch (EmptyNodeIdException e) {
                 Log.w(TAG, "Skipped registering neighbor node with no node id.");
                 continue;
@@ -144,11 +241,28 @@ public class BeaconParser extends InterruptibleFailsafeRunnable {
                 continue;
             }
 
-            mBM.mDbController.insertNeighbor(otherNeighborValues, neighbor.getProtocolsList());
+            updates.add(new NeighborUpdate(otherNeighborValues, neighbor.getProtocolsList()));
+        }
+        if (unresolvedCount > 0) {
+            mMetrics.onUnresolvedNodeIds(unresolvedCount);
+            if (!beacon.getDelta()) {
+                // Requested full lists carry full IDs. Unknown neighbors in delta beacons are
+                // picked up with the next full list, so that a sender with more neighbors than
+                // fit into a full list is not asked again and again.
+                mBM.mListTracker.requestResync(senderId);
+            }
+        }
+
+        // The neighbor table is updated right away, the database in the background
+        mBM.mNeighborTable.update(updates);
+        for (final NeighborUpdate update : updates) {
+            mBM.mNeighborWriter.add(update);
         }
 
         // Finished processing beacon
-        mProcessedBeacons.add(beacon.getBeaconId());
+        mProcessedBeacons.add(senderId, beacon.getBeaconId());
+        final long endTime = System.nanoTime();
+        mMetrics.onBeaconParsed(endTime - startTime, endTime - possibleBeacon.getReceivedNanos());
     }
 
     private boolean senderIsOrigin(OppNetProtos.Node sender, byte[] originAddr) {
@@ -197,11 +311,11 @@ public class BeaconParser extends InterruptibleFailsafeRunnable {
         return false;
     }
 
-    private ContentValues extractContent(OppNetProtos.Node node, byte[] ownNodeId,
-            String networkName, long referenceTime)
+    private ContentValues extractContent(OppNetProtos.Node node, ByteString fullNodeId,
+            byte[] ownNodeId, String networkName, long referenceTime)
             throws EmptyNodeIdException, NodeIsUsException {
 
-        final byte[] nodeId = node.getNodeId().toByteArray();
+        final byte[] nodeId = fullNodeId.toByteArray();
         if (nodeId.length == 0) {
             throw new EmptyNodeIdException();
         } else if (Arrays.equals(ownNodeId, nodeId)) {
@@ -249,31 +363,63 @@ public class BeaconParser extends InterruptibleFailsafeRunnable {
         }
     }
 
+    /**
+     * A received packet which might contain a beacon. The packet data is a slice of a (usually
+     * pooled) receive buffer, which must be {@link #release() released} once it has been parsed.
+     */
     public static final class PossibleBeacon {
-        private final byte[] mRawData;
+        private byte[] mData;
+        private final int mOffset;
+        private final int mLength;
+        private final BeaconBufferPool mPool;
         private final byte[] mOrigin;
         private final long mTimeReceived;
+        private final long mReceivedNanos;
+        private final long mReceivedElapsedMillis;
         private final String mReceivingNetworkName;
         private final SocketType mReceivingSocketType;
         private final byte[] mReceiverNodeId;
-
-        public static PossibleBeacon from(DatagramPacket packet, long timeReceived,
-                String networkName, SocketType socketType, Identity identity) {
-
+        private ByteString mPeekedSenderId = ByteString.EMPTY;
+        private long mPeekedBeaconId = -1;
+
+        /**
+         * Wraps a packet received over WiFi. Ownership of the buffer passes to the new object.
+         *
+         * @return the possible beacon, or null if the packet is no beacon (in which case the
+         *         caller keeps the ownership of the buffer)
+         */
+        public static PossibleBeacon from(byte[] buffer, int length, InetAddress sender,
+                long timeReceived, String networkName, SocketType socketType,
+                BeaconBufferPool pool, Identity identity) {
+
+            final int offset = findPayload(buffer, length);
+            if (offset < 0) {
+                return null;
+            }
             return new PossibleBeacon(
-                    Arrays.copyOf(packet.getData(), packet.getLength()),
-                    packet.getAddress().getAddress(),
+                    buffer, offset, getPayloadLength(buffer, length, offset), pool,
+                    sender.getAddress(),
                     timeReceived,
                     networkName,
                     socketType,
                     identity.getPublicKey());
         }
 
+        /**
+         * Wraps a packet received over Bluetooth. Ownership of the buffer passes to the new object.
+         *
+         * @return the possible beacon, or null if the packet is no beacon (in which case the
+         *         caller keeps the ownership of the buffer)
+         */
         public static PossibleBeacon from(byte[] buffer, int length, long timeReceived,
-                String btAddress, Identity identity) {
+                String btAddress, BeaconBufferPool pool, Identity identity) {
 
+            final int offset = findPayload(buffer, length);
+            if (offset < 0) {
+                return null;
+            }
             return new PossibleBeacon(
-                    Arrays.copyOf(buffer, length),
+                    buffer, offset, getPayloadLength(buffer, length, offset), pool,
                     NetworkManager.parseMacAddress(btAddress),
                     timeReceived,
                     null,
@@ -281,18 +427,135 @@ public class BeaconParser extends InterruptibleFailsafeRunnable {
                     identity.getPublicKey());
         }
 
-        public PossibleBeacon(byte[] rawData, byte[] origin, long timeReceived, String networkName,
-                SocketType socketType, byte[] receiverNodeId) {
-            mRawData = Arrays.copyOf(rawData, rawData.length);
+        /**
+         * Checks in constant time if a received packet might contain a beacon.
+         *
+         * @return the offset of the beacon in the buffer, or -1 if it is no beacon
+         */
+        private static int findPayload(byte[] buffer, int length) {
+            if (PacketFraming.hasMagic(buffer, 0, length)) {
+                final int payloadLength = PacketFraming.getPayloadLength(
+                        buffer, 0, length, PacketFraming.TYPE_BEACON);
+                return (payloadLength < 0 ? -1 : PacketFraming.HEADER_SIZE);
+            } else if (PacketFraming.ACCEPT_UNFRAMED && length > 0
+                    && (buffer[0] == LEGACY_BEACON_TYPE_TAG || buffer[0] == LEGACY_BEACON_ID_TAG)) {
+                return 0;
+            }
+            return -1;
+        }
+
+        private static int getPayloadLength(byte[] buffer, int length, int offset) {
+            if (offset == 0) {
+                // Unframed beacon
+                return length;
+            }
+            return PacketFraming.getPayloadLength(buffer, 0, length, PacketFraming.TYPE_BEACON);
+        }
+
+        /**
+         * @param data the buffer holding the packet, which must not be modified by the caller
+         *            afterwards
+         * @param offset the offset of the packet within the buffer
+         * @param length the length of the packet
+         * @param pool the pool to release the buffer to, or null if it is not pooled
+         */
+        public PossibleBeacon(byte[] data, int offset, int length, BeaconBufferPool pool,
+                byte[] origin, long timeReceived, String networkName, SocketType socketType,
+                byte[] receiverNodeId) {
+            mData = data;
+            mOffset = offset;
+            mLength = length;
+            mPool = pool;
             mOrigin = origin;
             mTimeReceived = timeReceived;
+            mReceivedNanos = System.nanoTime();
+            mReceivedElapsedMillis = SystemClock.elapsedRealtime();
             mReceivingNetworkName = networkName;
             mReceivingSocketType = socketType;
             mReceiverNodeId = receiverNodeId;
         }
 
-        public byte[] getRawData() {
-            return mRawData;
+        /**
+         * Extracts the node ID of the sender and the beacon ID from the serialized beacon in a
+         * single pass, skipping over all other fields (and stopping after the sender, as protobuf
+         * writes the fields in the order of their numbers).
+         */
+        void peekIds() {
+            final CodedInputStream input = CodedInputStream.newInstance(mData, mOffset, mLength);
+            long beaconId = 0;
+            boolean hasBeaconId = false;
+            try {
+                int tag;
+                while ((tag = input.readTag()) != 0) {
+                    if (tag == LEGACY_BEACON_ID_TAG) {
+                        beaconId = input.readUInt32() & 0xFFFFFFFFL;
+                        hasBeaconId = true;
+                    } else if (tag == SENDER_TAG) {
+                        final int oldLimit = input.pushLimit(input.readRawVarint32());
+                        while ((tag = input.readTag()) != 0) {
+                            if (tag == NODE_ID_TAG) {
+                                mPeekedSenderId = input.readBytes();
+                            } else {
+                                input.skipField(tag);
+                            }
+                        }
+                        input.popLimit(oldLimit);
+                        if (hasBeaconId) {
+                            break;
+                        }
+                    } else {
+                        input.skipField(tag);
+                    }
+                }
+                mPeekedBeaconId = beaconId;
+            } catch (IOException e) {
+                // Not a valid beacon, the parser will find out as well
+                mPeekedBeaconId = -1;
+            }
+        }
+
+        /**
+         * @return the node ID of the sender, or an empty ByteString if it could not be found (or
+         *         has not been {@link #peekIds() peeked} yet)
+         */
+        public ByteString getPeekedSenderId() {
+            return mPeekedSenderId;
+        }
+
+        /**
+         * @return the (unsigned) beacon ID, 0 if the beacon has none, or -1 if the data is no
+         *         valid beacon (or has not been {@link #peekIds() peeked} yet)
+         */
+        public long getPeekedBeaconId() {
+            return mPeekedBeaconId;
+        }
+
+        public byte[] getData() {
+            if (mData == null) {
+                throw new IllegalStateException("Beacon data has already been released");
+            }
+            return mData;
+        }
+
+        public int getOffset() {
+            return mOffset;
+        }
+
+        public int getLength() {
+            return mLength;
+        }
+
+        /**
+         * Returns the buffer holding the packet data to its pool. The data must not be accessed
+         * afterwards.
+         */
+        public void release() {
+            if (mData != null) {
+                if (mPool != null) {
+                    mPool.release(mData);
+                }
+                mData = null;
+            }
         }
 
         public byte[] getOrigin() {
@@ -303,6 +566,22 @@ public class BeaconParser extends InterruptibleFailsafeRunnable {
             return mTimeReceived;
         }
 
+        /**
+         * @return the {@link System#nanoTime()} at which this object has been created, for
+         *         measuring latencies
+         */
+        public long getReceivedNanos() {
+            return mReceivedNanos;
+        }
+
+        /**
+         * @return the {@link SystemClock#elapsedRealtime()} at which this object has been created,
+         *         for measuring times which span periods of deep sleep
+         */
+        public long getReceivedElapsedMillis() {
+            return mReceivedElapsedMillis;
+        }
+
         public String getNetworkName() {
             return mReceivingNetworkName;
         }
@@ -0,0 +1,164 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import android.util.Log;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the regular WiFi sender repeatedly, with a random jitter around a period which adapts to
+ * the load of the channel.
+ * <p>
+ * With a fixed rate, all nodes which start a beaconing round together keep sending at the same
+ * moments and collide. Each beacon is therefore delayed by a random share of
+ * {@link #JITTER_RATIO} around the current period. The period is lengthened whenever the channel
+ * is busy (more than {@link #TARGET_BEACONS_PER_SECOND} beacons received per second), beacons of
+ * other nodes are lost (see {@link BeaconLossEstimator}) or our own sends fail, and shortened
+ * again step by step once the channel has calmed down.
+ */
+public class BeaconScheduler implements Runnable {
+    private static final String TAG = BeaconScheduler.class.getSimpleName();
+
+    /**
+     * The period between two regular beacons on an idle channel.
+     */
+    protected static final long MIN_PERIOD_MILLIS = 3000;
+
+    /**
+     * The period between two regular beacons on a congested channel.
+     */
+    protected static final long MAX_PERIOD_MILLIS = 15000;
+
+    /**
+     * The share of the period over which each beacon is spread randomly.
+     */
+    protected static final double JITTER_RATIO = 0.5;
+
+    /**
+     * The number of beacons per second above which the channel is considered busy.
+     */
+    protected static final double TARGET_BEACONS_PER_SECOND = 20;
+
+    /**
+     * The share of lost beacons above which the channel is considered congested.
+     */
+    protected static final double MAX_LOSS_RATE = 0.2;
+
+    private final BeaconingManager mBM;
+    private final UdpSender mSender;
+    private final ScheduledExecutorService mExecutor;
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
+    private final Random mRandom = new Random();
+
+    private volatile boolean mCancelled;
+    private volatile ScheduledFuture<?> mNextRun;
+
+    // Only accessed from the sender runs, which never overlap
+    private long mPeriodMillis = MIN_PERIOD_MILLIS;
+    private long mLastSequencedCount;
+    private long mLastMissedCount;
+    private long mLastErrorCount;
+
+    /**
+     * @param context the beaconing manager, on whose thread pool the sender is run
+     * @param sender the sender to run repeatedly
+     */
+    public BeaconScheduler(BeaconingManager context, UdpSender sender) {
+        mBM = context;
+        mSender = sender;
+        mExecutor = context.mThreadPool;
+    }
+
+    /**
+     * Schedules the first beacon, within one period from now.
+     */
+    public void start() {
+        mLastSequencedCount = mMetrics.getSequencedCount();
+        mLastMissedCount = mMetrics.getMissedCount();
+        mLastErrorCount = mBM.mSendChannel.getErrorCount();
+        mMetrics.onBeaconPeriodChanged(mPeriodMillis);
+        scheduleNext(mRandom.nextInt((int) mPeriodMillis));
+    }
+
+    /**
+     * Stops sending beacons, and interrupts the current one.
+     */
+    public void cancel() {
+        mCancelled = true;
+        final ScheduledFuture<?> nextRun = mNextRun;
+        if (nextRun != null) {
+            nextRun.cancel(true);
+        }
+    }
+
+    public boolean isDone() {
+        return mCancelled;
+    }
+
+    @Override
+    public void run() {
+        if (mCancelled) {
+            return;
+        }
+        final long sendCount = mBM.mSendChannel.getSendCount();
+        mSender.run();
+        if (mBM.mSendChannel.getSendCount() > sendCount) {
+            // Only beacons which actually went out gave the neighbors a chance to answer
+            mMetrics.onRegularBeaconSent();
+        }
+        adaptPeriod();
+
+        // Spread the next beacon over [1 - JITTER_RATIO / 2, 1 + JITTER_RATIO / 2] periods
+        final long jitterMillis = (long) (mPeriodMillis * JITTER_RATIO * mRandom.nextDouble());
+        scheduleNext(mPeriodMillis - (long) (mPeriodMillis * JITTER_RATIO / 2) + jitterMillis);
+    }
+
+    private void scheduleNext(long delayMillis) {
+        if (mCancelled) {
+            return;
+        }
+        try {
+            mNextRun = mExecutor.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The thread pool has been shut down
+            mCancelled = true;
+        }
+    }
+
+    private void adaptPeriod() {
+        final long sequencedCount = mMetrics.getSequencedCount();
+        final long missedCount = mMetrics.getMissedCount();
+        final long errorCount = mBM.mSendChannel.getErrorCount();
+        // The counters may have been reset in between
+        final long newSequenced = Math.max(0, sequencedCount - mLastSequencedCount);
+        final long newMissed = Math.max(0, missedCount - mLastMissedCount);
+        final boolean sendFailed = errorCount > mLastErrorCount;
+        mLastSequencedCount = sequencedCount;
+        mLastMissedCount = missedCount;
+        mLastErrorCount = errorCount;
+
+        final double lossRate = (newSequenced + newMissed == 0)
+                ? 0 : (double) newMissed / (newSequenced + newMissed);
+        final double load = mMetrics.getBeaconsPerSecond();
+
+        final long oldPeriodMillis = mPeriodMillis;
+        if (sendFailed || lossRate > MAX_LOSS_RATE || load > TARGET_BEACONS_PER_SECOND) {
+            // Back off quickly
+            mPeriodMillis = Math.min(MAX_PERIOD_MILLIS, mPeriodMillis * 3 / 2);
+        } else if (lossRate < MAX_LOSS_RATE / 2 && load < TARGET_BEACONS_PER_SECOND / 2) {
+            // Recover slowly
+            mPeriodMillis = Math.max(MIN_PERIOD_MILLIS, mPeriodMillis - MIN_PERIOD_MILLIS / 4);
+        }
+
+        if (mPeriodMillis != oldPeriodMillis) {
+            Log.v(TAG, String.format(
+                    "Beacon period now %d ms (load: %.1f beacons/s, loss: %.0f%%%s)",
+                    mPeriodMillis, load, lossRate * 100, (sendFailed ? ", send failed" : "")));
+            mMetrics.onBeaconPeriodChanged(mPeriodMillis);
+        }
+    }
+}
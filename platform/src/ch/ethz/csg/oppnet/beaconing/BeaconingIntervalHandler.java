@@ -31,21 +31,32 @@ import java.util.Collection;
 import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
         implements NetworkChangeListener, ScanResultsListener {
     private static final String TAG = BeaconingIntervalHandler.class.getSimpleName();
 
+    /**
+     * The duration of a beaconing round, unless it ends early because the discovery of neighbors
+     * has converged, or is extended because new neighbors keep appearing.
+     */
     public static final int MAX_BEACONING_DURATION = 60 * 1000;
 
     private static final int WIFI_SWITCH_TIMEOUT = 15 * 1000;
-    private static final int WIFI_MAX_ITERATION_COUNT =
-            MAX_BEACONING_DURATION / WIFI_SWITCH_TIMEOUT;
 
     private static final int BT_INITIAL_WAIT_TIMEOUT = 20 * 1000;
     private static final int BT_ITERATION_INTERVAL = 5 * 1000;
-    private static final int BT_MAX_ITERATION_COUNT =
-            (MAX_BEACONING_DURATION - BT_INITIAL_WAIT_TIMEOUT) / BT_ITERATION_INTERVAL;
+
+    /**
+     * A round is extended by this much at a time, if new neighbors have been discovered within the
+     * last extension (or the last {@link #ROUND_EXTENSION} before the regular end). A multiple of
+     * both the WiFi and Bluetooth iterations, so that they keep ending at the same time.
+     */
+    private static final int ROUND_EXTENSION = WIFI_SWITCH_TIMEOUT;
+    private static final int MAX_EXTENDED_BEACONING_DURATION = 2 * MAX_BEACONING_DURATION;
+
+    private static final int CONVERGENCE_CHECK_INTERVAL = 1000;
 
     private static enum WifiBeaconingState {
         DISABLED, ENABLING, ENABLED, SCANNING, CONNECTING, CONNECTED, AP_ENABLING, AP_ENABLED,
@@ -61,6 +72,9 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
 
     private final Multiset<String> mAttemptedNetworks = HashMultiset.create();
     private final Deque<String> mVisitedNetworks = new ArrayDeque<>();
+    // The connectible networks of the last scan which have not been visited yet, null before the
+    // first scan
+    private Set<String> mUnvisitedNetworks;
     private final List<BluetoothDevice> mDiscoveredBtDevices = new ArrayList<>();
 
     private final int mBeaconingId;
@@ -73,6 +87,7 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
     private Handler mHandler;
     private long mTimeStarted;
     private long mTimeNetworkConnected;
+    private long mTimeNetworkConnectedMillis;
 
     private int mWifiIterationCount;
     private int mBtIterationCount;
@@ -80,6 +95,22 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
     private boolean mIsWifiStillConnecting;
 
     private NeighborObserver mNeighborObserver;
+    private DiscoveryConvergence mConvergence;
+    private NetworkSelector mNetworkSelector;
+
+    // The network currently being connected to, and the network currently visited
+    private ScanResult mAttemptedNetwork;
+    private long mTimeAttemptStarted;
+    private String mVisitedNetwork;
+    private String mVisitedBssid;
+    private long mVisitLockTotal;
+    private int mRoundDuration = MAX_BEACONING_DURATION;
+    private boolean mConverged;
+
+    // Set after losing an OppNet access point, until connected again (mAwaitingTakeover), and
+    // while the scan before taking over its role is running (mTakeoverDue)
+    private boolean mAwaitingTakeover;
+    private boolean mTakeoverDue;
 
     public BeaconingIntervalHandler(BeaconingManager beaconingManager, int beaconingId) {
         super(TAG);
@@ -98,6 +129,10 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
 
         mNeighborObserver = new NeighborObserver(mBeaconingManager.mContext, mHandler);
         mNeighborObserver.register();
+        mConvergence = new DiscoveryConvergence(mBeaconingManager, mTimeStarted);
+        mConvergence.start();
+        mNetworkSelector =
+                new NetworkSelector(mBeaconingManager.mDbController, WIFI_SWITCH_TIMEOUT);
         activateNetworks();
 
         // schedule and wait for next iteration
@@ -106,6 +141,8 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
 
         mHandler.postDelayed(new BluetoothIterationTimeoutHandler(), BT_INITIAL_WAIT_TIMEOUT);
 
+        mHandler.postDelayed(new ConvergenceCheckHandler(), CONVERGENCE_CHECK_INTERVAL);
+
         Looper.loop();
     }
 
@@ -193,8 +230,11 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
         mHandler.postAtFrontOfQueue(new Runnable() {
             @Override
             public void run() {
-                final long runtime = (System.currentTimeMillis() - mTimeStarted) / 1000;
-                Log.d(TAG, "Terminating beacon burst after " + runtime + " seconds.");
+                final long runtimeMillis = System.currentTimeMillis() - mTimeStarted;
+                Log.d(TAG, String.format(
+                        "Terminating beacon burst after %d seconds (%d neighbors, %s).",
+                        runtimeMillis / 1000, mConvergence.getDiscoveredCount(),
+                        (mConverged ? "converged" : (aborted ? "aborted" : "finished"))));
 
                 // Clear message queue
                 mHandler.removeCallbacksAndMessages(null);
@@ -204,6 +244,8 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
 
                 mBeaconingManager.stopBeaconSenders();
                 mNeighborObserver.unregister();
+                mConvergence.stop();
+                finishNetworkVisit();
 
                 if (!mBeaconingManager.isWifiConnectionLocked()) {
                     restoreNetworks();
@@ -213,17 +255,85 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
                 mHandler = null;
 
                 if (!aborted) {
+                    BeaconMetrics.getInstance().onBeaconingRoundFinished(runtimeMillis,
+                            MAX_BEACONING_DURATION, mConverged,
+                            mRoundDuration > MAX_BEACONING_DURATION);
                     mBeaconingManager.onBeaconingIntervalFinished(mBeaconingId);
                 }
             }
         });
     }
 
+    /**
+     * Checks if the round has reached its end, and extends it instead if new neighbors have been
+     * discovered just before.
+     * 
+     * @param elapsedMillis the time elapsed since the start of the round, according to the
+     *            iterations of the calling timeout handler
+     * @return true if the round is over
+     */
+    private boolean isRoundOver(int elapsedMillis) {
+        if (elapsedMillis < mRoundDuration) {
+            return false;
+        }
+        final long extensionStart = mTimeStarted + mRoundDuration - ROUND_EXTENSION;
+        if (mRoundDuration < MAX_EXTENDED_BEACONING_DURATION
+                && mConvergence.hasDiscoveredSince(extensionStart)) {
+            mRoundDuration += ROUND_EXTENSION;
+            Log.d(TAG, "New neighbors keep appearing, extending round to "
+                    + (mRoundDuration / 1000) + " seconds");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if neither WiFi nor Bluetooth are in the middle of discovering neighbors, and
+     *         WiFi has nowhere else to look for them
+     */
+    private boolean isDiscoveryIdle() {
+        final long dwellMillis = System.currentTimeMillis() - mTimeNetworkConnectedMillis;
+        switch (mWifiBeaconingState) {
+            case CONNECTED: {
+                // Give the network a full iteration, and the other networks a chance to be visited
+                if (dwellMillis < WIFI_SWITCH_TIMEOUT
+                        || mUnvisitedNetworks == null || !mUnvisitedNetworks.isEmpty()) {
+                    return false;
+                }
+                break;
+            }
+            case AP_ENABLED: {
+                // Give clients the same grace period to scan and join as without convergence
+                if (dwellMillis < WIFI_SWITCH_TIMEOUT || mApIterations < 2) {
+                    return false;
+                }
+                break;
+            }
+            case FINISHED:
+                break;
+            default:
+                return false;
+        }
+        return (mBtBeaconingState != BtBeaconingState.ENABLING
+                && mBtBeaconingState != BtBeaconingState.SCANNING
+                && !mBeaconingManager.isWifiConnectionLocked()
+                && !mBeaconingManager.isBtConnectionLocked());
+    }
+
     private int visitedNetworksCount() {
         final HashSet<String> visitedNetworksSet = new HashSet<>(mVisitedNetworks);
         return visitedNetworksSet.size();
     }
 
+    private static boolean hasOppNetNetwork(ScanResults scanResults) {
+        for (final ScanResult network : scanResults.getConnectibleNetworks()) {
+            if (NetworkManager.isOppNetSSID(network.SSID)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean isBotheringUser(Policy policy) {
         return (mPowerManager.isScreenOn() && !policy.allows(Feature.FOREGROUND)) && false;
     }
@@ -253,24 +363,29 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
         }
     }
 
-    private ScanResult choseRandomNetworkToConnect(ScanResults scanResults) {
-        // get random open network we did not visit before
-        ScanResult selectedNetwork = null;
-        for (ScanResult network : scanResults.getConnectibleNetworks()) {
-            if (!mVisitedNetworks.contains(network.SSID)) {
-                selectedNetwork = network;
-                break;
-            }
+    /**
+     * Records how many neighbors have been found and packets been sent in the network currently
+     * visited, if any, when leaving it.
+     */
+    private void finishNetworkVisit() {
+        if (mVisitedNetwork == null) {
+            return;
         }
-        if (selectedNetwork == null) {
-            // Visited all other networks before, so stick to the first one, but only if it's OppNet
-            final ScanResult firstNetwork = scanResults.getConnectibleNetworks().get(0);
-            if (NetworkManager.isOppNetSSID(firstNetwork.SSID)) {
-                selectedNetwork = firstNetwork;
+
+        int neighborCount = 0;
+        for (final Neighbor neighbor : mBeaconingManager.mNeighborTable.getNeighbors(
+                mTimeNetworkConnected)) {
+            if (mVisitedNetwork.equals(neighbor.getLastSeenNetwork())) {
+                neighborCount++;
             }
         }
+        final int packetCount = (int) (mBeaconingManager.getWifiConnectionLockTotal()
+                - mVisitLockTotal);
 
-        return selectedNetwork;
+        mNetworkSelector.onVisitFinished(
+                mVisitedNetwork, mVisitedBssid, neighborCount, packetCount);
+        mVisitedNetwork = null;
+        mVisitedBssid = null;
     }
 
     private boolean startApModeIfPossible() {
@@ -280,6 +395,7 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
                 mWifiBeaconingState = WifiBeaconingState.AP_ENABLING;
                 mBeaconingManager.stopWifiSender();
                 mApIterations++;
+                mAwaitingTakeover = false;
                 return true;
             }
             Log.v(TAG, "Could not switch to AP mode");
@@ -290,6 +406,7 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
 
     private void stopApMode() {
         Log.v(TAG, "Finishing AP mode after " + mApIterations + " rounds as AP");
+        mBeaconingManager.mApElection.onLeft();
         mNetManager.setApEnabled(false);
         mBeaconingManager.stopWifiSender();
         mBeaconingManager.stopWifiReceiver();
@@ -326,14 +443,38 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
 
         // get scan results and chose network to connect to (or switch to AP mode)
         final ScanResults scanResults = mNetManager.getScanResults();
+        if (mTakeoverDue) {
+            mTakeoverDue = false;
+            if (!hasOppNetNetwork(scanResults) && startApModeIfPossible()) {
+                // No other node took over the role of the lost access point before our slot
+                Log.v(TAG, "Taking over as access point");
+                BeaconMetrics.getInstance().onApTakeover();
+                return;
+            }
+        }
+
+        mUnvisitedNetworks = new HashSet<>();
+        for (final ScanResult network : scanResults.getConnectibleNetworks()) {
+            if (!mVisitedNetworks.contains(network.SSID)) {
+                mUnvisitedNetworks.add(network.SSID);
+            }
+        }
+
         if (scanResults.hasConnectibleNetworks()) {
-            ScanResult selectedNetwork = choseRandomNetworkToConnect(scanResults);
+            ScanResult selectedNetwork = mNetworkSelector.select(
+                    scanResults.getConnectibleNetworks(), mVisitedNetworks);
             if (selectedNetwork != null) {
                 mWifiBeaconingState = WifiBeaconingState.CONNECTING;
                 mAttemptedNetworks.add(selectedNetwork.SSID);
+                // Attempted once, so it does not hold up convergence if connecting fails
+                mUnvisitedNetworks.remove(selectedNetwork.SSID);
 
                 if (!mNetManager.connectToWifi(selectedNetwork)) {
                     Log.v(TAG, String.format("Switching to network '%s'", selectedNetwork.SSID));
+                    finishNetworkVisit();
+                    mNetworkSelector.onConnectAttempt(selectedNetwork);
+                    mAttemptedNetwork = selectedNetwork;
+                    mTimeAttemptStarted = System.currentTimeMillis();
 
                     // Stop senders/receivers on current network when switching to new network
                     mBeaconingManager.stopWifiReceiver();
@@ -343,6 +484,13 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
             }
         }
 
+        if (mAwaitingTakeover) {
+            // Another node is about to take over the lost access point, so keep looking for it
+            Log.v(TAG, "Waiting for the successor of the lost access point");
+            mNetManager.initiateWifiScan();
+            return;
+        }
+
         if (!startApModeIfPossible() && mWifiIterationCount > 2) {
             // Found no suitable network to connect - stop wifi beaconing
             Log.v(TAG, "Scan returned no new networks, finishing wifi beaconing");
@@ -359,13 +507,20 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
             onNetworkConnected();
         } else if (!connected && mWifiBeaconingState == WifiBeaconingState.CONNECTED) {
             mBeaconingManager.stopWifiReceiver();
-
-            if (NetworkManager.isOppNetSSID(mVisitedNetworks.peek())
-                    && mBeaconingManager.mIsDesignatedAp
-                    && startApModeIfPossible()) {
-                // Previous AP node went offline, and we are supposed to take over, which is what
-                // we're doing
-                return;
+            finishNetworkVisit();
+
+            final long takeoverDelay = mBeaconingManager.mApElection.onLeft();
+            if (NetworkManager.isOppNetSSID(mVisitedNetworks.peek())) {
+                if (takeoverDelay == 0 && startApModeIfPossible()) {
+                    // Previous AP node went offline, and we are first in line to take over
+                    Log.v(TAG, "Taking over as access point");
+                    BeaconMetrics.getInstance().onApTakeover();
+                    return;
+                } else if (takeoverDelay > 0) {
+                    // Take over unless the ones before us have done so when our slot comes
+                    mHandler.postDelayed(new ApTakeoverHandler(), takeoverDelay);
+                }
+                mAwaitingTakeover = true;
             }
 
             // If not becoming AP, scan for other networks to connect to
@@ -391,15 +546,41 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
             return false;
         }
 
-        mTimeNetworkConnected = System.currentTimeMillis() / 1000;
+        mTimeNetworkConnectedMillis = System.currentTimeMillis();
+        mTimeNetworkConnected = mTimeNetworkConnectedMillis / 1000;
+        mAwaitingTakeover = false;
+        mConvergence.onNetworkConnected();
+        if (mWifiBeaconingState == WifiBeaconingState.CONNECTED) {
+            startNetworkVisit(connection.get());
+        }
 
         mBeaconingManager.startWifiReceiver();
         mBeaconingManager.startWifiSender(true);
 
         mVisitedNetworks.push(connection.get().getNetworkName().get());
+        if (mUnvisitedNetworks != null) {
+            mUnvisitedNetworks.remove(mVisitedNetworks.peek());
+        }
         return true;
     }
 
+    private void startNetworkVisit(WifiConnection connection) {
+        finishNetworkVisit();
+        final String network = connection.getNetworkName().get();
+        final String bssid = connection.getBssid().or("");
+
+        if (mAttemptedNetwork != null && network.equals(mAttemptedNetwork.SSID)) {
+            mNetworkSelector.onConnected(network, bssid,
+                    System.currentTimeMillis() - mTimeAttemptStarted,
+                    connection.hasIp4Address());
+        }
+        mAttemptedNetwork = null;
+
+        mVisitedNetwork = network;
+        mVisitedBssid = bssid;
+        mVisitLockTotal = mBeaconingManager.getWifiConnectionLockTotal();
+    }
+
     @Override
     public void onBluetoothAdapterChanged(boolean enabled) {
         if (enabled && mBtBeaconingState == BtBeaconingState.ENABLING) {
@@ -444,7 +625,7 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
     private class WifiIterationTimeoutHandler implements Runnable {
         @Override
         public void run() {
-            if (mWifiIterationCount >= WIFI_MAX_ITERATION_COUNT) {
+            if (isRoundOver(mWifiIterationCount * WIFI_SWITCH_TIMEOUT)) {
                 if (mWifiBeaconingState == WifiBeaconingState.AP_ENABLING
                         || mWifiBeaconingState == WifiBeaconingState.AP_ENABLED) {
                     stopApMode();
@@ -534,7 +715,14 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
                     }
 
                     case AP_ENABLED: {
-                        if ((mApIterations >= 2) && (neighborCount == 0)) {
+                        if (mBeaconingManager.mApElection.isRetiring()) {
+                            // Our clients have been told to move to the elected access point
+                            stopApMode();
+                        } else if (mBeaconingManager.mApElection.shouldStepDown()) {
+                            Log.v(TAG, "Another access point has been elected, stepping down");
+                            mBeaconingManager.mApElection.retire();
+                            BeaconMetrics.getInstance().onApStepDown();
+                        } else if ((mApIterations >= 2) && (neighborCount == 0)) {
                             // No neighbors found? Deactivate again.
                             stopApMode();
                         } else {
@@ -556,7 +744,7 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
     private class BluetoothIterationTimeoutHandler implements Runnable {
         @Override
         public void run() {
-            if (mBtIterationCount >= BT_MAX_ITERATION_COUNT) {
+            if (isRoundOver(BT_INITIAL_WAIT_TIMEOUT + mBtIterationCount * BT_ITERATION_INTERVAL)) {
                 terminate(false);
                 return;
             }
@@ -577,4 +765,31 @@ public class BeaconingIntervalHandler extends InterruptibleFailsafeRunnable
         }
     }
 
+    private class ApTakeoverHandler implements Runnable {
+        @Override
+        public void run() {
+            if (mAwaitingTakeover && mWifiBeaconingState == WifiBeaconingState.SCANNING) {
+                // Scan once more, and take over if there is still no OppNet network
+                mTakeoverDue = true;
+                mNetManager.initiateWifiScan();
+            }
+        }
+    }
+
+    private class ConvergenceCheckHandler implements Runnable {
+        @Override
+        public void run() {
+            if (isDiscoveryIdle() && mConvergence.isConverged()) {
+                Log.d(TAG, "Discovery of neighbors converged, ending round early");
+                mConverged = true;
+                if (mWifiBeaconingState == WifiBeaconingState.AP_ENABLED) {
+                    stopApMode();
+                }
+                terminate(false);
+                return;
+            }
+            mHandler.postDelayed(this, CONVERGENCE_CHECK_INTERVAL);
+        }
+    }
+
 }
@@ -1,17 +1,23 @@
 
 package ch.ethz.csg.oppnet.beaconing;
 
+import android.Manifest;
+import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothSocket;
 import android.content.BroadcastReceiver;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.net.Uri;
+import android.os.Build;
 import android.os.PowerManager;
+import android.os.SystemClock;
 import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
+import ch.ethz.csg.oppnet.BuildConfig;
 import ch.ethz.csg.oppnet.apps.ProtocolRegistry;
 import ch.ethz.csg.oppnet.beaconing.BeaconParser.PossibleBeacon;
 import ch.ethz.csg.oppnet.beaconing.UdpReceiver.UdpMulticastReceiver;
@@ -20,28 +26,36 @@ import ch.ethz.csg.oppnet.core.Policy;
 import ch.ethz.csg.oppnet.core.Policy.BeaconingInterval;
 import ch.ethz.csg.oppnet.core.Policy.Feature;
 import ch.ethz.csg.oppnet.data.DbController;
+import ch.ethz.csg.oppnet.data.NeighborTable;
 import ch.ethz.csg.oppnet.data.FullContract;
 import ch.ethz.csg.oppnet.data.Identity;
 import ch.ethz.csg.oppnet.exchange.DataExchangeManager;
+import ch.ethz.csg.oppnet.exchange.PacketRegistry;
 import ch.ethz.csg.oppnet.network.NetworkManager;
 import ch.ethz.csg.oppnet.network.NetworkManager.WifiState;
 import ch.ethz.csg.oppnet.network.NetworkStateChangeReceiver.NetworkChangeListener;
+import ch.ethz.csg.oppnet.network.UdpSelectorLoop;
+import ch.ethz.csg.oppnet.network.UdpSendChannel;
+import ch.ethz.csg.oppnet.network.WifiConnection;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos.Beacon.BeaconType;
 import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
 
+import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
 import com.google.common.net.InetAddresses;
+import com.google.protobuf.ByteString;
 
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 
 public class BeaconingManager implements NetworkChangeListener {
@@ -62,6 +76,26 @@ public class BeaconingManager implements NetworkChangeListener {
      */
     public static final String EXTRA_BEACONING_ID = "beaconing_id";
 
+    /**
+     * Broadcast action (debug builds only): Runs the {@link BeaconLoadGenerator} and logs its
+     * result. The sender needs the DUMP permission, which the shell has, e.g.:
+     *
+     * <pre>
+     * adb shell am broadcast -a ch.ethz.csg.oppnet.action.RUN_LOAD_TEST \
+     *     --es target PARSER --ei senders 50 --ei rate 1000 --ei duration 10
+     * </pre>
+     *
+     * All extras are optional.
+     */
+    public static final String ACTION_RUN_LOAD_TEST = "ch.ethz.csg.oppnet.action.RUN_LOAD_TEST";
+    public static final String EXTRA_LOAD_TARGET = "target";
+    public static final String EXTRA_LOAD_SENDERS = "senders";
+    public static final String EXTRA_LOAD_NEIGHBORS = "neighbors";
+    public static final String EXTRA_LOAD_PROTOCOLS = "protocols";
+    public static final String EXTRA_LOAD_DUPLICATES = "duplicates";
+    public static final String EXTRA_LOAD_RATE = "rate";
+    public static final String EXTRA_LOAD_DURATION = "duration";
+
     protected static final int RECEIVER_PORT_UNICAST = 3108;
     protected static final int RECEIVER_PORT_MULTICAST = 5353;
     protected static final InetAddress[] MULTICAST_GROUPS = {
@@ -69,7 +103,53 @@ public class BeaconingManager implements NetworkChangeListener {
     };
 
     protected static final int RECEIVER_SOCKET_TIMEOUT = 5 * 1000; // 5 seconds
+    /**
+     * The maximum size of a beacon, including framing. A beacon thereby always fits into a single
+     * datagram on a 1500 byte MTU, even over IPv6, as IP fragments are easily lost over WiFi.
+     * Receivers may advertise a smaller size, which their replies then adhere to.
+     */
+    protected static final int MAX_BEACON_SIZE = 1500 - 40 - 8;
+    /**
+     * The size of the receive buffers, which only limits received beacons. It is larger than
+     * {@link #MAX_BEACON_SIZE}, as older nodes send unframed beacons of up to 4 KiB.
+     */
     protected static final int RECEIVER_BUFFER_SIZE = 4 * 1024; // 4 KiB
+    protected static final int RECEIVER_BUFFER_POOL_SIZE = 64;
+
+    /**
+     * The time source of the AP election. Unlike {@link Ticker#systemTicker()}, it keeps running
+     * while the device sleeps, so that candidates still time out between beaconing rounds.
+     */
+    private static final Ticker ELAPSED_REALTIME_TICKER = new Ticker() {
+        @SuppressLint("NewApi")
+        @Override
+        public long read() {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1) {
+                return SystemClock.elapsedRealtimeNanos();
+            }
+            return TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime());
+        }
+    };
+
+    protected static final long DEDUP_WINDOW_MILLIS = 10 * 60 * 1000; // 10 minutes
+    protected static final int DEDUP_MEMORY_BUDGET = 256 * 1024; // 256 KiB
+    protected static final long INGESTION_BATCH_DELAY_MILLIS = 250;
+    protected static final int INGESTION_BATCH_SIZE = 64;
+    /**
+     * The number of threads parsing beacons in parallel. Beacons of the same sender are always
+     * parsed by the same thread; set to 1 to parse all beacons serially.
+     */
+    protected static final int PARSER_WORKER_COUNT =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    protected static final int PARSER_QUEUE_CAPACITY = 256; // per worker
+
+    /**
+     * Per-origin admission control: a well-behaved node sends a burst of a few beacons every few
+     * seconds (on unicast and multicast), so these limits only kick in when flooded.
+     */
+    protected static final double ADMISSION_RATE_PER_SECOND = 5;
+    protected static final int ADMISSION_BURST_SIZE = 20;
+    protected static final int ADMISSION_MAX_ORIGINS = 512;
 
     protected static final String SDP_NAME = "OppNetBeaconingManager";
     protected static final UUID OPP_NET_UUID =
@@ -86,33 +166,50 @@ public class BeaconingManager implements NetworkChangeListener {
     protected final PowerManager mPowerManager;
     protected final NetworkManager mNetManager;
     protected final DbController mDbController;
+    protected final NeighborTable mNeighborTable = new NeighborTable();
+    protected final NeighborListTracker mListTracker = new NeighborListTracker();
+    protected final NodeIdDictionary mNodeIds = new NodeIdDictionary();
+    protected final BeaconLossEstimator mLossEstimator = new BeaconLossEstimator();
     protected final ProtocolRegistry mProtocolRegistry;
+    protected final PacketRegistry mPacketRegistry;
     protected final Identity mMasterIdentity;
+    protected final ApElection mApElection;
     protected final BeaconBuilder mBeaconBuilder;
     protected final DataExchangeManager mDataExchangeManager;
 
+    protected final BeaconBufferPool mBeaconBuffers =
+            new BeaconBufferPool(RECEIVER_BUFFER_SIZE, RECEIVER_BUFFER_POOL_SIZE);
+
+    protected final BeaconAdmission mBeaconAdmission = new BeaconAdmission(
+            ADMISSION_RATE_PER_SECOND, ADMISSION_BURST_SIZE, ADMISSION_MAX_ORIGINS);
+
     protected ScheduledExecutorService mThreadPool;
     protected BeaconParser mBeaconParser;
+    protected NeighborBatchWriter mNeighborWriter;
     protected InterruptibleFailsafeRunnable mBeaconingInterval;
 
+    protected UdpSelectorLoop mReceiveLoop;
     protected UdpReceiver mUnicastReceiver;
     protected UdpReceiver mMulticastReceiver;
+    protected final UdpSendChannel mSendChannel = new UdpSendChannel();
+    protected final SubnetSweeper mSubnetSweeper = new SubnetSweeper(this);
+    protected final ReplyScheduler mReplyScheduler = new ReplyScheduler(this);
     protected WeakReference<UdpSender> mOneTimeWifiSender;
-    protected ScheduledFuture<?> mRegularWifiSender;
+    protected BeaconScheduler mRegularWifiSender;
     protected RfcommReceiver mBluetoothReceiver;
     protected WeakReference<RfcommSender> mBtSender;
     protected final Map<String, BluetoothSocket> mBluetoothSockets = new HashMap<>();
 
     private int mWifiConnectionLockCount;
     private int mBtConnectionLockCount;
+    private volatile long mWifiConnectionLockTotal;
 
     protected volatile BeaconingState mState = BeaconingState.STOPPED;
     protected volatile Policy mPolicy;
     private BroadcastReceiver mPolicyChangedReceiver;
+    private BroadcastReceiver mLoadTestReceiver;
 
     private int mCurrentBeaconingRoundId;
-    private int mCurrentApLikelihood;
-    protected boolean mIsDesignatedAp;
 
     // LIFECYCLE
 
@@ -131,9 +228,12 @@ public class BeaconingManager implements NetworkChangeListener {
         mNetManager = NetworkManager.getInstance(mContext);
         mDbController = new DbController(mContext);
         mProtocolRegistry = ProtocolRegistry.getInstance(mContext);
+        mPacketRegistry = PacketRegistry.getInstance(mContext);
         mMasterIdentity = mDbController.getMasterIdentity();
+        mApElection = new ApElection(mMasterIdentity.getPublicKey(), ELAPSED_REALTIME_TICKER);
         mBeaconBuilder = new BeaconBuilder(this);
         mDataExchangeManager = new DataExchangeManager(mContext, this);
+        BeaconMetrics.getInstance().setSendChannel(mSendChannel);
     }
 
     // BEACONING STATE
@@ -171,6 +271,8 @@ public class BeaconingManager implements NetworkChangeListener {
             mThreadPool.shutdownNow();
             mThreadPool = null;
         }
+        mReplyScheduler.clear();
+        mSendChannel.close();
         Log.v(TAG, "Thread pool shut down");
     }
 
@@ -179,15 +281,83 @@ public class BeaconingManager implements NetworkChangeListener {
             mPolicyChangedReceiver = new BroadcastReceiver() {
                 @Override
                 public void onReceive(Context context, Intent intent) {
-                    mPolicy = (Policy) intent.getSerializableExtra(Policy.EXTRA_NEW_POLICY);
-                    sCurrentBeaconingInterval = mPolicy.getBeaconingInterval();
+                    setPolicy((Policy) intent.getSerializableExtra(Policy.EXTRA_NEW_POLICY));
                 }
             };
             Policy.registerPolicyChangedReceiver(mContext, mPolicyChangedReceiver);
-            mPolicy = Policy.getCurrentPolicy(mContext);
+            setPolicy(Policy.getCurrentPolicy(mContext));
         }
     }
 
+    private void setPolicy(Policy policy) {
+        mPolicy = policy;
+        sCurrentBeaconingInterval = policy.getBeaconingInterval();
+        // Neighbors are not expected to beacon more often than we do
+        LivenessEstimator.getInstance().setBeaconingInterval(
+                sCurrentBeaconingInterval.getMaxIntervalMillis());
+    }
+
+    /**
+     * Lets the load generator be started from the shell, but only in debug builds, as it writes
+     * synthetic neighbors into the database.
+     */
+    private void setupLoadTestReceiver() {
+        if (!BuildConfig.DEBUG || mLoadTestReceiver != null) {
+            return;
+        }
+        mLoadTestReceiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                runLoadTest(intent);
+            }
+        };
+        mContext.registerReceiver(mLoadTestReceiver, new IntentFilter(ACTION_RUN_LOAD_TEST),
+                Manifest.permission.DUMP, null);
+    }
+
+    private void teardownLoadTestReceiver() {
+        if (mLoadTestReceiver != null) {
+            mContext.unregisterReceiver(mLoadTestReceiver);
+            mLoadTestReceiver = null;
+        }
+    }
+
+    private void runLoadTest(Intent intent) {
+        final ScheduledExecutorService threadPool = mThreadPool;
+        if (threadPool == null) {
+            return;
+        }
+
+        final String target = intent.getStringExtra(EXTRA_LOAD_TARGET);
+        final int senderCount = intent.getIntExtra(EXTRA_LOAD_SENDERS, 50);
+        final int neighborCount = intent.getIntExtra(EXTRA_LOAD_NEIGHBORS, 10);
+        final int protocolCount = intent.getIntExtra(EXTRA_LOAD_PROTOCOLS, 2);
+        final double duplicateRatio = intent.getFloatExtra(EXTRA_LOAD_DUPLICATES, 0.2f);
+        final int beaconsPerSecond = intent.getIntExtra(EXTRA_LOAD_RATE, 0);
+        final int durationSeconds = intent.getIntExtra(EXTRA_LOAD_DURATION, 10);
+
+        // The load generator blocks for the whole run, so keep it off the main thread
+        threadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final BeaconLoadGenerator generator = new BeaconLoadGenerator(
+                            BeaconingManager.this, senderCount, neighborCount, protocolCount,
+                            duplicateRatio);
+                    final BeaconLoadGenerator.Result result = generator.run(
+                            (target == null ? BeaconLoadGenerator.Target.UNICAST_PORT
+                                    : BeaconLoadGenerator.Target.valueOf(target)),
+                            beaconsPerSecond, durationSeconds);
+                    Log.i(TAG, "Load test finished: " + result);
+                } catch (IOException | RuntimeException e) {
+                    Log.e(TAG, "Load test failed", e);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+    }
+
     private void teardownPolicyReceiver() {
         if (mPolicyChangedReceiver != null) {
             Policy.unregisterPolicyChangedReceiver(mContext, mPolicyChangedReceiver);
@@ -202,8 +372,15 @@ public class BeaconingManager implements NetworkChangeListener {
         mNetManager.createSavepoint();
         mNetManager.acquireLocks();
 
-        mBeaconParser = new BeaconParser(this);
-        mThreadPool.execute(mBeaconParser);
+        mNeighborTable.loadIfEmpty(mDbController, getRecentTimestamp());
+
+        mNeighborWriter = new NeighborBatchWriter(mDbController, mThreadPool,
+                INGESTION_BATCH_DELAY_MILLIS, INGESTION_BATCH_SIZE);
+        mBeaconParser = new BeaconParser(this, PARSER_WORKER_COUNT, PARSER_QUEUE_CAPACITY);
+        BeaconMetrics.getInstance().setParser(mBeaconParser);
+        mBeaconParser.start();
+        mReceiveLoop = new UdpSelectorLoop();
+        mThreadPool.execute(mReceiveLoop);
 
         // Upon a successful connection, the change receiver will start the wifi beacon receivers
         // (it's a sticky broadcast). However, that does not apply to bluetooth, so we need to take
@@ -213,14 +390,16 @@ public class BeaconingManager implements NetworkChangeListener {
             startBluetoothReceiver();
         }
 
-        mDataExchangeManager.start();
+        mDataExchangeManager.start(mReceiveLoop);
     }
 
     private void deactivateBeaconReceivers() {
         mDataExchangeManager.stop();
         mNetManager.unregisterForConnectivityChanges(this);
         stopBeaconReceivers();
-        mBeaconParser.interrupt();
+        mReceiveLoop.interrupt();
+        mBeaconParser.stop();
+        mNeighborWriter.flush();
         mNetManager.releaseLocks();
         mNetManager.rollback();
     }
@@ -229,14 +408,14 @@ public class BeaconingManager implements NetworkChangeListener {
         try {
             if (mUnicastReceiver == null) {
                 mUnicastReceiver = new UdpUnicastReceiver(this);
-                mThreadPool.execute(mUnicastReceiver);
+                mUnicastReceiver.start();
             }
 
             if (mNetManager.getWifiState().equals(WifiState.STA_ON_PUBLIC_AP)) {
                 // Multicast is only supported on public networks
                 if (mMulticastReceiver == null) {
                     mMulticastReceiver = new UdpMulticastReceiver(this);
-                    mThreadPool.execute(mMulticastReceiver);
+                    mMulticastReceiver.start();
                 }
             }
         } catch (IOException e) {
@@ -246,11 +425,11 @@ public class BeaconingManager implements NetworkChangeListener {
 
     protected void stopWifiReceiver() {
         if (mUnicastReceiver != null) {
-            mUnicastReceiver.interrupt();
+            mUnicastReceiver.stop();
             mUnicastReceiver = null;
         }
         if (mMulticastReceiver != null) {
-            mMulticastReceiver.interrupt();
+            mMulticastReceiver.stop();
             mMulticastReceiver = null;
         }
     }
@@ -309,22 +488,31 @@ public class BeaconingManager implements NetworkChangeListener {
             return;
         }
 
-        mCurrentApLikelihood = 0;
-        if (mNetManager.getWifiState().equals(WifiState.OPPNET_AP)
-                && mPolicy.allows(Feature.WIFI_AP)) {
-            // Signal willingness to take over AP mode
-            mCurrentApLikelihood = (int) (Math.random() * 256);
+        // Take part in the election of the node which takes over the access point (if any)
+        mApElection.setEligible(mPolicy.allows(Feature.WIFI_AP));
+        switch (mNetManager.getWifiState()) {
+            case OPPNET_AP: {
+                Log.v(TAG, "Starting access point term " + mApElection.onApStarted());
+                break;
+            }
+            case STA_ON_OPPNET_AP: {
+                mApElection.onJoined();
+                break;
+            }
+            default: {
+                mApElection.onLeft();
+                break;
+            }
         }
-        mIsDesignatedAp = (mCurrentApLikelihood > 0);
 
-        UdpSender oneTimeWifiSender = new UdpSender(this, true, 1, mCurrentApLikelihood);
+        UdpSender oneTimeWifiSender = new UdpSender(this, true, 1);
         mOneTimeWifiSender = new WeakReference<UdpSender>(oneTimeWifiSender);
         mThreadPool.execute(oneTimeWifiSender);
 
         if (repeating) {
-            UdpSender repeatingWifiSender = new UdpSender(this, false, 3, mCurrentApLikelihood);
-            mRegularWifiSender =
-                    mThreadPool.scheduleAtFixedRate(repeatingWifiSender, 2, 3, TimeUnit.SECONDS);
+            UdpSender repeatingWifiSender = new UdpSender(this, false, 3);
+            mRegularWifiSender = new BeaconScheduler(this, repeatingWifiSender);
+            mRegularWifiSender.start();
         }
     }
 
@@ -338,7 +526,7 @@ public class BeaconingManager implements NetworkChangeListener {
         }
 
         if (mRegularWifiSender != null) {
-            mRegularWifiSender.cancel(true);
+            mRegularWifiSender.cancel();
             mRegularWifiSender = null;
         }
     }
@@ -371,6 +559,9 @@ public class BeaconingManager implements NetworkChangeListener {
     private void startBeaconingInterval() {
         if (mBeaconingInterval == null) {
             mBeaconParser.clearProcessedBeacons();
+            mNeighborTable.prune(getRecentTimestamp());
+            Log.v(TAG, "Beacon admission: " + mBeaconAdmission);
+            Log.v(TAG, "Beacon pipeline metrics: " + BeaconMetrics.getInstance());
             mBeaconingInterval = new BeaconingIntervalHandler(this, mCurrentBeaconingRoundId);
             new Thread(mBeaconingInterval).start();
         }
@@ -388,6 +579,12 @@ public class BeaconingManager implements NetworkChangeListener {
     // CALLBACKS
 
     protected void onBeaconReceived(PossibleBeacon possibleBeacon) {
+        if (!mBeaconAdmission.tryAdmit(possibleBeacon.getOrigin())) {
+            // The origin exceeded its rate limit
+            BeaconMetrics.getInstance().onAdmissionRejected();
+            possibleBeacon.release();
+            return;
+        }
         mBeaconParser.addProcessableBeacon(possibleBeacon);
     }
 
@@ -400,23 +597,65 @@ public class BeaconingManager implements NetworkChangeListener {
                 // Reply to IPv4/IPv6 beacons (bluetooth beacons are always answered directly)
                 try {
                     final InetAddress replyTo = InetAddress.getByAddress(origin);
-                    UdpSender replySender =
-                            new UdpSender(this, replyTo, beacon, mCurrentApLikelihood);
-                    mThreadPool.execute(replySender);
+                    mReplyScheduler.onOriginalBeacon(beacon, replyTo,
+                            rawData.getSocketType() == SocketType.MULTICAST);
                 } catch (UnknownHostException e) {
                     // should never happen
                 }
             }
         }
 
-        if (mNetManager.getWifiState().equals(WifiState.STA_ON_OPPNET_AP)) {
-            final int remoteApLikelihood = beacon.getSender().getApLikelihood() & 0xFF;
-            mIsDesignatedAp = mIsDesignatedAp
-                    && (mCurrentApLikelihood > 0)
-                    && (mCurrentApLikelihood >= remoteApLikelihood);
+        if (beacon.getBeaconType() == BeaconType.REPLY && beacon.hasReplyTo()) {
+            // Another node's reply might make our own one unnecessary
+            mReplyScheduler.onReplyOverheard(
+                    beacon, ByteString.copyFrom(mMasterIdentity.getPublicKey()));
         }
 
-        notifyNeighborUris(mContext);
+        if (beacon.getResyncRequestsCount() > 0) {
+            final byte[] ownNodeId = mMasterIdentity.getPublicKey();
+            for (final ByteString nodeId : beacon.getResyncRequestsList()) {
+                if (Arrays.equals(ownNodeId, nodeId.toByteArray())) {
+                    // The sender has missed our last full neighbor list
+                    mBeaconBuilder.requestFullList();
+                    break;
+                }
+            }
+        }
+
+        final WifiState wifiState = mNetManager.getWifiState();
+        if (wifiState.equals(WifiState.STA_ON_PUBLIC_AP) && rawData.getOrigin().length == 4) {
+            // Remember who answers, so that the next subnet sweep probes them first
+            mSubnetSweeper.onBeaconFrom(rawData.getOrigin());
+        }
+
+        onApElectionBeacon(beacon, wifiState, rawData.getOrigin().length != 6);
+    }
+
+    private void onApElectionBeacon(
+            OppNetProtos.Beacon beacon, WifiState wifiState, boolean overWifi) {
+        final OppNetProtos.Node sender = beacon.getSender();
+        final boolean sameNetwork = overWifi
+                && (wifiState.equals(WifiState.OPPNET_AP)
+                        || wifiState.equals(WifiState.STA_ON_OPPNET_AP));
+        mApElection.onBeacon(sender.getNodeId(), sender.getApLikelihood(), sameNetwork);
+
+        if (sameNetwork
+                && ApElection.getPriority(sender.getApLikelihood()) == ApElection.PRIORITY_AP) {
+            // The access point lists the candidacy of all of its clients
+            for (final OppNetProtos.Node neighbor : beacon.getNeighborsList()) {
+                final ByteString neighborId = mNodeIds.resolve(neighbor.getNodeId());
+                if (neighborId != null) {
+                    mApElection.onCandidateListed(
+                            sender.getNodeId(), neighborId, neighbor.getApLikelihood());
+                }
+            }
+            for (final ByteString removedId : beacon.getRemovedNeighborsList()) {
+                final ByteString neighborId = mNodeIds.resolve(removedId);
+                if (neighborId != null) {
+                    mApElection.onCandidateListed(sender.getNodeId(), neighborId, 0);
+                }
+            }
+        }
     }
 
     protected void onBtDeviceDisconnected(BluetoothDevice btDevice) {
@@ -460,6 +699,9 @@ public class BeaconingManager implements NetworkChangeListener {
     public synchronized void setWifiConnectionLocked(boolean locked) {
         final int modifier = (locked ? 1 : -1);
         mWifiConnectionLockCount = Math.max(0, mWifiConnectionLockCount + modifier);
+        if (locked) {
+            mWifiConnectionLockTotal++;
+        }
         rollbackNetworkStateIfSuitable();
     }
 
@@ -467,6 +709,14 @@ public class BeaconingManager implements NetworkChangeListener {
         return mWifiConnectionLockCount > 0;
     }
 
+    /**
+     * @return how many times the WiFi connection has been locked so far, i.e. mostly how many
+     *         packets have been scheduled to be sent to neighbors
+     */
+    public long getWifiConnectionLockTotal() {
+        return mWifiConnectionLockTotal;
+    }
+
     public synchronized void resetBtConnectionLock() {
         mBtConnectionLockCount = 0;
         rollbackNetworkStateIfSuitable();
@@ -502,6 +752,8 @@ public class BeaconingManager implements NetworkChangeListener {
 
     @Override
     public void onWifiNetworkChanged(boolean connected, boolean isFailover) {
+        rebindSendChannel(connected);
+
         if (mState == BeaconingState.PASSIVE) {
             if (connected) {
                 startWifiReceiver();
@@ -513,6 +765,20 @@ public class BeaconingManager implements NetworkChangeListener {
         }
     }
 
+    private void rebindSendChannel(boolean connected) {
+        final Optional<WifiConnection> connection = mNetManager.getCurrentConnection();
+        if (connected && connection.isPresent()) {
+            try {
+                mSendChannel.rebind(connection.get().getWifiInterface());
+            } catch (IOException e) {
+                // The next send will try again
+                Log.e(TAG, "Could not bind send channel to the new network:", e);
+            }
+        } else {
+            mSendChannel.close();
+        }
+    }
+
     @Override
     public void onBluetoothAdapterChanged(boolean enabled) {
         if (mState == BeaconingState.PASSIVE) {
@@ -532,6 +798,14 @@ public class BeaconingManager implements NetworkChangeListener {
     }
 
     // EXTERNAL API
+
+    /**
+     * @return the in-memory table of all known neighbors
+     */
+    public NeighborTable getNeighborTable() {
+        return mNeighborTable;
+    }
+
     public boolean isActivated() {
         return (mState != BeaconingState.STOPPED);
     }
@@ -562,6 +836,7 @@ public class BeaconingManager implements NetworkChangeListener {
             @Override
             public void onEnter(BeaconingManager bm) {
                 bm.deactivateBeaconReceivers();
+                bm.teardownLoadTestReceiver();
                 bm.teardownPolicyReceiver();
                 bm.teardownThreadPool();
             }
@@ -571,6 +846,7 @@ public class BeaconingManager implements NetworkChangeListener {
                 bm.setupThreadPool();
                 bm.setupPolicyReceiver();
                 bm.activateBeaconReceivers();
+                bm.setupLoadTestReceiver();
             }
 
             @Override
@@ -647,10 +923,15 @@ public class BeaconingManager implements NetworkChangeListener {
     private static BeaconingInterval sCurrentBeaconingInterval = BeaconingInterval.OFF;
 
     public static long getCurrentTimestamp() {
-        final int periodMillis = Math.max(
-                2 * sCurrentBeaconingInterval.getIntervalMillis(), 20 * 60 * 1000);
+        return (System.currentTimeMillis() - getCurrentPeriodMillis()) / 1000;
+    }
 
-        return (System.currentTimeMillis() - periodMillis) / 1000;
+    /**
+     * @return the time since a neighbor has last been seen up to which it is current, unless the
+     *         {@link LivenessEstimator} tells that it has departed before
+     */
+    public static int getCurrentPeriodMillis() {
+        return Math.max(2 * sCurrentBeaconingInterval.getMaxIntervalMillis(), 20 * 60 * 1000);
     }
 
     public static long getRecentTimestamp() {
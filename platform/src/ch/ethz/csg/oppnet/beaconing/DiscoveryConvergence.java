@@ -0,0 +1,121 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import ch.ethz.csg.oppnet.data.NeighborTable;
+import ch.ethz.csg.oppnet.lib.data.Neighbor;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks the neighbors discovered during a beaconing round, to tell when the discovery has
+ * converged and the round can end early, or when new contacts keep appearing and it should be
+ * extended instead.
+ * <p>
+ * Discovery has converged when no new neighbor has been seen during the last
+ * {@link #CONVERGENCE_BEACON_COUNT} regular beacons sent by this node, as every neighbor in range
+ * had as many chances to answer. If packets have been sent to neighbors during the round and all of
+ * them are out, {@link #DELIVERED_CONVERGENCE_BEACON_COUNT} beacons suffice. Beacons are counted
+ * instead of time, as their period adapts to the channel (see {@link BeaconScheduler}), and a node
+ * which does not send beacons (e.g. while switching networks) does not converge at all.
+ * <p>
+ * Convergence only covers the networks visited so far. {@link BeaconingIntervalHandler} only
+ * ends a round on it once every network has had its minimum dwell time and no unvisited network
+ * is left.
+ */
+public class DiscoveryConvergence implements NeighborTable.Listener {
+    /**
+     * The number of own beacons without a new neighbor after which discovery has converged.
+     */
+    protected static final int CONVERGENCE_BEACON_COUNT = 3;
+
+    /**
+     * The number of own beacons without a new neighbor after which discovery has converged, once
+     * all packets of the round have been sent.
+     */
+    protected static final int DELIVERED_CONVERGENCE_BEACON_COUNT = 1;
+
+    private final BeaconingManager mBM;
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
+    private final long mRoundStartSeconds;
+    private final long mInitialLockCount;
+
+    private final Set<ByteBuffer> mRoundNeighbors =
+            Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
+    private volatile long mLastDiscoveryBeaconCount;
+    private volatile long mLastDiscoveryMillis;
+
+    /**
+     * @param beaconingManager the beaconing manager whose neighbor table to observe
+     * @param roundStartMillis the time the beaconing round started
+     */
+    public DiscoveryConvergence(BeaconingManager beaconingManager, long roundStartMillis) {
+        mBM = beaconingManager;
+        mRoundStartSeconds = roundStartMillis / 1000;
+        mInitialLockCount = beaconingManager.getWifiConnectionLockTotal();
+        mLastDiscoveryBeaconCount = mMetrics.getRegularBeaconCount();
+    }
+
+    public void start() {
+        mBM.mNeighborTable.addListener(this);
+    }
+
+    public void stop() {
+        mBM.mNeighborTable.removeListener(this);
+    }
+
+    /**
+     * Gives the neighbors on a newly connected network the full number of beacons to answer.
+     */
+    public void onNetworkConnected() {
+        mLastDiscoveryBeaconCount = mMetrics.getRegularBeaconCount();
+    }
+
+    @Override
+    public void onNeighborsChanged(Set<Neighbor> changedNeighbors) {
+        boolean discovered = false;
+        for (final Neighbor neighbor : changedNeighbors) {
+            if (neighbor.getTimeLastSeen() >= mRoundStartSeconds
+                    && mRoundNeighbors.add(ByteBuffer.wrap(neighbor.getNodeId()))) {
+                discovered = true;
+            }
+        }
+        if (discovered) {
+            mLastDiscoveryBeaconCount = mMetrics.getRegularBeaconCount();
+            mLastDiscoveryMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * @return true if no new neighbors have been discovered for long enough
+     */
+    public boolean isConverged() {
+        final long beaconCount = mMetrics.getRegularBeaconCount();
+        if (beaconCount < mLastDiscoveryBeaconCount) {
+            // The metrics have been reset in between
+            mLastDiscoveryBeaconCount = beaconCount;
+        }
+        final long quietBeaconCount = beaconCount - mLastDiscoveryBeaconCount;
+        final boolean delivered = !mBM.isWifiConnectionLocked()
+                && mBM.getWifiConnectionLockTotal() > mInitialLockCount;
+        return quietBeaconCount
+                >= (delivered ? DELIVERED_CONVERGENCE_BEACON_COUNT : CONVERGENCE_BEACON_COUNT);
+    }
+
+    /**
+     * @param timeMillis a time during the round
+     * @return true if a new neighbor has been discovered since the time
+     */
+    public boolean hasDiscoveredSince(long timeMillis) {
+        return mLastDiscoveryMillis >= timeMillis;
+    }
+
+    /**
+     * @return the number of neighbors seen during the round
+     */
+    public int getDiscoveredCount() {
+        return mRoundNeighbors.size();
+    }
+}
@@ -0,0 +1,272 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import android.os.SystemClock;
+
+import ch.ethz.csg.oppnet.beaconing.BeaconingManager.SocketType;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Estimates for each neighbor the probability that it has departed, from the time since its last
+ * beacon compared to the gaps between its beacons so far.
+ * <p>
+ * The gaps are tracked per transport (i.e. receiving socket type), as e.g. a neighbor may still be
+ * heard over Bluetooth after having left the WiFi network. For each transport, the expected gap is
+ * the largest gap observed, decaying with a half-life of {@link #EXPECTED_GAP_HALF_LIFE_MILLIS}.
+ * Nodes only send beacons during beaconing rounds, so this is mostly the time between two rounds;
+ * it is never assumed to be shorter than the own beaconing interval. Once the silence exceeds the
+ * expected gap, the departure probability grows exponentially towards 1, with a scale of
+ * {@link #DEPARTURE_SCALE} times the expected gap. A neighbor has departed only if it has departed
+ * on all transports it has been heard on.
+ * <p>
+ * All times are taken from {@link SystemClock#elapsedRealtime()}, which keeps counting while the
+ * device sleeps (as it does most of the time between beaconing rounds), unlike
+ * {@link System#nanoTime()}.
+ * <p>
+ * Neighbors heard only once (or only through the neighbor lists of others) have no estimate, and
+ * are treated as current as long as they were seen within the usual time window (see
+ * {@link BeaconingManager#getCurrentTimestamp()}).
+ */
+public final class LivenessEstimator {
+    private static final LivenessEstimator sInstance = new LivenessEstimator();
+
+    /**
+     * The departure probability from which a neighbor is not considered current anymore, and no
+     * packets are sent to it.
+     */
+    public static final double DEPARTURE_THRESHOLD = 0.5;
+
+    /**
+     * Gaps shorter than this are copies of the same beacon burst, and not counted.
+     */
+    protected static final long MIN_GAP_MILLIS = 1000;
+
+    /**
+     * The lower bound of the expected gap, if no beaconing interval is set.
+     */
+    protected static final long MIN_EXPECTED_GAP_MILLIS = 60 * 1000;
+
+    protected static final long EXPECTED_GAP_HALF_LIFE_MILLIS = 60 * 60 * 1000;
+    protected static final double DEPARTURE_SCALE = 0.25;
+
+    /**
+     * The maximum number of tracked neighbors. When exceeded, all are forgotten, which only
+     * falls back to the time window until they have been heard twice again.
+     */
+    protected static final int MAX_TRACKED_NEIGHBORS = 1024;
+
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
+    private final ConcurrentHashMap<ByteBuffer, Link[]> mLinks = new ConcurrentHashMap<>();
+    private volatile long mMinExpectedGapMillis = MIN_EXPECTED_GAP_MILLIS;
+
+    private LivenessEstimator() {
+        // Singleton
+    }
+
+    public static LivenessEstimator getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param intervalMillis the interval between two own beaconing rounds, or a negative value if
+     *            there are none
+     */
+    void setBeaconingInterval(long intervalMillis) {
+        mMinExpectedGapMillis = Math.max(MIN_EXPECTED_GAP_MILLIS, intervalMillis);
+    }
+
+    /**
+     * Records a beacon, including copies of beacons already received over other transports.
+     *
+     * @param senderId the node ID of the sender
+     * @param socketType the transport the beacon has been received over
+     * @param receivedMillis the {@link SystemClock#elapsedRealtime()} the beacon has been
+     *            received at
+     */
+    void onBeacon(ByteString senderId, SocketType socketType, long receivedMillis) {
+        final ByteBuffer key = senderId.asReadOnlyByteBuffer();
+        Link[] links = mLinks.get(key);
+        if (links == null) {
+            if (mLinks.size() >= MAX_TRACKED_NEIGHBORS) {
+                mLinks.clear();
+            }
+            final Link[] newLinks = new Link[SocketType.values().length];
+            links = mLinks.putIfAbsent(key, newLinks);
+            if (links == null) {
+                links = newLinks;
+            }
+        }
+
+        synchronized (links) {
+            if (getDepartureProbability(links, receivedMillis, mMinExpectedGapMillis, false)
+                    >= DEPARTURE_THRESHOLD) {
+                mMetrics.onNeighborReappeared();
+            }
+
+            final int index = socketType.ordinal();
+            if (links[index] == null) {
+                links[index] = new Link(receivedMillis);
+            } else {
+                links[index].onBeacon(receivedMillis);
+            }
+        }
+    }
+
+    /**
+     * @param nodeId the node ID of a neighbor
+     * @return the probability that the neighbor has departed, or 0 if there is no estimate
+     */
+    public double getDepartureProbability(byte[] nodeId) {
+        return getDepartureProbability(nodeId, false);
+    }
+
+    /**
+     * @param nodeId the node ID of a neighbor
+     * @return the probability that the neighbor is not reachable over WiFi anymore, or 0 if there
+     *         is no estimate
+     */
+    public double getWifiDepartureProbability(byte[] nodeId) {
+        return getDepartureProbability(nodeId, true);
+    }
+
+    /**
+     * @param nodeId the node ID of a neighbor
+     * @return true if the neighbor has most likely departed
+     */
+    public boolean hasDeparted(byte[] nodeId) {
+        return getDepartureProbability(nodeId) >= DEPARTURE_THRESHOLD;
+    }
+
+    /**
+     * @param nodeId the node ID of a neighbor
+     * @return true if the neighbor has most likely left the WiFi network, so that packets sent to
+     *         it would be wasted
+     */
+    public boolean hasDepartedFromWifi(byte[] nodeId) {
+        return getWifiDepartureProbability(nodeId) >= DEPARTURE_THRESHOLD;
+    }
+
+    private double getDepartureProbability(byte[] nodeId, boolean wifiOnly) {
+        final Link[] links = mLinks.get(ByteBuffer.wrap(nodeId));
+        if (links == null) {
+            return 0;
+        }
+
+        synchronized (links) {
+            return getDepartureProbability(
+                    links, SystemClock.elapsedRealtime(), mMinExpectedGapMillis, wifiOnly);
+        }
+    }
+
+    private static double getDepartureProbability(
+            Link[] links, long nowMillis, long minExpectedGapMillis, boolean wifiOnly) {
+        double probability = 1;
+        boolean estimated = false;
+        for (final SocketType socketType : SocketType.values()) {
+            final Link link = links[socketType.ordinal()];
+            if (link == null || !link.hasEstimate()
+                    || (wifiOnly && socketType == SocketType.RFCOMM)) {
+                continue;
+            }
+            probability *= link.getDepartureProbability(nowMillis, minExpectedGapMillis);
+            estimated = true;
+        }
+        return (estimated ? probability : 0);
+    }
+
+    /**
+     * Returns the neighbors which have most likely departed, but have been heard recently enough
+     * to still be considered current by their time last seen alone. Others are forgotten.
+     *
+     * @param maxSilenceMillis the maximum time since the last beacon of a returned neighbor
+     * @return the node IDs of the departed neighbors
+     */
+    public Set<ByteBuffer> getDepartedNodeIds(long maxSilenceMillis) {
+        final long now = SystemClock.elapsedRealtime();
+        final Set<ByteBuffer> departedNodeIds = new HashSet<>();
+
+        final Iterator<Map.Entry<ByteBuffer, Link[]>> iterator = mLinks.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<ByteBuffer, Link[]> entry = iterator.next();
+            long lastArrival = Long.MIN_VALUE;
+            synchronized (entry.getValue()) {
+                for (final Link link : entry.getValue()) {
+                    if (link != null && (lastArrival == Long.MIN_VALUE
+                            || link.mLastArrivalMillis > lastArrival)) {
+                        lastArrival = link.mLastArrivalMillis;
+                    }
+                }
+            }
+
+            if (now - lastArrival > maxSilenceMillis) {
+                // Not current anyway
+                iterator.remove();
+                continue;
+            }
+
+            final byte[] nodeId = new byte[entry.getKey().remaining()];
+            entry.getKey().duplicate().get(nodeId);
+            if (hasDeparted(nodeId)) {
+                departedNodeIds.add(ByteBuffer.wrap(nodeId));
+            }
+        }
+        return departedNodeIds;
+    }
+
+    /**
+     * @return the number of neighbors currently tracked
+     */
+    public int size() {
+        return mLinks.size();
+    }
+
+    /**
+     * The beacon arrivals of a neighbor over one transport.
+     */
+    private static final class Link {
+        private long mLastArrivalMillis;
+        private long mExpectedGapMillis;
+        private int mGapCount;
+
+        public Link(long arrivalMillis) {
+            mLastArrivalMillis = arrivalMillis;
+        }
+
+        public void onBeacon(long arrivalMillis) {
+            final long gap = arrivalMillis - mLastArrivalMillis;
+            if (gap < 0) {
+                // Parsed out of order
+                return;
+            }
+            mLastArrivalMillis = arrivalMillis;
+            if (gap < MIN_GAP_MILLIS) {
+                return;
+            }
+
+            final double decay = Math.pow(0.5, (double) gap / EXPECTED_GAP_HALF_LIFE_MILLIS);
+            mExpectedGapMillis = Math.max(gap, (long) (mExpectedGapMillis * decay));
+            mGapCount++;
+        }
+
+        public boolean hasEstimate() {
+            return mGapCount > 0;
+        }
+
+        public double getDepartureProbability(long nowMillis, long minExpectedGapMillis) {
+            final long expectedGap = Math.max(mExpectedGapMillis, minExpectedGapMillis);
+            final long overdue = (nowMillis - mLastArrivalMillis) - expectedGap;
+            if (overdue <= 0) {
+                return 0;
+            }
+            return 1 - Math.exp(-overdue / (DEPARTURE_SCALE * expectedGap));
+        }
+    }
+}
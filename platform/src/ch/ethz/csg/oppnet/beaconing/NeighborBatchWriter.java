@@ -0,0 +1,115 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.data.DbController;
+import ch.ethz.csg.oppnet.data.NeighborUpdate;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Ingestion stage between the {@link BeaconParser} and the database.
+ * <p>
+ * Neighbor updates are buffered for a short time (or until the batch is full), merged by node id
+ * so that only the most recent information about each neighbor is kept, and then written in a
+ * single transaction. This way, observers of the neighbor URIs are notified once per batch instead
+ * of once per node contained in a beacon.
+ */
+public class NeighborBatchWriter implements Runnable {
+    public static final String TAG = NeighborBatchWriter.class.getSimpleName();
+
+    private final DbController mDbController;
+    private final ScheduledExecutorService mExecutor;
+    private final long mMaxDelayMillis;
+    private final int mMaxBatchSize;
+
+    private final Object mLock = new Object();
+    private Map<ByteBuffer, NeighborUpdate> mPendingUpdates = new HashMap<>();
+    private ScheduledFuture<?> mScheduledFlush;
+    // Set while a flush of a full batch is waiting to be run by the executor
+    private boolean mFlushQueued;
+
+    /**
+     * @param dbController the database to write the neighbors to
+     * @param executor the executor to run all flushes on
+     * @param maxDelayMillis the maximum time an update is buffered before it is written
+     * @param maxBatchSize the number of distinct neighbors after which a batch is written
+     *            immediately
+     */
+    public NeighborBatchWriter(DbController dbController, ScheduledExecutorService executor,
+            long maxDelayMillis, int maxBatchSize) {
+        mDbController = dbController;
+        mExecutor = executor;
+        mMaxDelayMillis = maxDelayMillis;
+        mMaxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * Buffers a neighbor update. If an update of the same neighbor is already pending, both are
+     * merged. Full batches are written right away, but still on the executor, so that the caller
+     * (usually a parser worker) never waits for the database.
+     *
+     * @param update the neighbor update to buffer
+     */
+    public void add(NeighborUpdate update) {
+        synchronized (mLock) {
+            final ByteBuffer key = ByteBuffer.wrap(update.getNodeId());
+            final NeighborUpdate pending = mPendingUpdates.get(key);
+            mPendingUpdates.put(key, (pending == null ? update : pending.mergeWith(update)));
+
+            if (mFlushQueued) {
+                // The queued flush will pick this update up as well
+                return;
+            }
+            if (mPendingUpdates.size() >= mMaxBatchSize) {
+                if (mScheduledFlush != null) {
+                    mScheduledFlush.cancel(false);
+                    mScheduledFlush = null;
+                }
+                mFlushQueued = true;
+                mExecutor.execute(this);
+            } else if (mScheduledFlush == null) {
+                mScheduledFlush = mExecutor.schedule(this, mMaxDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @Override
+    public void run() {
+        flush();
+    }
+
+    /**
+     * Writes all pending neighbor updates to the database.
+     */
+    public void flush() {
+        final Map<ByteBuffer, NeighborUpdate> batch;
+        synchronized (mLock) {
+            if (mScheduledFlush != null) {
+                mScheduledFlush.cancel(false);
+                mScheduledFlush = null;
+            }
+            mFlushQueued = false;
+            if (mPendingUpdates.isEmpty()) {
+                return;
+            }
+            batch = mPendingUpdates;
+            mPendingUpdates = new HashMap<>();
+        }
+
+        try {
+            final int storedCount = mDbController.insertNeighbors(batch.values());
+            Log.v(TAG, String.format(
+                    "Stored %d of %d neighbor updates", storedCount, batch.size()));
+        } catch (RuntimeException e) {
+            // Don't let a single failed batch kill the scheduling thread
+            Log.e(TAG, "Error while storing neighbor updates", e);
+        }
+    }
+}
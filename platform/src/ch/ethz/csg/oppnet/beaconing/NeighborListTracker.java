@@ -0,0 +1,102 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+
+import com.google.protobuf.ByteString;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of the neighbor list versions received from other nodes.
+ * <p>
+ * Delta beacons only carry the changes relative to the last full neighbor list of their sender.
+ * If we have not received that full list (e.g. because the beacon carrying it got lost), the
+ * sender is asked to send a full list again, by including its node ID in our next beacons.
+ */
+public class NeighborListTracker {
+    /**
+     * The maximum number of senders whose list versions are remembered. When exceeded, all
+     * versions are forgotten, which at worst causes one resync request per sender.
+     */
+    protected static final int MAX_TRACKED_SENDERS = 1024;
+
+    /**
+     * The maximum number of outstanding resync requests.
+     */
+    protected static final int MAX_PENDING_RESYNC_REQUESTS = 64;
+
+    private final ConcurrentHashMap<ByteString, Integer> mListVersions =
+            new ConcurrentHashMap<>();
+    private final Set<ByteString> mResyncRequests =
+            Collections.newSetFromMap(new ConcurrentHashMap<ByteString, Boolean>());
+
+    /**
+     * Updates the known list version of the beacon's sender.
+     *
+     * @param beacon a received beacon
+     * @return false if the beacon is a delta to a full list which we have not received
+     */
+    public boolean onBeacon(OppNetProtos.Beacon beacon) {
+        if (!beacon.hasListVersion()) {
+            // Beacons without a version always carry the full list
+            return true;
+        }
+
+        final ByteString senderId = beacon.getSender().getNodeId();
+        final int listVersion = beacon.getListVersion();
+        if (!beacon.getDelta()) {
+            if (mListVersions.size() >= MAX_TRACKED_SENDERS) {
+                mListVersions.clear();
+            }
+            mListVersions.put(senderId, listVersion);
+            mResyncRequests.remove(senderId);
+            return true;
+        }
+
+        final Integer knownVersion = mListVersions.get(senderId);
+        if (knownVersion != null && knownVersion == listVersion) {
+            return true;
+        }
+
+        requestResync(senderId);
+        return false;
+    }
+
+    /**
+     * Asks the node to send a full neighbor list with our next beacons.
+     *
+     * @param nodeId the node ID of the node
+     */
+    public void requestResync(ByteString nodeId) {
+        if (mResyncRequests.size() < MAX_PENDING_RESYNC_REQUESTS) {
+            mResyncRequests.add(nodeId);
+        }
+    }
+
+    /**
+     * Takes outstanding resync requests, to be sent along with the next beacon. If that beacon is
+     * lost as well, the request is repeated after the next delta beacon from the same sender.
+     *
+     * @param maxCount the maximum number of requests to take
+     * @return the node IDs of the nodes to request a full neighbor list from
+     */
+    public List<ByteString> takeResyncRequests(int maxCount) {
+        if (mResyncRequests.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final List<ByteString> requests = new ArrayList<>(maxCount);
+        final Iterator<ByteString> iterator = mResyncRequests.iterator();
+        while (iterator.hasNext() && requests.size() < maxCount) {
+            requests.add(iterator.next());
+            iterator.remove();
+        }
+        return requests;
+    }
+}
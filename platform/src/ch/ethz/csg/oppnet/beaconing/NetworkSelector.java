@@ -0,0 +1,197 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import android.net.wifi.ScanResult;
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.data.DbController;
+import ch.ethz.csg.oppnet.data.NetworkHistory;
+import ch.ethz.csg.oppnet.network.NetworkManager;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Chooses the next network to connect to during a beaconing round, by the contacts it yielded in
+ * the past, and keeps the statistics this choice is based on.
+ * <p>
+ * A network is scored by the neighbors (and, to a lesser extent, the packets sent to them) it
+ * yielded per visit, times the probability that connecting to it succeeds with an IP address, times
+ * the share of an iteration which is left for beaconing after connecting. The statistics of the
+ * access point are used if it has been tried before, the ones of the whole network otherwise. All
+ * estimates start from an optimistic prior, so that unknown networks are tried as well, and are
+ * only passed over once they repeatedly yielded nothing.
+ */
+public class NetworkSelector {
+    private static final String TAG = NetworkSelector.class.getSimpleName();
+
+    /**
+     * The number of neighbors an unknown network is assumed to yield per visit. Networks of other
+     * OppNet nodes are assumed to yield {@link #PRIOR_OPPNET_NEIGHBORS}, as at least that node is
+     * there.
+     */
+    protected static final double PRIOR_NEIGHBORS = 1;
+    protected static final double PRIOR_OPPNET_NEIGHBORS = 2;
+
+    /**
+     * The weight of the priors, in visits.
+     */
+    protected static final double PRIOR_VISITS = 1;
+
+    /**
+     * The worth of a packet sent in a network, relative to a neighbor found.
+     */
+    protected static final double PACKET_WEIGHT = 0.5;
+
+    /**
+     * The time connecting is assumed to take, until it has succeeded at least once.
+     */
+    protected static final long DEFAULT_CONNECT_LATENCY_MILLIS = 5 * 1000;
+
+    /**
+     * Statistics which have not been updated for this long are deleted.
+     */
+    protected static final long MAX_STATS_AGE_SECONDS = TimeUnit.DAYS.toSeconds(60);
+
+    private final DbController mDbController;
+    private final int mIterationMillis;
+
+    /**
+     * @param dbController the database holding the statistics
+     * @param iterationMillis the time spent in a network before considering to switch
+     */
+    public NetworkSelector(DbController dbController, int iterationMillis) {
+        mDbController = dbController;
+        mIterationMillis = iterationMillis;
+
+        final long now = System.currentTimeMillis() / 1000;
+        mDbController.deleteExpiredNetworkStats(now - MAX_STATS_AGE_SECONDS);
+    }
+
+    /**
+     * @param networks the connectible networks, ordered by preference in case of equal scores
+     * @param visitedNetworks the SSIDs of the networks already visited in this round
+     * @return the highest-scoring network which has not been visited yet, or (if all have been
+     *         visited) the first one, if it is an OppNet network; null otherwise
+     */
+    public ScanResult select(List<ScanResult> networks, Collection<String> visitedNetworks) {
+        if (networks.isEmpty()) {
+            return null;
+        }
+
+        final Set<String> candidateNames = new HashSet<>();
+        for (final ScanResult network : networks) {
+            if (!visitedNetworks.contains(network.SSID)) {
+                candidateNames.add(network.SSID);
+            }
+        }
+
+        ScanResult selectedNetwork = null;
+        if (!candidateNames.isEmpty()) {
+            final Map<String, NetworkHistory> bssidHistories = new HashMap<>();
+            final Map<String, NetworkHistory> networkHistories = new HashMap<>();
+            for (final NetworkHistory history : mDbController.getNetworkHistories(candidateNames)) {
+                bssidHistories.put(history.getBssid(), history);
+                final NetworkHistory networkHistory = networkHistories.get(history.getNetwork());
+                networkHistories.put(history.getNetwork(),
+                        (networkHistory == null ? history : networkHistory.mergeWith(history)));
+            }
+
+            double bestScore = -1;
+            for (final ScanResult network : networks) {
+                if (!candidateNames.contains(network.SSID)) {
+                    continue;
+                }
+
+                NetworkHistory history = bssidHistories.get(network.BSSID);
+                if (history == null || !history.getNetwork().equals(network.SSID)) {
+                    history = networkHistories.get(network.SSID);
+                }
+                if (history == null) {
+                    history = NetworkHistory.empty(network.SSID, "");
+                }
+
+                final double score = score(
+                        history, NetworkManager.isOppNetSSID(network.SSID), mIterationMillis);
+                Log.v(TAG, String.format("Score %.3f for %s", score, history));
+                if (score > bestScore) {
+                    bestScore = score;
+                    selectedNetwork = network;
+                }
+            }
+        }
+
+        if (selectedNetwork == null) {
+            // Visited all other networks before, so stick to the first one, but only if it's OppNet
+            final ScanResult firstNetwork = networks.get(0);
+            if (NetworkManager.isOppNetSSID(firstNetwork.SSID)) {
+                selectedNetwork = firstNetwork;
+            }
+        }
+        return selectedNetwork;
+    }
+
+    /**
+     * @param history the statistics of the network or access point
+     * @param isOppNet whether the network is run by another OppNet node
+     * @param iterationMillis the time spent in a network before considering to switch
+     * @return the expected worth of connecting to the network, in neighbors
+     */
+    protected static double score(NetworkHistory history, boolean isOppNet, int iterationMillis) {
+        final double connectProbability =
+                (history.getDhcpSuccesses() + 1.0) / (history.getConnectAttempts() + 2.0);
+
+        final double priorNeighbors = (isOppNet ? PRIOR_OPPNET_NEIGHBORS : PRIOR_NEIGHBORS);
+        final double yieldPerVisit =
+                (history.getNeighborsFound() + PACKET_WEIGHT * history.getPacketsExchanged()
+                        + priorNeighbors * PRIOR_VISITS)
+                / (history.getVisits() + PRIOR_VISITS);
+
+        final long connectLatencyMillis = (history.getConnectSuccesses() > 0)
+                ? history.getConnectLatencyMillis() / history.getConnectSuccesses()
+                : DEFAULT_CONNECT_LATENCY_MILLIS;
+        final double beaconingShare =
+                Math.max(0.1, 1 - (double) connectLatencyMillis / iterationMillis);
+
+        return connectProbability * yieldPerVisit * beaconingShare;
+    }
+
+    /**
+     * Records an attempt to connect to a network.
+     */
+    public void onConnectAttempt(ScanResult network) {
+        mDbController.insertNetworkConnectAttempt(network.SSID, network.BSSID);
+    }
+
+    /**
+     * Records a successful connection to a network.
+     *
+     * @param network the SSID of the network
+     * @param bssid the BSSID of the access point, or an empty string if unknown
+     * @param latencyMillis the time it took to connect
+     * @param dhcpSucceeded true if an IPv4 address has been assigned
+     */
+    public void onConnected(
+            String network, String bssid, long latencyMillis, boolean dhcpSucceeded) {
+        mDbController.insertNetworkConnection(network, bssid, latencyMillis, dhcpSucceeded);
+    }
+
+    /**
+     * Records the outcome of having been connected to a network.
+     *
+     * @param network the SSID of the network
+     * @param bssid the BSSID of the access point, or an empty string if unknown
+     * @param neighborCount the number of neighbors found in the network
+     * @param packetCount the number of packets sent to neighbors in the network
+     */
+    public void onVisitFinished(String network, String bssid, int neighborCount, int packetCount) {
+        Log.v(TAG, String.format("Visit of %s/%s yielded %d neighbors and %d packets",
+                network, bssid, neighborCount, packetCount));
+        mDbController.insertNetworkVisit(network, bssid, neighborCount, packetCount);
+    }
+}
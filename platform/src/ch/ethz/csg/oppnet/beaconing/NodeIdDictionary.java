@@ -0,0 +1,119 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+
+import com.google.protobuf.ByteString;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Maps compact node IDs back to the full node IDs (i.e. public keys) they have been derived from.
+ * <p>
+ * A compact node ID consists of the first {@link #COMPACT_NODE_ID_LENGTH} bytes of the full ID,
+ * and is only used for the neighbors in a beacon, never for its sender. Receivers thus learn the
+ * full IDs from the senders of beacons and from neighbor lists with full IDs. A prefix shared by
+ * several known IDs is ambiguous, and such IDs are always sent in full. If a receiver can not
+ * resolve a compact ID in a full neighbor list, it skips that neighbor and requests another full
+ * list from the sender, which then carries full IDs.
+ * <p>
+ * Nodes which do not advertise {@code compact_node_ids} would register compact IDs as neighbors of
+ * their own. As long as any such node has been heard recently, compact IDs are therefore only used
+ * in replies to nodes which understand them.
+ */
+public class NodeIdDictionary {
+    /**
+     * The length of compact node IDs. Shorter IDs are not compacted.
+     */
+    public static final int COMPACT_NODE_ID_LENGTH = 8;
+
+    /**
+     * The maximum number of known full IDs. When exceeded, all IDs are forgotten, which at worst
+     * causes one resync request per sender.
+     */
+    protected static final int MAX_KNOWN_NODE_IDS = 4096;
+
+    // Marks a compact ID which belongs to several known full IDs
+    private static final ByteString AMBIGUOUS = ByteString.EMPTY;
+
+    private final ConcurrentHashMap<ByteString, ByteString> mFullIds = new ConcurrentHashMap<>();
+
+    // The time the nodes not supporting compact IDs have last been heard
+    private final ConcurrentHashMap<ByteString, Long> mLegacyNodes = new ConcurrentHashMap<>();
+
+    /**
+     * Learns the ID of the beacon's sender, and whether it supports compact IDs.
+     *
+     * @param beacon a received beacon
+     * @param timeReceived the time the beacon has been received, in seconds
+     */
+    public void onBeacon(OppNetProtos.Beacon beacon, long timeReceived) {
+        final OppNetProtos.Node sender = beacon.getSender();
+        learn(sender.getNodeId());
+        if (sender.getCompactNodeIds()) {
+            mLegacyNodes.remove(sender.getNodeId());
+        } else {
+            mLegacyNodes.put(sender.getNodeId(), timeReceived);
+        }
+    }
+
+    /**
+     * @param timeLastSeen the minimum time a node must have been heard to be considered
+     * @return true if a node which does not support compact IDs has been heard since the time
+     */
+    public boolean hasLegacyNodes(long timeLastSeen) {
+        boolean found = false;
+        final Iterator<Long> iterator = mLegacyNodes.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() >= timeLastSeen) {
+                found = true;
+            } else {
+                // Not heard for too long
+                iterator.remove();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param nodeId the full ID of a node
+     * @return the compact ID of the node, or the full ID if the compact one would be ambiguous
+     */
+    public ByteString compact(ByteString nodeId) {
+        learn(nodeId);
+        if (nodeId.size() <= COMPACT_NODE_ID_LENGTH) {
+            return nodeId;
+        }
+        final ByteString compactId = nodeId.substring(0, COMPACT_NODE_ID_LENGTH);
+        return (nodeId.equals(mFullIds.get(compactId)) ? compactId : nodeId);
+    }
+
+    /**
+     * @param nodeId a full or compact node ID, as received in a neighbor list
+     * @return the full ID of the node, or null if the compact ID is unknown or ambiguous
+     */
+    public ByteString resolve(ByteString nodeId) {
+        if (nodeId.size() != COMPACT_NODE_ID_LENGTH) {
+            learn(nodeId);
+            return nodeId;
+        }
+        final ByteString fullId = mFullIds.get(nodeId);
+        return (fullId == null || fullId == AMBIGUOUS ? null : fullId);
+    }
+
+    private void learn(ByteString nodeId) {
+        if (nodeId.size() <= COMPACT_NODE_ID_LENGTH) {
+            return;
+        }
+        if (mFullIds.size() >= MAX_KNOWN_NODE_IDS) {
+            mFullIds.clear();
+        }
+
+        final ByteString compactId = nodeId.substring(0, COMPACT_NODE_ID_LENGTH);
+        final ByteString knownId = mFullIds.putIfAbsent(compactId, nodeId);
+        if (knownId != null && knownId != AMBIGUOUS && !knownId.equals(nodeId)) {
+            mFullIds.put(compactId, AMBIGUOUS);
+        }
+    }
+}
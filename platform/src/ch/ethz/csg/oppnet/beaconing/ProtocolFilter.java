@@ -0,0 +1,124 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+
+import com.google.protobuf.ByteString;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A Bloom filter of protocol hashes, as advertised by nodes instead of the hashes themselves.
+ * <p>
+ * The first byte of a filter holds the number of hash functions, the remaining bytes the bits.
+ * The protocol hashes already are SHA-1 digests, so the bit positions are derived from their first
+ * eight bytes (by double hashing), without hashing them again.
+ * <p>
+ * A filter can not be enumerated, so receivers only learn which of the protocols they know (the
+ * ones registered locally, and those of the packets they send or forward) a node might support.
+ * The false positive rate is chosen by the sender; a false positive merely causes a packet to be
+ * sent to a node which forwards it instead of delivering it to an app.
+ */
+public final class ProtocolFilter {
+    /**
+     * Protocol hashes shorter than this are never contained in a filter.
+     */
+    private static final int MIN_HASH_LENGTH = 8;
+
+    private static final int MAX_HASH_FUNCTIONS = 16;
+
+    private ProtocolFilter() {
+        // Utility class
+    }
+
+    /**
+     * @param protocols the protocol hashes to add to the filter
+     * @param falsePositiveRate the desired probability of a protocol not added being contained
+     * @return the serialized filter
+     */
+    public static ByteString create(Collection<ByteBuffer> protocols, double falsePositiveRate) {
+        final int count = Math.max(1, protocols.size());
+        final double ln2 = Math.log(2);
+        final int byteCount = (int) Math.ceil(
+                -count * Math.log(falsePositiveRate) / (ln2 * ln2) / 8);
+        final int bitCount = 8 * Math.max(1, byteCount);
+        final int hashCount = Math.max(1,
+                Math.min(MAX_HASH_FUNCTIONS, (int) Math.round((double) bitCount / count * ln2)));
+
+        final byte[] filter = new byte[1 + bitCount / 8];
+        filter[0] = (byte) hashCount;
+        for (final ByteBuffer protocol : protocols) {
+            if (protocol.remaining() < MIN_HASH_LENGTH) {
+                continue;
+            }
+            final int hash1 = protocol.getInt(protocol.position());
+            final int hash2 = protocol.getInt(protocol.position() + 4);
+            for (int i = 0; i < hashCount; i++) {
+                final int bit = getBit(hash1, hash2, i, bitCount);
+                filter[1 + bit / 8] |= 1 << (bit % 8);
+            }
+        }
+        return ByteString.copyFrom(filter);
+    }
+
+    /**
+     * @param filter a serialized filter
+     * @param protocol a protocol hash
+     * @return false if the protocol is definitely not contained in the filter, true if it might be
+     */
+    public static boolean mightContain(ByteString filter, ByteBuffer protocol) {
+        final int bitCount = 8 * (filter.size() - 1);
+        if (bitCount <= 0 || protocol.remaining() < MIN_HASH_LENGTH) {
+            return false;
+        }
+
+        final int hashCount = Math.min(MAX_HASH_FUNCTIONS, filter.byteAt(0) & 0xFF);
+        final int hash1 = protocol.getInt(protocol.position());
+        final int hash2 = protocol.getInt(protocol.position() + 4);
+        for (int i = 0; i < hashCount; i++) {
+            final int bit = getBit(hash1, hash2, i, bitCount);
+            if ((filter.byteAt(1 + bit / 8) & (1 << (bit % 8))) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param node a node received in a beacon
+     * @param knownProtocols the protocol hashes to test against the node's filter, if it has one
+     * @return the protocols listed by the node, and the known protocols which might be contained
+     *         in its filter
+     */
+    public static List<ByteString> getSupportedProtocols(
+            OppNetProtos.Node node, Iterable<ByteBuffer> knownProtocols) {
+        if (!node.hasProtocolFilter()) {
+            return node.getProtocolsList();
+        }
+
+        final Set<ByteString> protocols = new HashSet<>(node.getProtocolsList());
+        for (final ByteBuffer protocol : knownProtocols) {
+            if (mightContain(node.getProtocolFilter(), protocol)) {
+                protocols.add(ByteString.copyFrom(protocol.array()));
+            }
+        }
+        return new ArrayList<>(protocols);
+    }
+
+    private static int getBit(int hash1, int hash2, int index, int bitCount) {
+        // Plain double hashing repeats bit positions in small filters, so mix the result first
+        // (with the finalizer of MurmurHash3)
+        int hash = hash1 + index * hash2;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return (hash & Integer.MAX_VALUE) % bitCount;
+    }
+}
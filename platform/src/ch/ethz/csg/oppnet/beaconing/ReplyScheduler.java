@@ -0,0 +1,197 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.protobuf.OppNetProtos;
+
+import com.google.protobuf.ByteString;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Schedules the replies to received beacons, so that a beacon received by many nodes at once does
+ * not trigger as many simultaneous replies.
+ * <p>
+ * Each reply is delayed by a random backoff of up to {@link #REPLY_BACKOFF_MAX_MILLIS}. Replies to
+ * beacons received over multicast are sent to the multicast groups as well, so that the other
+ * receivers overhear them. A pending reply is suppressed when an overheard reply to the same node
+ * already lists this node as neighbor, as the node then learns about us anyway.
+ * <p>
+ * Beacons from a node to which a reply is pending, or has been sent (or suppressed) less than
+ * {@link #REPLY_AGGREGATION_WINDOW_MILLIS} ago, are answered by that reply.
+ */
+public class ReplyScheduler {
+    private static final String TAG = ReplyScheduler.class.getSimpleName();
+
+    /**
+     * The maximum time a reply is delayed.
+     */
+    protected static final int REPLY_BACKOFF_MAX_MILLIS = 500;
+
+    /**
+     * The time after a reply during which further beacons from the same node are not answered.
+     */
+    protected static final int REPLY_AGGREGATION_WINDOW_MILLIS = 2000;
+
+    private static final int MAX_REMEMBERED_REPLIES = 64;
+
+    private final BeaconingManager mBM;
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
+    private final Random mRandom = new Random();
+
+    // Pending replies, and the time of the last reply (in nanoTime), by node ID of the receiver
+    private final Map<ByteString, PendingReply> mPendingReplies = new HashMap<>();
+    private final Map<ByteString, Long> mLastReplyTimes = new HashMap<>();
+
+    public ReplyScheduler(BeaconingManager beaconingManager) {
+        mBM = beaconingManager;
+    }
+
+    /**
+     * Schedules a reply to an original beacon, unless one is already pending or has just been
+     * sent.
+     *
+     * @param beacon the received beacon
+     * @param origin the address the beacon has been received from
+     * @param overMulticast whether the beacon has been received over multicast
+     */
+    public void onOriginalBeacon(OppNetProtos.Beacon beacon, InetAddress origin,
+            boolean overMulticast) {
+        final ByteString senderId = beacon.getSender().getNodeId();
+        final long now = System.nanoTime();
+        final ScheduledExecutorService executor = mBM.mThreadPool;
+        if (executor == null) {
+            return;
+        }
+
+        final PendingReply reply;
+        synchronized (this) {
+            final PendingReply pendingReply = mPendingReplies.get(senderId);
+            if (pendingReply != null) {
+                // Answer with the most recent beacon, and overheard by as many nodes as possible
+                pendingReply.mBeacon = beacon;
+                pendingReply.mMulticast |=
+                        overMulticast && beacon.getSender().getMulticastCapable();
+                mMetrics.onReplyAggregated();
+                return;
+            }
+
+            final Long lastReplyTime = mLastReplyTimes.get(senderId);
+            if (lastReplyTime != null && now - lastReplyTime
+                    < TimeUnit.MILLISECONDS.toNanos(REPLY_AGGREGATION_WINDOW_MILLIS)) {
+                mMetrics.onReplyAggregated();
+                return;
+            }
+
+            reply = new PendingReply(senderId, beacon, origin,
+                    overMulticast && beacon.getSender().getMulticastCapable());
+            mPendingReplies.put(senderId, reply);
+        }
+
+        executor.schedule(reply, mRandom.nextInt(REPLY_BACKOFF_MAX_MILLIS), TimeUnit.MILLISECONDS);
+        mMetrics.onReplyScheduled();
+    }
+
+    /**
+     * Suppresses the pending reply to the same node, if the overheard reply lists this node.
+     *
+     * @param reply a received reply
+     * @param ownNodeId our own node ID
+     */
+    public void onReplyOverheard(OppNetProtos.Beacon reply, ByteString ownNodeId) {
+        final ByteString receiverId = reply.getReplyTo();
+        synchronized (this) {
+            if (!mPendingReplies.containsKey(receiverId)) {
+                return;
+            }
+        }
+
+        final ByteString ownCompactId =
+                ownNodeId.substring(0, NodeIdDictionary.COMPACT_NODE_ID_LENGTH);
+        for (final OppNetProtos.Node neighbor : reply.getNeighborsList()) {
+            final ByteString neighborId = neighbor.getNodeId();
+            if (neighborId.equals(ownNodeId) || neighborId.equals(ownCompactId)) {
+                synchronized (this) {
+                    if (mPendingReplies.remove(receiverId) != null) {
+                        mLastReplyTimes.put(receiverId, System.nanoTime());
+                        mMetrics.onReplySuppressed();
+                    }
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Forgets all pending replies, e.g. because the executor they were scheduled on has been shut
+     * down.
+     */
+    public synchronized void clear() {
+        mPendingReplies.clear();
+        mLastReplyTimes.clear();
+    }
+
+    /**
+     * @return true if the reply is still pending, in which case it is not anymore afterwards
+     */
+    private synchronized boolean takePendingReply(PendingReply reply) {
+        if (mPendingReplies.get(reply.mReceiverId) != reply) {
+            return false;
+        }
+        mPendingReplies.remove(reply.mReceiverId);
+
+        final long now = System.nanoTime();
+        if (mLastReplyTimes.size() >= MAX_REMEMBERED_REPLIES) {
+            final Iterator<Long> iterator = mLastReplyTimes.values().iterator();
+            while (iterator.hasNext()) {
+                if (now - iterator.next()
+                        >= TimeUnit.MILLISECONDS.toNanos(REPLY_AGGREGATION_WINDOW_MILLIS)) {
+                    iterator.remove();
+                }
+            }
+        }
+        mLastReplyTimes.put(reply.mReceiverId, now);
+        return true;
+    }
+
+    private final class PendingReply implements Runnable {
+        private final ByteString mReceiverId;
+        private final InetAddress mOrigin;
+
+        // Updated by aggregated beacons (guarded by the ReplyScheduler)
+        private OppNetProtos.Beacon mBeacon;
+        private boolean mMulticast;
+
+        public PendingReply(ByteString receiverId, OppNetProtos.Beacon beacon, InetAddress origin,
+                boolean multicast) {
+            mReceiverId = receiverId;
+            mBeacon = beacon;
+            mOrigin = origin;
+            mMulticast = multicast;
+        }
+
+        @Override
+        public void run() {
+            final OppNetProtos.Beacon beacon;
+            final boolean multicast;
+            synchronized (ReplyScheduler.this) {
+                if (!takePendingReply(this)) {
+                    Log.v(TAG, "Dropped reply which is not pending anymore");
+                    return;
+                }
+                beacon = mBeacon;
+                multicast = mMulticast;
+            }
+
+            new UdpSender(mBM, mOrigin, beacon, multicast).run();
+            mMetrics.onReplySent();
+        }
+    }
+}
@@ -6,6 +6,7 @@ import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 
 import ch.ethz.csg.oppnet.beaconing.BeaconParser.PossibleBeacon;
+import ch.ethz.csg.oppnet.beaconing.BeaconingManager.SocketType;
 import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
 
 import java.io.IOException;
@@ -50,25 +51,25 @@ public class RfcommConnection extends InterruptibleFailsafeRunnable {
                 "Remote device %s (%s) is now connected", deviceName, deviceAddr));
 
         int length;
-        byte[] buffer = new byte[BeaconingManager.RECEIVER_BUFFER_SIZE];
+        final byte[] buffer = mBM.mBeaconBuffers.acquire();
         // Keep connection open and listen
         try {
             length = mInStream.read(buffer);
         } catch (IOException e) {
+            mBM.mBeaconBuffers.release(buffer);
             Log.d(TAG, String.format(
                     "Remote device %s (%s) has disconnected.", deviceName, deviceAddr));
             disconnect();
             return;
         }
         final long timeReceived = System.currentTimeMillis() / 1000;
+        BeaconMetrics.getInstance().onPacketReceived(SocketType.RFCOMM);
 
         // Reply with beacon, if the remote device initiated the connection
         if (!mIsInitiator) {
             final byte[] reply = mBM.mBeaconBuilder.buildBeacon(
                     mBM.mNetManager.getWifiState(),
-                    mBM.mNetManager.getCurrentConnection(),
-                    mBM.mProtocolRegistry.getAllProtocolImplementations().keySet(),
-                    mBM.mDbController.getNeighbors(BeaconingManager.getCurrentTimestamp()));
+                    mBM.mNetManager.getCurrentConnection());
 
             try {
                 mOutStream.write(reply);
@@ -81,8 +82,13 @@ public class RfcommConnection extends InterruptibleFailsafeRunnable {
         PossibleBeacon possibleBeacon = PossibleBeacon.from(
                 buffer, length, timeReceived,
                 mSocket.getRemoteDevice().getAddress(),
-                mBM.mMasterIdentity);
-        mBM.mBeaconParser.addProcessableBeacon(possibleBeacon);
+                mBM.mBeaconBuffers, mBM.mMasterIdentity);
+        if (possibleBeacon != null) {
+            mBM.onBeaconReceived(possibleBeacon);
+        } else {
+            BeaconMetrics.getInstance().onPacketRejected();
+            mBM.mBeaconBuffers.release(buffer);
+        }
 
         // Close socket
         disconnect();
@@ -95,9 +101,7 @@ public class RfcommConnection extends InterruptibleFailsafeRunnable {
             // Send initial beacon
             final byte[] beacon = mBM.mBeaconBuilder.buildBeacon(
                     mBM.mNetManager.getWifiState(),
-                    mBM.mNetManager.getCurrentConnection(),
-                    mBM.mProtocolRegistry.getAllProtocolImplementations().keySet(),
-                    mBM.mDbController.getNeighbors(BeaconingManager.getCurrentTimestamp()));
+                    mBM.mNetManager.getCurrentConnection());
 
             mOutStream.write(beacon);
         } catch (IOException e) {
@@ -2,9 +2,7 @@
 package ch.ethz.csg.oppnet.beaconing;
 
 import android.bluetooth.BluetoothDevice;
-import android.database.Cursor;
 
-import ch.ethz.csg.oppnet.data.FullContract.Neighbors;
 import ch.ethz.csg.oppnet.lib.data.Neighbor;
 import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
 
@@ -23,26 +21,14 @@ public class RfcommSender extends InterruptibleFailsafeRunnable {
 
     @Override
     public void execute() {
-        // Get recent neighbors with a bluetooth address from content provider
+        // Get recent neighbors with a bluetooth address from the neighbor table
         final Set<BluetoothDevice> recentNeighbors = new HashSet<>();
-        final Cursor recentNeighborCursor =
-                mBM.mDbController.getNeighborsCursor(BeaconingManager.getRecentTimestamp());
-        final int colIdxBtAddr =
-                recentNeighborCursor.getColumnIndexOrThrow(Neighbors.COLUMN_BLUETOOTH);
-
-        while (recentNeighborCursor.moveToNext()) {
+        for (final Neighbor neighbor : mBM.mNeighborTable.getRecentNeighbors()) {
             // We're only interested in neighbors of which we know a bluetooth address
-            if (recentNeighborCursor.isNull(colIdxBtAddr)) {
-                // NOTE: In this cursor, one neighbor may be represented by multiple rows (when
-                // they implement multiple protocols). As the rows are ordered by neighbor by
-                // default, this condition here makes sure to skip *all* rows associated to one
-                // single neighbor lacking a bluetooth address (it won't be set on *any* of its
-                // rows).
+            if (!neighbor.hasBluetoothAddress()) {
                 continue;
             }
 
-            // At this point, we're sure that the neighbor has a bluetooth address stored
-            final Neighbor neighbor = Neighbor.fromCursor(recentNeighborCursor);
             final BluetoothDevice btDevice =
                     mBM.mNetManager.getBluetoothDevice(neighbor.getBluetoothAddress());
 
@@ -50,7 +36,6 @@ public class RfcommSender extends InterruptibleFailsafeRunnable {
                 recentNeighbors.add(btDevice);
             }
         }
-        recentNeighborCursor.close();
 
         // Try to connect to each of the recent neighbors
         for (BluetoothDevice btDevice : recentNeighbors) {
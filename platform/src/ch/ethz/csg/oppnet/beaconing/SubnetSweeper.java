@@ -0,0 +1,216 @@
+
+package ch.ethz.csg.oppnet.beaconing;
+
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.network.Ip4Subnet;
+import ch.ethz.csg.oppnet.network.WifiConnection;
+
+import com.google.common.base.Optional;
+
+import java.net.DatagramPacket;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends beacons to the hosts of the current IPv4 subnet via unicast, to find neighbors in public
+ * networks which filter multicast traffic.
+ * <p>
+ * A sweep first probes the addresses which have answered sweeps in the same network before (those
+ * behind the current access point first), and then the next block of at most
+ * {@link #MAX_SWEEP_HOSTS_PER_ROUND} hosts of the subnet. Subnets larger than a /24 are thereby
+ * covered over several rounds, starting with the block around the own address. The beacons are
+ * paced to {@link #SWEEP_RATE_PER_SECOND}, so that a sweep does not flood the access point and
+ * overflow the send buffer of the interface; the rate is halved whenever a send fails.
+ * <p>
+ * Responders are collected in memory as their beacons arrive, and written to the database in one
+ * batch at the start of the next sweep.
+ */
+public class SubnetSweeper {
+    private static final String TAG = SubnetSweeper.class.getSimpleName();
+
+    /**
+     * Maximum number of beacons sent per second during a sweep.
+     */
+    protected static final int SWEEP_RATE_PER_SECOND = 50;
+
+    /**
+     * Minimum number of beacons sent per second, even after repeated send failures.
+     */
+    protected static final int MIN_SWEEP_RATE_PER_SECOND = 5;
+
+    /**
+     * Maximum number of subnet hosts probed per sweep (not counting known responders).
+     */
+    protected static final int MAX_SWEEP_HOSTS_PER_ROUND = 254;
+
+    /**
+     * Maximum number of known responders probed first in each sweep.
+     */
+    protected static final int MAX_KNOWN_RESPONDERS = 64;
+
+    /**
+     * Time after which a responder is forgotten if it has not been seen again.
+     */
+    protected static final long RESPONDER_MAX_AGE_SECONDS = TimeUnit.DAYS.toSeconds(7);
+
+    private final BeaconingManager mBM;
+
+    // Index of the next host to probe, per network
+    private final Map<String, Integer> mNextHostIndex = new HashMap<>();
+
+    // Network of the last sweep, and responders seen in it which are not persisted yet
+    private String mSweptNetwork;
+    private String mSweptBssid;
+    private Ip4Subnet mSweptSubnet;
+    private final Set<Inet4Address> mPendingResponders = new HashSet<>();
+
+    public SubnetSweeper(BeaconingManager beaconingManager) {
+        mBM = beaconingManager;
+    }
+
+    /**
+     * Records the sender of a beacon as responder, if it is part of the last swept subnet.
+     *
+     * @param origin the IPv4 address the beacon has been received from
+     */
+    public void onBeaconFrom(byte[] origin) {
+        final Inet4Address address;
+        try {
+            address = (Inet4Address) InetAddress.getByAddress(origin);
+        } catch (UnknownHostException | ClassCastException e) {
+            return;
+        }
+
+        synchronized (this) {
+            if (mSweptSubnet != null && mSweptSubnet.contains(address)) {
+                mPendingResponders.add(address);
+            }
+        }
+    }
+
+    /**
+     * Sends the beacon to the known responders and the next block of hosts of the current subnet.
+     * Blocks until all beacons are sent, or until the calling thread is interrupted.
+     *
+     * @param beaconData the framed beacon to send
+     * @param connection the current WiFi connection
+     * @return the number of beacons sent
+     */
+    public int sweep(byte[] beaconData, WifiConnection connection) {
+        final Optional<Ip4Subnet> subnet = mBM.mNetManager.getIp4Subnet();
+        if (!subnet.isPresent() || !connection.getNetworkName().isPresent()) {
+            return 0;
+        }
+
+        final String network = connection.getNetworkName().get();
+        final String bssid = connection.getBssid().or("");
+        final List<Inet4Address> targets = prepareSweep(network, bssid, subnet.get());
+
+        final DatagramPacket packet = new DatagramPacket(beaconData, beaconData.length);
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / SWEEP_RATE_PER_SECOND;
+        long nextSendNanos = System.nanoTime();
+        int sentCount = 0;
+        for (final Inet4Address target : targets) {
+            final long waitNanos = nextSendNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+
+            packet.setSocketAddress(
+                    new InetSocketAddress(target, BeaconingManager.RECEIVER_PORT_UNICAST));
+            if (mBM.mSendChannel.send(packet, connection.getWifiInterface())) {
+                sentCount++;
+            } else {
+                // Most likely the send buffer is full, so slow down
+                intervalNanos = Math.min(
+                        2 * intervalNanos,
+                        TimeUnit.SECONDS.toNanos(1) / MIN_SWEEP_RATE_PER_SECOND);
+            }
+            nextSendNanos += intervalNanos;
+        }
+
+        Log.v(TAG, String.format("Swept %d of %d targets in %s (%s)",
+                sentCount, targets.size(), network, subnet.get()));
+        return sentCount;
+    }
+
+    private List<Inet4Address> prepareSweep(String network, String bssid, Ip4Subnet subnet) {
+        final long now = System.currentTimeMillis() / 1000;
+        final int hostCount = subnet.getHostCount();
+        final int ownIndex = subnet.getOwnHostIndex();
+        final int sweptCount = Math.min(hostCount, MAX_SWEEP_HOSTS_PER_ROUND);
+        final int startIndex;
+
+        synchronized (this) {
+            persistPendingResponders(now);
+            mSweptNetwork = network;
+            mSweptBssid = bssid;
+            mSweptSubnet = subnet;
+
+            final Integer nextIndex = mNextHostIndex.get(network);
+            if (nextIndex == null || nextIndex >= hostCount) {
+                // Start with the block around the own address
+                startIndex = Math.max(0, ownIndex)
+                        / MAX_SWEEP_HOSTS_PER_ROUND * MAX_SWEEP_HOSTS_PER_ROUND;
+            } else {
+                startIndex = nextIndex;
+            }
+            mNextHostIndex.put(network, (startIndex + sweptCount) % Math.max(1, hostCount));
+        }
+
+        // Known responders first, then the next block of the subnet
+        final Set<Inet4Address> targets = new LinkedHashSet<>();
+        for (final Inet4Address responder : mBM.mDbController.getSweepResponders(
+                network, bssid, now - RESPONDER_MAX_AGE_SECONDS, MAX_KNOWN_RESPONDERS)) {
+            if (subnet.contains(responder)) {
+                targets.add(responder);
+            }
+        }
+        final int knownCount = targets.size();
+
+        for (int i = 0; i < sweptCount; i++) {
+            final int hostIndex = (startIndex + i) % hostCount;
+            if (hostIndex != ownIndex) {
+                targets.add(subnet.getHost(hostIndex));
+            }
+        }
+        if (ownIndex >= 0 && ownIndex < hostCount) {
+            // A stale responder entry might point to ourselves
+            targets.remove(subnet.getHost(ownIndex));
+        }
+
+        Log.v(TAG, String.format("Sweeping %d known responders and %d hosts starting at #%d",
+                knownCount, sweptCount, startIndex));
+        return new ArrayList<>(targets);
+    }
+
+    private void persistPendingResponders(long now) {
+        if (mSweptNetwork == null || mPendingResponders.isEmpty()) {
+            return;
+        }
+        mBM.mDbController.insertSweepResponders(
+                mSweptNetwork, mSweptBssid, mPendingResponders, now);
+        mPendingResponders.clear();
+
+        final int expiredCount =
+                mBM.mDbController.deleteExpiredSweepResponders(now - RESPONDER_MAX_AGE_SECONDS);
+        if (expiredCount > 0) {
+            Log.v(TAG, "Forgot " + expiredCount + " expired sweep responders");
+        }
+    }
+}
@@ -7,47 +7,50 @@ import com.google.common.base.Optional;
 
 import ch.ethz.csg.oppnet.beaconing.BeaconParser.PossibleBeacon;
 import ch.ethz.csg.oppnet.beaconing.BeaconingManager.SocketType;
+import ch.ethz.csg.oppnet.network.UdpSelectorLoop;
 import ch.ethz.csg.oppnet.network.WifiConnection;
 import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
 
 import java.io.IOException;
 import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
-import java.net.SocketTimeoutException;
-
-public abstract class UdpReceiver extends InterruptibleFailsafeRunnable {
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receives beacons over WiFi. Unicast beacons are received on the shared {@link UdpSelectorLoop},
+ * while multicast beacons still need a dedicated thread: joining a multicast group with a
+ * {@link java.nio.channels.DatagramChannel} is not supported by the Android versions we target.
+ */
+public abstract class UdpReceiver {
     public static final String TAG = "WifiReceiver";
 
-    /**
-     * The first two bytes of a "Multicast DNS" packet. OppNet sends beacons to the multicast groups
-     * defined in the mDNS standard, so we might also receive actual mDNS packets, although our own
-     * beacon format is different (and never starts with the same header bytes).
-     */
-    private static final byte[] MDNS_HEAD = {
-            0x00, 0x00
-    };
-
-    private final BeaconingManager mBM;
+    protected final BeaconingManager mBM;
 
     private final SocketType mSocketType;
-    private final DatagramSocket mSocket;
 
-    public UdpReceiver(BeaconingManager context, SocketType socketType) throws IOException {
-        super(TAG);
+    public UdpReceiver(BeaconingManager context, SocketType socketType) {
         mBM = context;
         mSocketType = socketType;
-        mSocket = createSocket();
     }
 
-    protected abstract DatagramSocket createSocket() throws IOException;
+    /**
+     * Starts receiving beacons.
+     *
+     * @throws IOException if the socket could not be created
+     */
+    public abstract void start() throws IOException;
+
+    /**
+     * Stops receiving beacons immediately and closes the socket.
+     */
+    public abstract void stop();
 
-    private boolean isOwnPacket(DatagramPacket packet, WifiConnection connection) {
-        final InetAddress senderAddress = packet.getAddress();
+    private boolean isOwnPacket(InetAddress senderAddress, WifiConnection connection) {
         if (senderAddress instanceof Inet4Address && connection.hasIp4Address()) {
             return senderAddress.equals(connection.getIp4Address().get());
         } else if (senderAddress instanceof Inet6Address && connection.hasIp6Address()) {
@@ -56,86 +59,142 @@ public abstract class UdpReceiver extends InterruptibleFailsafeRunnable {
         return false;
     }
 
-    @Override
-    protected void execute() {
-        // Start receiving beacons
-        byte[] buffer = new byte[BeaconingManager.RECEIVER_BUFFER_SIZE];
-        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-        while (!mThread.isInterrupted()) {
-            // Android sometimes limits the incoming packet size to the previously received
-            // packet size. The following call circumvents this problem.
-            packet.setData(buffer);
-
-            final WifiConnection wifiConnection;
-            try {
-                mSocket.receive(packet);
-                Optional<WifiConnection> conn = mBM.mNetManager.getCurrentConnection();
-                if (!conn.isPresent()) {
-                    // The wifi is disconnected, stop listening
-                    break;
-                }
-                wifiConnection = conn.get();
-            } catch (SocketTimeoutException e) {
-                // No beacon received, try again
-                continue;
-            } catch (IOException e) {
-                Log.e(TAG, "Error while receiving beacon, aborting.", e);
-                break;
-            }
-            final long timeReceived = System.currentTimeMillis() / 1000;
-
-            // Skip if packet is empty, from ourselves or real mDNS
-            if (packet.getLength() == 0
-                    || isOwnPacket(packet, wifiConnection)
-                    || (packet.getData()[0] == MDNS_HEAD[0] && packet.getData()[1] == MDNS_HEAD[1])) {
-                continue;
-            }
+    /**
+     * Filters a received datagram and hands it to the beacon parser if it might be a beacon.
+     * <p>
+     * This method takes over the buffer, which has been acquired from the beacon buffer pool:
+     * Either it is passed on to the parser, or released right away.
+     *
+     * @param buffer the buffer holding the payload of the datagram, starting at offset 0
+     * @param length the length of the payload
+     * @param senderAddress the address the datagram has been sent from
+     */
+    protected void onPacketReceived(byte[] buffer, int length, InetAddress senderAddress) {
+        final long timeReceived = System.currentTimeMillis() / 1000;
+        BeaconMetrics.getInstance().onPacketReceived(mSocketType);
+
+        final Optional<WifiConnection> conn = mBM.mNetManager.getCurrentConnection();
+        if (!conn.isPresent()) {
+            // The wifi is disconnected, the connectivity listener will stop the receivers
+            mBM.mBeaconBuffers.release(buffer);
+            return;
+        }
+        final WifiConnection wifiConnection = conn.get();
 
-            // Decode packet
-            final PossibleBeacon possibleBeacon = PossibleBeacon.from(
-                    packet, timeReceived, wifiConnection.getNetworkName().get(),
-                    mSocketType, mBM.mMasterIdentity);
+        // Skip if packet is from ourselves
+        if (isOwnPacket(senderAddress, wifiConnection)) {
+            mBM.mBeaconBuffers.release(buffer);
+            return;
+        }
 
-            mBM.onBeaconReceived(possibleBeacon);
+        // Decode packet. OppNet sends beacons to the multicast groups defined in the mDNS
+        // standard, so we also receive actual mDNS packets: the framing header rejects them.
+        final PossibleBeacon possibleBeacon = PossibleBeacon.from(
+                buffer, length, senderAddress, timeReceived,
+                wifiConnection.getNetworkName().get(), mSocketType,
+                mBM.mBeaconBuffers, mBM.mMasterIdentity);
+        if (possibleBeacon == null) {
+            BeaconMetrics.getInstance().onPacketRejected();
+            mBM.mBeaconBuffers.release(buffer);
+            return;
         }
 
-        // destroy socket
-        mSocket.close();
+        mBM.onBeaconReceived(possibleBeacon);
     }
 
     // IMPLEMENTATIONS
 
     public static class UdpMulticastReceiver extends UdpReceiver {
+        private final MulticastSocket mSocket;
+        private final ReceiveThread mReceiveThread = new ReceiveThread();
+
         public UdpMulticastReceiver(BeaconingManager context) throws IOException {
             super(context, SocketType.MULTICAST);
+
+            mSocket = new MulticastSocket(null);
+            mSocket.setReuseAddress(true);
+            mSocket.bind(new InetSocketAddress(BeaconingManager.RECEIVER_PORT_MULTICAST));
+
+            for (InetAddress multicastGroup : BeaconingManager.MULTICAST_GROUPS) {
+                mSocket.joinGroup(multicastGroup);
+            }
         }
 
         @Override
-        protected DatagramSocket createSocket() throws IOException {
-            MulticastSocket socket = new MulticastSocket(null);
-            socket.setSoTimeout(BeaconingManager.RECEIVER_SOCKET_TIMEOUT);
-            socket.setReuseAddress(true);
-            socket.bind(new InetSocketAddress(BeaconingManager.RECEIVER_PORT_MULTICAST));
+        public void start() {
+            mBM.mThreadPool.execute(mReceiveThread);
+        }
 
-            for (InetAddress multicastGroup : BeaconingManager.MULTICAST_GROUPS) {
-                socket.joinGroup(multicastGroup);
+        @Override
+        public void stop() {
+            mReceiveThread.interrupt();
+            // Closing the socket unblocks the receiving thread right away
+            mSocket.close();
+        }
+
+        private class ReceiveThread extends InterruptibleFailsafeRunnable {
+            public ReceiveThread() {
+                super(TAG);
+            }
+
+            @Override
+            protected void execute() {
+                // Start receiving beacons
+                final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+                while (!mThread.isInterrupted()) {
+                    // Receive directly into a pooled buffer, which is handed on to the parser.
+                    // Setting the data also circumvents Android limiting the incoming packet size
+                    // to the previously received packet size.
+                    final byte[] buffer = mBM.mBeaconBuffers.acquire();
+                    packet.setData(buffer);
+
+                    try {
+                        mSocket.receive(packet);
+                    } catch (IOException e) {
+                        mBM.mBeaconBuffers.release(buffer);
+                        if (!mSocket.isClosed()) {
+                            Log.e(TAG, "Error while receiving beacon, aborting.", e);
+                        }
+                        break;
+                    }
+
+                    onPacketReceived(buffer, packet.getLength(), packet.getAddress());
+                }
+
+                // destroy socket
+                mSocket.close();
             }
-            return socket;
         }
     }
 
-    public static class UdpUnicastReceiver extends UdpReceiver {
-        public UdpUnicastReceiver(BeaconingManager context) throws IOException {
+    public static class UdpUnicastReceiver extends UdpReceiver
+            implements UdpSelectorLoop.DatagramHandler {
+        private DatagramChannel mChannel;
+
+        public UdpUnicastReceiver(BeaconingManager context) {
             super(context, SocketType.UNICAST);
         }
 
         @Override
-        protected DatagramSocket createSocket() throws IOException {
-            DatagramSocket socket = new DatagramSocket(null);
-            socket.setSoTimeout(BeaconingManager.RECEIVER_SOCKET_TIMEOUT);
-            socket.setReuseAddress(true);
-            socket.bind(new InetSocketAddress(BeaconingManager.RECEIVER_PORT_UNICAST));
-            return socket;
+        public void start() throws IOException {
+            mChannel = mBM.mReceiveLoop.register(BeaconingManager.RECEIVER_PORT_UNICAST, this);
+        }
+
+        @Override
+        public void stop() {
+            if (mChannel != null) {
+                mBM.mReceiveLoop.unregister(mChannel);
+                mChannel = null;
+            }
+        }
+
+        @Override
+        public void onDatagramReceived(ByteBuffer data, InetSocketAddress source) {
+            // The selector buffer is reused for the next datagram, so copy into a pooled buffer
+            final int length = data.remaining();
+            final byte[] buffer = mBM.mBeaconBuffers.acquire(length);
+            data.get(buffer, 0, length);
+            onPacketReceived(buffer, length, source.getAddress());
         }
     }
 }
@@ -11,13 +11,9 @@ import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
 
 import com.google.common.base.Optional;
 
-import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.MulticastSocket;
-import java.net.NetworkInterface;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
@@ -28,35 +24,33 @@ public class UdpSender extends InterruptibleFailsafeRunnable {
     private final BeaconingManager mBM;
     private final boolean mPerformSubnetSweep;
     private final int mBurstSize;
-    private final byte mApLikelihood;
 
     private final InetAddress mReplyTo;
     private final OppNetProtos.Beacon mReceivedBeacon;
-
-    private MulticastSocket mSocket;
+    private final boolean mMulticastReply;
 
     public UdpSender(BeaconingManager context, InetAddress replyTo,
-            OppNetProtos.Beacon receivedBeacon, int apLikelihood) {
+            OppNetProtos.Beacon receivedBeacon, boolean multicastReply) {
 
         super(TAG);
         mBM = context;
         mPerformSubnetSweep = false;
         mBurstSize = 1;
-        mApLikelihood = (byte) (apLikelihood & 0xFF);
 
         mReplyTo = replyTo;
         mReceivedBeacon = receivedBeacon;
+        mMulticastReply = multicastReply;
     }
 
-    public UdpSender(BeaconingManager context, boolean subnetSweep, int burstSize, int apLikelihood) {
+    public UdpSender(BeaconingManager context, boolean subnetSweep, int burstSize) {
         super(TAG);
         mBM = context;
         mPerformSubnetSweep = subnetSweep;
         mBurstSize = burstSize;
-        mApLikelihood = (byte) (apLikelihood & 0xFF);
 
         mReplyTo = null;
         mReceivedBeacon = null;
+        mMulticastReply = false;
     }
 
     @Override
@@ -71,12 +65,16 @@ public class UdpSender extends InterruptibleFailsafeRunnable {
 
         // Build receiver list
         final List<InetSocketAddress> receivers = new ArrayList<>();
-        final Set<Neighbor> neighbors =
-                mBM.mDbController.getNeighbors(BeaconingManager.getCurrentTimestamp());
+        final Set<Neighbor> neighbors = mBM.mNeighborTable.getCurrentNeighbors();
 
         if (mReplyTo != null) {
-            receivers.add(new InetSocketAddress(
-                    mReplyTo, BeaconingManager.RECEIVER_PORT_UNICAST));
+            if (mMulticastReply) {
+                // Let the other receivers of the original beacon overhear the reply
+                addMulticastTargets(receivers);
+            } else {
+                receivers.add(new InetSocketAddress(
+                        mReplyTo, BeaconingManager.RECEIVER_PORT_UNICAST));
+            }
         } else {
             switch (wifiState) {
                 case OPPNET_AP: {
@@ -95,9 +93,6 @@ public class UdpSender extends InterruptibleFailsafeRunnable {
                     // Send beacon to all neighbors (using unicast) and all multicast groups
                     addNeighborsAsUnicastTargets(receivers, neighbors);
                     addMulticastTargets(receivers);
-                    if (mPerformSubnetSweep) {
-                        addUnicastSweepTargets(receivers);
-                    }
                     break;
                 }
                 default: {
@@ -111,29 +106,17 @@ public class UdpSender extends InterruptibleFailsafeRunnable {
         }
 
         // Build beacon
-        final Set<ByteBuffer> protocols =
-                mBM.mProtocolRegistry.getAllProtocolImplementations().keySet();
-
         final byte[] beaconData;
         if (mReplyTo != null) {
-            beaconData = mBM.mBeaconBuilder.buildReply(
-                    wifiState, wifiConnection, protocols, neighbors, mReceivedBeacon);
+            beaconData = mBM.mBeaconBuilder.buildReply(wifiState, wifiConnection, mReceivedBeacon);
         } else if (wifiState.equals(WifiState.STA_ON_OPPNET_AP)) {
             beaconData = mBM.mBeaconBuilder.buildBeacon(
-                    wifiState, wifiConnection, protocols, mApLikelihood);
+                    wifiState, wifiConnection, mBM.mApElection.getApLikelihood());
         } else {
-            beaconData = mBM.mBeaconBuilder.buildBeacon(
-                    wifiState, wifiConnection, protocols, neighbors);
-        }
-
-        // Create socket and send data
-        try {
-            mSocket = createSocket(connection.getWifiInterface());
-        } catch (IOException e) {
-            Log.e(TAG, "Could not create socket to send beacon:", e);
-            return;
+            beaconData = mBM.mBeaconBuilder.buildDeltaBeacon(wifiState, wifiConnection);
         }
 
+        // Send data over the shared channel
         final DatagramPacket packet = new DatagramPacket(beaconData, beaconData.length);
         for (InetSocketAddress receiver : receivers) {
             if (mThread.isInterrupted()) {
@@ -141,29 +124,25 @@ public class UdpSender extends InterruptibleFailsafeRunnable {
             }
 
             packet.setSocketAddress(receiver);
-            try {
-                for (int i = 0; i < mBurstSize; i++) {
-                    mSocket.send(packet);
+            for (int i = 0; i < mBurstSize; i++) {
+                if (!mBM.mSendChannel.send(packet, connection.getWifiInterface())) {
+                    Log.e(TAG, "Could not send beacon to " + receiver);
+                    break;
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "Could not create socket to send beacon to " + receiver);
             }
         }
 
-        mSocket.close();
         Log.v(TAG, String.format(
                 "Sent %d beacons (size: %d bytes) to %d receivers",
                 mBurstSize, beaconData.length, receivers.size()));
-    }
 
-    private MulticastSocket createSocket(NetworkInterface wifiInterface) throws IOException {
-        final MulticastSocket socket = new MulticastSocket(null);
-        socket.setSoTimeout(5000);
-        socket.setReuseAddress(true);
-        socket.setLoopbackMode(true);
-        socket.setBroadcast(true);
-        socket.setNetworkInterface(wifiInterface);
-        return socket;
+        if (mPerformSubnetSweep && mReplyTo == null
+                && wifiState.equals(WifiState.STA_ON_PUBLIC_AP) && !mThread.isInterrupted()) {
+            // Paced, so this takes a while: do it after the regular receivers got their beacon.
+            // The probed hosts have not received the last full list, so a delta is of no use.
+            mBM.mSubnetSweeper.sweep(
+                    mBM.mBeaconBuilder.buildFullListBeacon(wifiState, wifiConnection), connection);
+        }
     }
 
     private void addNeighborsAsUnicastTargets(
@@ -177,12 +156,6 @@ public class UdpSender extends InterruptibleFailsafeRunnable {
         }
     }
 
-    private void addUnicastSweepTargets(List<InetSocketAddress> receivers) {
-        for (InetAddress addr : mBM.mNetManager.getIp4SweepRange()) {
-            receivers.add(new InetSocketAddress(addr, BeaconingManager.RECEIVER_PORT_UNICAST));
-        }
-    }
-
     private void addMulticastTargets(List<InetSocketAddress> receivers) {
         for (InetAddress multicastGroup : BeaconingManager.MULTICAST_GROUPS) {
             receivers.add(new InetSocketAddress(
@@ -0,0 +1,135 @@
+
+package ch.ethz.csg.oppnet.core;
+
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.beaconing.BeaconMetrics;
+import ch.ethz.csg.oppnet.core.Policy.BeaconingInterval;
+import ch.ethz.csg.oppnet.lib.data.Neighbor;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Adapts the interval between two beaconing rounds to how quickly the neighborhood changes.
+ * <p>
+ * After each round, the neighbors seen in it are compared to the ones seen in the previous round.
+ * If many neighbors arrived or departed in between, new contacts are likely missed while sleeping,
+ * so the interval is halved. If the neighborhood stayed the same, more frequent rounds would not
+ * discover anything new, so the interval is doubled. Packets waiting to be sent prevent the
+ * interval from growing, and let it shrink on moderate changes already, as every missed contact
+ * delays their delivery.
+ * <p>
+ * The interval always stays within the bounds of the policy's {@link BeaconingInterval}, and is
+ * reset to its default whenever the policy changes. Each decision is logged and recorded in the
+ * {@link BeaconMetrics}, to weigh the energy spent on rounds against the contacts discovered.
+ */
+public class AdaptiveBeaconingInterval {
+    private static final String TAG = AdaptiveBeaconingInterval.class.getSimpleName();
+
+    /**
+     * The number of neighbor arrivals and departures per minute from which the interval is
+     * shortened.
+     */
+    protected static final double HIGH_CHURN_PER_MINUTE = 0.5;
+
+    /**
+     * The number of neighbor arrivals and departures per minute below which the interval is
+     * lengthened, unless packets are waiting to be sent.
+     */
+    protected static final double LOW_CHURN_PER_MINUTE = 0.05;
+
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
+
+    private BeaconingInterval mBounds = BeaconingInterval.OFF;
+    private int mIntervalMillis = BeaconingInterval.OFF.getIntervalMillis();
+
+    // The neighbors seen in the previous round, or null if there has been none yet
+    private Set<ByteBuffer> mLastNeighbors;
+    private long mLastRoundMillis;
+
+    /**
+     * @param bounds the beaconing interval of the current policy
+     * @return the adapted interval until the next beaconing round
+     */
+    public synchronized int getIntervalMillis(BeaconingInterval bounds) {
+        if (bounds != mBounds) {
+            reset(bounds);
+        }
+        return mIntervalMillis;
+    }
+
+    /**
+     * Adapts the interval after a completed beaconing round.
+     *
+     * @param bounds the beaconing interval of the current policy
+     * @param roundNeighbors the neighbors seen during the round
+     * @param queuedPacketCount the number of packets waiting to be sent
+     */
+    public synchronized void onRoundFinished(
+            BeaconingInterval bounds, Set<Neighbor> roundNeighbors, long queuedPacketCount) {
+        if (bounds != mBounds) {
+            reset(bounds);
+        }
+        if (bounds == BeaconingInterval.OFF) {
+            return;
+        }
+
+        final long now = System.currentTimeMillis();
+        final Set<ByteBuffer> neighbors = new HashSet<>();
+        for (final Neighbor neighbor : roundNeighbors) {
+            neighbors.add(ByteBuffer.wrap(neighbor.getNodeId()));
+        }
+
+        final Set<ByteBuffer> lastNeighbors = mLastNeighbors;
+        final long lastRoundMillis = mLastRoundMillis;
+        mLastNeighbors = neighbors;
+        mLastRoundMillis = now;
+        if (lastNeighbors == null) {
+            // Nothing to compare with yet
+            mMetrics.onBeaconingIntervalDecision(
+                    mIntervalMillis, 0, neighbors.size(), 0, queuedPacketCount);
+            return;
+        }
+
+        int arrivals = 0;
+        for (final ByteBuffer neighbor : neighbors) {
+            if (!lastNeighbors.contains(neighbor)) {
+                arrivals++;
+            }
+        }
+        int departures = 0;
+        for (final ByteBuffer neighbor : lastNeighbors) {
+            if (!neighbors.contains(neighbor)) {
+                departures++;
+            }
+        }
+
+        final double minutes = Math.max(1, now - lastRoundMillis) / (60 * 1000.0);
+        final double churnPerMinute = (arrivals + departures) / minutes;
+
+        final int oldIntervalMillis = mIntervalMillis;
+        if (churnPerMinute >= HIGH_CHURN_PER_MINUTE
+                || (queuedPacketCount > 0 && churnPerMinute >= LOW_CHURN_PER_MINUTE)) {
+            mIntervalMillis = Math.max(bounds.getMinIntervalMillis(), mIntervalMillis / 2);
+        } else if (churnPerMinute < LOW_CHURN_PER_MINUTE && queuedPacketCount == 0) {
+            mIntervalMillis = Math.min(bounds.getMaxIntervalMillis(), mIntervalMillis * 2);
+        }
+
+        Log.d(TAG, String.format(
+                "Beaconing interval %d -> %d s (%d arrivals, %d departures in %.1f min,"
+                        + " %d packets queued)",
+                oldIntervalMillis / 1000, mIntervalMillis / 1000, arrivals, departures, minutes,
+                queuedPacketCount));
+        mMetrics.onBeaconingIntervalDecision(mIntervalMillis,
+                Integer.signum(mIntervalMillis - oldIntervalMillis),
+                arrivals, departures, queuedPacketCount);
+    }
+
+    private void reset(BeaconingInterval bounds) {
+        mBounds = bounds;
+        mIntervalMillis = bounds.getIntervalMillis();
+        mLastNeighbors = null;
+    }
+}
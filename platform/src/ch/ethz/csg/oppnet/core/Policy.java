@@ -173,43 +173,91 @@ public enum Policy {
          * No periodic beaconing. Beacons are only sent upon network changes or answering to other
          * beacons.
          */
-        OFF(-1),
+        OFF(-1, 0, 0),
         /**
          * Periodic beaconing every 10 minutes. Lets the platform sleep the longest, therefore
-         * saving the most power.
+         * saving the most power. Adapts between 2.5 and 20 minutes.
          */
-        SLOW(10),
+        SLOW(10, 2, 1),
         /**
-         * Periodic beaconing every 5 minutes. Trades power consumption for connectivity.
+         * Periodic beaconing every 5 minutes. Trades power consumption for connectivity. Adapts
+         * between 2.5 and 10 minutes.
          */
-        MEDIUM(5),
+        MEDIUM(5, 1, 1),
         /**
-         * Periodic beaconing every 2 minutes. Platform will rarely be able to sleep.
+         * Periodic beaconing every 2 minutes. Platform will rarely be able to sleep. Adapts
+         * between 1 and 4 minutes.
          */
-        FAST(2);
+        FAST(2, 1, 1);
 
         private final int mInterval;
+        private final int mMinInterval;
+        private final int mMaxInterval;
 
-        private BeaconingInterval(int minutes) {
+        /**
+         * @param minutes the default interval
+         * @param halvings how many times the interval may be halved when adapted
+         * @param doublings how many times the interval may be doubled when adapted
+         */
+        private BeaconingInterval(int minutes, int halvings, int doublings) {
             mInterval = Math.max(-1, minutes * 60 * 1000);
+            mMinInterval = (mInterval > 0 ? mInterval >> halvings : mInterval);
+            mMaxInterval = (mInterval > 0 ? mInterval << doublings : mInterval);
         }
 
         public int getIntervalMillis() {
             return mInterval;
         }
 
+        /**
+         * @return the shortest interval the {@link AdaptiveBeaconingInterval} may choose
+         */
+        public int getMinIntervalMillis() {
+            return mMinInterval;
+        }
+
+        /**
+         * @return the longest interval the {@link AdaptiveBeaconingInterval} may choose
+         */
+        public int getMaxIntervalMillis() {
+            return mMaxInterval;
+        }
+
         /**
          * Calculates the start timestamp for the next beaconing period.
+         * <p>
+         * The periods of all nodes are aligned to the same wall-clock boundaries, so that nodes
+         * are awake at the same time and can discover each other. The beacons within a period are
+         * spread out by the {@link ch.ethz.csg.oppnet.beaconing.BeaconScheduler}.
          * 
          * @return a long indicating the timestamp in milliseconds when to schedule the next round
          *         of beaconing
          */
         public long getNextBeaconTimeMillis() {
-            final long currentTime = System.currentTimeMillis();
-            if (mInterval > 0) {
-                return ((currentTime / mInterval) + 1) * mInterval;
+            return getNextBeaconTimeMillis(mInterval);
+        }
+
+        /**
+         * Calculates the start timestamp for the next beaconing period, using an adapted interval.
+         * <p>
+         * Adapted intervals only differ from the default one by powers of two, so the boundaries
+         * of a longer interval are always boundaries of the shorter ones as well. Nodes which
+         * adapted their intervals differently thus still meet at the longer one.
+         * 
+         * @param intervalMillis the interval, between the minimum and maximum of this one
+         * @return a long indicating the timestamp in milliseconds when to schedule the next round
+         *         of beaconing
+         * @see #getNextBeaconTimeMillis()
+         */
+        public long getNextBeaconTimeMillis(int intervalMillis) {
+            if (mInterval <= 0) {
+                throw new IllegalStateException("Beaconing is turned off.");
+            } else if (intervalMillis < mMinInterval || intervalMillis > mMaxInterval) {
+                throw new IllegalArgumentException(
+                        "Interval out of bounds for " + this + ": " + intervalMillis);
             }
-            throw new IllegalStateException("Beaconing is turned off.");
+            final long currentTime = System.currentTimeMillis();
+            return ((currentTime / intervalMillis) + 1) * intervalMillis;
         }
     }
 
@@ -25,6 +25,8 @@ import ch.ethz.csg.oppnet.beaconing.BeaconingManager;
 import ch.ethz.csg.oppnet.core.Policy.BeaconingInterval;
 import ch.ethz.csg.oppnet.core.Policy.Feature;
 import ch.ethz.csg.oppnet.data.ConfigurationStore;
+import ch.ethz.csg.oppnet.data.DbController;
+import ch.ethz.csg.oppnet.lib.data.Neighbor;
 import ch.ethz.csg.oppnet.network.NetworkManager;
 
 import java.util.EnumSet;
@@ -52,6 +54,9 @@ public class SupervisorService extends Service {
 
     private BroadcastReceiver mBeaconingFinishedReceiver;
     private int mBeaconingRoundId;
+    private long mBeaconingRoundStartMillis;
+    private volatile boolean mBeaconingRoundFinished;
+    private final AdaptiveBeaconingInterval mAdaptiveInterval = new AdaptiveBeaconingInterval();
 
     private PowerManager mPowerManager;
     private PowerManager.WakeLock mWakeLock;
@@ -60,6 +65,7 @@ public class SupervisorService extends Service {
 
     private NetworkManager mNetManager;
     private BeaconingManager mBeaconingManager;
+    private DbController mDbController;
 
     @Override
     public void onCreate() {
@@ -69,6 +75,7 @@ public class SupervisorService extends Service {
 
         mNetManager = NetworkManager.getInstance(this);
         mBeaconingManager = BeaconingManager.getInstance(this);
+        mDbController = new DbController(this);
 
         mAlarmManager = (AlarmManager) getSystemService(Context.ALARM_SERVICE);
         mPowerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
@@ -102,6 +109,7 @@ public class SupervisorService extends Service {
                     return;
                 }
 
+                mBeaconingRoundFinished = true;
                 scheduleStateTransition(SupervisorState.SLEEPING);
             }
         };
@@ -187,6 +195,8 @@ public class SupervisorService extends Service {
     private void startSendingBeacons() {
         final int intervalDuration = BeaconingIntervalHandler.MAX_BEACONING_DURATION;
         mBeaconingRoundId = (int) SystemClock.elapsedRealtime() / intervalDuration;
+        mBeaconingRoundStartMillis = System.currentTimeMillis();
+        mBeaconingRoundFinished = false;
         LocalBroadcastManager.getInstance(this).registerReceiver(
                 mBeaconingFinishedReceiver,
                 new IntentFilter(BeaconingManager.ACTION_BEACONING_FINISHED));
@@ -201,6 +211,22 @@ public class SupervisorService extends Service {
         mBeaconingRoundId = -1;
     }
 
+    /**
+     * Adapts the beaconing interval to the neighbors seen in the last beaconing round, unless it
+     * has been aborted.
+     */
+    private void adaptBeaconingInterval() {
+        if (!mBeaconingRoundFinished) {
+            return;
+        }
+        mBeaconingRoundFinished = false;
+
+        final Set<Neighbor> roundNeighbors = mBeaconingManager.getNeighborTable()
+                .getNeighbors(mBeaconingRoundStartMillis / 1000);
+        mAdaptiveInterval.onRoundFinished(mPolicy.getBeaconingInterval(),
+                roundNeighbors, mDbController.getOutgoingPacketCount());
+    }
+
     private void scheduleNextWakeUp() {
         final BeaconingInterval interval = mPolicy.getBeaconingInterval();
         if (!interval.equals(BeaconingInterval.OFF)) {
@@ -208,7 +234,8 @@ public class SupervisorService extends Service {
                     this, 0, new Intent(this, WakeUpReceiver.class),
                     PendingIntent.FLAG_UPDATE_CURRENT);
 
-            final long triggerTimeMillis = interval.getNextBeaconTimeMillis();
+            final long triggerTimeMillis = interval.getNextBeaconTimeMillis(
+                    mAdaptiveInterval.getIntervalMillis(interval));
             mAlarmManager.set(AlarmManager.RTC_WAKEUP, triggerTimeMillis, mWakeUpIntent);
             Log.d(TAG, String.format("Set alarm to wake up again in %d seconds",
                     ((triggerTimeMillis - System.currentTimeMillis()) / 1000)));
@@ -416,6 +443,7 @@ public class SupervisorService extends Service {
             @Override
             public void onEnter(SupervisorService sv) {
                 sv.startListeningForBeacons();
+                sv.adaptBeaconingInterval();
                 sv.scheduleNextWakeUp();
             }
 
@@ -2,9 +2,11 @@
 package ch.ethz.csg.oppnet.data;
 
 import android.annotation.TargetApi;
+import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDoneException;
@@ -17,17 +19,20 @@ import android.util.Log;
 
 import ch.ethz.csg.oppnet.apps.ProtocolRegistry;
 import ch.ethz.csg.oppnet.apps.TokenGenerator;
+import ch.ethz.csg.oppnet.beaconing.BeaconMetrics;
 import ch.ethz.csg.oppnet.crypto.CryptoHelper;
 import ch.ethz.csg.oppnet.data.FullContract.Apps;
 import ch.ethz.csg.oppnet.data.FullContract.Identities;
 import ch.ethz.csg.oppnet.data.FullContract.Implementations;
 import ch.ethz.csg.oppnet.data.FullContract.NeighborProtocols;
 import ch.ethz.csg.oppnet.data.FullContract.Neighbors;
+import ch.ethz.csg.oppnet.data.FullContract.NetworkStats;
 import ch.ethz.csg.oppnet.data.FullContract.PacketQueues;
 import ch.ethz.csg.oppnet.data.FullContract.Packets;
 import ch.ethz.csg.oppnet.data.FullContract.ProtocolNeighbors;
 import ch.ethz.csg.oppnet.data.FullContract.Protocols;
 import ch.ethz.csg.oppnet.data.FullContract.RemoteProtocols;
+import ch.ethz.csg.oppnet.data.FullContract.SweepResponders;
 import ch.ethz.csg.oppnet.exchange.TransportPacketFactory;
 import ch.ethz.csg.oppnet.lib.data.Neighbor;
 import ch.ethz.csg.oppnet.lib.data.OppNetContract;
@@ -36,6 +41,12 @@ import ch.ethz.csg.oppnet.utils.ByteUtils;
 
 import com.google.protobuf.ByteString;
 
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -246,6 +257,14 @@ public class DbController {
         return packetCursor;
     }
 
+    /**
+     * @return the number of packets waiting to be sent, i.e. in the OUTGOING or FORWARDING queue
+     */
+    public long getOutgoingPacketCount() {
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        return DatabaseUtils.queryNumEntries(db, Packets.VIEW_NAME_OUTGOING);
+    }
+
     public String insertApplication(String packageName) {
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
         final String appToken = TokenGenerator.generateToken(12);
@@ -481,92 +500,121 @@ public class DbController {
     }
 
     public void insertNeighbor(ContentValues values, List<ByteString> protocols) {
-        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.beginTransaction();
+        insertNeighbors(Collections.singletonList(new NeighborUpdate(values, protocols)));
+    }
 
-        final byte[] neighborId = values.getAsByteArray(Neighbors.COLUMN_IDENTIFIER);
-        if (neighborId == null) {
-            throw new IllegalArgumentException("Can not insert node with no node id!");
+    /**
+     * Inserts or updates a batch of neighbors in a single transaction, and notifies observers of
+     * the neighbor URIs once for the whole batch.
+     *
+     * @param updates the neighbor updates to store, at most one per node id; updates without a
+     *            last seen time are skipped
+     * @return the number of neighbors which have been inserted or updated
+     */
+    public int insertNeighbors(Collection<NeighborUpdate> updates) {
+        if (updates.isEmpty()) {
+            return 0;
         }
 
-        try {
-            final long rawNeighborId = upsertRawNeighbor(neighborId, values);
+        final long startTime = System.nanoTime();
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
 
-            if (rawNeighborId > 0) {
-                if (!protocols.isEmpty()) {
-                    insertRemoteProtocols(rawNeighborId, protocols);
+        int storedCount = 0;
+        try {
+            for (final NeighborUpdate update : updates) {
+                if (update.getTimeLastSeen() == Long.MIN_VALUE) {
+                    // Can not tell if this is more recent than what we know, and a failed update
+                    // would roll back the whole batch
+                    continue;
                 }
+                final long rawNeighborId = upsertRawNeighbor(update.getNodeId(), update.getValues());
 
-                db.setTransactionSuccessful();
-
-                mContext.getContentResolver().notifyChange(Neighbors.URI_ALL, null);
-                mContext.getContentResolver().notifyChange(NeighborProtocols.URI_ALL, null);
-                mContext.getContentResolver().notifyChange(NeighborProtocols.URI_CURRENT, null);
-                mContext.getContentResolver().notifyChange(ProtocolNeighbors.URI_ITEM, null);
+                if (rawNeighborId > 0) {
+                    if (!update.getProtocols().isEmpty()) {
+                        insertRemoteProtocols(rawNeighborId, update.getProtocols());
+                    }
+                    storedCount++;
+                }
             }
+            db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
         }
+        BeaconMetrics.getInstance().onNeighborsUpserted(storedCount, System.nanoTime() - startTime);
+
+        if (storedCount > 0) {
+            final ContentResolver resolver = mContext.getContentResolver();
+            resolver.notifyChange(Neighbors.URI_ALL, null);
+            resolver.notifyChange(Neighbors.URI_CURRENT, null);
+            resolver.notifyChange(Neighbors.URI_RECENT, null);
+            resolver.notifyChange(NeighborProtocols.URI_ALL, null);
+            resolver.notifyChange(NeighborProtocols.URI_CURRENT, null);
+            resolver.notifyChange(NeighborProtocols.URI_RECENT, null);
+            resolver.notifyChange(ProtocolNeighbors.URI_ITEM, null);
+        }
+        return storedCount;
     }
 
+    /**
+     * Inserts or updates a single neighbor row. Must be called from within a transaction.
+     * <p>
+     * NOTE: This method deliberately does not open a nested transaction. A failed nested
+     * transaction would roll back the whole enclosing transaction, which would discard a complete
+     * batch of neighbors just because one of them carried outdated information.
+     *
+     * @return the row id of the neighbor, or -1 if nothing was stored
+     */
     private long upsertRawNeighbor(byte[] neighborId, ContentValues values) {
         final SQLiteDatabase db = mDbHelper.getWritableDatabase();
-        db.beginTransaction();
 
-        try {
-            final SQLiteStatement selectStmt = db.compileStatement(
-                    "select " + Neighbors._ID
-                            + " from " + Neighbors.TABLE_NAME
-                            + " where " + Neighbors.COLUMN_IDENTIFIER + " = ?");
-            selectStmt.bindBlob(1, neighborId);
+        final SQLiteStatement selectStmt = db.compileStatement(
+                "select " + Neighbors._ID
+                        + " from " + Neighbors.TABLE_NAME
+                        + " where " + Neighbors.COLUMN_IDENTIFIER + " = ?");
+        selectStmt.bindBlob(1, neighborId);
 
-            long neighborRowId;
-            try {
-                neighborRowId = selectStmt.simpleQueryForLong();
-            } catch (SQLiteDoneException e) {
-                neighborRowId = -1;
-            }
+        long neighborRowId;
+        try {
+            neighborRowId = selectStmt.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            neighborRowId = -1;
+        }
 
-            final long timeLastSeen = values.getAsLong(Neighbors.COLUMN_TIME_LASTSEEN);
-            final boolean multicastCapable = values
-                    .getAsBoolean(Neighbors.COLUMN_MULTICAST_CAPABLE);
-            final int multicastCapableAsInt = (multicastCapable ? 1 : 0);
-            final String networkName = values.getAsString(Neighbors.COLUMN_NETWORK);
-
-            final byte[] ip4Address = values.getAsByteArray(Neighbors.COLUMN_IP4);
-            assert (ip4Address == null || ip4Address.length == 4);
-            final byte[] ip6Address = values.getAsByteArray(Neighbors.COLUMN_IP6);
-            assert (ip6Address == null || ip6Address.length == 16);
-            final byte[] btAddress = values.getAsByteArray(Neighbors.COLUMN_BLUETOOTH);
-            assert (btAddress == null || btAddress.length == 6);
-
-            boolean success = false;
-            if (neighborRowId <= 0) {
-                // Neighbor has never been seen before -> INSERT
-                neighborRowId = insertRawNeighbor(
-                        neighborId, timeLastSeen, multicastCapableAsInt,
+        final long timeLastSeen = values.getAsLong(Neighbors.COLUMN_TIME_LASTSEEN);
+        final boolean multicastCapable = values
+                .getAsBoolean(Neighbors.COLUMN_MULTICAST_CAPABLE);
+        final int multicastCapableAsInt = (multicastCapable ? 1 : 0);
+        final String networkName = values.getAsString(Neighbors.COLUMN_NETWORK);
+
+        final byte[] ip4Address = values.getAsByteArray(Neighbors.COLUMN_IP4);
+        assert (ip4Address == null || ip4Address.length == 4);
+        final byte[] ip6Address = values.getAsByteArray(Neighbors.COLUMN_IP6);
+        assert (ip6Address == null || ip6Address.length == 16);
+        final byte[] btAddress = values.getAsByteArray(Neighbors.COLUMN_BLUETOOTH);
+        assert (btAddress == null || btAddress.length == 6);
+
+        boolean success = false;
+        if (neighborRowId <= 0) {
+            // Neighbor has never been seen before -> INSERT
+            neighborRowId = insertRawNeighbor(
+                    neighborId, timeLastSeen, multicastCapableAsInt,
+                    networkName, ip4Address, ip6Address, btAddress);
+            success = (neighborRowId > 0);
+        } else {
+            // Neighbor already registered -> UPDATE
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+                success = updateRawNeighbor_postSDK11(
+                        neighborRowId, timeLastSeen, multicastCapableAsInt,
                         networkName, ip4Address, ip6Address, btAddress);
-                success = (neighborRowId > 0);
             } else {
-                // Neighbor already registered -> UPDATE
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
-                    success = updateRawNeighbor_postSDK11(
-                            neighborRowId, timeLastSeen, multicastCapableAsInt,
-                            networkName, ip4Address, ip6Address, btAddress);
-                } else {
-                    success = updateRawNeighbor_preSDK11(
-                            neighborRowId, timeLastSeen, multicastCapableAsInt,
-                            networkName, ip4Address, ip6Address, btAddress);
-                }
-            }
-
-            if (success && neighborRowId > 0) {
-                db.setTransactionSuccessful();
+                success = updateRawNeighbor_preSDK11(
+                        neighborRowId, timeLastSeen, multicastCapableAsInt,
+                        networkName, ip4Address, ip6Address, btAddress);
             }
-            return neighborRowId;
-        } finally {
-            db.endTransaction();
         }
+
+        return (success && neighborRowId > 0) ? neighborRowId : -1;
     }
 
     private long insertRawNeighbor(
@@ -840,4 +888,217 @@ public class DbController {
             mContext.getContentResolver().notifyChange(Packets.URI_ALL, null);
         }
     }
+
+    // SWEEP RESPONDERS
+
+    /**
+     * Retrieves the addresses which have answered subnet sweeps in a network, those found behind
+     * the specified access point first, and the most recent ones first.
+     *
+     * @param network the SSID of the network
+     * @param bssid the BSSID of the current access point, or an empty string if unknown
+     * @param timeLastSeen the minimum time a responder has last sent a beacon
+     * @param limit the maximum number of responders to return
+     * @return the addresses of the responders
+     */
+    public List<Inet4Address> getSweepResponders(
+            String network, String bssid, long timeLastSeen, int limit) {
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        final Cursor cursor = db.rawQuery(
+                "select " + SweepResponders.COLUMN_IP4
+                        + " from " + SweepResponders.TABLE_NAME
+                        + " where " + SweepResponders.COLUMN_NETWORK + " = ?"
+                        + " and " + SweepResponders.COLUMN_TIME_LASTSEEN + " >= ?"
+                        + " order by (" + SweepResponders.COLUMN_BSSID + " = ?) desc, "
+                        + SweepResponders.COLUMN_TIME_LASTSEEN + " desc"
+                        + " limit ?",
+                new String[] {
+                        network, String.valueOf(timeLastSeen), bssid, String.valueOf(limit)
+                });
+
+        final List<Inet4Address> responders = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                try {
+                    responders.add((Inet4Address) InetAddress.getByAddress(cursor.getBlob(0)));
+                } catch (UnknownHostException | ClassCastException e) {
+                    Log.w(TAG, "Encountered invalid sweep responder address");
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return responders;
+    }
+
+    /**
+     * Stores (or refreshes) a batch of sweep responders in a single transaction.
+     *
+     * @param network the SSID of the network the responders have been found in
+     * @param bssid the BSSID of the access point, or an empty string if unknown
+     * @param responders the addresses of the responders
+     * @param timeLastSeen the time the responders have been seen
+     */
+    public void insertSweepResponders(String network, String bssid,
+            Collection<Inet4Address> responders, long timeLastSeen) {
+        if (responders.isEmpty()) {
+            return;
+        }
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            final SQLiteStatement insertStmt = db.compileStatement(
+                    "insert into " + SweepResponders.TABLE_NAME + " ("
+                            + SweepResponders.COLUMN_NETWORK + ", "
+                            + SweepResponders.COLUMN_BSSID + ", "
+                            + SweepResponders.COLUMN_IP4 + ", "
+                            + SweepResponders.COLUMN_TIME_LASTSEEN
+                            + ") values (?, ?, ?, ?)");
+
+            for (final Inet4Address responder : responders) {
+                insertStmt.clearBindings();
+                insertStmt.bindString(1, network);
+                insertStmt.bindString(2, bssid);
+                insertStmt.bindBlob(3, responder.getAddress());
+                insertStmt.bindLong(4, timeLastSeen);
+                insertStmt.executeInsert();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public int deleteExpiredSweepResponders(long timeLastSeen) {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(SweepResponders.TABLE_NAME,
+                SweepResponders.COLUMN_TIME_LASTSEEN + " < ?",
+                new String[] {
+                    String.valueOf(timeLastSeen)
+                });
+    }
+
+    /**
+     * Returns the statistics of all access points of the specified networks.
+     *
+     * @param networks the SSIDs of the networks
+     * @return the statistics, one per network and BSSID
+     */
+    public List<NetworkHistory> getNetworkHistories(Collection<String> networks) {
+        if (networks.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        final SQLiteDatabase db = mDbHelper.getReadableDatabase();
+        final Cursor cursor = db.query(
+                NetworkStats.TABLE_NAME,
+                NetworkStats.PROJECTION_DEFAULT,
+                NetworkStats.COLUMN_NETWORK + " in ("
+                        + TextUtils.join(", ", Collections.nCopies(networks.size(), "?")) + ")",
+                networks.toArray(new String[networks.size()]),
+                null, null, null);
+
+        final List<NetworkHistory> histories = new ArrayList<>(cursor.getCount());
+        try {
+            while (cursor.moveToNext()) {
+                histories.add(NetworkHistory.fromCursor(cursor));
+            }
+        } finally {
+            cursor.close();
+        }
+        return histories;
+    }
+
+    /**
+     * Records an attempt to connect to an access point.
+     *
+     * @param network the SSID of the network
+     * @param bssid the BSSID of the access point, or an empty string if unknown
+     */
+    public void insertNetworkConnectAttempt(String network, String bssid) {
+        incrementNetworkStats(network, bssid, new String[] {
+                NetworkStats.COLUMN_CONNECT_ATTEMPTS
+        }, new long[] {
+                1
+        });
+    }
+
+    /**
+     * Records a successful connection to an access point.
+     *
+     * @param network the SSID of the network
+     * @param bssid the BSSID of the access point, or an empty string if unknown
+     * @param latencyMillis the time it took to connect
+     * @param dhcpSucceeded true if an IPv4 address has been assigned
+     */
+    public void insertNetworkConnection(
+            String network, String bssid, long latencyMillis, boolean dhcpSucceeded) {
+        incrementNetworkStats(network, bssid, new String[] {
+                NetworkStats.COLUMN_CONNECT_SUCCESSES,
+                NetworkStats.COLUMN_DHCP_SUCCESSES,
+                NetworkStats.COLUMN_CONNECT_LATENCY
+        }, new long[] {
+                1, (dhcpSucceeded ? 1 : 0), latencyMillis
+        });
+    }
+
+    /**
+     * Records the outcome of having been connected to an access point.
+     *
+     * @param network the SSID of the network
+     * @param bssid the BSSID of the access point, or an empty string if unknown
+     * @param neighborCount the number of neighbors found in the network
+     * @param packetCount the number of packets sent to neighbors in the network
+     */
+    public void insertNetworkVisit(
+            String network, String bssid, int neighborCount, int packetCount) {
+        incrementNetworkStats(network, bssid, new String[] {
+                NetworkStats.COLUMN_VISITS,
+                NetworkStats.COLUMN_NEIGHBORS_FOUND,
+                NetworkStats.COLUMN_PACKETS_EXCHANGED
+        }, new long[] {
+                1, neighborCount, packetCount
+        });
+    }
+
+    private void incrementNetworkStats(
+            String network, String bssid, String[] columns, long[] increments) {
+        final StringBuilder update = new StringBuilder()
+                .append("update ").append(NetworkStats.TABLE_NAME).append(" set ")
+                .append(NetworkStats.COLUMN_TIME_LASTUPDATED).append(" = ?");
+        final Object[] updateArgs = new Object[columns.length + 3];
+        updateArgs[0] = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < columns.length; i++) {
+            update.append(", ").append(columns[i]).append(" = ").append(columns[i]).append(" + ?");
+            updateArgs[i + 1] = increments[i];
+        }
+        update.append(" where ").append(NetworkStats.COLUMN_NETWORK).append(" = ? and ")
+                .append(NetworkStats.COLUMN_BSSID).append(" = ?");
+        updateArgs[columns.length + 1] = network;
+        updateArgs[columns.length + 2] = bssid;
+
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.execSQL("insert or ignore into " + NetworkStats.TABLE_NAME + " ("
+                    + NetworkStats.COLUMN_NETWORK + ", " + NetworkStats.COLUMN_BSSID
+                    + ") values (?, ?)", new Object[] {
+                    network, bssid
+            });
+            db.execSQL(update.toString(), updateArgs);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public int deleteExpiredNetworkStats(long timeLastUpdated) {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        return db.delete(NetworkStats.TABLE_NAME,
+                NetworkStats.COLUMN_TIME_LASTUPDATED + " < ?",
+                new String[] {
+                    String.valueOf(timeLastUpdated)
+                });
+    }
 }
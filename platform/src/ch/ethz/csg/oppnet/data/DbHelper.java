@@ -8,7 +8,7 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.os.Build;
 
 public class DbHelper extends SQLiteOpenHelper {
-    private static final int DATABASE_VERSION = 1;
+    private static final int DATABASE_VERSION = 3;
     protected static final String DATABASE_NAME = "oppnet";
 
     private static DbHelper sInstance;
@@ -63,6 +63,12 @@ public class DbHelper extends SQLiteOpenHelper {
             db.execSQL(FullContract.Packets.SQL_CREATE_VIEW_INCOMING);
             db.execSQL(FullContract.Packets.SQL_CREATE_VIEW_OUTGOING);
 
+            // create SweepResponders table
+            db.execSQL(FullContract.SweepResponders.SQL_CREATE_TABLE);
+
+            // create NetworkStats table
+            db.execSQL(FullContract.NetworkStats.SQL_CREATE_TABLE);
+
             db.setTransactionSuccessful();
         } finally {
             db.endTransaction();
@@ -71,7 +77,14 @@ public class DbHelper extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // behavior not defined so far
+        if (oldVersion < 2) {
+            // Version 2 added the SweepResponders table
+            db.execSQL(FullContract.SweepResponders.SQL_CREATE_TABLE);
+        }
+        if (oldVersion < 3) {
+            // Version 3 added the NetworkStats table
+            db.execSQL(FullContract.NetworkStats.SQL_CREATE_TABLE);
+        }
     }
 
     @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
@@ -497,6 +497,13 @@ public final class FullContract {
          */
         public static final String WHERE_CLAUSE_TIME = COLUMN_TIME_LASTSEEN + " >= %d";
 
+        /**
+         * The WHERE clause used to exclude a list of neighbors (given as blob literals) by node ID.
+         * Also applies to the views which include the default neighbor columns.
+         */
+        public static final String WHERE_CLAUSE_NODE_ID_EXCLUDED =
+                COLUMN_IDENTIFIER + " not in (%s)";
+
         /**
          * A projection of the default columns in the neighbors table.
          */
@@ -539,6 +546,164 @@ public final class FullContract {
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd." + AUTHORITY + ".neighbors";
     }
 
+    /**
+     * Addresses which have answered a subnet sweep, so that later sweeps in the same network can
+     * probe them first. Not exposed through the content provider.
+     */
+    public static final class SweepResponders implements BaseColumns {
+        /**
+         * The name of the sweep responders table in the database.
+         */
+        public static final String TABLE_NAME = "SweepResponders";
+
+        /**
+         * The SSID of the network the responder has been found in.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_NETWORK = "network";
+
+        /**
+         * The BSSID of the access point the responder has been found behind, or an empty string
+         * if it is unknown.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_BSSID = "bssid";
+
+        /**
+         * The IPv4 address of the responder, as packed bytes.
+         * <p>
+         * Type: BLOB (4 bytes)
+         */
+        public static final String COLUMN_IP4 = "ip4";
+
+        /**
+         * The time the responder has last sent a beacon.
+         * <p>
+         * Type: INTEGER (long)
+         */
+        public static final String COLUMN_TIME_LASTSEEN = "time_lastseen";
+
+        /**
+         * The SQL statement to create this table.
+         */
+        public static final String SQL_CREATE_TABLE =
+                "create table " + TABLE_NAME + " ("
+                        + _ID + " integer primary key, "
+                        + COLUMN_NETWORK + " text not null, "
+                        + COLUMN_BSSID + " text not null, "
+                        + COLUMN_IP4 + " blob not null, "
+                        + COLUMN_TIME_LASTSEEN + " integer not null " + DEFAULT_NOW + ", "
+                        + "unique (" + COLUMN_NETWORK + ", " + COLUMN_BSSID + ", " + COLUMN_IP4
+                        + ") on conflict replace)";
+    }
+
+    public static final class NetworkStats implements BaseColumns {
+        /**
+         * The name of the network statistics table in the database.
+         */
+        public static final String TABLE_NAME = "NetworkStats";
+
+        /**
+         * The SSID of the network.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_NETWORK = "network";
+
+        /**
+         * The BSSID of the access point, or an empty string if it is unknown.
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_BSSID = "bssid";
+
+        /**
+         * The number of times the platform tried to connect to the access point.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_CONNECT_ATTEMPTS = "connect_attempts";
+
+        /**
+         * The number of connection attempts which succeeded.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_CONNECT_SUCCESSES = "connect_successes";
+
+        /**
+         * The number of successful connections in which an IPv4 address has been assigned by DHCP.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_DHCP_SUCCESSES = "dhcp_successes";
+
+        /**
+         * The total time the successful connection attempts took, in milliseconds.
+         * <p>
+         * Type: INTEGER (long)
+         */
+        public static final String COLUMN_CONNECT_LATENCY = "connect_latency";
+
+        /**
+         * The number of times the platform has been connected to the access point during a
+         * beaconing round.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_VISITS = "visits";
+
+        /**
+         * The total number of neighbors found during the visits.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_NEIGHBORS_FOUND = "neighbors_found";
+
+        /**
+         * The total number of packets sent to neighbors during the visits.
+         * <p>
+         * Type: INTEGER
+         */
+        public static final String COLUMN_PACKETS_EXCHANGED = "packets_exchanged";
+
+        /**
+         * The time the statistics have last been updated.
+         * <p>
+         * Type: INTEGER (long)
+         */
+        public static final String COLUMN_TIME_LASTUPDATED = "time_lastupdated";
+
+        /**
+         * A projection of the default columns in the network statistics table.
+         */
+        public static final String[] PROJECTION_DEFAULT = {
+                COLUMN_NETWORK, COLUMN_BSSID, COLUMN_CONNECT_ATTEMPTS, COLUMN_CONNECT_SUCCESSES,
+                COLUMN_DHCP_SUCCESSES, COLUMN_CONNECT_LATENCY, COLUMN_VISITS,
+                COLUMN_NEIGHBORS_FOUND, COLUMN_PACKETS_EXCHANGED, COLUMN_TIME_LASTUPDATED
+        };
+
+        /**
+         * The SQL statement to create this table.
+         */
+        public static final String SQL_CREATE_TABLE =
+                "create table " + TABLE_NAME + " ("
+                        + _ID + " integer primary key, "
+                        + COLUMN_NETWORK + " text not null, "
+                        + COLUMN_BSSID + " text not null, "
+                        + COLUMN_CONNECT_ATTEMPTS + " integer not null default 0, "
+                        + COLUMN_CONNECT_SUCCESSES + " integer not null default 0, "
+                        + COLUMN_DHCP_SUCCESSES + " integer not null default 0, "
+                        + COLUMN_CONNECT_LATENCY + " integer not null default 0, "
+                        + COLUMN_VISITS + " integer not null default 0, "
+                        + COLUMN_NEIGHBORS_FOUND + " integer not null default 0, "
+                        + COLUMN_PACKETS_EXCHANGED + " integer not null default 0, "
+                        + COLUMN_TIME_LASTUPDATED + " integer not null " + DEFAULT_NOW + ", "
+                        + "unique (" + COLUMN_NETWORK + ", " + COLUMN_BSSID + "))";
+    }
+
     public static final class RemoteProtocols implements BaseColumns {
         /**
          * The name of the remote protocols table in the database.
@@ -1024,4 +1189,42 @@ public final class FullContract {
         public static final String CONTENT_ITEM_TYPE =
                 ContentResolver.CURSOR_ITEM_BASE_TYPE + "/vnd." + AUTHORITY + ".packets";
     }
+
+    /**
+     * Constants for the metrics of the OppNet platform. These are not stored in the database, but
+     * provided as a snapshot of name/value pairs, one per row.
+     */
+    public static final class Metrics {
+        /**
+         * The name of the metric, e.g. "parser.beacons_per_second".
+         * <p>
+         * Type: TEXT
+         */
+        public static final String COLUMN_NAME = "name";
+
+        /**
+         * The current value of the metric.
+         * <p>
+         * Type: INTEGER or REAL
+         */
+        public static final String COLUMN_VALUE = "value";
+
+        /**
+         * A projection of the default columns of the metrics snapshot.
+         */
+        public static final String[] PROJECTION_DEFAULT = {
+                COLUMN_NAME, COLUMN_VALUE
+        };
+
+        /**
+         * The content URI for a snapshot of all metrics.
+         */
+        public static final Uri URI_ALL = Uri.withAppendedPath(URI_BASE, "metrics");
+
+        /**
+         * The MIME type for a snapshot of metrics.
+         */
+        public static final String CONTENT_DIR_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/vnd." + AUTHORITY + ".metrics";
+    }
 }
@@ -0,0 +1,291 @@
+
+package ch.ethz.csg.oppnet.data;
+
+import android.content.ContentValues;
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.beaconing.BeaconingManager;
+import ch.ethz.csg.oppnet.beaconing.LivenessEstimator;
+import ch.ethz.csg.oppnet.data.FullContract.Neighbors;
+import ch.ethz.csg.oppnet.lib.data.Neighbor;
+
+import com.google.common.base.Objects;
+import com.google.protobuf.ByteString;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory table of all known neighbors, fed directly by the beacon parser.
+ * <p>
+ * This is the source of truth for everything which needs the current neighbors on a hot path
+ * (most notably the beacon senders), so that they do not have to query the neighbor protocols
+ * view and rebuild the Neighbor objects every time. The database is only written to in the
+ * background, for persistence and for the content provider.
+ * <p>
+ * Updates follow the same rules as the database: an update is only applied if it is more recent
+ * than the stored neighbor, and replaces all of its values. The protocols are only replaced if the
+ * update carries any, as updates derived from neighbor lists do not know the protocols.
+ * <p>
+ * Neighbors which have not been loaded from the database have a raw ID of 0.
+ */
+public class NeighborTable {
+    private static final String TAG = NeighborTable.class.getSimpleName();
+
+    /**
+     * Gets notified about changes of the neighbor table.
+     */
+    public interface Listener {
+        /**
+         * Called on the thread which updated the table, so implementations must return quickly.
+         *
+         * @param changedNeighbors the new state of all neighbors which have been added or updated
+         */
+        void onNeighborsChanged(Set<Neighbor> changedNeighbors);
+    }
+
+    private final ConcurrentHashMap<ByteBuffer, Neighbor> mNeighbors = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Listener> mListeners = new CopyOnWriteArrayList<>();
+    private final AtomicLong mVersion = new AtomicLong();
+    private final AtomicLong mContentVersion = new AtomicLong();
+    private final LivenessEstimator mLiveness = LivenessEstimator.getInstance();
+
+    /**
+     * Fills the table with the neighbors stored in the database, unless it already holds neighbors.
+     *
+     * @param dbController the database to load the neighbors from
+     * @param timeLastSeen the minimum time the neighbors to load have been last seen
+     */
+    public void loadIfEmpty(DbController dbController, long timeLastSeen) {
+        if (!mNeighbors.isEmpty()) {
+            return;
+        }
+        for (final Neighbor neighbor : dbController.getNeighbors(timeLastSeen)) {
+            mNeighbors.putIfAbsent(ByteBuffer.wrap(neighbor.getNodeId()), neighbor);
+        }
+        mVersion.incrementAndGet();
+        mContentVersion.incrementAndGet();
+        Log.v(TAG, "Loaded " + mNeighbors.size() + " neighbors from the database");
+    }
+
+    /**
+     * Applies a batch of neighbor updates, and notifies the listeners about the changed neighbors.
+     *
+     * @param updates the updates to apply
+     * @return the number of neighbors which have actually been changed
+     */
+    public int update(Collection<NeighborUpdate> updates) {
+        final Set<Neighbor> changedNeighbors = new HashSet<>();
+        for (final NeighborUpdate update : updates) {
+            final Neighbor changedNeighbor = apply(update);
+            if (changedNeighbor != null) {
+                changedNeighbors.add(changedNeighbor);
+            }
+        }
+
+        if (!changedNeighbors.isEmpty()) {
+            mVersion.incrementAndGet();
+            final Set<Neighbor> unmodifiableNeighbors =
+                    Collections.unmodifiableSet(changedNeighbors);
+            for (final Listener listener : mListeners) {
+                listener.onNeighborsChanged(unmodifiableNeighbors);
+            }
+        }
+        return changedNeighbors.size();
+    }
+
+    private Neighbor apply(NeighborUpdate update) {
+        final ByteBuffer key = ByteBuffer.wrap(update.getNodeId());
+        while (true) {
+            final Neighbor oldNeighbor = mNeighbors.get(key);
+            if (oldNeighbor != null && update.getTimeLastSeen() <= oldNeighbor.getTimeLastSeen()) {
+                // Outdated information
+                return null;
+            }
+
+            final Neighbor newNeighbor = toNeighbor(update, oldNeighbor);
+            if (newNeighbor == null) {
+                return null;
+            }
+
+            final boolean stored = (oldNeighbor == null)
+                    ? mNeighbors.putIfAbsent(key, newNeighbor) == null
+                    : mNeighbors.replace(key, oldNeighbor, newNeighbor);
+            if (stored) {
+                if (oldNeighbor == null || !hasSameContent(oldNeighbor, newNeighbor)) {
+                    mContentVersion.incrementAndGet();
+                }
+                return newNeighbor;
+            }
+            // Another thread updated the same neighbor concurrently, try again
+        }
+    }
+
+    private static Neighbor toNeighbor(NeighborUpdate update, Neighbor oldNeighbor) {
+        final ContentValues values = update.getValues();
+        final Long timeLastSeen = values.getAsLong(Neighbors.COLUMN_TIME_LASTSEEN);
+        if (timeLastSeen == null) {
+            // Can not tell if this is more recent than what we know
+            return null;
+        }
+
+        final Inet4Address ip4Address;
+        final Inet6Address ip6Address;
+        try {
+            ip4Address = (Inet4Address) toInetAddress(values.getAsByteArray(Neighbors.COLUMN_IP4));
+            ip6Address = (Inet6Address) toInetAddress(values.getAsByteArray(Neighbors.COLUMN_IP6));
+        } catch (UnknownHostException | ClassCastException e) {
+            Log.w(TAG, "Skipped neighbor update with invalid IP address");
+            return null;
+        }
+
+        final Set<ByteBuffer> protocols;
+        if (!update.getProtocols().isEmpty()) {
+            protocols = new HashSet<>();
+            for (final ByteString protocol : update.getProtocols()) {
+                protocols.add(ByteBuffer.wrap(protocol.toByteArray()));
+            }
+        } else if (oldNeighbor != null) {
+            protocols = oldNeighbor.getSupportedProtocols();
+        } else {
+            protocols = Collections.emptySet();
+        }
+
+        final Boolean multicastCapable = values.getAsBoolean(Neighbors.COLUMN_MULTICAST_CAPABLE);
+        return Neighbor.create(
+                (oldNeighbor == null ? 0 : oldNeighbor.getRawId()),
+                update.getNodeId(),
+                timeLastSeen,
+                (multicastCapable == null || multicastCapable),
+                values.getAsString(Neighbors.COLUMN_NETWORK),
+                ip4Address,
+                ip6Address,
+                values.getAsByteArray(Neighbors.COLUMN_BLUETOOTH),
+                protocols);
+    }
+
+    /**
+     * @return true if the neighbors only differ in the time they have been last seen
+     */
+    private static boolean hasSameContent(Neighbor oldNeighbor, Neighbor newNeighbor) {
+        return oldNeighbor.isMulticastCapable() == newNeighbor.isMulticastCapable()
+                && Objects.equal(oldNeighbor.getLastSeenNetwork(),
+                        newNeighbor.getLastSeenNetwork())
+                && Objects.equal(oldNeighbor.getIp4Address(), newNeighbor.getIp4Address())
+                && Objects.equal(oldNeighbor.getIp6Address(), newNeighbor.getIp6Address())
+                && Arrays.equals(oldNeighbor.getBluetoothAddress(),
+                        newNeighbor.getBluetoothAddress())
+                && oldNeighbor.getSupportedProtocols().equals(newNeighbor.getSupportedProtocols());
+    }
+
+    private static InetAddress toInetAddress(byte[] address) throws UnknownHostException {
+        return (address == null ? null : InetAddress.getByAddress(address));
+    }
+
+    /**
+     * Removes all neighbors which have not been seen since the specified time.
+     *
+     * @param timeLastSeen the minimum time a neighbor must have been seen to be kept
+     */
+    public void prune(long timeLastSeen) {
+        boolean removed = false;
+        final Iterator<Neighbor> iterator = mNeighbors.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getTimeLastSeen() < timeLastSeen) {
+                iterator.remove();
+                removed = true;
+            }
+        }
+        if (removed) {
+            mContentVersion.incrementAndGet();
+        }
+    }
+
+    /**
+     * @param nodeId the node ID of the neighbor
+     * @return the neighbor, or null if it is unknown
+     */
+    public Neighbor getNeighbor(byte[] nodeId) {
+        return mNeighbors.get(ByteBuffer.wrap(nodeId));
+    }
+
+    /**
+     * @param timeLastSeen the minimum time the neighbors have been last seen
+     * @return a snapshot of all neighbors seen since the specified time
+     */
+    public Set<Neighbor> getNeighbors(long timeLastSeen) {
+        final Set<Neighbor> neighbors = new HashSet<>();
+        for (final Neighbor neighbor : mNeighbors.values()) {
+            if (neighbor.getTimeLastSeen() >= timeLastSeen) {
+                neighbors.add(neighbor);
+            }
+        }
+        return neighbors;
+    }
+
+    /**
+     * @return a snapshot of the neighbors seen in the current beaconing period, except the ones
+     *         which have most likely departed since
+     * @see BeaconingManager#getCurrentTimestamp()
+     * @see LivenessEstimator
+     */
+    public Set<Neighbor> getCurrentNeighbors() {
+        final Set<Neighbor> neighbors = getNeighbors(BeaconingManager.getCurrentTimestamp());
+        final Iterator<Neighbor> iterator = neighbors.iterator();
+        while (iterator.hasNext()) {
+            if (mLiveness.hasDeparted(iterator.next().getNodeId())) {
+                iterator.remove();
+            }
+        }
+        return neighbors;
+    }
+
+    /**
+     * @return a snapshot of the neighbors seen recently
+     * @see BeaconingManager#getRecentTimestamp()
+     */
+    public Set<Neighbor> getRecentNeighbors() {
+        return getNeighbors(BeaconingManager.getRecentTimestamp());
+    }
+
+    /**
+     * @return a number which changes whenever neighbors are added or updated, to invalidate data
+     *         derived from the neighbors
+     */
+    public long getVersion() {
+        return mVersion.get();
+    }
+
+    /**
+     * @return a number which changes whenever neighbors are added or removed, or any of their
+     *         values changes except the time they have been last seen; unlike
+     *         {@link #getVersion()}, this stays the same while known neighbors keep sending beacons
+     */
+    public long getContentVersion() {
+        return mContentVersion.get();
+    }
+
+    public int size() {
+        return mNeighbors.size();
+    }
+
+    public void addListener(Listener listener) {
+        mListeners.addIfAbsent(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        mListeners.remove(listener);
+    }
+}
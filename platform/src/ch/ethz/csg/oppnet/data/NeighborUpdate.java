@@ -0,0 +1,72 @@
+
+package ch.ethz.csg.oppnet.data;
+
+import android.content.ContentValues;
+
+import ch.ethz.csg.oppnet.data.FullContract.Neighbors;
+
+import com.google.protobuf.ByteString;
+
+import java.util.List;
+
+/**
+ * A pending change to a single neighbor: the column values to store in the neighbors table, and
+ * the hashes of the protocols it supports (which may be empty if they are unknown).
+ */
+public final class NeighborUpdate {
+    private final ContentValues mValues;
+    private final List<ByteString> mProtocols;
+
+    public NeighborUpdate(ContentValues values, List<ByteString> protocols) {
+        if (values.getAsByteArray(Neighbors.COLUMN_IDENTIFIER) == null) {
+            throw new IllegalArgumentException("Can not update node with no node id!");
+        }
+        mValues = values;
+        mProtocols = protocols;
+    }
+
+    public ContentValues getValues() {
+        return mValues;
+    }
+
+    public List<ByteString> getProtocols() {
+        return mProtocols;
+    }
+
+    public byte[] getNodeId() {
+        return mValues.getAsByteArray(Neighbors.COLUMN_IDENTIFIER);
+    }
+
+    /**
+     * @return the time this neighbor has last been seen, or {@link Long#MIN_VALUE} if unknown
+     */
+    public long getTimeLastSeen() {
+        final Long timeLastSeen = mValues.getAsLong(Neighbors.COLUMN_TIME_LASTSEEN);
+        return (timeLastSeen == null ? Long.MIN_VALUE : timeLastSeen);
+    }
+
+    /**
+     * Merges two updates of the same neighbor. The values of the more recent update win, but the
+     * protocol list of the other one is kept if the more recent update does not carry any (e.g.
+     * because it stems from a neighbor list instead of the neighbor's own beacon).
+     *
+     * @param other another update of the same neighbor
+     * @return the merged update
+     */
+    public NeighborUpdate mergeWith(NeighborUpdate other) {
+        final NeighborUpdate newer;
+        final NeighborUpdate older;
+        if (other.getTimeLastSeen() > getTimeLastSeen()) {
+            newer = other;
+            older = this;
+        } else {
+            newer = this;
+            older = other;
+        }
+
+        if (newer.mProtocols.isEmpty() && !older.mProtocols.isEmpty()) {
+            return new NeighborUpdate(newer.mValues, older.mProtocols);
+        }
+        return newer;
+    }
+}
@@ -0,0 +1,133 @@
+
+package ch.ethz.csg.oppnet.data;
+
+import android.database.Cursor;
+
+/**
+ * The statistics collected about a WiFi network (or one of its access points) over all beaconing
+ * rounds in which the platform connected to it.
+ */
+public final class NetworkHistory {
+    private final String mNetwork;
+    private final String mBssid;
+    private final int mConnectAttempts;
+    private final int mConnectSuccesses;
+    private final int mDhcpSuccesses;
+    private final long mConnectLatencyMillis;
+    private final int mVisits;
+    private final int mNeighborsFound;
+    private final int mPacketsExchanged;
+
+    /**
+     * @param network the SSID of the network
+     * @param bssid the BSSID of the access point, or an empty string if the statistics cover the
+     *            whole network
+     * @return statistics without any recorded events
+     */
+    public static NetworkHistory empty(String network, String bssid) {
+        return new NetworkHistory(network, bssid, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * @param cursor a cursor over the {@link FullContract.NetworkStats#PROJECTION_DEFAULT default
+     *            projection} of the network statistics table
+     * @return the statistics in the current row
+     */
+    public static NetworkHistory fromCursor(Cursor cursor) {
+        return new NetworkHistory(
+                cursor.getString(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_NETWORK)),
+                cursor.getString(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_BSSID)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_CONNECT_ATTEMPTS)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_CONNECT_SUCCESSES)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_DHCP_SUCCESSES)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_CONNECT_LATENCY)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_VISITS)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_NEIGHBORS_FOUND)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(
+                        FullContract.NetworkStats.COLUMN_PACKETS_EXCHANGED)));
+    }
+
+    private NetworkHistory(String network, String bssid, int connectAttempts, int connectSuccesses,
+            int dhcpSuccesses, long connectLatencyMillis, int visits, int neighborsFound,
+            int packetsExchanged) {
+        mNetwork = network;
+        mBssid = bssid;
+        mConnectAttempts = connectAttempts;
+        mConnectSuccesses = connectSuccesses;
+        mDhcpSuccesses = dhcpSuccesses;
+        mConnectLatencyMillis = connectLatencyMillis;
+        mVisits = visits;
+        mNeighborsFound = neighborsFound;
+        mPacketsExchanged = packetsExchanged;
+    }
+
+    /**
+     * @param other statistics of another access point of the same network
+     * @return the statistics of both access points together, for the whole network
+     */
+    public NetworkHistory mergeWith(NetworkHistory other) {
+        return new NetworkHistory(mNetwork, "",
+                mConnectAttempts + other.mConnectAttempts,
+                mConnectSuccesses + other.mConnectSuccesses,
+                mDhcpSuccesses + other.mDhcpSuccesses,
+                mConnectLatencyMillis + other.mConnectLatencyMillis,
+                mVisits + other.mVisits,
+                mNeighborsFound + other.mNeighborsFound,
+                mPacketsExchanged + other.mPacketsExchanged);
+    }
+
+    public String getNetwork() {
+        return mNetwork;
+    }
+
+    public String getBssid() {
+        return mBssid;
+    }
+
+    public int getConnectAttempts() {
+        return mConnectAttempts;
+    }
+
+    public int getConnectSuccesses() {
+        return mConnectSuccesses;
+    }
+
+    public int getDhcpSuccesses() {
+        return mDhcpSuccesses;
+    }
+
+    /**
+     * @return the total time the successful connection attempts took
+     */
+    public long getConnectLatencyMillis() {
+        return mConnectLatencyMillis;
+    }
+
+    public int getVisits() {
+        return mVisits;
+    }
+
+    public int getNeighborsFound() {
+        return mNeighborsFound;
+    }
+
+    public int getPacketsExchanged() {
+        return mPacketsExchanged;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s/%s: %d/%d/%d connects (%d ms), %d visits, %d neighbors,"
+                + " %d packets", mNetwork, mBssid, mDhcpSuccesses, mConnectSuccesses,
+                mConnectAttempts, mConnectLatencyMillis, mVisits, mNeighborsFound,
+                mPacketsExchanged);
+    }
+}
@@ -9,6 +9,7 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.UriMatcher;
 import android.database.Cursor;
+import android.database.MatrixCursor;
 import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteQueryBuilder;
@@ -16,18 +17,25 @@ import android.net.Uri;
 import android.text.TextUtils;
 import android.util.Log;
 
+import ch.ethz.csg.oppnet.beaconing.BeaconMetrics;
 import ch.ethz.csg.oppnet.beaconing.BeaconingManager;
+import ch.ethz.csg.oppnet.beaconing.LivenessEstimator;
 import ch.ethz.csg.oppnet.data.FullContract.Apps;
 import ch.ethz.csg.oppnet.data.FullContract.Identities;
 import ch.ethz.csg.oppnet.data.FullContract.Implementations;
+import ch.ethz.csg.oppnet.data.FullContract.Metrics;
 import ch.ethz.csg.oppnet.data.FullContract.NeighborProtocols;
 import ch.ethz.csg.oppnet.data.FullContract.Neighbors;
 import ch.ethz.csg.oppnet.data.FullContract.Packets;
 import ch.ethz.csg.oppnet.data.FullContract.ProtocolNeighbors;
 import ch.ethz.csg.oppnet.data.FullContract.Protocols;
 import ch.ethz.csg.oppnet.exchange.PacketRegistry;
+import ch.ethz.csg.oppnet.utils.ByteUtils;
 
+import java.nio.ByteBuffer;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 public class OppNetProvider extends ContentProvider {
     private static final String TAG = OppNetProvider.class.getSimpleName();
@@ -69,7 +77,9 @@ public class OppNetProvider extends ContentProvider {
         PACKET_LIST(Packets.URI_ALL, Packets.CONTENT_DIR_TYPE),
         PACKET_LIST_INCOMING(Packets.URI_INCOMING, Packets.CONTENT_DIR_TYPE),
         PACKET_LIST_OUTGOING(Packets.URI_OUTGOING, Packets.CONTENT_DIR_TYPE),
-        PACKET_ID(Packets.URI_ALL, "/#", Packets.CONTENT_ITEM_TYPE);
+        PACKET_ID(Packets.URI_ALL, "/#", Packets.CONTENT_ITEM_TYPE),
+
+        METRICS(Metrics.URI_ALL, Metrics.CONTENT_DIR_TYPE);
 
         private final Uri mUri;
         private final String mMatchedPath;
@@ -211,8 +221,9 @@ public class OppNetProvider extends ContentProvider {
 
                     // Also we may need to filter the list.
                     if (match == UriMatch.NEIGHBOR_LIST_CURRENT) {
-                        where = String.format(Locale.US, Neighbors.WHERE_CLAUSE_TIME,
-                                BeaconingManager.getCurrentTimestamp());
+                        where = excludeDepartedNeighbors(String.format(Locale.US,
+                                Neighbors.WHERE_CLAUSE_TIME,
+                                BeaconingManager.getCurrentTimestamp()));
                     } else if (match == UriMatch.NEIGHBOR_LIST_RECENT) {
                         where = String.format(Locale.US, Neighbors.WHERE_CLAUSE_TIME,
                                 BeaconingManager.getRecentTimestamp());
@@ -237,8 +248,9 @@ public class OppNetProvider extends ContentProvider {
                     sortOrder = Neighbors.SORT_ORDER_DEFAULT;
 
                     if (match == UriMatch.NEIGHBOR_PROTOCOLS_LIST_CURRENT) {
-                        where = String.format(Locale.US, NeighborProtocols.WHERE_CLAUSE_TIME,
-                                BeaconingManager.getCurrentTimestamp());
+                        where = excludeDepartedNeighbors(String.format(Locale.US,
+                                NeighborProtocols.WHERE_CLAUSE_TIME,
+                                BeaconingManager.getCurrentTimestamp()));
                     } else if (match == UriMatch.NEIGHBOR_PROTOCOLS_LIST_RECENT) {
                         where = String.format(Locale.US, NeighborProtocols.WHERE_CLAUSE_TIME,
                                 BeaconingManager.getRecentTimestamp());
@@ -277,6 +289,9 @@ public class OppNetProvider extends ContentProvider {
                 where = String.format(
                         FullContract.ProtocolNeighbors.WHERE_CLAUSE_PROTOCOL_AND_TIME,
                         protocolHashAsHex, filterTime);
+                if (filterTime > 0) {
+                    where = excludeDepartedNeighbors(where);
+                }
                 break;
             }
 
@@ -301,6 +316,11 @@ public class OppNetProvider extends ContentProvider {
                 break;
             }
 
+            case METRICS: {
+                // Metrics are kept in memory, not in the database
+                return queryMetrics();
+            }
+
             default: {
                 // Something which should not be queried remotely.
                 return null;
@@ -319,6 +339,42 @@ public class OppNetProvider extends ContentProvider {
         return result;
     }
 
+    /**
+     * Excludes the neighbors which have most likely departed, although they have been seen recently
+     * enough to be current (see {@link LivenessEstimator}).
+     *
+     * @param where the WHERE clause selecting the current neighbors
+     * @return the WHERE clause excluding the departed neighbors
+     */
+    private static String excludeDepartedNeighbors(String where) {
+        final Set<ByteBuffer> departedNodeIds = LivenessEstimator.getInstance()
+                .getDepartedNodeIds(BeaconingManager.getCurrentPeriodMillis());
+        if (departedNodeIds.isEmpty()) {
+            return where;
+        }
+
+        final StringBuilder nodeIds = new StringBuilder();
+        for (final ByteBuffer nodeId : departedNodeIds) {
+            if (nodeIds.length() > 0) {
+                nodeIds.append(", ");
+            }
+            nodeIds.append("X'").append(ByteUtils.bytesToHex(nodeId.array())).append("'");
+        }
+        return where + " and "
+                + String.format(Neighbors.WHERE_CLAUSE_NODE_ID_EXCLUDED, nodeIds.toString());
+    }
+
+    private Cursor queryMetrics() {
+        final MatrixCursor result = new MatrixCursor(Metrics.PROJECTION_DEFAULT);
+        for (final Map.Entry<String, Number> metric :
+                BeaconMetrics.getInstance().getSnapshot().entrySet()) {
+            result.addRow(new Object[] {
+                    metric.getKey(), metric.getValue()
+            });
+        }
+        return result;
+    }
+
     @Override
     public Uri insert(Uri uri, ContentValues values) {
         UriMatch match = getSafeUriMatch(uri);
@@ -11,26 +11,27 @@ import ch.ethz.csg.oppnet.data.FullContract.PacketQueues;
 import ch.ethz.csg.oppnet.data.Identity;
 import ch.ethz.csg.oppnet.lib.data.Neighbor;
 import ch.ethz.csg.oppnet.lib.data.NeighborObserver;
+import ch.ethz.csg.oppnet.network.PacketFraming;
+import ch.ethz.csg.oppnet.network.UdpSelectorLoop;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos.TransportPacket;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos.TransportPacketOrBuilder;
-import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Multimap;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
-import java.net.SocketTimeoutException;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DataExchangeManager implements
         NeighborObserver.NeighborChangeCallback,
@@ -43,7 +44,9 @@ public class DataExchangeManager implements
     private final NeighborObserver mNeighborObserver;
     private final Identity mIdentity;
 
-    private PacketReceiver mPacketReceiver;
+    private UdpSelectorLoop mReceiveLoop;
+    private DatagramChannel mPacketChannel;
+    private ExecutorService mPacketProcessor;
 
     /**
      * Mapping from neighbor node IDs to Neighbor objects.
@@ -66,16 +69,29 @@ public class DataExchangeManager implements
         mNeighborObserver = new NeighborObserver(mContext, this);
     }
 
-    public void start() {
+    /**
+     * @param receiveLoop the loop on which incoming TransportPackets are received
+     */
+    public void start(UdpSelectorLoop receiveLoop) {
         mNeighborObserver.register();
         mPacketRegistry.registerCallback(this);
 
-        mPacketReceiver = new PacketReceiver(mPacketRegistry);
-        new Thread(mPacketReceiver).start();
+        mReceiveLoop = receiveLoop;
+        mPacketProcessor = Executors.newSingleThreadExecutor();
+        try {
+            mPacketChannel = mReceiveLoop.register(
+                    PacketSenderService.PACKET_RECEIVING_PORT, new PacketReceiver());
+        } catch (IOException e) {
+            Log.e(PacketReceiver.TAG, "Could not create socket to receive TransportPackets", e);
+        }
     }
 
     public void stop() {
-        mPacketReceiver.interrupt();
+        if (mPacketChannel != null) {
+            mReceiveLoop.unregister(mPacketChannel);
+            mPacketChannel = null;
+        }
+        mPacketProcessor.shutdownNow();
 
         mPacketRegistry.unregisterCallback(this);
         mNeighborObserver.unregister();
@@ -149,93 +165,83 @@ public class DataExchangeManager implements
         }
     }
 
-    private class PacketReceiver extends InterruptibleFailsafeRunnable {
+    /**
+     * Receives TransportPackets on the selector loop and stores them on a separate thread, so that
+     * database writes do not hold up the reception of beacons.
+     */
+    private class PacketReceiver implements UdpSelectorLoop.DatagramHandler {
         private static final String TAG = "PacketReceiver";
 
-        private final PacketRegistry mPacketRegistry;
-
-        public PacketReceiver(PacketRegistry packetRegistry) {
-            super(TAG);
-            mPacketRegistry = packetRegistry;
-        }
-
         @Override
-        public void execute() {
-            DatagramSocket socket = null;
-            try {
-                socket = new DatagramSocket(PacketSenderService.PACKET_RECEIVING_PORT);
-                socket.setSoTimeout(5000);
-            } catch (SocketException e) {
-                Log.e(TAG, "Could not create socket to receive TransportPackets", e);
-                if (socket != null) {
-                    socket.close();
+        public void onDatagramReceived(ByteBuffer data, InetSocketAddress source) {
+            final byte[] rawData = new byte[data.remaining()];
+            data.get(rawData);
+
+            int offset = PacketFraming.HEADER_SIZE;
+            int length = PacketFraming.getPayloadLength(
+                    rawData, 0, rawData.length, PacketFraming.TYPE_TRANSPORT_PACKET);
+            if (length < 0) {
+                if (!PacketFraming.ACCEPT_UNFRAMED
+                        || PacketFraming.hasMagic(rawData, 0, rawData.length)) {
+                    // Not a (valid) TransportPacket, skip
+                    return;
                 }
+                // Possibly an unframed packet sent by an older node
+                offset = 0;
+                length = rawData.length;
+            }
+
+            final TransportPacket incomingPacket;
+            try {
+                incomingPacket = TransportPacket.PARSER.parseFrom(rawData, offset, length);
+            } catch (InvalidProtocolBufferException e) {
+                // Not a TransportPacket, skip
                 return;
             }
 
-            byte[] buffer = new byte[65536];
-            DatagramPacket udpPacket = new DatagramPacket(buffer, buffer.length);
-            while (!mThread.isInterrupted()) {
-                // Android sometimes limits the incoming packet size to the previously received
-                // packet size. The following call circumvents this problem.
-                udpPacket.setData(buffer);
-
-                try {
-                    socket.receive(udpPacket);
-                } catch (SocketTimeoutException e) {
-                    // There were no packets in the past few seconds - try again.
-                    continue;
-                } catch (IOException e) {
-                    Log.e(TAG, "Error while receiving TransportPacket:", e);
-                    continue;
+            mPacketProcessor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    registerIncomingPacket(incomingPacket);
                 }
+            });
+        }
 
-                final TransportPacket incomingPacket;
-                try {
-                    incomingPacket = TransportPacket.parseFrom(
-                            Arrays.copyOf(udpPacket.getData(), udpPacket.getLength()));
-                } catch (InvalidProtocolBufferException e) {
-                    // Not a TransportPacket, skip
-                    continue;
-                }
+        private void registerIncomingPacket(TransportPacket incomingPacket) {
+            // Calculate packet queues to put the incoming packet into
+            final List<PacketQueues> queue = new ArrayList<>();
 
-                // Calculate packet queues to put the incoming packet into
-                final List<PacketQueues> queue = new ArrayList<>();
+            final boolean isReceiver = (incomingPacket.hasTargetNode() && Arrays.equals(
+                    incomingPacket.getTargetNode().toByteArray(), mIdentity.getPublicKey()));
 
-                final boolean isReceiver = (incomingPacket.hasTargetNode() && Arrays.equals(
-                        incomingPacket.getTargetNode().toByteArray(), mIdentity.getPublicKey()));
+            final ByteBuffer protocol = incomingPacket.getProtocol().asReadOnlyByteBuffer();
+            final boolean supportedProtocol =
+                    mProtocolRegistry.hasProtocolImplementations(protocol);
 
-                final ByteBuffer protocol = incomingPacket.getProtocol().asReadOnlyByteBuffer();
-                final boolean supportedProtocol =
-                        mProtocolRegistry.hasProtocolImplementations(protocol);
+            if (isReceiver) {
+                if (!supportedProtocol) {
+                    // The packet is targeted at us, but there is no client app installed
+                    // which implements the protocol (otherwise, the 'if' clause would have
+                    // consumed the packet already) - reject this packet.
+                    Log.v(TAG, "Rejecting incoming packet");
+                    return;
+                }
 
-                if (isReceiver) {
-                    if (!supportedProtocol) {
-                        // The packet is targeted at us, but there is no client app installed
-                        // which implements the protocol (otherwise, the 'if' clause would have
-                        // consumed the packet already) - reject this packet.
-                        Log.v(TAG, "Rejecting incoming packet");
-                        continue;
-                    }
+                Log.v(TAG, "Adding incoming packet (targeted) to INCOMING queue");
+                queue.add(PacketQueues.INCOMING);
+            } else {
+                // No target node always means "FORWARDING"
+                Log.v(TAG, "Adding incoming packet to FORWARDING queue");
+                queue.add(PacketQueues.FORWARDING);
 
-                    Log.v(TAG, "Adding incoming packet (targeted) to INCOMING queue");
+                if (!incomingPacket.hasTargetNode() && supportedProtocol) {
+                    Log.v(TAG, "Adding incoming packet (untargeted) to INCOMING queue");
                     queue.add(PacketQueues.INCOMING);
-                } else {
-                    // No target node always means "FORWARDING"
-                    Log.v(TAG, "Adding incoming packet to FORWARDING queue");
-                    queue.add(PacketQueues.FORWARDING);
-
-                    if (!incomingPacket.hasTargetNode() && supportedProtocol) {
-                        Log.v(TAG, "Adding incoming packet (untargeted) to INCOMING queue");
-                        queue.add(PacketQueues.INCOMING);
-                    }
                 }
-
-                mPacketRegistry.registerIncomingPacket(
-                        incomingPacket, queue.toArray(new PacketQueues[] {}));
             }
 
-            socket.close();
+            mPacketRegistry.registerIncomingPacket(
+                    incomingPacket, queue.toArray(new PacketQueues[] {}));
         }
     }
 }
@@ -21,8 +21,10 @@ import com.google.common.collect.Multimap;
 import com.google.protobuf.ByteString;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PacketRegistry {
     public static interface PacketAddedCallback {
@@ -42,6 +44,11 @@ public class PacketRegistry {
      */
     private final Multimap<ByteBuffer, Long> mOutgoingPacketProtocolsMap = HashMultimap.create();
     private final Set<Long> mForwardingPackets = new HashSet<>();
+    /**
+     * Protocols of all outgoing and forwarding packets, also read by the beacon parser threads
+     */
+    private final Set<ByteBuffer> mPacketProtocols =
+            Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>());
     private final Set<Long> mUnencryptedBroadcastingPackets = new HashSet<>();
     private final Set<PacketAddedCallback> mCallbacks = new HashSet<>();
 
@@ -71,8 +78,9 @@ public class PacketRegistry {
 
         while (packetCursor.moveToNext()) {
             final long packetId = packetCursor.getLong(colIdxPacketId);
-            mOutgoingPacketProtocolsMap.put(
-                    ByteBuffer.wrap(packetCursor.getBlob(colIdxProtocol)), packetId);
+            final ByteBuffer protocol = ByteBuffer.wrap(packetCursor.getBlob(colIdxProtocol));
+            mOutgoingPacketProtocolsMap.put(protocol, packetId);
+            mPacketProtocols.add(protocol);
 
             if (packetCursor.getInt(colIdxQueue) == PacketQueues.FORWARDING.ordinal()) {
                 mForwardingPackets.add(packetId);
@@ -118,6 +126,7 @@ public class PacketRegistry {
             for (PacketQueues queue : queues) {
                 if (queue == PacketQueues.FORWARDING) {
                     mForwardingPackets.add(incomingPacketId);
+                    mPacketProtocols.add(ByteBuffer.wrap(packet.getProtocol().toByteArray()));
                     break;
                 }
             }
@@ -131,8 +140,9 @@ public class PacketRegistry {
             Implementation implementation, ContentValues packetData) {
         final long packetId = mDbController.insertOutgoingPacket(implementation, packetData);
         if (packetId > 0) {
-            mOutgoingPacketProtocolsMap.put(
-                    ByteBuffer.wrap(implementation.getProtocolHash()), packetId);
+            final ByteBuffer protocol = ByteBuffer.wrap(implementation.getProtocolHash());
+            mOutgoingPacketProtocolsMap.put(protocol, packetId);
+            mPacketProtocols.add(protocol);
             if (!packetData.containsKey(Packets.COLUMN_TARGET_NODE)
                     && !implementation.isEncrypted()) {
                 mUnencryptedBroadcastingPackets.add(packetId);
@@ -166,6 +176,13 @@ public class PacketRegistry {
         return interestingPacketIds;
     }
 
+    /**
+     * @return the protocols of all packets which are sent or forwarded to neighbors
+     */
+    public Set<ByteBuffer> getPacketProtocols() {
+        return Collections.unmodifiableSet(mPacketProtocols);
+    }
+
     public boolean isUnencryptedBroadcastPacket(long packetId) {
         return mUnencryptedBroadcastingPackets.contains(packetId);
     }
@@ -7,11 +7,14 @@ import android.content.Intent;
 import android.util.Log;
 
 import ch.ethz.csg.oppnet.apps.ProtocolRegistry;
+import ch.ethz.csg.oppnet.beaconing.BeaconMetrics;
 import ch.ethz.csg.oppnet.beaconing.BeaconingManager;
+import ch.ethz.csg.oppnet.beaconing.LivenessEstimator;
 import ch.ethz.csg.oppnet.crypto.CryptoHelper;
 import ch.ethz.csg.oppnet.data.DbController;
 import ch.ethz.csg.oppnet.data.Implementation;
 import ch.ethz.csg.oppnet.lib.data.Neighbor;
+import ch.ethz.csg.oppnet.network.PacketFraming;
 import ch.ethz.csg.oppnet.protobuf.OppNetProtos.TransportPacket;
 
 import com.google.protobuf.ByteString;
@@ -41,6 +44,8 @@ public class PacketSenderService extends IntentService {
     private DatagramSocket mSendSocket;
     private ProtocolRegistry mProtocolRegistry;
     private BeaconingManager mBeaconingManager;
+    private final LivenessEstimator mLiveness = LivenessEstimator.getInstance();
+    private final BeaconMetrics mMetrics = BeaconMetrics.getInstance();
 
     /**
      * Starts this service to perform action Foo with the given parameters. If the service is
@@ -114,6 +119,14 @@ public class PacketSenderService extends IntentService {
             mBeaconingManager.setWifiConnectionLocked(false);
             return;
         }
+        final boolean departed = mLiveness.hasDepartedFromWifi(neighbor.getNodeId());
+        mMetrics.onPacketSendChecked(departed);
+        if (departed) {
+            // The neighbor has most likely left the network since, so the packet would be wasted
+            Log.v(TAG, "Skipping packet " + packetId + " to departed neighbor " + neighbor);
+            mBeaconingManager.setWifiConnectionLocked(false);
+            return;
+        }
         Log.v(TAG, "Preparing packet " + packetId + " to be sent to neighbor " + neighbor);
 
         // Encrypt and/or sign, if necessary
@@ -141,7 +154,8 @@ public class PacketSenderService extends IntentService {
         }
 
         // Send packet to neighbor
-        final byte[] packet = builder.build().toByteArray();
+        final byte[] packet =
+                PacketFraming.frame(PacketFraming.TYPE_TRANSPORT_PACKET, builder.build());
         Log.v(TAG, "\tsent " + packet.length + " bytes");
         DatagramPacket rawPacket = new DatagramPacket(
                 packet, packet.length, neighbor.getAnyIpAddress(), PACKET_RECEIVING_PORT);
@@ -0,0 +1,74 @@
+
+package ch.ethz.csg.oppnet.network;
+
+import com.google.common.base.Objects;
+import com.google.common.net.InetAddresses;
+import com.google.common.primitives.Ints;
+
+import java.net.Inet4Address;
+
+/**
+ * An IPv4 subnet, as configured by DHCP, and the own address within it.
+ * <p>
+ * The hosts of the subnet are numbered from 0 (the first address after the network address) to
+ * {@link #getHostCount()} - 1 (the last address before the broadcast address).
+ */
+public class Ip4Subnet {
+    private final int mNetworkAddress;
+    private final int mNetmask;
+    private final int mOwnAddress;
+
+    /**
+     * @param address any address within the subnet, as big-endian integer
+     * @param netmask the netmask, as big-endian integer
+     */
+    public Ip4Subnet(int address, int netmask) {
+        mNetworkAddress = address & netmask;
+        mNetmask = netmask;
+        mOwnAddress = address;
+    }
+
+    public int getPrefixLength() {
+        return Integer.bitCount(mNetmask);
+    }
+
+    /**
+     * @return the number of usable host addresses in the subnet (including the own one)
+     */
+    public int getHostCount() {
+        // Excluding the network and the broadcast address
+        return Math.max(0, ~mNetmask - 1);
+    }
+
+    /**
+     * @return the index of the own address among the hosts of the subnet
+     */
+    public int getOwnHostIndex() {
+        return (mOwnAddress & ~mNetmask) - 1;
+    }
+
+    /**
+     * @param hostIndex the index of the host, between 0 and {@link #getHostCount()} - 1
+     * @return the address of the host
+     */
+    public Inet4Address getHost(int hostIndex) {
+        if (hostIndex < 0 || hostIndex >= getHostCount()) {
+            throw new IndexOutOfBoundsException(
+                    "Host " + hostIndex + " is not within a /" + getPrefixLength() + " subnet");
+        }
+        return InetAddresses.fromInteger(mNetworkAddress + 1 + hostIndex);
+    }
+
+    public boolean contains(Inet4Address address) {
+        return (Ints.fromByteArray(address.getAddress()) & mNetmask) == mNetworkAddress;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .add("network", InetAddresses.fromInteger(mNetworkAddress).getHostAddress())
+                .add("prefixLength", getPrefixLength())
+                .add("hosts", getHostCount())
+                .toString();
+    }
+}
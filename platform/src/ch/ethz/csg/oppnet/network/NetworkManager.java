@@ -23,16 +23,13 @@ import ch.ethz.csg.oppnet.data.ConfigurationStore;
 import ch.ethz.csg.oppnet.network.NetworkStateChangeReceiver.NetworkChangeListener;
 
 import com.google.common.base.Optional;
-import com.google.common.primitives.Ints;
 import com.google.protobuf.ByteString;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
-import java.net.UnknownHostException;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -298,41 +295,17 @@ public class NetworkManager {
     }
 
     /**
-     * Generates a list of up to 256 continuous IPv4 addresses in the subnet currently connected to,
-     * by incrementing the least significant byte of the IP address from the subnet's start address.
-     * 
-     * @return a list of InetAddress objects
+     * @return the IPv4 subnet currently connected to, as configured by DHCP
      */
-    public List<InetAddress> getIp4SweepRange() {
-        final List<InetAddress> addresses = new ArrayList<>();
+    public Optional<Ip4Subnet> getIp4Subnet() {
+        final DhcpInfo dhcp = mWifiManager.getDhcpInfo();
+        if (dhcp == null || dhcp.ipAddress == 0 || dhcp.netmask == 0) {
+            return Optional.absent();
+        }
 
-        DhcpInfo dhcp = mWifiManager.getDhcpInfo();
         // NOTE: netmask and ipAddress are little-endian, but we want big-endian
-        final byte[] netmask = Ints.toByteArray(Integer.reverseBytes(dhcp.netmask));
-        final byte[] ownIp = Ints.toByteArray(Integer.reverseBytes(dhcp.ipAddress));
-
-        byte[] baseAddress = {
-                (byte) (ownIp[0] & netmask[0]),
-                (byte) (ownIp[1] & netmask[1]),
-                (byte) (ownIp[2] & netmask[2]),
-                (byte) (ownIp[3] & netmask[3])
-        };
-
-        // Stop when reaching end of subnet or after at most 255 addresses, whichever comes first
-        do {
-            ++baseAddress[3];
-
-            if (baseAddress[3] != ownIp[3]) {
-                // Skip own address
-                try {
-                    addresses.add(InetAddress.getByAddress(baseAddress));
-                } catch (UnknownHostException e) {
-                    // Skip
-                }
-            }
-        } while ((baseAddress[3] | netmask[3]) != (byte) 0xFF);
-
-        return addresses;
+        return Optional.of(new Ip4Subnet(
+                Integer.reverseBytes(dhcp.ipAddress), Integer.reverseBytes(dhcp.netmask)));
     }
 
     public boolean initiateWifiScan() {
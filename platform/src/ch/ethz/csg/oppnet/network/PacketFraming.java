@@ -0,0 +1,148 @@
+
+package ch.ethz.csg.oppnet.network;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.MessageLite;
+
+import java.io.IOException;
+
+/**
+ * Framing header which precedes every beacon and transport packet sent over the network.
+ * <p>
+ * OppNet shares ports with other protocols (most notably mDNS on port 5353), so receivers get
+ * lots of foreign datagrams. The header allows to reject them by looking at a few bytes, instead
+ * of running them through the protobuf parser. It consists of:
+ *
+ * <pre>
+ * +---------+---------+---------+---------+---------+---------+-------------
+ * |      magic        | version |  type   |  payload length   | payload ...
+ * |   'O'   |   'N'   |         |         |  (big endian)     |
+ * +---------+---------+---------+---------+---------+---------+-------------
+ * </pre>
+ *
+ * The first magic byte is an invalid protobuf tag (wire type 7), so a framed packet can never be
+ * mistaken for an unframed protobuf message, as sent by older nodes.
+ * <p>
+ * Older nodes can not parse framed packets, so framing is rolled out in three steps:
+ * <ol>
+ * <li>Nodes accept framed and unframed packets, but still send unframed ones
+ * ({@link #SEND_FRAMED} disabled).</li>
+ * <li>Once all deployed nodes accept framed packets, {@link #SEND_FRAMED} is enabled.</li>
+ * <li>Once no node sends unframed packets anymore, {@link #ACCEPT_UNFRAMED} is disabled.</li>
+ * </ol>
+ */
+public final class PacketFraming {
+    public static final int HEADER_SIZE = 6;
+    public static final byte VERSION = 1;
+
+    public static final byte TYPE_BEACON = 1;
+    public static final byte TYPE_TRANSPORT_PACKET = 2;
+
+    /**
+     * Compatibility mode: if enabled, unframed packets from nodes running older versions are still
+     * accepted (as far as they can be told apart from foreign traffic).
+     */
+    public static final boolean ACCEPT_UNFRAMED = true;
+
+    /**
+     * If enabled, sent packets are preceded by the framing header. Must stay disabled as long as
+     * nodes which do not accept framed packets are deployed, as they would drop all packets.
+     */
+    public static final boolean SEND_FRAMED = false;
+
+    /**
+     * The size of the header preceding sent packets, 0 if {@link #SEND_FRAMED} is disabled.
+     */
+    public static final int SEND_HEADER_SIZE = (SEND_FRAMED ? HEADER_SIZE : 0);
+
+    private static final byte MAGIC_0 = 'O';
+    private static final byte MAGIC_1 = 'N';
+    private static final int MAX_PAYLOAD_LENGTH = 0xFFFF;
+
+    private PacketFraming() {
+        // Static helper class
+    }
+
+    /**
+     * Serializes a message, preceded by the framing header if {@link #SEND_FRAMED} is enabled.
+     *
+     * @param type the type of the message, one of the TYPE_* constants
+     * @param message the message to serialize
+     * @return the (possibly) framed message
+     */
+    public static byte[] frame(byte type, MessageLite message) {
+        final int payloadLength = message.getSerializedSize();
+        if (payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Message too long to frame: " + payloadLength);
+        }
+
+        final byte[] data = new byte[SEND_HEADER_SIZE + payloadLength];
+        if (SEND_FRAMED) {
+            writeHeader(data, type, payloadLength);
+        }
+
+        final CodedOutputStream output =
+                CodedOutputStream.newInstance(data, SEND_HEADER_SIZE, payloadLength);
+        try {
+            message.writeTo(output);
+            output.checkNoSpaceLeft();
+        } catch (IOException e) {
+            // Can not happen when writing to a correctly sized array
+            throw new IllegalStateException("Serializing to a byte array threw an IOException", e);
+        }
+        return data;
+    }
+
+    /**
+     * Writes the framing header to the start of a buffer, for callers which serialize the payload
+     * themselves.
+     *
+     * @param data the buffer, which must be at least {@link #HEADER_SIZE} bytes long
+     * @param type the type of the message, one of the TYPE_* constants
+     * @param payloadLength the length of the payload which follows the header
+     */
+    public static void writeHeader(byte[] data, byte type, int payloadLength) {
+        if (payloadLength > MAX_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Message too long to frame: " + payloadLength);
+        }
+        data[0] = MAGIC_0;
+        data[1] = MAGIC_1;
+        data[2] = VERSION;
+        data[3] = type;
+        data[4] = (byte) (payloadLength >>> 8);
+        data[5] = (byte) payloadLength;
+    }
+
+    /**
+     * @return true if the data starts with the magic bytes of the framing header
+     */
+    public static boolean hasMagic(byte[] data, int offset, int length) {
+        return length >= 2 && data[offset] == MAGIC_0 && data[offset + 1] == MAGIC_1;
+    }
+
+    /**
+     * Validates the framing header of a received packet.
+     *
+     * @param data the buffer holding the packet
+     * @param offset the offset of the packet (and thus its header) in the buffer
+     * @param length the length of the packet, including the header
+     * @param type the expected type of the packet, one of the TYPE_* constants
+     * @return the length of the payload following the header, or -1 if the header is invalid,
+     *         has an unknown version or type, or does not match the length of the packet
+     */
+    public static int getPayloadLength(byte[] data, int offset, int length, byte type) {
+        if (length < HEADER_SIZE
+                || !hasMagic(data, offset, length)
+                || data[offset + 2] != VERSION
+                || data[offset + 3] != type) {
+            return -1;
+        }
+
+        final int payloadLength = ((data[offset + 4] & 0xFF) << 8) | (data[offset + 5] & 0xFF);
+        if (payloadLength > length - HEADER_SIZE) {
+            // Truncated packet
+            return -1;
+        }
+        return payloadLength;
+    }
+}
@@ -0,0 +1,217 @@
+
+package ch.ethz.csg.oppnet.network;
+
+import android.util.Log;
+
+import ch.ethz.csg.oppnet.utils.InterruptibleFailsafeRunnable;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Single thread serving any number of UDP ports with a {@link Selector}.
+ * <p>
+ * Instead of parking one thread per socket (which wakes up periodically just to check if it has
+ * been interrupted), all channels are multiplexed on this loop. Datagrams are received into a
+ * single reusable direct buffer and handed to the {@link DatagramHandler} registered for the port.
+ * Interrupting the loop wakes it up immediately and closes all registered channels.
+ */
+public class UdpSelectorLoop extends InterruptibleFailsafeRunnable {
+    public static final String TAG = UdpSelectorLoop.class.getSimpleName();
+
+    /**
+     * The largest possible UDP payload, so that no datagram is ever truncated.
+     */
+    public static final int MAX_DATAGRAM_SIZE = 64 * 1024;
+
+    /**
+     * The maximum number of datagrams read from a single channel before the other channels are
+     * served, so that a flood on one port can not starve the others.
+     */
+    private static final int MAX_DATAGRAMS_PER_SELECT = 32;
+
+    /**
+     * Callback for received datagrams. It is invoked on the loop thread, so it must return quickly
+     * and must not keep a reference to the passed buffer.
+     */
+    public interface DatagramHandler {
+        public void onDatagramReceived(ByteBuffer data, InetSocketAddress source);
+    }
+
+    private final ByteBuffer mBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_SIZE);
+    private final Queue<Registration> mPendingRegistrations = new ConcurrentLinkedQueue<>();
+    private volatile Selector mSelector;
+
+    public UdpSelectorLoop() {
+        super(TAG);
+    }
+
+    /**
+     * Opens a channel bound to the specified port and registers it with this loop. Channels can be
+     * registered before the loop has been started.
+     *
+     * @param port the local UDP port to receive on
+     * @param handler the callback for datagrams received on the port
+     * @return the new channel, to be passed to {@link #unregister(DatagramChannel)} eventually
+     * @throws IOException if the channel could not be opened or bound
+     */
+    public DatagramChannel register(int port, DatagramHandler handler) throws IOException {
+        final DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(port));
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        mPendingRegistrations.add(new Registration(channel, handler));
+        wakeup();
+        return channel;
+    }
+
+    /**
+     * Stops receiving on a channel and closes it.
+     *
+     * @param channel a channel returned by {@link #register(int, DatagramHandler)}
+     */
+    public void unregister(DatagramChannel channel) {
+        try {
+            // Closing the channel also cancels its selection key
+            channel.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error while closing channel", e);
+        }
+        wakeup();
+    }
+
+    @Override
+    public void interrupt() {
+        if (mThread == null) {
+            // The loop has not been started yet, so it will never close these channels itself
+            closePendingChannels();
+        }
+        super.interrupt();
+        wakeup();
+    }
+
+    private void wakeup() {
+        final Selector selector = mSelector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    protected void execute() {
+        try {
+            mSelector = Selector.open();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not open selector, aborting.", e);
+            closePendingChannels();
+            return;
+        }
+
+        try {
+            while (!mThread.isInterrupted()) {
+                registerPendingChannels();
+                mSelector.select();
+
+                final Iterator<SelectionKey> keys = mSelector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    final SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        receiveFrom(key);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Error while selecting channels, aborting.", e);
+        } finally {
+            closePendingChannels();
+            for (final SelectionKey key : mSelector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Nothing left to do
+                }
+            }
+            try {
+                mSelector.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+
+    private void registerPendingChannels() {
+        Registration registration;
+        while ((registration = mPendingRegistrations.poll()) != null) {
+            try {
+                registration.mChannel.register(
+                        mSelector, SelectionKey.OP_READ, registration.mHandler);
+            } catch (ClosedChannelException e) {
+                // Already unregistered again
+            }
+        }
+    }
+
+    private void closePendingChannels() {
+        Registration registration;
+        while ((registration = mPendingRegistrations.poll()) != null) {
+            try {
+                registration.mChannel.close();
+            } catch (IOException e) {
+                // Nothing left to do
+            }
+        }
+    }
+
+    private void receiveFrom(SelectionKey key) {
+        final DatagramChannel channel = (DatagramChannel) key.channel();
+        final DatagramHandler handler = (DatagramHandler) key.attachment();
+
+        for (int i = 0; i < MAX_DATAGRAMS_PER_SELECT; i++) {
+            mBuffer.clear();
+            final InetSocketAddress source;
+            try {
+                source = (InetSocketAddress) channel.receive(mBuffer);
+            } catch (IOException e) {
+                Log.e(TAG, "Error while receiving datagram", e);
+                return;
+            }
+
+            if (source == null) {
+                // No more datagrams waiting on this channel
+                return;
+            }
+
+            mBuffer.flip();
+            try {
+                handler.onDatagramReceived(mBuffer, source);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Failed to handle datagram from " + source, e);
+            }
+        }
+    }
+
+    private static final class Registration {
+        private final DatagramChannel mChannel;
+        private final DatagramHandler mHandler;
+
+        public Registration(DatagramChannel channel, DatagramHandler handler) {
+            mChannel = channel;
+            mHandler = handler;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+
+package ch.ethz.csg.oppnet.network;
+
+import android.util.Log;
+
+import com.google.common.base.Objects;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.MulticastSocket;
+import java.net.NetworkInterface;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived UDP socket bound to the WiFi interface, shared by everything which sends beacons.
+ * <p>
+ * Creating a socket per send costs several system calls (socket, setsockopt, bind, close) on
+ * every beacon tick and every reply. Instead, the socket is only recreated when the WiFi network
+ * changes, or if it is asked to send over another interface than the one it is bound to.
+ * Concurrent sends are safe, as sending a datagram is atomic.
+ */
+public class UdpSendChannel {
+    private static final String TAG = UdpSendChannel.class.getSimpleName();
+
+    private MulticastSocket mSocket;
+    private NetworkInterface mInterface;
+
+    private final AtomicLong mSendCount = new AtomicLong();
+    private final AtomicLong mSentBytes = new AtomicLong();
+    private final AtomicLong mErrorCount = new AtomicLong();
+    private final AtomicLong mRebindCount = new AtomicLong();
+
+    /**
+     * Closes the current socket (if any), and opens a new one bound to the specified interface.
+     *
+     * @param wifiInterface the interface to send from
+     * @throws IOException if the socket could not be created
+     */
+    public synchronized void rebind(NetworkInterface wifiInterface) throws IOException {
+        close();
+
+        final MulticastSocket socket = new MulticastSocket(null);
+        try {
+            socket.setReuseAddress(true);
+            socket.setLoopbackMode(true);
+            socket.setBroadcast(true);
+            socket.setNetworkInterface(wifiInterface);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+
+        mSocket = socket;
+        mInterface = wifiInterface;
+        mRebindCount.incrementAndGet();
+        Log.v(TAG, "Bound send channel to " + wifiInterface.getName());
+    }
+
+    /**
+     * Closes the socket. The next send will open a new one.
+     */
+    public synchronized void close() {
+        if (mSocket != null) {
+            mSocket.close();
+            mSocket = null;
+            mInterface = null;
+        }
+    }
+
+    /**
+     * Sends a datagram over the specified interface, rebinding the channel first if necessary.
+     *
+     * @param packet the datagram, including its destination
+     * @param wifiInterface the interface to send from
+     * @return true if the datagram has been handed to the network stack
+     */
+    public boolean send(DatagramPacket packet, NetworkInterface wifiInterface) {
+        final MulticastSocket socket;
+        synchronized (this) {
+            if (mSocket == null || !wifiInterface.equals(mInterface)) {
+                try {
+                    rebind(wifiInterface);
+                } catch (IOException e) {
+                    Log.e(TAG, "Could not create socket to send datagrams:", e);
+                    mErrorCount.incrementAndGet();
+                    return false;
+                }
+            }
+            socket = mSocket;
+        }
+
+        try {
+            socket.send(packet);
+        } catch (IOException e) {
+            // Also happens if the socket is closed concurrently by a rebind
+            mErrorCount.incrementAndGet();
+            return false;
+        }
+        mSendCount.incrementAndGet();
+        mSentBytes.addAndGet(packet.getLength());
+        return true;
+    }
+
+    /**
+     * @return the number of datagrams sent successfully, i.e. the number of send system calls
+     */
+    public long getSendCount() {
+        return mSendCount.get();
+    }
+
+    public long getSentBytes() {
+        return mSentBytes.get();
+    }
+
+    /**
+     * @return the number of failed sends, including failures to create the socket
+     */
+    public long getErrorCount() {
+        return mErrorCount.get();
+    }
+
+    /**
+     * @return the number of times a socket has been created
+     */
+    public long getRebindCount() {
+        return mRebindCount.get();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return Objects.toStringHelper(this)
+                .add("interface", (mInterface == null ? null : mInterface.getName()))
+                .add("sent", mSendCount.get())
+                .add("bytes", mSentBytes.get())
+                .add("errors", mErrorCount.get())
+                .add("rebinds", mRebindCount.get())
+                .toString();
+    }
+}
@@ -20,6 +20,7 @@ public class WifiConnection {
     private final Optional<Inet6Address> mIp6Address;
     private final Optional<InetAddress> mApAddress;
     private final Optional<String> mNetworkName;
+    private final Optional<String> mBssid;
     private final NetworkInterface mWifiInterface;
 
     public static WifiConnection fromStaMode(
@@ -50,7 +51,8 @@ public class WifiConnection {
             networkName = NetworkManager.unquoteSSID(networkName);
         }
 
-        return new WifiConnection(ip4, ip6, apIp, networkName, iface);
+        return new WifiConnection(
+                ip4, ip6, apIp, networkName, connection.getBSSID(), iface);
     }
 
     public static WifiConnection fromApMode(NetworkInterface iface, String apName) {
@@ -65,15 +67,16 @@ public class WifiConnection {
             }
         }
 
-        return new WifiConnection(ip4, ip6, null, apName, iface);
+        return new WifiConnection(ip4, ip6, null, apName, null, iface);
     }
 
     private WifiConnection(Inet4Address ip4, Inet6Address ip6, InetAddress apIp, String ssid,
-            NetworkInterface wifiInterface) {
+            String bssid, NetworkInterface wifiInterface) {
         mIp4Address = Optional.fromNullable(ip4);
         mIp6Address = Optional.fromNullable(ip6);
         mApAddress = Optional.fromNullable(apIp);
         mNetworkName = Optional.fromNullable(ssid);
+        mBssid = Optional.fromNullable(bssid);
         mWifiInterface = wifiInterface;
     }
 
@@ -109,6 +112,13 @@ public class WifiConnection {
         return mNetworkName;
     }
 
+    /**
+     * @return the MAC address of the access point this node is connected to, if known
+     */
+    public Optional<String> getBssid() {
+        return mBssid;
+    }
+
     public boolean isConnected() {
         return mNetworkName.isPresent();
     }
@@ -135,6 +135,130 @@ public final class OppNetProtos {
      */
     ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder getNeighborsOrBuilder(
         int index);
+
+    // optional uint32 list_version = 30;
+    /**
+     * <code>optional uint32 list_version = 30;</code>
+     *
+     * <pre>
+     * The version of the sender's last full neighbor list
+     * </pre>
+     */
+    boolean hasListVersion();
+    /**
+     * <code>optional uint32 list_version = 30;</code>
+     *
+     * <pre>
+     * The version of the sender's last full neighbor list
+     * </pre>
+     */
+    int getListVersion();
+
+    // optional bool delta = 31;
+    /**
+     * <code>optional bool delta = 31;</code>
+     *
+     * <pre>
+     * If the neighbors only contain the changes to the full neighbor list of list_version
+     * </pre>
+     */
+    boolean hasDelta();
+    /**
+     * <code>optional bool delta = 31;</code>
+     *
+     * <pre>
+     * If the neighbors only contain the changes to the full neighbor list of list_version
+     * </pre>
+     */
+    boolean getDelta();
+
+    // repeated bytes removed_neighbors = 32;
+    /**
+     * <code>repeated bytes removed_neighbors = 32;</code>
+     *
+     * <pre>
+     * The node ids which have been removed from the full neighbor list of list_version (delta only)
+     * </pre>
+     */
+    java.util.List<com.google.protobuf.ByteString> getRemovedNeighborsList();
+    /**
+     * <code>repeated bytes removed_neighbors = 32;</code>
+     *
+     * <pre>
+     * The node ids which have been removed from the full neighbor list of list_version (delta only)
+     * </pre>
+     */
+    int getRemovedNeighborsCount();
+    /**
+     * <code>repeated bytes removed_neighbors = 32;</code>
+     *
+     * <pre>
+     * The node ids which have been removed from the full neighbor list of list_version (delta only)
+     * </pre>
+     */
+    com.google.protobuf.ByteString getRemovedNeighbors(int index);
+
+    // repeated bytes resync_requests = 33;
+    /**
+     * <code>repeated bytes resync_requests = 33;</code>
+     *
+     * <pre>
+     * The node ids of the nodes this sender requests a full neighbor list from
+     * </pre>
+     */
+    java.util.List<com.google.protobuf.ByteString> getResyncRequestsList();
+    /**
+     * <code>repeated bytes resync_requests = 33;</code>
+     *
+     * <pre>
+     * The node ids of the nodes this sender requests a full neighbor list from
+     * </pre>
+     */
+    int getResyncRequestsCount();
+    /**
+     * <code>repeated bytes resync_requests = 33;</code>
+     *
+     * <pre>
+     * The node ids of the nodes this sender requests a full neighbor list from
+     * </pre>
+     */
+    com.google.protobuf.ByteString getResyncRequests(int index);
+
+    // optional bytes reply_to = 34;
+    /**
+     * <code>optional bytes reply_to = 34;</code>
+     *
+     * <pre>
+     * The node id of the sender of the beacon this is a reply to (reply only)
+     * </pre>
+     */
+    boolean hasReplyTo();
+    /**
+     * <code>optional bytes reply_to = 34;</code>
+     *
+     * <pre>
+     * The node id of the sender of the beacon this is a reply to (reply only)
+     * </pre>
+     */
+    com.google.protobuf.ByteString getReplyTo();
+
+    // optional uint32 sequence_number = 35;
+    /**
+     * <code>optional uint32 sequence_number = 35;</code>
+     *
+     * <pre>
+     * Counts the regular beacons of the sender, to let receivers estimate their loss
+     * </pre>
+     */
+    boolean hasSequenceNumber();
+    /**
+     * <code>optional uint32 sequence_number = 35;</code>
+     *
+     * <pre>
+     * Counts the regular beacons of the sender, to let receivers estimate their loss
+     * </pre>
+     */
+    int getSequenceNumber();
   }
   /**
    * Protobuf type {@code ch.ethz.csg.oppnet.protobuf.Beacon}
@@ -229,6 +353,42 @@ public final class OppNetProtos {
               neighbors_.add(input.readMessage(ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.PARSER, extensionRegistry));
               break;
             }
+            case 240: {
+              bitField0_ |= 0x00000010;
+              listVersion_ = input.readUInt32();
+              break;
+            }
+            case 248: {
+              bitField0_ |= 0x00000020;
+              delta_ = input.readBool();
+              break;
+            }
+            case 258: {
+              if (!((mutable_bitField0_ & 0x00000080) == 0x00000080)) {
+                removedNeighbors_ = new java.util.ArrayList<com.google.protobuf.ByteString>();
+                mutable_bitField0_ |= 0x00000080;
+              }
+              removedNeighbors_.add(input.readBytes());
+              break;
+            }
+            case 266: {
+              if (!((mutable_bitField0_ & 0x00000100) == 0x00000100)) {
+                resyncRequests_ = new java.util.ArrayList<com.google.protobuf.ByteString>();
+                mutable_bitField0_ |= 0x00000100;
+              }
+              resyncRequests_.add(input.readBytes());
+              break;
+            }
+            case 274: {
+              bitField0_ |= 0x00000040;
+              replyTo_ = input.readBytes();
+              break;
+            }
+            case 280: {
+              bitField0_ |= 0x00000080;
+              sequenceNumber_ = input.readUInt32();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -240,6 +400,12 @@ public final class OppNetProtos {
         if (((mutable_bitField0_ & 0x00000010) == 0x00000010)) {
           neighbors_ = java.util.Collections.unmodifiableList(neighbors_);
         }
+        if (((mutable_bitField0_ & 0x00000080) == 0x00000080)) {
+          removedNeighbors_ = java.util.Collections.unmodifiableList(removedNeighbors_);
+        }
+        if (((mutable_bitField0_ & 0x00000100) == 0x00000100)) {
+          resyncRequests_ = java.util.Collections.unmodifiableList(resyncRequests_);
+        }
         this.unknownFields = unknownFields.build();
         makeExtensionsImmutable();
       }
@@ -516,12 +682,184 @@ public final class OppNetProtos {
       return neighbors_.get(index);
     }
 
+    // optional uint32 list_version = 30;
+    public static final int LIST_VERSION_FIELD_NUMBER = 30;
+    private int listVersion_;
+    /**
+     * <code>optional uint32 list_version = 30;</code>
+     *
+     * <pre>
+     * The version of the sender's last full neighbor list
+     * </pre>
+     */
+    public boolean hasListVersion() {
+      return ((bitField0_ & 0x00000010) == 0x00000010);
+    }
+    /**
+     * <code>optional uint32 list_version = 30;</code>
+     *
+     * <pre>
+     * The version of the sender's last full neighbor list
+     * </pre>
+     */
+    public int getListVersion() {
+      return listVersion_;
+    }
+
+    // optional bool delta = 31;
+    public static final int DELTA_FIELD_NUMBER = 31;
+    private boolean delta_;
+    /**
+     * <code>optional bool delta = 31;</code>
+     *
+     * <pre>
+     * If the neighbors only contain the changes to the full neighbor list of list_version
+     * </pre>
+     */
+    public boolean hasDelta() {
+      return ((bitField0_ & 0x00000020) == 0x00000020);
+    }
+    /**
+     * <code>optional bool delta = 31;</code>
+     *
+     * <pre>
+     * If the neighbors only contain the changes to the full neighbor list of list_version
+     * </pre>
+     */
+    public boolean getDelta() {
+      return delta_;
+    }
+
+    // repeated bytes removed_neighbors = 32;
+    public static final int REMOVED_NEIGHBORS_FIELD_NUMBER = 32;
+    private java.util.List<com.google.protobuf.ByteString> removedNeighbors_;
+    /**
+     * <code>repeated bytes removed_neighbors = 32;</code>
+     *
+     * <pre>
+     * The node ids which have been removed from the full neighbor list of list_version (delta only)
+     * </pre>
+     */
+    public java.util.List<com.google.protobuf.ByteString>
+        getRemovedNeighborsList() {
+      return removedNeighbors_;
+    }
+    /**
+     * <code>repeated bytes removed_neighbors = 32;</code>
+     *
+     * <pre>
+     * The node ids which have been removed from the full neighbor list of list_version (delta only)
+     * </pre>
+     */
+    public int getRemovedNeighborsCount() {
+      return removedNeighbors_.size();
+    }
+    /**
+     * <code>repeated bytes removed_neighbors = 32;</code>
+     *
+     * <pre>
+     * The node ids which have been removed from the full neighbor list of list_version (delta only)
+     * </pre>
+     */
+    public com.google.protobuf.ByteString getRemovedNeighbors(int index) {
+      return removedNeighbors_.get(index);
+    }
+
+    // repeated bytes resync_requests = 33;
+    public static final int RESYNC_REQUESTS_FIELD_NUMBER = 33;
+    private java.util.List<com.google.protobuf.ByteString> resyncRequests_;
+    /**
+     * <code>repeated bytes resync_requests = 33;</code>
+     *
+     * <pre>
+     * The node ids of the nodes this sender requests a full neighbor list from
+     * </pre>
+     */
+    public java.util.List<com.google.protobuf.ByteString>
+        getResyncRequestsList() {
+      return resyncRequests_;
+    }
+    /**
+     * <code>repeated bytes resync_requests = 33;</code>
+     *
+     * <pre>
+     * The node ids of the nodes this sender requests a full neighbor list from
+     * </pre>
+     */
+    public int getResyncRequestsCount() {
+      return resyncRequests_.size();
+    }
+    /**
+     * <code>repeated bytes resync_requests = 33;</code>
+     *
+     * <pre>
+     * The node ids of the nodes this sender requests a full neighbor list from
+     * </pre>
+     */
+    public com.google.protobuf.ByteString getResyncRequests(int index) {
+      return resyncRequests_.get(index);
+    }
+
+    // optional bytes reply_to = 34;
+    public static final int REPLY_TO_FIELD_NUMBER = 34;
+    private com.google.protobuf.ByteString replyTo_;
+    /**
+     * <code>optional bytes reply_to = 34;</code>
+     *
+     * <pre>
+     * The node id of the sender of the beacon this is a reply to (reply only)
+     * </pre>
+     */
+    public boolean hasReplyTo() {
+      return ((bitField0_ & 0x00000040) == 0x00000040);
+    }
+    /**
+     * <code>optional bytes reply_to = 34;</code>
+     *
+     * <pre>
+     * The node id of the sender of the beacon this is a reply to (reply only)
+     * </pre>
+     */
+    public com.google.protobuf.ByteString getReplyTo() {
+      return replyTo_;
+    }
+
+    // optional uint32 sequence_number = 35;
+    public static final int SEQUENCE_NUMBER_FIELD_NUMBER = 35;
+    private int sequenceNumber_;
+    /**
+     * <code>optional uint32 sequence_number = 35;</code>
+     *
+     * <pre>
+     * Counts the regular beacons of the sender, to let receivers estimate their loss
+     * </pre>
+     */
+    public boolean hasSequenceNumber() {
+      return ((bitField0_ & 0x00000080) == 0x00000080);
+    }
+    /**
+     * <code>optional uint32 sequence_number = 35;</code>
+     *
+     * <pre>
+     * Counts the regular beacons of the sender, to let receivers estimate their loss
+     * </pre>
+     */
+    public int getSequenceNumber() {
+      return sequenceNumber_;
+    }
+
     private void initFields() {
       beaconType_ = ch.ethz.csg.oppnet.protobuf.OppNetProtos.Beacon.BeaconType.ORIGINAL;
       beaconId_ = 0;
       timeCreated_ = 0L;
       sender_ = ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.getDefaultInstance();
       neighbors_ = java.util.Collections.emptyList();
+      listVersion_ = 0;
+      delta_ = false;
+      removedNeighbors_ = java.util.Collections.emptyList();
+      resyncRequests_ = java.util.Collections.emptyList();
+      replyTo_ = com.google.protobuf.ByteString.EMPTY;
+      sequenceNumber_ = 0;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -550,6 +888,24 @@ public final class OppNetProtos {
       for (int i = 0; i < neighbors_.size(); i++) {
         output.writeMessage(20, neighbors_.get(i));
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        output.writeUInt32(30, listVersion_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        output.writeBool(31, delta_);
+      }
+      for (int i = 0; i < removedNeighbors_.size(); i++) {
+        output.writeBytes(32, removedNeighbors_.get(i));
+      }
+      for (int i = 0; i < resyncRequests_.size(); i++) {
+        output.writeBytes(33, resyncRequests_.get(i));
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        output.writeBytes(34, replyTo_);
+      }
+      if (((bitField0_ & 0x00000080) == 0x00000080)) {
+        output.writeUInt32(35, sequenceNumber_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -579,6 +935,40 @@ public final class OppNetProtos {
         size += com.google.protobuf.CodedOutputStream
           .computeMessageSize(20, neighbors_.get(i));
       }
+      if (((bitField0_ & 0x00000010) == 0x00000010)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(30, listVersion_);
+      }
+      if (((bitField0_ & 0x00000020) == 0x00000020)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(31, delta_);
+      }
+      {
+        int dataSize = 0;
+        for (int i = 0; i < removedNeighbors_.size(); i++) {
+          dataSize += com.google.protobuf.CodedOutputStream
+            .computeBytesSizeNoTag(removedNeighbors_.get(i));
+        }
+        size += dataSize;
+        size += 2 * getRemovedNeighborsList().size();
+      }
+      {
+        int dataSize = 0;
+        for (int i = 0; i < resyncRequests_.size(); i++) {
+          dataSize += com.google.protobuf.CodedOutputStream
+            .computeBytesSizeNoTag(resyncRequests_.get(i));
+        }
+        size += dataSize;
+        size += 2 * getResyncRequestsList().size();
+      }
+      if (((bitField0_ & 0x00000040) == 0x00000040)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(34, replyTo_);
+      }
+      if (((bitField0_ & 0x00000080) == 0x00000080)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(35, sequenceNumber_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -715,6 +1105,18 @@ public final class OppNetProtos {
         } else {
           neighborsBuilder_.clear();
         }
+        listVersion_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000020);
+        delta_ = false;
+        bitField0_ = (bitField0_ & ~0x00000040);
+        removedNeighbors_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000080);
+        resyncRequests_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000100);
+        replyTo_ = com.google.protobuf.ByteString.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000200);
+        sequenceNumber_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000400);
         return this;
       }
 
@@ -772,6 +1174,32 @@ public final class OppNetProtos {
         } else {
           result.neighbors_ = neighborsBuilder_.build();
         }
+        if (((from_bitField0_ & 0x00000020) == 0x00000020)) {
+          to_bitField0_ |= 0x00000010;
+        }
+        result.listVersion_ = listVersion_;
+        if (((from_bitField0_ & 0x00000040) == 0x00000040)) {
+          to_bitField0_ |= 0x00000020;
+        }
+        result.delta_ = delta_;
+        if (((bitField0_ & 0x00000080) == 0x00000080)) {
+          removedNeighbors_ = java.util.Collections.unmodifiableList(removedNeighbors_);
+          bitField0_ = (bitField0_ & ~0x00000080);
+        }
+        result.removedNeighbors_ = removedNeighbors_;
+        if (((bitField0_ & 0x00000100) == 0x00000100)) {
+          resyncRequests_ = java.util.Collections.unmodifiableList(resyncRequests_);
+          bitField0_ = (bitField0_ & ~0x00000100);
+        }
+        result.resyncRequests_ = resyncRequests_;
+        if (((from_bitField0_ & 0x00000200) == 0x00000200)) {
+          to_bitField0_ |= 0x00000040;
+        }
+        result.replyTo_ = replyTo_;
+        if (((from_bitField0_ & 0x00000400) == 0x00000400)) {
+          to_bitField0_ |= 0x00000080;
+        }
+        result.sequenceNumber_ = sequenceNumber_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -826,12 +1254,44 @@ public final class OppNetProtos {
             }
           }
         }
-        this.mergeUnknownFields(other.getUnknownFields());
-        return this;
-      }
-
-      public final boolean isInitialized() {
-        return true;
+        if (other.hasListVersion()) {
+          setListVersion(other.getListVersion());
+        }
+        if (other.hasDelta()) {
+          setDelta(other.getDelta());
+        }
+        if (!other.removedNeighbors_.isEmpty()) {
+          if (removedNeighbors_.isEmpty()) {
+            removedNeighbors_ = other.removedNeighbors_;
+            bitField0_ = (bitField0_ & ~0x00000080);
+          } else {
+            ensureRemovedNeighborsIsMutable();
+            removedNeighbors_.addAll(other.removedNeighbors_);
+          }
+          onChanged();
+        }
+        if (!other.resyncRequests_.isEmpty()) {
+          if (resyncRequests_.isEmpty()) {
+            resyncRequests_ = other.resyncRequests_;
+            bitField0_ = (bitField0_ & ~0x00000100);
+          } else {
+            ensureResyncRequestsIsMutable();
+            resyncRequests_.addAll(other.resyncRequests_);
+          }
+          onChanged();
+        }
+        if (other.hasReplyTo()) {
+          setReplyTo(other.getReplyTo());
+        }
+        if (other.hasSequenceNumber()) {
+          setSequenceNumber(other.getSequenceNumber());
+        }
+        this.mergeUnknownFields(other.getUnknownFields());
+        return this;
+      }
+
+      public final boolean isInitialized() {
+        return true;
       }
 
       public Builder mergeFrom(
@@ -1380,92 +1840,491 @@ public final class OppNetProtos {
         return this;
       }
       /**
-       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       *
+       * <pre>
+       * A list of nodes which were recently connected to the sender node
+       * </pre>
+       */
+      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder getNeighborsBuilder(
+          int index) {
+        return getNeighborsFieldBuilder().getBuilder(index);
+      }
+      /**
+       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       *
+       * <pre>
+       * A list of nodes which were recently connected to the sender node
+       * </pre>
+       */
+      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder getNeighborsOrBuilder(
+          int index) {
+        if (neighborsBuilder_ == null) {
+          return neighbors_.get(index);  } else {
+          return neighborsBuilder_.getMessageOrBuilder(index);
+        }
+      }
+      /**
+       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       *
+       * <pre>
+       * A list of nodes which were recently connected to the sender node
+       * </pre>
+       */
+      public java.util.List<? extends ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder> 
+           getNeighborsOrBuilderList() {
+        if (neighborsBuilder_ != null) {
+          return neighborsBuilder_.getMessageOrBuilderList();
+        } else {
+          return java.util.Collections.unmodifiableList(neighbors_);
+        }
+      }
+      /**
+       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       *
+       * <pre>
+       * A list of nodes which were recently connected to the sender node
+       * </pre>
+       */
+      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder addNeighborsBuilder() {
+        return getNeighborsFieldBuilder().addBuilder(
+            ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.getDefaultInstance());
+      }
+      /**
+       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       *
+       * <pre>
+       * A list of nodes which were recently connected to the sender node
+       * </pre>
+       */
+      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder addNeighborsBuilder(
+          int index) {
+        return getNeighborsFieldBuilder().addBuilder(
+            index, ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.getDefaultInstance());
+      }
+      /**
+       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       *
+       * <pre>
+       * A list of nodes which were recently connected to the sender node
+       * </pre>
+       */
+      public java.util.List<ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder> 
+           getNeighborsBuilderList() {
+        return getNeighborsFieldBuilder().getBuilderList();
+      }
+      private com.google.protobuf.RepeatedFieldBuilder<
+          ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node, ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder, ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder> 
+          getNeighborsFieldBuilder() {
+        if (neighborsBuilder_ == null) {
+          neighborsBuilder_ = new com.google.protobuf.RepeatedFieldBuilder<
+              ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node, ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder, ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder>(
+                  neighbors_,
+                  ((bitField0_ & 0x00000010) == 0x00000010),
+                  getParentForChildren(),
+                  isClean());
+          neighbors_ = null;
+        }
+        return neighborsBuilder_;
+      }
+
+      // optional uint32 list_version = 30;
+      private int listVersion_ ;
+      /**
+       * <code>optional uint32 list_version = 30;</code>
+       *
+       * <pre>
+       * The version of the sender's last full neighbor list
+       * </pre>
+       */
+      public boolean hasListVersion() {
+        return ((bitField0_ & 0x00000020) == 0x00000020);
+      }
+      /**
+       * <code>optional uint32 list_version = 30;</code>
+       *
+       * <pre>
+       * The version of the sender's last full neighbor list
+       * </pre>
+       */
+      public int getListVersion() {
+        return listVersion_;
+      }
+      /**
+       * <code>optional uint32 list_version = 30;</code>
+       *
+       * <pre>
+       * The version of the sender's last full neighbor list
+       * </pre>
+       */
+      public Builder setListVersion(int value) {
+        bitField0_ |= 0x00000020;
+        listVersion_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 list_version = 30;</code>
+       *
+       * <pre>
+       * The version of the sender's last full neighbor list
+       * </pre>
+       */
+      public Builder clearListVersion() {
+        bitField0_ = (bitField0_ & ~0x00000020);
+        listVersion_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional bool delta = 31;
+      private boolean delta_ ;
+      /**
+       * <code>optional bool delta = 31;</code>
+       *
+       * <pre>
+       * If the neighbors only contain the changes to the full neighbor list of list_version
+       * </pre>
+       */
+      public boolean hasDelta() {
+        return ((bitField0_ & 0x00000040) == 0x00000040);
+      }
+      /**
+       * <code>optional bool delta = 31;</code>
+       *
+       * <pre>
+       * If the neighbors only contain the changes to the full neighbor list of list_version
+       * </pre>
+       */
+      public boolean getDelta() {
+        return delta_;
+      }
+      /**
+       * <code>optional bool delta = 31;</code>
+       *
+       * <pre>
+       * If the neighbors only contain the changes to the full neighbor list of list_version
+       * </pre>
+       */
+      public Builder setDelta(boolean value) {
+        bitField0_ |= 0x00000040;
+        delta_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bool delta = 31;</code>
+       *
+       * <pre>
+       * If the neighbors only contain the changes to the full neighbor list of list_version
+       * </pre>
+       */
+      public Builder clearDelta() {
+        bitField0_ = (bitField0_ & ~0x00000040);
+        delta_ = false;
+        onChanged();
+        return this;
+      }
+
+      // repeated bytes removed_neighbors = 32;
+      private java.util.List<com.google.protobuf.ByteString> removedNeighbors_ = java.util.Collections.emptyList();
+      private void ensureRemovedNeighborsIsMutable() {
+        if (!((bitField0_ & 0x00000080) == 0x00000080)) {
+          removedNeighbors_ = new java.util.ArrayList<com.google.protobuf.ByteString>(removedNeighbors_);
+          bitField0_ |= 0x00000080;
+         }
+      }
+      /**
+       * <code>repeated bytes removed_neighbors = 32;</code>
+       *
+       * <pre>
+       * The node ids which have been removed from the full neighbor list of list_version (delta only)
+       * </pre>
+       */
+      public java.util.List<com.google.protobuf.ByteString>
+          getRemovedNeighborsList() {
+        return java.util.Collections.unmodifiableList(removedNeighbors_);
+      }
+      /**
+       * <code>repeated bytes removed_neighbors = 32;</code>
+       *
+       * <pre>
+       * The node ids which have been removed from the full neighbor list of list_version (delta only)
+       * </pre>
+       */
+      public int getRemovedNeighborsCount() {
+        return removedNeighbors_.size();
+      }
+      /**
+       * <code>repeated bytes removed_neighbors = 32;</code>
+       *
+       * <pre>
+       * The node ids which have been removed from the full neighbor list of list_version (delta only)
+       * </pre>
+       */
+      public com.google.protobuf.ByteString getRemovedNeighbors(int index) {
+        return removedNeighbors_.get(index);
+      }
+      /**
+       * <code>repeated bytes removed_neighbors = 32;</code>
+       *
+       * <pre>
+       * The node ids which have been removed from the full neighbor list of list_version (delta only)
+       * </pre>
+       */
+      public Builder setRemovedNeighbors(
+          int index, com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureRemovedNeighborsIsMutable();
+        removedNeighbors_.set(index, value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bytes removed_neighbors = 32;</code>
+       *
+       * <pre>
+       * The node ids which have been removed from the full neighbor list of list_version (delta only)
+       * </pre>
+       */
+      public Builder addRemovedNeighbors(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureRemovedNeighborsIsMutable();
+        removedNeighbors_.add(value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bytes removed_neighbors = 32;</code>
+       *
+       * <pre>
+       * The node ids which have been removed from the full neighbor list of list_version (delta only)
+       * </pre>
+       */
+      public Builder addAllRemovedNeighbors(
+          java.lang.Iterable<? extends com.google.protobuf.ByteString> values) {
+        ensureRemovedNeighborsIsMutable();
+        super.addAll(values, removedNeighbors_);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bytes removed_neighbors = 32;</code>
+       *
+       * <pre>
+       * The node ids which have been removed from the full neighbor list of list_version (delta only)
+       * </pre>
+       */
+      public Builder clearRemovedNeighbors() {
+        removedNeighbors_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000080);
+        onChanged();
+        return this;
+      }
+
+      // repeated bytes resync_requests = 33;
+      private java.util.List<com.google.protobuf.ByteString> resyncRequests_ = java.util.Collections.emptyList();
+      private void ensureResyncRequestsIsMutable() {
+        if (!((bitField0_ & 0x00000100) == 0x00000100)) {
+          resyncRequests_ = new java.util.ArrayList<com.google.protobuf.ByteString>(resyncRequests_);
+          bitField0_ |= 0x00000100;
+         }
+      }
+      /**
+       * <code>repeated bytes resync_requests = 33;</code>
+       *
+       * <pre>
+       * The node ids of the nodes this sender requests a full neighbor list from
+       * </pre>
+       */
+      public java.util.List<com.google.protobuf.ByteString>
+          getResyncRequestsList() {
+        return java.util.Collections.unmodifiableList(resyncRequests_);
+      }
+      /**
+       * <code>repeated bytes resync_requests = 33;</code>
+       *
+       * <pre>
+       * The node ids of the nodes this sender requests a full neighbor list from
+       * </pre>
+       */
+      public int getResyncRequestsCount() {
+        return resyncRequests_.size();
+      }
+      /**
+       * <code>repeated bytes resync_requests = 33;</code>
+       *
+       * <pre>
+       * The node ids of the nodes this sender requests a full neighbor list from
+       * </pre>
+       */
+      public com.google.protobuf.ByteString getResyncRequests(int index) {
+        return resyncRequests_.get(index);
+      }
+      /**
+       * <code>repeated bytes resync_requests = 33;</code>
+       *
+       * <pre>
+       * The node ids of the nodes this sender requests a full neighbor list from
+       * </pre>
+       */
+      public Builder setResyncRequests(
+          int index, com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureResyncRequestsIsMutable();
+        resyncRequests_.set(index, value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bytes resync_requests = 33;</code>
+       *
+       * <pre>
+       * The node ids of the nodes this sender requests a full neighbor list from
+       * </pre>
+       */
+      public Builder addResyncRequests(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  ensureResyncRequestsIsMutable();
+        resyncRequests_.add(value);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bytes resync_requests = 33;</code>
+       *
+       * <pre>
+       * The node ids of the nodes this sender requests a full neighbor list from
+       * </pre>
+       */
+      public Builder addAllResyncRequests(
+          java.lang.Iterable<? extends com.google.protobuf.ByteString> values) {
+        ensureResyncRequestsIsMutable();
+        super.addAll(values, resyncRequests_);
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>repeated bytes resync_requests = 33;</code>
+       *
+       * <pre>
+       * The node ids of the nodes this sender requests a full neighbor list from
+       * </pre>
+       */
+      public Builder clearResyncRequests() {
+        resyncRequests_ = java.util.Collections.emptyList();
+        bitField0_ = (bitField0_ & ~0x00000100);
+        onChanged();
+        return this;
+      }
+
+      // optional bytes reply_to = 34;
+      private com.google.protobuf.ByteString replyTo_ = com.google.protobuf.ByteString.EMPTY;
+      /**
+       * <code>optional bytes reply_to = 34;</code>
+       *
+       * <pre>
+       * The node id of the sender of the beacon this is a reply to (reply only)
+       * </pre>
+       */
+      public boolean hasReplyTo() {
+        return ((bitField0_ & 0x00000200) == 0x00000200);
+      }
+      /**
+       * <code>optional bytes reply_to = 34;</code>
        *
        * <pre>
-       * A list of nodes which were recently connected to the sender node
+       * The node id of the sender of the beacon this is a reply to (reply only)
        * </pre>
        */
-      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder getNeighborsBuilder(
-          int index) {
-        return getNeighborsFieldBuilder().getBuilder(index);
+      public com.google.protobuf.ByteString getReplyTo() {
+        return replyTo_;
       }
       /**
-       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       * <code>optional bytes reply_to = 34;</code>
        *
        * <pre>
-       * A list of nodes which were recently connected to the sender node
+       * The node id of the sender of the beacon this is a reply to (reply only)
        * </pre>
        */
-      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder getNeighborsOrBuilder(
-          int index) {
-        if (neighborsBuilder_ == null) {
-          return neighbors_.get(index);  } else {
-          return neighborsBuilder_.getMessageOrBuilder(index);
-        }
+      public Builder setReplyTo(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000200;
+        replyTo_ = value;
+        onChanged();
+        return this;
       }
       /**
-       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       * <code>optional bytes reply_to = 34;</code>
        *
        * <pre>
-       * A list of nodes which were recently connected to the sender node
+       * The node id of the sender of the beacon this is a reply to (reply only)
        * </pre>
        */
-      public java.util.List<? extends ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder> 
-           getNeighborsOrBuilderList() {
-        if (neighborsBuilder_ != null) {
-          return neighborsBuilder_.getMessageOrBuilderList();
-        } else {
-          return java.util.Collections.unmodifiableList(neighbors_);
-        }
+      public Builder clearReplyTo() {
+        bitField0_ = (bitField0_ & ~0x00000200);
+        replyTo_ = getDefaultInstance().getReplyTo();
+        onChanged();
+        return this;
       }
+
+      // optional uint32 sequence_number = 35;
+      private int sequenceNumber_ ;
       /**
-       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       * <code>optional uint32 sequence_number = 35;</code>
        *
        * <pre>
-       * A list of nodes which were recently connected to the sender node
+       * Counts the regular beacons of the sender, to let receivers estimate their loss
        * </pre>
        */
-      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder addNeighborsBuilder() {
-        return getNeighborsFieldBuilder().addBuilder(
-            ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.getDefaultInstance());
+      public boolean hasSequenceNumber() {
+        return ((bitField0_ & 0x00000400) == 0x00000400);
       }
       /**
-       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       * <code>optional uint32 sequence_number = 35;</code>
        *
        * <pre>
-       * A list of nodes which were recently connected to the sender node
+       * Counts the regular beacons of the sender, to let receivers estimate their loss
        * </pre>
        */
-      public ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder addNeighborsBuilder(
-          int index) {
-        return getNeighborsFieldBuilder().addBuilder(
-            index, ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.getDefaultInstance());
+      public int getSequenceNumber() {
+        return sequenceNumber_;
       }
       /**
-       * <code>repeated .ch.ethz.csg.oppnet.protobuf.Node neighbors = 20;</code>
+       * <code>optional uint32 sequence_number = 35;</code>
        *
        * <pre>
-       * A list of nodes which were recently connected to the sender node
+       * Counts the regular beacons of the sender, to let receivers estimate their loss
        * </pre>
        */
-      public java.util.List<ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder> 
-           getNeighborsBuilderList() {
-        return getNeighborsFieldBuilder().getBuilderList();
+      public Builder setSequenceNumber(int value) {
+        bitField0_ |= 0x00000400;
+        sequenceNumber_ = value;
+        onChanged();
+        return this;
       }
-      private com.google.protobuf.RepeatedFieldBuilder<
-          ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node, ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder, ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder> 
-          getNeighborsFieldBuilder() {
-        if (neighborsBuilder_ == null) {
-          neighborsBuilder_ = new com.google.protobuf.RepeatedFieldBuilder<
-              ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node, ch.ethz.csg.oppnet.protobuf.OppNetProtos.Node.Builder, ch.ethz.csg.oppnet.protobuf.OppNetProtos.NodeOrBuilder>(
-                  neighbors_,
-                  ((bitField0_ & 0x00000010) == 0x00000010),
-                  getParentForChildren(),
-                  isClean());
-          neighbors_ = null;
-        }
-        return neighborsBuilder_;
+      /**
+       * <code>optional uint32 sequence_number = 35;</code>
+       *
+       * <pre>
+       * Counts the regular beacons of the sender, to let receivers estimate their loss
+       * </pre>
+       */
+      public Builder clearSequenceNumber() {
+        bitField0_ = (bitField0_ & ~0x00000400);
+        sequenceNumber_ = 0;
+        onChanged();
+        return this;
       }
 
       // @@protoc_insertion_point(builder_scope:ch.ethz.csg.oppnet.protobuf.Beacon)
@@ -1670,6 +2529,60 @@ public final class OppNetProtos {
      * </pre>
      */
     int getApLikelihood();
+
+    // optional uint32 max_beacon_size = 31;
+    /**
+     * <code>optional uint32 max_beacon_size = 31;</code>
+     *
+     * <pre>
+     * The maximum size (in bytes) of the beacons this node is able to receive
+     * </pre>
+     */
+    boolean hasMaxBeaconSize();
+    /**
+     * <code>optional uint32 max_beacon_size = 31;</code>
+     *
+     * <pre>
+     * The maximum size (in bytes) of the beacons this node is able to receive
+     * </pre>
+     */
+    int getMaxBeaconSize();
+
+    // optional bool compact_node_ids = 32;
+    /**
+     * <code>optional bool compact_node_ids = 32;</code>
+     *
+     * <pre>
+     * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+     * </pre>
+     */
+    boolean hasCompactNodeIds();
+    /**
+     * <code>optional bool compact_node_ids = 32;</code>
+     *
+     * <pre>
+     * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+     * </pre>
+     */
+    boolean getCompactNodeIds();
+
+    // optional bytes protocol_filter = 33;
+    /**
+     * <code>optional bytes protocol_filter = 33;</code>
+     *
+     * <pre>
+     * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+     * </pre>
+     */
+    boolean hasProtocolFilter();
+    /**
+     * <code>optional bytes protocol_filter = 33;</code>
+     *
+     * <pre>
+     * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+     * </pre>
+     */
+    com.google.protobuf.ByteString getProtocolFilter();
   }
   /**
    * Protobuf type {@code ch.ethz.csg.oppnet.protobuf.Node}
@@ -1775,6 +2688,21 @@ public final class OppNetProtos {
               apLikelihood_ = input.readInt32();
               break;
             }
+            case 248: {
+              bitField0_ |= 0x00000200;
+              maxBeaconSize_ = input.readUInt32();
+              break;
+            }
+            case 256: {
+              bitField0_ |= 0x00000400;
+              compactNodeIds_ = input.readBool();
+              break;
+            }
+            case 266: {
+              bitField0_ |= 0x00000800;
+              protocolFilter_ = input.readBytes();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -2092,6 +3020,78 @@ public final class OppNetProtos {
       return apLikelihood_;
     }
 
+    // optional uint32 max_beacon_size = 31;
+    public static final int MAX_BEACON_SIZE_FIELD_NUMBER = 31;
+    private int maxBeaconSize_;
+    /**
+     * <code>optional uint32 max_beacon_size = 31;</code>
+     *
+     * <pre>
+     * The maximum size (in bytes) of the beacons this node is able to receive
+     * </pre>
+     */
+    public boolean hasMaxBeaconSize() {
+      return ((bitField0_ & 0x00000200) == 0x00000200);
+    }
+    /**
+     * <code>optional uint32 max_beacon_size = 31;</code>
+     *
+     * <pre>
+     * The maximum size (in bytes) of the beacons this node is able to receive
+     * </pre>
+     */
+    public int getMaxBeaconSize() {
+      return maxBeaconSize_;
+    }
+
+    // optional bool compact_node_ids = 32;
+    public static final int COMPACT_NODE_IDS_FIELD_NUMBER = 32;
+    private boolean compactNodeIds_;
+    /**
+     * <code>optional bool compact_node_ids = 32;</code>
+     *
+     * <pre>
+     * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+     * </pre>
+     */
+    public boolean hasCompactNodeIds() {
+      return ((bitField0_ & 0x00000400) == 0x00000400);
+    }
+    /**
+     * <code>optional bool compact_node_ids = 32;</code>
+     *
+     * <pre>
+     * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+     * </pre>
+     */
+    public boolean getCompactNodeIds() {
+      return compactNodeIds_;
+    }
+
+    // optional bytes protocol_filter = 33;
+    public static final int PROTOCOL_FILTER_FIELD_NUMBER = 33;
+    private com.google.protobuf.ByteString protocolFilter_;
+    /**
+     * <code>optional bytes protocol_filter = 33;</code>
+     *
+     * <pre>
+     * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+     * </pre>
+     */
+    public boolean hasProtocolFilter() {
+      return ((bitField0_ & 0x00000800) == 0x00000800);
+    }
+    /**
+     * <code>optional bytes protocol_filter = 33;</code>
+     *
+     * <pre>
+     * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+     * </pre>
+     */
+    public com.google.protobuf.ByteString getProtocolFilter() {
+      return protocolFilter_;
+    }
+
     private void initFields() {
       nodeId_ = com.google.protobuf.ByteString.EMPTY;
       network_ = "";
@@ -2103,6 +3103,9 @@ public final class OppNetProtos {
       deltaLastseen_ = 0;
       protocols_ = java.util.Collections.emptyList();
       apLikelihood_ = 0;
+      maxBeaconSize_ = 0;
+      compactNodeIds_ = false;
+      protocolFilter_ = com.google.protobuf.ByteString.EMPTY;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -2146,6 +3149,15 @@ public final class OppNetProtos {
       if (((bitField0_ & 0x00000100) == 0x00000100)) {
         output.writeInt32(30, apLikelihood_);
       }
+      if (((bitField0_ & 0x00000200) == 0x00000200)) {
+        output.writeUInt32(31, maxBeaconSize_);
+      }
+      if (((bitField0_ & 0x00000400) == 0x00000400)) {
+        output.writeBool(32, compactNodeIds_);
+      }
+      if (((bitField0_ & 0x00000800) == 0x00000800)) {
+        output.writeBytes(33, protocolFilter_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -2200,6 +3212,18 @@ public final class OppNetProtos {
         size += com.google.protobuf.CodedOutputStream
           .computeInt32Size(30, apLikelihood_);
       }
+      if (((bitField0_ & 0x00000200) == 0x00000200)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(31, maxBeaconSize_);
+      }
+      if (((bitField0_ & 0x00000400) == 0x00000400)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBoolSize(32, compactNodeIds_);
+      }
+      if (((bitField0_ & 0x00000800) == 0x00000800)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(33, protocolFilter_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -2336,6 +3360,12 @@ public final class OppNetProtos {
         bitField0_ = (bitField0_ & ~0x00000100);
         apLikelihood_ = 0;
         bitField0_ = (bitField0_ & ~0x00000200);
+        maxBeaconSize_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000400);
+        compactNodeIds_ = false;
+        bitField0_ = (bitField0_ & ~0x00000800);
+        protocolFilter_ = com.google.protobuf.ByteString.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00001000);
         return this;
       }
 
@@ -2405,6 +3435,18 @@ public final class OppNetProtos {
           to_bitField0_ |= 0x00000100;
         }
         result.apLikelihood_ = apLikelihood_;
+        if (((from_bitField0_ & 0x00000400) == 0x00000400)) {
+          to_bitField0_ |= 0x00000200;
+        }
+        result.maxBeaconSize_ = maxBeaconSize_;
+        if (((from_bitField0_ & 0x00000800) == 0x00000800)) {
+          to_bitField0_ |= 0x00000400;
+        }
+        result.compactNodeIds_ = compactNodeIds_;
+        if (((from_bitField0_ & 0x00001000) == 0x00001000)) {
+          to_bitField0_ |= 0x00000800;
+        }
+        result.protocolFilter_ = protocolFilter_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -2460,6 +3502,15 @@ public final class OppNetProtos {
         if (other.hasApLikelihood()) {
           setApLikelihood(other.getApLikelihood());
         }
+        if (other.hasMaxBeaconSize()) {
+          setMaxBeaconSize(other.getMaxBeaconSize());
+        }
+        if (other.hasCompactNodeIds()) {
+          setCompactNodeIds(other.getCompactNodeIds());
+        }
+        if (other.hasProtocolFilter()) {
+          setProtocolFilter(other.getProtocolFilter());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -3073,6 +4124,156 @@ public final class OppNetProtos {
         return this;
       }
 
+      // optional uint32 max_beacon_size = 31;
+      private int maxBeaconSize_ ;
+      /**
+       * <code>optional uint32 max_beacon_size = 31;</code>
+       *
+       * <pre>
+       * The maximum size (in bytes) of the beacons this node is able to receive
+       * </pre>
+       */
+      public boolean hasMaxBeaconSize() {
+        return ((bitField0_ & 0x00000400) == 0x00000400);
+      }
+      /**
+       * <code>optional uint32 max_beacon_size = 31;</code>
+       *
+       * <pre>
+       * The maximum size (in bytes) of the beacons this node is able to receive
+       * </pre>
+       */
+      public int getMaxBeaconSize() {
+        return maxBeaconSize_;
+      }
+      /**
+       * <code>optional uint32 max_beacon_size = 31;</code>
+       *
+       * <pre>
+       * The maximum size (in bytes) of the beacons this node is able to receive
+       * </pre>
+       */
+      public Builder setMaxBeaconSize(int value) {
+        bitField0_ |= 0x00000400;
+        maxBeaconSize_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 max_beacon_size = 31;</code>
+       *
+       * <pre>
+       * The maximum size (in bytes) of the beacons this node is able to receive
+       * </pre>
+       */
+      public Builder clearMaxBeaconSize() {
+        bitField0_ = (bitField0_ & ~0x00000400);
+        maxBeaconSize_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional bool compact_node_ids = 32;
+      private boolean compactNodeIds_ ;
+      /**
+       * <code>optional bool compact_node_ids = 32;</code>
+       *
+       * <pre>
+       * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+       * </pre>
+       */
+      public boolean hasCompactNodeIds() {
+        return ((bitField0_ & 0x00000800) == 0x00000800);
+      }
+      /**
+       * <code>optional bool compact_node_ids = 32;</code>
+       *
+       * <pre>
+       * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+       * </pre>
+       */
+      public boolean getCompactNodeIds() {
+        return compactNodeIds_;
+      }
+      /**
+       * <code>optional bool compact_node_ids = 32;</code>
+       *
+       * <pre>
+       * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+       * </pre>
+       */
+      public Builder setCompactNodeIds(boolean value) {
+        bitField0_ |= 0x00000800;
+        compactNodeIds_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bool compact_node_ids = 32;</code>
+       *
+       * <pre>
+       * If this node understands compact node IDs in the neighbor lists of beacons, and protocol filters
+       * </pre>
+       */
+      public Builder clearCompactNodeIds() {
+        bitField0_ = (bitField0_ & ~0x00000800);
+        compactNodeIds_ = false;
+        onChanged();
+        return this;
+      }
+
+      // optional bytes protocol_filter = 33;
+      private com.google.protobuf.ByteString protocolFilter_ = com.google.protobuf.ByteString.EMPTY;
+      /**
+       * <code>optional bytes protocol_filter = 33;</code>
+       *
+       * <pre>
+       * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+       * </pre>
+       */
+      public boolean hasProtocolFilter() {
+        return ((bitField0_ & 0x00001000) == 0x00001000);
+      }
+      /**
+       * <code>optional bytes protocol_filter = 33;</code>
+       *
+       * <pre>
+       * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+       * </pre>
+       */
+      public com.google.protobuf.ByteString getProtocolFilter() {
+        return protocolFilter_;
+      }
+      /**
+       * <code>optional bytes protocol_filter = 33;</code>
+       *
+       * <pre>
+       * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+       * </pre>
+       */
+      public Builder setProtocolFilter(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00001000;
+        protocolFilter_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bytes protocol_filter = 33;</code>
+       *
+       * <pre>
+       * A Bloom filter of the hashes of all supported protocols, instead of the hashes themselves
+       * </pre>
+       */
+      public Builder clearProtocolFilter() {
+        bitField0_ = (bitField0_ & ~0x00001000);
+        protocolFilter_ = getDefaultInstance().getProtocolFilter();
+        onChanged();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:ch.ethz.csg.oppnet.protobuf.Node)
     }
 
@@ -3926,23 +5127,29 @@ public final class OppNetProtos {
     java.lang.String[] descriptorData = {
       "\n8src/ch/ethz/csg/oppnet/protobuf/Packet" +
       "Descriptions.proto\022\033ch.ethz.csg.oppnet.p" +
-      "rotobuf\"\220\002\n\006Beacon\022M\n\013beacon_type\030\001 \001(\0162" +
+      "rotobuf\"\224\003\n\006Beacon\022M\n\013beacon_type\030\001 \001(\0162" +
       "..ch.ethz.csg.oppnet.protobuf.Beacon.Bea" +
       "conType:\010ORIGINAL\022\021\n\tbeacon_id\030\002 \001(\r\022\024\n\014" +
       "time_created\030\003 \001(\004\0221\n\006sender\030\n \001(\0132!.ch." +
       "ethz.csg.oppnet.protobuf.Node\0224\n\tneighbo" +
       "rs\030\024 \003(\0132!.ch.ethz.csg.oppnet.protobuf.N" +
-      "ode\"%\n\nBeaconType\022\014\n\010ORIGINAL\020\000\022\t\n\005REPLY" +
-      "\020\001\"\340\001\n\004Node\022\017\n\007node_id\030\001 \001(\014\022\017\n\007network\030",
-      "\002 \001(\t\022\023\n\013ip4_address\030\003 \001(\014\022\023\n\013ip6_addres" +
-      "s\030\004 \001(\014\022\022\n\nbt_address\030\005 \001(\014\022\037\n\021multicast" +
-      "_capable\030\006 \001(\010:\004true\022\025\n\rtime_lastseen\030\007 " +
-      "\001(\004\022\026\n\016delta_lastseen\030\010 \001(\r\022\021\n\tprotocols" +
-      "\030\024 \003(\014\022\025\n\rap_likelihood\030\036 \001(\005\"x\n\017Transpo" +
-      "rtPacket\022\023\n\013source_node\030\001 \001(\014\022\023\n\013target_" +
-      "node\030\002 \001(\014\022\020\n\010protocol\030\003 \001(\014\022\013\n\003ttl\030\004 \001(" +
-      "\004\022\013\n\003mac\030\n \001(\014\022\017\n\007payload\030\024 \001(\014B+\n\033ch.et" +
-      "hz.csg.oppnet.protobufB\014OppNetProtos"
+      "ode\022\024\n\014list_version\030\036 \001(\r\022\r\n\005delta\030\037 \001(\010" +
+      "\022\031\n\021removed_neighbors\030  \003(\014\022\027\n\017resync_re",
+      "quests\030! \003(\014\022\020\n\010reply_to\030\" \001(\014\022\027\n\017sequen" +
+      "ce_number\030# \001(\r\"%\n\nBeaconType\022\014\n\010ORIGINA" +
+      "L\020\000\022\t\n\005REPLY\020\001\"\254\002\n\004Node\022\017\n\007node_id\030\001 \001(\014" +
+      "\022\017\n\007network\030\002 \001(\t\022\023\n\013ip4_address\030\003 \001(\014\022\023" +
+      "\n\013ip6_address\030\004 \001(\014\022\022\n\nbt_address\030\005 \001(\014\022" +
+      "\037\n\021multicast_capable\030\006 \001(\010:\004true\022\025\n\rtime" +
+      "_lastseen\030\007 \001(\004\022\026\n\016delta_lastseen\030\010 \001(\r\022" +
+      "\021\n\tprotocols\030\024 \003(\014\022\025\n\rap_likelihood\030\036 \001(" +
+      "\005\022\027\n\017max_beacon_size\030\037 \001(\r\022\030\n\020compact_no" +
+      "de_ids\030  \001(\010\022\027\n\017protocol_filter\030! \001(\014\"x\n",
+      "\017TransportPacket\022\023\n\013source_node\030\001 \001(\014\022\023\n" +
+      "\013target_node\030\002 \001(\014\022\020\n\010protocol\030\003 \001(\014\022\013\n\003" +
+      "ttl\030\004 \001(\004\022\013\n\003mac\030\n \001(\014\022\017\n\007payload\030\024 \001(\014B" +
+      "+\n\033ch.ethz.csg.oppnet.protobufB\014OppNetPr" +
+      "otos"
     };
     com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner assigner =
       new com.google.protobuf.Descriptors.FileDescriptor.InternalDescriptorAssigner() {
@@ -3954,13 +5161,13 @@ public final class OppNetProtos {
           internal_static_ch_ethz_csg_oppnet_protobuf_Beacon_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_ch_ethz_csg_oppnet_protobuf_Beacon_descriptor,
-              new java.lang.String[] { "BeaconType", "BeaconId", "TimeCreated", "Sender", "Neighbors", });
+              new java.lang.String[] { "BeaconType", "BeaconId", "TimeCreated", "Sender", "Neighbors", "ListVersion", "Delta", "RemovedNeighbors", "ResyncRequests", "ReplyTo", "SequenceNumber", });
           internal_static_ch_ethz_csg_oppnet_protobuf_Node_descriptor =
             getDescriptor().getMessageTypes().get(1);
           internal_static_ch_ethz_csg_oppnet_protobuf_Node_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_ch_ethz_csg_oppnet_protobuf_Node_descriptor,
-              new java.lang.String[] { "NodeId", "Network", "Ip4Address", "Ip6Address", "BtAddress", "MulticastCapable", "TimeLastseen", "DeltaLastseen", "Protocols", "ApLikelihood", });
+              new java.lang.String[] { "NodeId", "Network", "Ip4Address", "Ip6Address", "BtAddress", "MulticastCapable", "TimeLastseen", "DeltaLastseen", "Protocols", "ApLikelihood", "MaxBeaconSize", "CompactNodeIds", "ProtocolFilter", });
           internal_static_ch_ethz_csg_oppnet_protobuf_TransportPacket_descriptor =
             getDescriptor().getMessageTypes().get(2);
           internal_static_ch_ethz_csg_oppnet_protobuf_TransportPacket_fieldAccessorTable = new
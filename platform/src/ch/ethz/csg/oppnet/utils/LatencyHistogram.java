@@ -0,0 +1,80 @@
+
+package ch.ethz.csg.oppnet.utils;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Histogram of latencies with exponentially growing buckets, cheap enough to be updated on every
+ * packet. Bucket i counts latencies in [2^(i-1), 2^i) microseconds, so percentiles are reported
+ * as the upper bound of the bucket they fall into, i.e. with a relative error of at most 2x.
+ */
+public class LatencyHistogram {
+    private static final int BUCKET_COUNT = 32;
+
+    private final long[] mBuckets = new long[BUCKET_COUNT];
+    private long mCount;
+    private long mSumMicros;
+    private long mMaxMicros;
+
+    /**
+     * @param nanos the latency to record, in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        final long micros = Math.max(0, TimeUnit.NANOSECONDS.toMicros(nanos));
+        final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+        mBuckets[bucket]++;
+        mCount++;
+        mSumMicros += micros;
+        mMaxMicros = Math.max(mMaxMicros, micros);
+    }
+
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets[i] = 0;
+        }
+        mCount = 0;
+        mSumMicros = 0;
+        mMaxMicros = 0;
+    }
+
+    public synchronized long getCount() {
+        return mCount;
+    }
+
+    /**
+     * @param percentile the percentile, between 0 and 100
+     * @return the upper bound (in microseconds) of the latency below which the specified
+     *         percentage of all recorded latencies fall, or 0 if nothing has been recorded yet
+     */
+    public synchronized long getPercentileMicros(double percentile) {
+        if (mCount == 0) {
+            return 0;
+        }
+
+        final long threshold = (long) Math.ceil(mCount * percentile / 100);
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += mBuckets[i];
+            if (seen >= Math.max(1, threshold)) {
+                return Math.min(mMaxMicros, (1L << i) - 1);
+            }
+        }
+        return mMaxMicros;
+    }
+
+    /**
+     * Adds a summary of this histogram to a metrics snapshot.
+     *
+     * @param snapshot the snapshot to add the values to
+     * @param prefix the prefix of the metric names
+     */
+    public synchronized void addTo(Map<String, Number> snapshot, String prefix) {
+        snapshot.put(prefix + ".count", mCount);
+        snapshot.put(prefix + ".mean_us", (mCount == 0 ? 0 : mSumMicros / mCount));
+        snapshot.put(prefix + ".p50_us", getPercentileMicros(50));
+        snapshot.put(prefix + ".p90_us", getPercentileMicros(90));
+        snapshot.put(prefix + ".p99_us", getPercentileMicros(99));
+        snapshot.put(prefix + ".max_us", mMaxMicros);
+    }
+}
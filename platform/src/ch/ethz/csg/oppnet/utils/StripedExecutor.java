@@ -0,0 +1,201 @@
+
+package ch.ethz.csg.oppnet.utils;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Processes items on a fixed number of worker threads, where each item is assigned to a worker
+ * (its "stripe") by a key. Items with the same key are always handled by the same worker, and
+ * thus in the order they have been submitted, while items with different keys may be handled in
+ * parallel.
+ * <p>
+ * The queue of each worker can be bounded, in which case items are dropped according to a
+ * {@link DropPolicy} when it is full.
+ *
+ * @param <T> the type of items to process
+ */
+public class StripedExecutor<T> {
+    /**
+     * Callback which is invoked on a worker thread for each submitted item.
+     */
+    public interface Handler<T> {
+        public void handle(T item);
+    }
+
+    /**
+     * What to do when an item is submitted to a full queue.
+     */
+    public enum DropPolicy {
+        /** Drop the submitted item, keeping the items which are already queued. */
+        DROP_NEWEST,
+        /** Drop the item at the head of the queue to make room for the submitted one. */
+        DROP_OLDEST
+    }
+
+    private final String mTag;
+    private final int mStripeCount;
+    private final int mQueueCapacity;
+    private final DropPolicy mDropPolicy;
+    private final Handler<T> mHandler;
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    private final List<Worker> mWorkers;
+    private ExecutorService mExecutor;
+
+    /**
+     * Creates an executor with unbounded queues.
+     *
+     * @param tag the tag used by the worker threads when logging
+     * @param stripeCount the number of workers, 1 to process all items sequentially
+     * @param handler the callback to handle the items
+     */
+    public StripedExecutor(String tag, int stripeCount, Handler<T> handler) {
+        this(tag, stripeCount, Integer.MAX_VALUE, DropPolicy.DROP_NEWEST, handler);
+    }
+
+    /**
+     * @param tag the tag used by the worker threads when logging
+     * @param stripeCount the number of workers, 1 to process all items sequentially
+     * @param queueCapacity the maximum number of items queued per worker
+     * @param dropPolicy which item to drop when a queue is full
+     * @param handler the callback to handle the items
+     */
+    public StripedExecutor(String tag, int stripeCount, int queueCapacity,
+            DropPolicy dropPolicy, Handler<T> handler) {
+        checkArgument(stripeCount > 0, "Stripe count must be positive, not %s", stripeCount);
+        checkArgument(queueCapacity > 0, "Queue capacity must be positive, not %s", queueCapacity);
+        mTag = checkNotNull(tag, "Tag can not be null");
+        mStripeCount = stripeCount;
+        mQueueCapacity = queueCapacity;
+        mDropPolicy = checkNotNull(dropPolicy, "Drop policy can not be null");
+        mHandler = checkNotNull(handler, "Handler can not be null");
+
+        mWorkers = new ArrayList<>(stripeCount);
+        for (int i = 0; i < stripeCount; i++) {
+            mWorkers.add(new Worker());
+        }
+    }
+
+    public int getStripeCount() {
+        return mStripeCount;
+    }
+
+    /**
+     * Starts the worker threads. Items submitted before are processed right away.
+     */
+    public synchronized void start() {
+        if (mExecutor == null) {
+            mExecutor = Executors.newFixedThreadPool(mStripeCount);
+            for (int i = 0; i < mStripeCount; i++) {
+                // Workers can not be restarted once interrupted, so create new ones
+                final Worker worker = new Worker(mWorkers.get(i).mQueue);
+                mWorkers.set(i, worker);
+                mExecutor.execute(worker);
+            }
+        }
+    }
+
+    /**
+     * Interrupts all worker threads immediately. Items which have not been handled yet remain
+     * queued until the executor is started again.
+     */
+    public synchronized void stop() {
+        if (mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Queues an item for processing by the worker responsible for the specified key.
+     *
+     * @param stripeKey the key which determines the worker, usually a hash code
+     * @param item the item to process
+     * @return the item which has been dropped because the queue was full (either the submitted
+     *         one or the oldest queued one, depending on the drop policy), or null
+     */
+    public T submit(int stripeKey, T item) {
+        final BlockingQueue<T> queue =
+                mWorkers.get((stripeKey & Integer.MAX_VALUE) % mStripeCount).mQueue;
+
+        // Serialize producers per queue, so that a slot freed by dropping the oldest item can not
+        // be taken by another producer (the worker only ever removes items)
+        synchronized (queue) {
+            if (queue.offer(item)) {
+                return null;
+            } else if (mDropPolicy == DropPolicy.DROP_NEWEST) {
+                mDroppedCount.incrementAndGet();
+                return item;
+            }
+
+            final T oldest = queue.poll();
+            if (oldest != null) {
+                mDroppedCount.incrementAndGet();
+            }
+            queue.offer(item);
+            return oldest;
+        }
+    }
+
+    /**
+     * @return the number of items which have been dropped because a queue was full
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * @return the number of items which have been submitted, but not handled yet
+     */
+    public int getQueuedCount() {
+        int count = 0;
+        for (final Worker worker : mWorkers) {
+            count += worker.mQueue.size();
+        }
+        return count;
+    }
+
+    private class Worker extends InterruptibleFailsafeRunnable {
+        private final BlockingQueue<T> mQueue;
+
+        public Worker() {
+            this(new LinkedBlockingQueue<T>(mQueueCapacity));
+        }
+
+        public Worker(BlockingQueue<T> queue) {
+            super(mTag);
+            mQueue = queue;
+        }
+
+        @Override
+        protected void execute() {
+            while (!mThread.isInterrupted()) {
+                final T nextItem;
+                try {
+                    nextItem = mQueue.take();
+                } catch (InterruptedException e) {
+                    // Worker got interrupted
+                    break;
+                }
+
+                try {
+                    mHandler.handle(nextItem);
+                } catch (RuntimeException e) {
+                    // Keep the worker alive, otherwise its whole stripe would stall
+                    Log.e(mTag, "Failed to handle " + nextItem, e);
+                }
+            }
+        }
+    }
+}